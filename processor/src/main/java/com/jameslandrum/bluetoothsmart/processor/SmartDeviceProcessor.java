@@ -0,0 +1,397 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a {@code <DeviceClass>$$DeviceBinder} for every class annotated with SmartDeviceDef.
+ *
+ * The binder assigns CharacteristicRef fields and decodes AdValue fields with plain field
+ * access, and calls the Identifier methods directly, so neither SmartDevice nor the scanner
+ * needs reflection for that class. The CharacteristicRef annotations themselves are looked up
+ * once, when the binder class is loaded. Classes whose annotated members cannot be reached from
+ * generated code (private or final fields, private identifiers, private classes) are skipped
+ * and keep using the reflective path.
+ */
+public class SmartDeviceProcessor extends AbstractProcessor {
+	private static final String PACKAGE = "com.jameslandrum.bluetoothsmart";
+	private static final String SMART_DEVICE_DEF = PACKAGE + ".annotations.SmartDeviceDef";
+	private static final String AD_VALUE = PACKAGE + ".annotations.AdValue";
+	private static final String AD_COMPATIBLE = PACKAGE + ".annotations.AdCompatible";
+	private static final String CHARACTERISTIC_REF = PACKAGE + ".annotations.CharacteristicRef";
+	private static final String IDENTIFIER = PACKAGE + ".annotations.Identifier";
+	private static final String CHARACTERISTIC = PACKAGE + ".Characteristic";
+	private static final String SUFFIX = "$$DeviceBinder";
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return Collections.singleton(SMART_DEVICE_DEF);
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement definition = processingEnv.getElementUtils().getTypeElement(SMART_DEVICE_DEF);
+		if (definition == null) return false;
+
+		for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(definition))) {
+			try {
+				Binder binder = collect(type);
+				if (binder != null) write(binder);
+			} catch (IOException e) {
+				error(type, "Unable to write binder for " + type + ": " + e.getMessage());
+			}
+		}
+		return false;
+	}
+
+	private Binder collect(TypeElement type) {
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) {
+				note(type, "Private device class, binding reflectively.");
+				return null;
+			}
+		}
+
+		Binder binder = new Binder(type);
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			AnnotationMirror adValue = mirror(field, AD_VALUE);
+			AnnotationMirror charRef = mirror(field, CHARACTERISTIC_REF);
+			if (adValue == null && charRef == null) continue;
+
+			Set<Modifier> modifiers = field.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+				note(field, "Field " + field.getSimpleName() + " is private or final, binding " + type.getSimpleName() + " reflectively.");
+				return null;
+			}
+
+			if (adValue != null) {
+				AdField f = adField(field, adValue);
+				if (f != null) binder.adFields.add(f);
+			}
+			if (charRef != null) {
+				if (!isAssignable(field.asType(), CHARACTERISTIC)) {
+					error(field, "CharacteristicRef field must be a Characteristic.");
+					return null;
+				}
+				binder.charFields.add(charField(field, charRef));
+			}
+		}
+		for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			if (mirror(method, IDENTIFIER) == null) continue;
+			if (method.getModifiers().contains(Modifier.PRIVATE)) {
+				note(method, "Identifier " + method.getSimpleName() + " is private, binding " + type.getSimpleName() + " reflectively.");
+				return null;
+			}
+			if (!isIdentifier(method)) {
+				warning(method, "Identifier must be static boolean (byte[]), it will never match.");
+				continue;
+			}
+			binder.identifiers.add(method.getSimpleName().toString());
+		}
+		// Change bits follow field name order, as in DeviceDescriptor. Both leave out fields
+		// of unsupported types; adField and AdProcessor.isSupported accept the same types.
+		Collections.sort(binder.adFields, new Comparator<AdField>() {
+			@Override
+			public int compare(AdField a, AdField b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		return binder;
+	}
+
+	private boolean isIdentifier(ExecutableElement method) {
+		List<? extends VariableElement> parameters = method.getParameters();
+		return method.getModifiers().contains(Modifier.STATIC)
+				&& method.getReturnType().getKind() == TypeKind.BOOLEAN
+				&& parameters.size() == 1
+				&& parameters.get(0).asType().toString().equals("byte[]");
+	}
+
+	private AdField adField(VariableElement field, AnnotationMirror mirror) {
+		Map<String, Object> values = values(mirror);
+		AdField f = new AdField();
+		f.name = field.getSimpleName().toString();
+		f.start = (Integer) values.get("start");
+		f.end = (Integer) values.get("end");
+		f.signed = (Boolean) values.get("signed");
+		f.flip = (Boolean) values.get("flip");
+		f.type = values.get("type").toString();
+		f.adType = (Integer) values.get("adType");
+
+		TypeMirror t = field.asType();
+		if (t.getKind() == TypeKind.INT) {
+			f.kind = AdField.INT;
+		} else if (t.getKind() == TypeKind.LONG) {
+			f.kind = AdField.LONG;
+		} else if (t.getKind() == TypeKind.BOOLEAN) {
+			f.kind = AdField.BOOLEAN;
+		} else if (t.toString().equals(String.class.getName())) {
+			f.kind = AdField.STRING;
+		} else if (isAssignable(t, AD_COMPATIBLE)) {
+			f.kind = AdField.COMPATIBLE;
+		} else {
+			warning(field, "Unsupported AdValue type " + t + ", field will not be processed.");
+			return null;
+		}
+		return f;
+	}
+
+	private CharField charField(VariableElement field, AnnotationMirror mirror) {
+		Map<String, Object> values = values(mirror);
+		CharField f = new CharField();
+		f.name = field.getSimpleName().toString();
+		f.service = (String) values.get("service");
+		f.id = (String) values.get("id");
+		f.label = (String) values.get("label");
+		if (f.label.equals("Unknown")) f.label = f.name;
+		return f;
+	}
+
+	private void write(Binder binder) throws IOException {
+		Writer w = processingEnv.getFiler()
+				.createSourceFile(binder.packageName + "." + binder.className, binder.type)
+				.openWriter();
+		try {
+			w.write("// Generated code from bluetoothsmart. Do not modify!\n");
+			if (!binder.packageName.isEmpty()) w.write("package " + binder.packageName + ";\n\n");
+			w.write("import " + PACKAGE + ".AdRecord;\n");
+			w.write("import " + PACKAGE + ".AdWindow;\n");
+			w.write("import " + PACKAGE + ".Characteristic;\n");
+			w.write("import " + PACKAGE + ".DeviceBinder;\n");
+			w.write("import " + PACKAGE + ".annotations.AdValue;\n");
+			w.write("import " + PACKAGE + ".annotations.CharacteristicRef;\n\n");
+			w.write("@SuppressWarnings(\"rawtypes\")\n");
+			w.write("public final class " + binder.className + " implements DeviceBinder<" + binder.deviceName + "> {\n");
+			for (AdField f : binder.adFields) {
+				w.write("\tprivate static final AdWindow " + f.window() + " = new AdWindow("
+						+ (f.adType < 0 ? "" : "0x" + Integer.toHexString(f.adType) + ", ") + f.start + ", " + f.end + ", AdValue.Type." + f.type + ", " + f.signed + ", " + f.flip + ");\n");
+			}
+			for (CharField f : binder.charFields) {
+				w.write("\tprivate static final CharacteristicRef " + f.reference() + " = reference(" + literal(f.name) + ");\n");
+			}
+			if (!binder.adFields.isEmpty() || !binder.charFields.isEmpty()) w.write("\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic void bindCharacteristics(" + binder.deviceName + " device) {\n");
+			if (!binder.charFields.isEmpty()) w.write("\t\tCharacteristic c;\n");
+			for (CharField f : binder.charFields) {
+				w.write("\t\tc = device.getCharacteristic(" + literal(f.service) + ", " + literal(f.id) + ");\n");
+				w.write("\t\tc.setCharacteristicLabel(" + literal(f.label) + ");\n");
+				w.write("\t\tc.setCharacteristicReference(" + f.reference() + ");\n");
+				w.write("\t\tdevice." + f.name + " = c;\n");
+			}
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic long processAdvertisement(" + binder.deviceName + " device, AdRecord record) {\n");
+			w.write("\t\tlong changed = 0;\n");
+			for (int i = 0; i < binder.adFields.size(); i++) {
+				w.write(binder.adFields.get(i).statement(1L << Math.min(i, 63)));
+			}
+			w.write("\t\treturn changed;\n");
+			w.write("\t}\n\n");
+
+			w.write("\t@Override\n");
+			w.write("\tpublic boolean identify(byte[] advertisement) {\n");
+			if (binder.identifiers.isEmpty()) {
+				w.write("\t\treturn false;\n");
+			} else {
+				w.write("\t\treturn ");
+				for (int i = 0; i < binder.identifiers.size(); i++) {
+					if (i > 0) w.write("\n\t\t\t\t|| ");
+					w.write(binder.deviceName + "." + binder.identifiers.get(i) + "(advertisement)");
+				}
+				w.write(";\n");
+			}
+			w.write("\t}\n");
+
+			if (!binder.charFields.isEmpty()) {
+				w.write("\n\tprivate static CharacteristicRef reference(String field) {\n");
+				w.write("\t\ttry {\n");
+				w.write("\t\t\treturn " + binder.deviceName + ".class.getDeclaredField(field).getAnnotation(CharacteristicRef.class);\n");
+				w.write("\t\t} catch (NoSuchFieldException e) {\n");
+				w.write("\t\t\tthrow new AssertionError(e);\n");
+				w.write("\t\t}\n");
+				w.write("\t}\n");
+			}
+			w.write("}\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private AnnotationMirror mirror(Element element, String annotation) {
+		for (AnnotationMirror m : element.getAnnotationMirrors()) {
+			if (((TypeElement) m.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) return m;
+		}
+		return null;
+	}
+
+	private Map<String, Object> values(AnnotationMirror mirror) {
+		Map<String, Object> values = new HashMap<>();
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e :
+				processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+			values.put(e.getKey().getSimpleName().toString(), e.getValue().getValue());
+		}
+		return values;
+	}
+
+	private boolean isAssignable(TypeMirror type, String target) {
+		TypeElement element = processingEnv.getElementUtils().getTypeElement(target);
+		return element != null && processingEnv.getTypeUtils().isAssignable(
+				type, processingEnv.getTypeUtils().erasure(element.asType()));
+	}
+
+	private static String literal(String s) {
+		StringBuilder b = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') b.append('\\');
+			b.append(c);
+		}
+		return b.append('"').toString();
+	}
+
+	private void note(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, message, e);
+	}
+
+	private void warning(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, e);
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+
+	private class Binder {
+		final TypeElement type;
+		final String packageName;
+		final String className;
+		final String deviceName;
+		final List<AdField> adFields = new ArrayList<>();
+		final List<CharField> charFields = new ArrayList<>();
+		final List<String> identifiers = new ArrayList<>();
+
+		Binder(TypeElement type) {
+			this.type = type;
+			packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+			String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+			className = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + SUFFIX;
+			deviceName = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+		}
+	}
+
+	private static class AdField {
+		static final int INT = 0;
+		static final int LONG = 1;
+		static final int BOOLEAN = 2;
+		static final int STRING = 3;
+		static final int COMPATIBLE = 4;
+
+		String name;
+		int start;
+		int end;
+		boolean signed;
+		boolean flip;
+		String type;
+		int adType;
+		int kind;
+
+		String window() {
+			return name + "Window";
+		}
+
+		/**
+		 * Decodes the field and records its bit if the value changed.
+		 */
+		String statement(long bit) {
+			String value = name + "Value";
+			String mark = "\t\t\tchanged |= 0x" + Long.toHexString(bit) + "L;\n";
+			String read;
+			String differs;
+			switch (kind) {
+				case INT:
+					read = "int " + value + " = (int) " + window() + ".read(record);";
+					differs = "device." + name + " != " + value;
+					break;
+				case LONG:
+					read = "long " + value + " = " + window() + ".read(record);";
+					differs = "device." + name + " != " + value;
+					break;
+				case BOOLEAN:
+					read = "boolean " + value + " = " + window() + ".readBoolean(record);";
+					differs = "device." + name + " != " + value;
+					break;
+				case STRING:
+					read = "String " + value + " = new String(" + window() + ".readBytes(record));";
+					differs = "!" + value + ".equals(device." + name + ")";
+					break;
+				default:
+					// The previous contents of an AdCompatible are not visible, so a set always counts.
+					return "\t\tif (device." + name + " != null) {\n"
+							+ "\t\t\tdevice." + name + ".set(" + window() + ".readBytes(record));\n"
+							+ mark
+							+ "\t\t}\n";
+			}
+			return "\t\t" + read + "\n"
+					+ "\t\tif (" + differs + ") {\n"
+					+ "\t\t\tdevice." + name + " = " + value + ";\n"
+					+ mark
+					+ "\t\t}\n";
+		}
+	}
+
+	private static class CharField {
+		String name;
+		String service;
+		String id;
+		String label;
+
+		String reference() {
+			return name + "Ref";
+		}
+	}
+}
@@ -9,6 +9,14 @@
 
 # Add any project specific keep options here:
 
+# Generated device binders are looked up by name.
+-keep class **$$DeviceBinder { <init>(); }
+# Binders read the CharacteristicRef annotations of their fields by field name.
+-keepattributes RuntimeVisibleAnnotations
+-keepclassmembers class * {
+    @com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef <fields>;
+}
+
 # If your project uses WebView with JS, uncomment the following
 # and specify the fully qualified class name to the JavaScript interface
 # class:
@@ -20,107 +20,92 @@ import com.jameslandrum.bluetoothsmart.annotations.AdCompatible;
 import com.jameslandrum.bluetoothsmart.annotations.AdValue;
 
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.math.BigInteger;
-import java.util.Arrays;
-import java.util.BitSet;
 
 /**
  * Processes advertisements based on their specifications.
  */
 public class AdProcessor {
-	private AdValue mSource;
-	private Field mField;
-	private Processor mProcessor;
-
-	private int mStart = 0;
-	private int mEnd = 0;
-	private int mByteStart = 0;
-	private int mByteEnd = 0;
-	private int mByteLength = 0;
-	private int mShift = 0;
-	private int mClip = 0;
+	private final AdWindow mWindow;
+	private final Field mField;
+	private final Processor mProcessor;
 
 	public AdProcessor(Field f, AdValue value) {
-		mSource = value;
+		mWindow = new AdWindow(value);
 		mField = f;
+		mField.setAccessible(true);
 		mProcessor = Processor.forType(f.getType());
-		switch (value.type()) {
-			case BIT:
-				mStart = value.start();
-				mEnd = value.end();
-				mByteStart = (int) Math.floor(mStart/8.0f);
-				mByteEnd =  (int) Math.ceil(mEnd/8.0f);
-				mByteLength = (int) Math.ceil((mEnd - mStart) / 8.0f);
-				mShift = (8 - mEnd % 8) % 8;
-				mClip = (mStart % 8 + mShift) % 8;
-				break;
-			case BYTE:
-				mStart = value.start() * 8;
-				mEnd = value.end() * 8;
-				mByteStart = value.start();
-				mByteEnd = value.end();
-				mByteLength = mByteEnd - mByteStart;
-  				break;
-		}
 	}
 
-	void process(Object o, byte[] advertisement) {
-		if (mProcessor == null) return;
-
-		BigInteger bytes = new BigInteger(Arrays.copyOfRange(advertisement, mByteStart, mByteEnd));
-		bytes = bytes.shiftRight(mShift);
-		byte[] data = bytes.toByteArray();
-
-		if (data.length < mByteLength) {
-			data = Arrays.copyOf(data, mByteLength);
-		}
-
-		data = Arrays.copyOfRange(data, data.length-mByteLength, data.length);
-		if (mClip > 0) data[0] &= 0b11111111 >> mClip;
-
-		if (mSource.flip()) {
-			for (int i = 0; i < data.length / 2; i++) {
-				byte t = data[i];
-				data[i] = data[data.length-i-1];
-				data[data.length-i-1] = t;
-			}
-		}
+	/**
+	 * Decodes the field from the advertisement.
+	 * @return True if the field's value changed.
+	 */
+	boolean process(Object o, AdRecord record) {
+		if (mProcessor == null) return false;
 
 		try {
-			mField.setAccessible(true);
-			mProcessor.process(o,this,data);
-			mField.setAccessible(false);
+			return mProcessor.process(o, this, record);
 		} catch (Exception ignored) {
 			ignored.printStackTrace();
+			return false;
 		}
 	}
 
+	String getFieldName() {
+		return mField.getName();
+	}
+
+	/**
+	 * @return True if fields of the given type can be decoded. Fields of other types are left
+	 * out of processing and of the change bits, here and in generated binders alike.
+	 */
+	static boolean isSupported(Class<?> type) {
+		return Processor.forType(type) != null;
+	}
+
 	private enum Processor {
 		Integer(int.class) {
 			@Override
-			void process(Object o, AdProcessor f, byte[] data) throws IllegalAccessException {
-				int val = new BigInteger(data).intValue();
-				if (!f.mSource.signed() && val < 0) val = (int) ((long)val & 0xFFL);
-				f.mField.setInt(o, val);
+			boolean process(Object o, AdProcessor f, AdRecord record) throws IllegalAccessException {
+				int value = (int) f.mWindow.read(record);
+				if (f.mField.getInt(o) == value) return false;
+				f.mField.setInt(o, value);
+				return true;
+			}
+		},
+		Long(long.class) {
+			@Override
+			boolean process(Object o, AdProcessor f, AdRecord record) throws IllegalAccessException {
+				long value = f.mWindow.read(record);
+				if (f.mField.getLong(o) == value) return false;
+				f.mField.setLong(o, value);
+				return true;
 			}
 		},
 		String(String.class) {
 			@Override
-			void process(Object o, AdProcessor f, byte[] data) throws IllegalAccessException {
-				f.mField.set(o, new String(data));
+			boolean process(Object o, AdProcessor f, AdRecord record) throws IllegalAccessException {
+				String value = new String(f.mWindow.readBytes(record));
+				if (value.equals(f.mField.get(o))) return false;
+				f.mField.set(o, value);
+				return true;
 			}
 		},
 		Boolean(boolean.class) {
 			@Override
-			void process(Object o, AdProcessor f, byte[] data) throws IllegalAccessException {
-				f.mField.setBoolean(o, new BigInteger(data).intValue() > 0);
+			boolean process(Object o, AdProcessor f, AdRecord record) throws IllegalAccessException {
+				boolean value = f.mWindow.readBoolean(record);
+				if (f.mField.getBoolean(o) == value) return false;
+				f.mField.setBoolean(o, value);
+				return true;
 			}
 		},
 		Compatible(AdCompatible.class) {
 			@Override
-			void process(Object o, AdProcessor f, byte[] data) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-				AdCompatible.class.getMethod("set", byte[].class).invoke(f.mField.get(o), data);
+			boolean process(Object o, AdProcessor f, AdRecord record) throws IllegalAccessException {
+				// The previous contents are not visible, so a set always counts as a change.
+				((AdCompatible) f.mField.get(o)).set(f.mWindow.readBytes(record));
+				return true;
 			}
 		}
 		;
@@ -138,6 +123,6 @@ public class AdProcessor {
 			return null;
 		}
 
-		abstract void process(Object o, AdProcessor p, byte[] data) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException;
+		abstract boolean process(Object o, AdProcessor p, AdRecord record) throws IllegalAccessException;
 	}
 }
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart;
+
+import java.nio.charset.Charset;
+
+/**
+ * A view of the length-type-value AD structures in a raw advertisement.
+ *
+ * The structures are located once when the record is reset; every accessor then reads the
+ * advertisement in place. A record is reused for each advertisement a thread handles, so it
+ * must not be kept or shared across threads.
+ */
+public final class AdRecord {
+	public static final int TYPE_FLAGS = 0x01;
+	public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	public static final int TYPE_UUID16_COMPLETE = 0x03;
+	public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+	public static final int TYPE_UUID32_COMPLETE = 0x05;
+	public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+	public static final int TYPE_UUID128_COMPLETE = 0x07;
+	public static final int TYPE_NAME_SHORT = 0x08;
+	public static final int TYPE_NAME_COMPLETE = 0x09;
+	public static final int TYPE_TX_POWER = 0x0A;
+	public static final int TYPE_SERVICE_DATA_16 = 0x16;
+	public static final int TYPE_MANUFACTURER = 0xFF;
+
+	public static final int MANUFACTURER_APPLE = 0x004C;
+	public static final int IBEACON_TYPE = 0x02;
+	public static final int IBEACON_LENGTH = 0x15;
+	private static final int MAX_STRUCTURES = 32;
+	private static final int MAX_UUIDS = 32;
+	private static final long BASE_UUID_MSB = 0x0000000000001000L;
+	private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final ThreadLocal<AdRecord> mRecords = new ThreadLocal<AdRecord>() {
+		@Override
+		protected AdRecord initialValue() {
+			return new AdRecord();
+		}
+	};
+
+	private final int[] mTypes = new int[MAX_STRUCTURES];
+	private final int[] mStarts = new int[MAX_STRUCTURES];
+	private final int[] mEnds = new int[MAX_STRUCTURES];
+	private byte[] mData = new byte[0];
+	private int mCount;
+	private long mHash;
+	private boolean mHashed;
+	private final long[] mUuidMsb = new long[MAX_UUIDS];
+	private final long[] mUuidLsb = new long[MAX_UUIDS];
+	private int mUuidCount = -1;
+
+	/**
+	 * Returns the calling thread's record, reset to the given advertisement. If the record
+	 * already views this array it is returned as is, so everything handling one advertisement
+	 * on a thread shares a single parse.
+	 * @param advertisement The advertisement. Its contents must not change while it is viewed.
+	 * @return The thread's record, valid until the thread parses another advertisement.
+	 */
+	public static AdRecord parse(byte[] advertisement) {
+		AdRecord record = mRecords.get();
+		if (record.mData != advertisement) record.reset(advertisement);
+		return record;
+	}
+
+	/**
+	 * Locates the AD structures of an advertisement. Parsing stops at the first zero length
+	 * or truncated structure.
+	 * @param advertisement The advertisement to view.
+	 * @return This record.
+	 */
+	public AdRecord reset(byte[] advertisement) {
+		mData = advertisement;
+		mCount = 0;
+		mHashed = false;
+		mUuidCount = -1;
+		int i = 0;
+		while (i < advertisement.length && mCount < MAX_STRUCTURES) {
+			int length = advertisement[i] & 0xFF;
+			if (length == 0 || i + length >= advertisement.length) break;
+			mTypes[mCount] = advertisement[i + 1] & 0xFF;
+			mStarts[mCount] = i + 2;
+			mEnds[mCount] = i + 1 + length;
+			mCount++;
+			i += length + 1;
+		}
+		return this;
+	}
+
+	/**
+	 * @return The advertisement this record views.
+	 */
+	public byte[] getData() {
+		return mData;
+	}
+
+	/**
+	 * @return The number of AD structures.
+	 */
+	public int size() {
+		return mCount;
+	}
+
+	/**
+	 * @return The AD type of the structure at the given index.
+	 */
+	public int getType(int index) {
+		return mTypes[index];
+	}
+
+	/**
+	 * @return The offset of the first payload byte, after the type, of the structure at the index.
+	 */
+	public int getStart(int index) {
+		return mStarts[index];
+	}
+
+	/**
+	 * @return The offset just past the payload of the structure at the given index.
+	 */
+	public int getEnd(int index) {
+		return mEnds[index];
+	}
+
+	public int getLength(int index) {
+		return mEnds[index] - mStarts[index];
+	}
+
+	/**
+	 * @return The index of the first structure of the given AD type, or -1.
+	 */
+	public int indexOf(int type) {
+		for (int i = 0; i < mCount; i++) {
+			if (mTypes[i] == type) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return The flags byte, or -1 if the advertisement has none.
+	 */
+	public int getFlags() {
+		int i = indexOf(TYPE_FLAGS);
+		return i < 0 || getLength(i) < 1 ? -1 : mData[mStarts[i]] & 0xFF;
+	}
+
+	/**
+	 * @return The index of the manufacturer specific data structure, or -1. Its payload
+	 * starts with the little endian company identifier.
+	 */
+	public int indexOfManufacturerData() {
+		int i = indexOf(TYPE_MANUFACTURER);
+		return i < 0 || getLength(i) < 2 ? -1 : i;
+	}
+
+	/**
+	 * @return The company identifier of the manufacturer specific data, or -1.
+	 */
+	public int getManufacturerId() {
+		int i = indexOfManufacturerData();
+		return i < 0 ? -1 : readShort(mStarts[i]);
+	}
+
+	/**
+	 * @return The index of the 16-bit service data structure for the given service, or -1. Its
+	 * payload starts with the little endian service UUID.
+	 */
+	public int indexOfServiceData(int uuid16) {
+		for (int i = 0; i < mCount; i++) {
+			if (mTypes[i] == TYPE_SERVICE_DATA_16 && getLength(i) >= 2 && readShort(mStarts[i]) == uuid16) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Expands the 16, 32 and 128-bit service UUID lists into full UUIDs, on first use, and
+	 * keeps them until the record is reset.
+	 * @return The number of service UUIDs the advertisement lists.
+	 */
+	public int getServiceUuidCount() {
+		if (mUuidCount < 0) {
+			mUuidCount = 0;
+			for (int i = 0; i < mCount; i++) {
+				switch (mTypes[i]) {
+					case TYPE_UUID16_INCOMPLETE:
+					case TYPE_UUID16_COMPLETE:
+						addShortUuids(i, 2);
+						break;
+					case TYPE_UUID32_INCOMPLETE:
+					case TYPE_UUID32_COMPLETE:
+						addShortUuids(i, 4);
+						break;
+					case TYPE_UUID128_INCOMPLETE:
+					case TYPE_UUID128_COMPLETE:
+						for (int u = mStarts[i]; u + 16 <= mEnds[i] && mUuidCount < MAX_UUIDS; u += 16) {
+							mUuidMsb[mUuidCount] = littleEndian(u + 8, 8);
+							mUuidLsb[mUuidCount++] = littleEndian(u, 8);
+						}
+						break;
+				}
+			}
+		}
+		return mUuidCount;
+	}
+
+	private void addShortUuids(int structure, int size) {
+		for (int u = mStarts[structure]; u + size <= mEnds[structure] && mUuidCount < MAX_UUIDS; u += size) {
+			mUuidMsb[mUuidCount] = BASE_UUID_MSB | littleEndian(u, size) << 32;
+			mUuidLsb[mUuidCount++] = BASE_UUID_LSB;
+		}
+	}
+
+	/**
+	 * @return The most significant bits of the service UUID at the given index.
+	 */
+	public long getServiceUuidMsb(int index) {
+		return mUuidMsb[index];
+	}
+
+	/**
+	 * @return The least significant bits of the service UUID at the given index.
+	 */
+	public long getServiceUuidLsb(int index) {
+		return mUuidLsb[index];
+	}
+
+	/**
+	 * Decodes the complete or shortened local name. Unlike the other accessors this allocates.
+	 * @return The name, or null if the advertisement has none.
+	 */
+	public String getLocalName() {
+		int i = indexOf(TYPE_NAME_COMPLETE);
+		if (i < 0) i = indexOf(TYPE_NAME_SHORT);
+		return i < 0 ? null : new String(mData, mStarts[i], getLength(i), UTF8);
+	}
+
+	/**
+	 * @return True if the advertisement is an iBeacon frame.
+	 */
+	public boolean isIBeacon() {
+		int i = indexOfManufacturerData();
+		if (i < 0 || getLength(i) < 4 || readShort(mStarts[i]) != MANUFACTURER_APPLE) return false;
+		return (mData[mStarts[i] + 2] & 0xFF) == IBEACON_TYPE && (mData[mStarts[i] + 3] & 0xFF) == IBEACON_LENGTH;
+	}
+
+	/**
+	 * A 64-bit hash of the whole advertisement, computed on first use and kept until the record
+	 * is reset. Equal advertisements always hash equally; different ones collide with
+	 * negligible probability.
+	 */
+	public long getContentHash() {
+		if (!mHashed) {
+			mHash = hash(mData);
+			mHashed = true;
+		}
+		return mHash;
+	}
+
+	private static long hash(byte[] data) {
+		long h = 0x9E3779B97F4A7C15L ^ data.length;
+		int i = 0;
+		for (; i + 8 <= data.length; i += 8) {
+			long k = (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 | (data[i + 2] & 0xFFL) << 16 | (data[i + 3] & 0xFFL) << 24
+					| (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40 | (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+			h = Long.rotateLeft(h ^ mix(k), 27) * 5 + 0x52DCE729;
+		}
+		long k = 0;
+		for (int shift = 0; i < data.length; i++, shift += 8) k |= (data[i] & 0xFFL) << shift;
+		h ^= mix(k);
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private long littleEndian(int offset, int size) {
+		long value = 0;
+		for (int i = size - 1; i >= 0; i--) value = value << 8 | (mData[offset + i] & 0xFF);
+		return value;
+	}
+
+	private int readShort(int offset) {
+		return (mData[offset] & 0xFF) | (mData[offset + 1] & 0xFF) << 8;
+	}
+}
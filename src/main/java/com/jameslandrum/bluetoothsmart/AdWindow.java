@@ -0,0 +1,210 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+
+/**
+ * The resolved location of an {@link AdValue} within an advertisement.
+ *
+ * Offsets are resolved once; primitive values are then read straight out of the advertisement
+ * into a long with shifts and masks, so reading does not allocate. Offsets are absolute, or
+ * relative to the payload of an AD structure when the window has an AD type. Windows are
+ * immutable and may be shared between devices and threads.
+ */
+public final class AdWindow {
+	private final int mAdType;
+	private final int mByteStart;
+	private final int mByteEnd;
+	private final int mByteLength;
+	private final int mShift;
+	private final int mClip;
+	private final long mMask;
+	private final boolean mSigned;
+	private final boolean mFlip;
+
+	public AdWindow(AdValue value) {
+		this(value.adType(), value.start(), value.end(), value.type(), value.signed(), value.flip());
+	}
+
+	public AdWindow(int start, int end, AdValue.Type type, boolean signed, boolean flip) {
+		this(-1, start, end, type, signed, flip);
+	}
+
+	/**
+	 * @param adType The AD type whose payload the offsets are relative to, or -1 for offsets
+	 *               into the whole advertisement.
+	 */
+	public AdWindow(int adType, int start, int end, AdValue.Type type, boolean signed, boolean flip) {
+		mAdType = adType;
+		switch (type) {
+			case BIT:
+				mByteStart = start / 8;
+				mByteEnd = (end + 7) / 8;
+				mByteLength = (end - start + 7) / 8;
+				mShift = (8 - end % 8) % 8;
+				mClip = (start % 8 + mShift) % 8;
+				break;
+			case BYTE:
+				mByteStart = start;
+				mByteEnd = end;
+				mByteLength = end - start;
+				mShift = 0;
+				mClip = 0;
+				break;
+			default:
+				throw new IllegalArgumentException("Unsupported type " + type);
+		}
+		int bits = mByteLength * 8 - mClip;
+		mMask = bits >= 64 ? -1L : (1L << bits) - 1;
+		mSigned = signed;
+		mFlip = flip;
+	}
+
+	/**
+	 * Reads the value, sign extending it if the window is signed.
+	 */
+	public long read(byte[] advertisement) {
+		return read(AdRecord.parse(advertisement));
+	}
+
+	public long read(AdRecord record) {
+		return mSigned ? readSigned(record) : readUnsigned(record);
+	}
+
+	/**
+	 * Reads the value as an unsigned, right-aligned long. Values wider than 64 bits are
+	 * truncated to their lowest 64 bits.
+	 */
+	public long readUnsigned(byte[] advertisement) {
+		return readUnsigned(AdRecord.parse(advertisement));
+	}
+
+	public long readUnsigned(AdRecord record) {
+		if (mByteLength > 8) return foldLong(readBytes(record));
+
+		byte[] data = record.getData();
+		int structure = structure(record);
+		int base = base(record, structure);
+		int limit = limit(record, structure);
+		int from = Math.max(mByteStart, mByteEnd - 8);
+		long value = 0;
+		for (int i = from; i < mByteEnd; i++) {
+			value = (value << 8) | byteAt(data, base, limit, i);
+		}
+		if (mShift > 0) {
+			value >>>= mShift;
+			if (from > mByteStart) value |= (long) byteAt(data, base, limit, from - 1) << (64 - mShift);
+		}
+		value &= mMask;
+
+		if (mFlip) {
+			value = Long.reverseBytes(value) >>> (64 - mByteLength * 8);
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the value and sign extends it from the width of its byte window.
+	 */
+	public long readSigned(byte[] advertisement) {
+		return readSigned(AdRecord.parse(advertisement));
+	}
+
+	public long readSigned(AdRecord record) {
+		long value = readUnsigned(record);
+		if (mByteLength == 0 || mByteLength >= 8) return value;
+		int spare = 64 - mByteLength * 8;
+		return (value << spare) >> spare;
+	}
+
+	/**
+	 * Reads the value as a boolean; any positive value is true.
+	 */
+	public boolean readBoolean(byte[] advertisement) {
+		return readBoolean(AdRecord.parse(advertisement));
+	}
+
+	public boolean readBoolean(AdRecord record) {
+		return (int) readSigned(record) > 0;
+	}
+
+	/**
+	 * Reads the value into a new array, most significant byte first.
+	 */
+	public byte[] readBytes(byte[] advertisement) {
+		return readBytes(AdRecord.parse(advertisement));
+	}
+
+	public byte[] readBytes(AdRecord record) {
+		byte[] advertisement = record.getData();
+		int structure = structure(record);
+		int base = base(record, structure);
+		int limit = limit(record, structure);
+		byte[] data = new byte[mByteLength];
+		int first = mByteEnd - mByteLength;
+		for (int k = 0; k < mByteLength; k++) {
+			int i = first + k;
+			data[k] = (byte) ((byteAt(advertisement, base, limit, i) >>> mShift) | (byteAt(advertisement, base, limit, i - 1) << (8 - mShift)));
+		}
+		if (mClip > 0 && mByteLength > 0) data[0] &= 0b11111111 >> mClip;
+
+		if (mFlip) {
+			for (int i = 0; i < data.length / 2; i++) {
+				byte t = data[i];
+				data[i] = data[data.length-i-1];
+				data[data.length-i-1] = t;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return The index of the AD structure the window reads from, or -1 if it has no AD type
+	 * or the structure is missing.
+	 */
+	private int structure(AdRecord record) {
+		return mAdType < 0 ? -1 : record.indexOf(mAdType);
+	}
+
+	/**
+	 * @return The offset the window's offsets are relative to, or -1 if its AD structure is
+	 * missing, in which case every byte reads as zero.
+	 */
+	private int base(AdRecord record, int structure) {
+		if (mAdType < 0) return 0;
+		return structure < 0 ? -1 : record.getStart(structure);
+	}
+
+	private int limit(AdRecord record, int structure) {
+		if (mAdType < 0) return record.getData().length;
+		return structure < 0 ? 0 : record.getEnd(structure);
+	}
+
+	private int byteAt(byte[] advertisement, int base, int limit, int index) {
+		if (base < 0 || index < mByteStart || base + index >= limit) return 0;
+		return advertisement[base + index] & 0xFF;
+	}
+
+	private static long foldLong(byte[] data) {
+		long value = 0;
+		for (int i = Math.max(0, data.length - 8); i < data.length; i++) {
+			value = (value << 8) | (data[i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -32,14 +32,22 @@ public class Characteristic {
 	private String mLabel;
 	private ArrayList<CharacteristicChangeListener> mListeners = new ArrayList<>();
 	private CharacteristicRef mCharRef;
+	private int mProperties = BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE;
+	private int mPermissions = BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE;
+	private volatile byte[] mValue;
+	private boolean mRespond = true;
 
 	protected Characteristic(String s, String c) {
-		mCharId = UUIDfromString(c);
-		mServiceId = UUIDfromString(s);
+		this(s, c, UUIDfromString(s), UUIDfromString(c));
+	}
+
+	Characteristic(String s, String c, UUID serviceId, UUID charId) {
+		mCharId = charId;
+		mServiceId = serviceId;
 		mLabel = s+" : "+c;
 	}
 
-	private UUID UUIDfromString(String s) {
+	static UUID UUIDfromString(String s) {
 		if (s.length() == 4) {
 			return UUID.fromString("0000" + s + "-0000-1000-8000-00805F9B34FB");
 		} else return UUID.fromString(s);
@@ -51,6 +59,7 @@ public class Characteristic {
 
 	public void setCharacteristic(BluetoothGattCharacteristic characteristic) {
 		mCharacteristic = characteristic;
+		if (characteristic != null && !mRespond) characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 	}
 
 	public UUID getServiceId() {
@@ -66,7 +75,8 @@ public class Characteristic {
 	}
 
 	public void setCharacteristicValue(byte[] value, boolean notify) {
-		mCharacteristic.setValue(value);
+		mValue = value;
+		if (mCharacteristic != null) mCharacteristic.setValue(value);
 		if (notify) {
 			for (CharacteristicChangeListener listener : mListeners) {
 				listener.onCharacteristicChanged(this);
@@ -74,9 +84,13 @@ public class Characteristic {
 		}
 	}
 
+	/**
+	 * @return The value of the bound characteristic, or else the last value set, read or
+	 * notified through this object.
+	 */
 	public byte[] getValue() {
-		if (mCharacteristic == null) return null;
-		return mCharacteristic.getValue();
+		byte[] value = mCharacteristic == null ? null : mCharacteristic.getValue();
+		return value != null ? value : mValue;
 	}
 
 	public void setCharacteristicLabel(String label) {
@@ -100,19 +114,44 @@ public class Characteristic {
 	}
 
 	public void setRespond(boolean respond) {
+		mRespond = respond;
 		if (mCharacteristic != null) mCharacteristic.setWriteType(
 				respond ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
 						: BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 	}
 
+	/**
+	 * @return False if writes are sent without response.
+	 */
+	public boolean isWriteWithResponse() {
+		return mRespond;
+	}
+
 	public void setCharacteristicReference(CharacteristicRef characteristicReference) {
 		this.mCharRef = characteristicReference;
+		setDefinition(characteristicReference.properties(), characteristicReference.permissions());
 	}
 
 	public CharacteristicRef getCharacteristicRef() {
 		return mCharRef;
 	}
 
+	/**
+	 * Sets the properties and permissions used when the characteristic is created implicitly.
+	 */
+	public void setDefinition(int properties, int permissions) {
+		mProperties = properties;
+		mPermissions = permissions;
+	}
+
+	public int getProperties() {
+		return mProperties;
+	}
+
+	public int getPermissions() {
+		return mPermissions;
+	}
+
 	public static class CharacteristicNotFoundError implements Action.ActionError {
 	}
 
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart;
+
+/**
+ * Binds the annotated fields and identifiers of a SmartDevice without reflection.
+ *
+ * Implementations are generated by the bluetoothsmart annotation processor as
+ * {@code <DeviceClass>$$DeviceBinder}. When no binder exists for a device class, SmartDevice
+ * falls back to reading the annotations reflectively.
+ */
+public interface DeviceBinder<T extends SmartDevice> {
+	String SUFFIX = "$$DeviceBinder";
+
+	/**
+	 * Assigns every {@code CharacteristicRef} field of the device.
+	 */
+	void bindCharacteristics(T device);
+
+	/**
+	 * Decodes every {@code AdValue} field of the device from the given advertisement.
+	 * @return The fields whose value changed, one bit per field in name order.
+	 */
+	long processAdvertisement(T device, AdRecord record);
+
+	/**
+	 * Runs the {@code Identifier} methods of the device class.
+	 * @return True if any of them accepts the advertisement.
+	 */
+	boolean identify(byte[] advertisement);
+}
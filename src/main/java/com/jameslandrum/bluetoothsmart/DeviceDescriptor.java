@@ -0,0 +1,192 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything SmartDevice needs to know about a device class, resolved once per class.
+ * Descriptors are immutable and shared by every instance of the class.
+ */
+final class DeviceDescriptor {
+	private static final ConcurrentHashMap<Class<?>,DeviceDescriptor> mDescriptors = new ConcurrentHashMap<>();
+
+	private final SmartDeviceDef mDeclaration;
+	private final DeviceBinder mBinder;
+	private final AdProcessor[] mAdProcessors;
+	private final String[] mAdFields;
+	private final CharacteristicTemplate[] mCharacteristics;
+
+	/**
+	 * Returns the cached descriptor for the given device class, resolving it if needed.
+	 * @param type The device class.
+	 * @return The descriptor for the class.
+	 */
+	static DeviceDescriptor forClass(Class<?> type) {
+		DeviceDescriptor descriptor = mDescriptors.get(type);
+		if (descriptor == null) {
+			descriptor = new DeviceDescriptor(type);
+			DeviceDescriptor existing = mDescriptors.putIfAbsent(type, descriptor);
+			if (existing != null) descriptor = existing;
+		}
+		return descriptor;
+	}
+
+	DeviceDescriptor(Class<?> type) {
+		mDeclaration = type.getAnnotation(SmartDeviceDef.class);
+		if (mDeclaration == null) throw new RuntimeException("Device must have SmartDeviceDef.");
+
+		mBinder = findBinder(type);
+		ArrayList<String> adFields = new ArrayList<>();
+		ArrayList<AdProcessor> processors = new ArrayList<>();
+		ArrayList<CharacteristicTemplate> characteristics = new ArrayList<>();
+		for (Field f : type.getDeclaredFields()) {
+			AdValue value = f.getAnnotation(AdValue.class);
+			if (value != null && AdProcessor.isSupported(f.getType())) {
+				adFields.add(f.getName());
+				if (mBinder == null) processors.add(new AdProcessor(f, value));
+			}
+
+			CharacteristicRef ref = f.getAnnotation(CharacteristicRef.class);
+			if (ref != null && mBinder == null) characteristics.add(new CharacteristicTemplate(f, ref));
+		}
+
+		// Field bits follow name order, as in generated binders.
+		Collections.sort(adFields);
+		Collections.sort(processors, new Comparator<AdProcessor>() {
+			@Override
+			public int compare(AdProcessor a, AdProcessor b) {
+				return a.getFieldName().compareTo(b.getFieldName());
+			}
+		});
+		mAdFields = adFields.toArray(new String[adFields.size()]);
+		mAdProcessors = processors.toArray(new AdProcessor[processors.size()]);
+		mCharacteristics = characteristics.toArray(new CharacteristicTemplate[characteristics.size()]);
+	}
+
+	/**
+	 * Finds the generated binder for the given device class.
+	 * @param type The device class.
+	 * @return The binder, or null if the class must be bound reflectively.
+	 */
+	static DeviceBinder findBinder(Class<?> type) {
+		try {
+			return (DeviceBinder) Class.forName(type.getName() + DeviceBinder.SUFFIX, true, type.getClassLoader()).newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	SmartDeviceDef getDeclaration() {
+		return mDeclaration;
+	}
+
+	/**
+	 * @return The generated binder, or null if the fields are bound reflectively.
+	 */
+	DeviceBinder getBinder() {
+		return mBinder;
+	}
+
+	AdProcessor[] getAdProcessors() {
+		return mAdProcessors;
+	}
+
+	/**
+	 * @return The bit reporting a change of the given AdValue field, or 0 if there is no such field.
+	 */
+	long getFieldMask(String field) {
+		int i = Arrays.binarySearch(mAdFields, field);
+		return i < 0 ? 0 : fieldBit(i);
+	}
+
+	boolean hasAdFields() {
+		return mAdFields.length > 0;
+	}
+
+	/**
+	 * Maps the position of an AdValue field, in name order, to its change bit. Fields past the
+	 * 63rd share the highest bit.
+	 */
+	static long fieldBit(int index) {
+		return 1L << Math.min(index, 63);
+	}
+
+	CharacteristicTemplate[] getCharacteristics() {
+		return mCharacteristics;
+	}
+
+	/**
+	 * A resolved CharacteristicRef field.
+	 */
+	static final class CharacteristicTemplate {
+		private final Field mField;
+		private final CharacteristicRef mReference;
+		private final String mServiceId;
+		private final String mCharacteristicId;
+		private final UUID mServiceUuid;
+		private final UUID mCharacteristicUuid;
+		private final String mLabel;
+
+		CharacteristicTemplate(Field f, CharacteristicRef ref) {
+			mField = f;
+			mField.setAccessible(true);
+			mReference = ref;
+			mServiceId = ref.service();
+			mCharacteristicId = SmartDevice.resolveCharacteristicId(ref.service(), ref.id());
+			mServiceUuid = Characteristic.UUIDfromString(mServiceId);
+			mCharacteristicUuid = Characteristic.UUIDfromString(mCharacteristicId);
+			mLabel = ref.label().equals("Unknown") ? f.getName() : ref.label();
+		}
+
+		Characteristic create() {
+			return new Characteristic(mServiceId, mCharacteristicId, mServiceUuid, mCharacteristicUuid);
+		}
+
+		Field getField() {
+			return mField;
+		}
+
+		CharacteristicRef getReference() {
+			return mReference;
+		}
+
+		String getServiceId() {
+			return mServiceId;
+		}
+
+		String getCharacteristicId() {
+			return mCharacteristicId;
+		}
+
+		String getLabel() {
+			return mLabel;
+		}
+	}
+}
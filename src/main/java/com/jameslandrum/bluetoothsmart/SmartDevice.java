@@ -17,7 +17,6 @@
 package com.jameslandrum.bluetoothsmart;
 
 import android.annotation.TargetApi;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -26,21 +25,22 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.CallSuper;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.jameslandrum.bluetoothsmart.actions.Action;
 import com.jameslandrum.bluetoothsmart.actions.ActionRunner;
-import com.jameslandrum.bluetoothsmart.annotations.AdValue;
-import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;
+import com.jameslandrum.bluetoothsmart.actions.GattArbiter;
 import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+import com.jameslandrum.bluetoothsmart.signal.SignalStats;
 import com.jameslandrum.bluetoothsmart.throwable.InvalidStateException;
+import com.jameslandrum.bluetoothsmart.transport.AndroidGattTransport;
+import com.jameslandrum.bluetoothsmart.transport.GattTransport;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -50,27 +50,55 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class SmartDevice<T> extends BluetoothGattCallback {
 	public static final String SMARTDEVICE_ID = "MacAddress";
+	/**
+	 * An update mask reporting that any field may have changed.
+	 */
+	public static final long ALL_FIELDS = -1L;
+
+	/**
+	 * The ATT MTU every connection starts with.
+	 */
+	public static final int DEFAULT_MTU = 23;
 
 	protected static final String GSERVICE_DEVICE_INFO = "0000180a-0000-1000-8000-00805f9b34fb";
 
 	private Context mAppContext;
 	protected final BluetoothDevice mDevice;
-	protected BluetoothGatt mGatt;
-	private boolean mConnected;
-	private boolean mConnecting;
+	private GattTransport mTransport;
+	private volatile GattArbiter mArbiter = GattArbiter.getDefault();
+	private volatile boolean mConnected;
+	private volatile boolean mConnecting;
+	private volatile int mMtu = DEFAULT_MTU;
+	private volatile int mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
 	private String mName;
 	private long mLastAd;
+	private volatile long mLastAdElapsed;
+	private int mRssi;
+	private long mAdHash;
+	private boolean mHasAdHash;
+	private long mLastReported;
+	private long mChangedFields;
+	private final SignalStats mSignal = new SignalStats();
 	private boolean mServicesDiscovered;
 
-	private HashSet<AdProcessor> mAdValues = new HashSet<>();
 	private HashMap<CharacteristicPair,Characteristic> mCharacteristics = new HashMap<>();
 	private ConcurrentLinkedQueue<UpdateListener<T>> mUpdateListeners = new ConcurrentLinkedQueue<>();
+	private ConcurrentLinkedQueue<FieldChangeListener<T>> mFieldChangeListeners = new ConcurrentLinkedQueue<>();
 	private ConcurrentLinkedQueue<GattListener> mGattListeners = new ConcurrentLinkedQueue<>();
 
 	private ActionRunner mActionRunner;
+	private final DeviceDescriptor mDescriptor;
 	private SmartDeviceDef mDeclaration;
 	private boolean mProcessingEnabled = true;
 
+	/**
+	 * Finds the binder generated for a device class by the annotation processor.
+	 * @return The binder, or null if the class is bound reflectively.
+	 */
+	public static DeviceBinder findBinder(Class<? extends SmartDevice> type) {
+		return DeviceDescriptor.findBinder(type);
+	}
+
 	public static String uuidFromBase(String s) {
 		return "0000" + s + "-0000-1000-8000-00805f9b34fb";
 	}
@@ -78,42 +106,34 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 	public SmartDevice(BluetoothDevice device) {
 		mDevice = device;
 		mName = mDevice.getName();
-		mDeclaration = getClass().getAnnotation(SmartDeviceDef.class);
-		if (mDeclaration == null) throw new RuntimeException("Device must have SmartDeviceDef.");
+		mDescriptor = DeviceDescriptor.forClass(getClass());
+		mDeclaration = mDescriptor.getDeclaration();
 
 		if (mName == null || mName.isEmpty()) mName = device.getAddress();
 
-		loadFieldProcessors();
-		loadCharacteristics();
+		bindCharacteristics();
 	}
 
-	private void loadCharacteristics() {
-		try {
-			for (Field f : this.getClass().getDeclaredFields()) {
-				f.setAccessible(true);
-				Annotation a = f.getAnnotation(CharacteristicRef.class);
-				if (a!=null) {
-					CharacteristicRef charDef = (CharacteristicRef) a;
-					Characteristic chars = getCharacteristic(charDef.service(), charDef.id());
-					chars.setCharacteristicLabel(((CharacteristicRef) a).label());
-					if (chars.getCharacteristicLabel().equals("Unknown")) {
-						chars.setCharacteristicLabel( f.getName() );
-					}
-					chars.setCharacteristicReference(charDef);
-					f.set(this,chars);
-				}
-			}
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+	@SuppressWarnings("unchecked")
+	private void bindCharacteristics() {
+		DeviceBinder binder = mDescriptor.getBinder();
+		if (binder != null) {
+			binder.bindCharacteristics(this);
+			return;
 		}
-	}
 
-	private void loadFieldProcessors() {
 		try {
-			for (Field f : this.getClass().getDeclaredFields()) {
-				Annotation a = f.getAnnotation(AdValue.class);
-				if (a!=null)
-					mAdValues.add(new AdProcessor(f, (AdValue) a));
+			for (DeviceDescriptor.CharacteristicTemplate template : mDescriptor.getCharacteristics()) {
+				CharacteristicPair key = new CharacteristicPair(template.getServiceId(), template.getCharacteristicId());
+				Characteristic chars = mCharacteristics.get(key);
+				if (chars == null) {
+					chars = template.create();
+					updateCharacteristic(chars);
+					mCharacteristics.put(key, chars);
+				}
+				chars.setCharacteristicLabel(template.getLabel());
+				chars.setCharacteristicReference(template.getReference());
+				template.getField().set(this, chars);
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -122,18 +142,134 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 
 	@CallSuper
 	public void newAdvertisement(byte[] data, int rssi) {
-		for (AdProcessor p : mAdValues) {
-			p.process(this, data);
+		AdRecord record = AdRecord.parse(data);
+		mAdHash = record.getContentHash();
+		mHasAdHash = true;
+		mRssi = rssi;
+		long now = SystemClock.elapsedRealtime();
+		mSignal.add(rssi, now);
+		long changed = 0;
+		DeviceBinder binder = mDescriptor.getBinder();
+		if (binder != null) {
+			//noinspection unchecked
+			changed = binder.processAdvertisement(this, record);
+		} else {
+			AdProcessor[] processors = mDescriptor.getAdProcessors();
+			for (int i = 0; i < processors.length; i++) {
+				if (processors[i].process(this, record)) changed |= DeviceDescriptor.fieldBit(i);
+			}
 		}
+		// Without declared fields there is nothing to compare, so any new content is a change.
+		if (!mDescriptor.hasAdFields()) changed = ALL_FIELDS;
 
 		mLastAd = System.currentTimeMillis();
+		mLastAdElapsed = now;
+		mLastReported = now;
+		mChangedFields = changed;
+
+		if (changed != 0) postUpdate(changed);
+	}
+
+	/**
+	 * @return The AdValue fields changed by the last advertisement, as a mask of getFieldMask
+	 * bits; 0 if it changed nothing.
+	 */
+	public long getChangedFields() {
+		return mChangedFields;
+	}
+
+	/**
+	 * Returns the bit that reports changes of an AdValue field in update masks. Bits are
+	 * assigned in field name order; fields past the 63rd share the highest bit.
+	 * @param field The name of the field.
+	 * @return The bit, or 0 if the class has no such AdValue field.
+	 */
+	public long getFieldMask(String field) {
+		return mDescriptor.getFieldMask(field);
+	}
+
+	/**
+	 * Records an advertisement whose content is identical to the last one decoded. Only the
+	 * RSSI and the time the device was last seen are updated; nothing is decoded and update
+	 * listeners are not called.
+	 * @return False if the content differs, in which case nothing is recorded and the
+	 * advertisement should be passed to newAdvertisement.
+	 */
+	public boolean newRepeatedAdvertisement(byte[] data, int rssi) {
+		if (!mHasAdHash || AdRecord.parse(data).getContentHash() != mAdHash) return false;
+		mRssi = rssi;
+		long now = SystemClock.elapsedRealtime();
+		mSignal.add(rssi, now);
+		mLastAd = System.currentTimeMillis();
+		mLastAdElapsed = now;
+		return true;
+	}
+
+	/**
+	 * Checks whether a device that keeps repeating the same advertisement should be reported
+	 * as still present.
+	 * @param intervalMillis The minimum time between reports.
+	 * @return True if the device was last decoded or reported at least the interval ago, in
+	 * which case the report is recorded.
+	 */
+	public boolean isKeepAliveDue(long intervalMillis) {
+		if (mLastAdElapsed - mLastReported < intervalMillis) return false;
+		mLastReported = mLastAdElapsed;
+		return true;
+	}
+
+	/**
+	 * @return The signal strength of the last advertisement, in dBm.
+	 */
+	public int getRssi() {
+		return mRssi;
+	}
+
+	/**
+	 * @return The signal strength smoothed over recent advertisements, in dBm, or NaN before
+	 * the first one.
+	 */
+	public float getSmoothedRssi() {
+		return mSignal.getSmoothedRssi();
+	}
+
+	/**
+	 * @return The signal statistics of this device: smoothed RSSI, advertising interval and
+	 * packet loss.
+	 */
+	public SignalStats getSignal() {
+		return mSignal;
+	}
+
+	/**
+	 * @return When the last advertisement was received, in milliseconds since the epoch.
+	 */
+	public long getLastSeen() {
+		return mLastAd;
+	}
 
-		postUpdate();
+	/**
+	 * @return When the last advertisement was received, in milliseconds of
+	 * {@link SystemClock#elapsedRealtime()}, or 0 if none was.
+	 */
+	public long getLastSeenElapsed() {
+		return mLastAdElapsed;
 	}
 
 	protected void postUpdate() {
-		for (UpdateListener l : mUpdateListeners) //noinspection unchecked
+		postUpdate(ALL_FIELDS);
+	}
+
+	/**
+	 * Notifies listeners of an update.
+	 * @param changedFields The fields that changed, as a mask of getFieldMask bits.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void postUpdate(long changedFields) {
+		for (UpdateListener l : mUpdateListeners)
 			l.onEvent(UpdateEvent.UPDATE, this);
+		for (FieldChangeListener l : mFieldChangeListeners)
+			l.onFieldsChanged(this, changedFields);
 	}
 
 	public void newBeacon() {};
@@ -153,21 +289,54 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 	}
 
 	public void connect(boolean mAutoConnect) {
-		if (mGatt != null) {
-			if (!mConnected) mGatt.connect();
-		} else if (mAppContext != null) {
-			BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
-			mGatt = mDevice.connectGatt(mAppContext, mAutoConnect, this);
-		} else {
-			throw new InvalidStateException("Must call prepareActionRunner before calling connect.");
+		GattTransport transport = mTransport;
+		if (transport == null) {
+			if (mAppContext == null) throw new InvalidStateException("Must call prepareActionRunner before calling connect.");
+			transport = new AndroidGattTransport(mAppContext, mDevice, this);
+			setTransport(transport);
+		}
+		if (!mConnected) {
+			// Set first: the transport may report the connection before connect returns.
+			mConnecting = true;
+			transport.connect(mAutoConnect);
 		}
-		mConnecting = true;
 	}
 
+	/**
+	 * Closes the connection, or gives up on one being made.
+	 */
 	public void disconnect() {
-		if (mGatt != null) {
-			if (mConnected) mGatt.disconnect();
-		}
+		GattTransport transport = mTransport;
+		if (transport != null && (mConnected || mConnecting)) transport.disconnect();
+	}
+
+	/**
+	 * Replaces the connection underneath this device, such as with a SimulatedPeripheral.
+	 * By default the device connects through the platform on the first call to connect.
+	 */
+	public void setTransport(GattTransport transport) {
+		mTransport = transport;
+		if (transport != null) transport.setCallback(mTransportCallback);
+	}
+
+	/**
+	 * @return The connection underneath this device, or null before the first connect.
+	 */
+	public GattTransport getTransport() {
+		return mTransport;
+	}
+
+	/**
+	 * Sets the arbiter that admits this device's GATT operations, shared with the other devices
+	 * on the same controller. Null lets operations start without arbitration.
+	 */
+	public void setArbiter(@Nullable GattArbiter arbiter) {
+		mArbiter = arbiter;
+	}
+
+	@Nullable
+	public GattArbiter getArbiter() {
+		return mArbiter;
 	}
 
 	public boolean isConnected() {
@@ -178,7 +347,54 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		return mConnecting || mConnected;
 	}
 
-	public boolean isVisible() { return mConnected || mConnecting || System.currentTimeMillis() - mLastAd < (mDeclaration.adFrequency() * 8); }
+	/**
+	 * @return The ATT MTU of the connection, DEFAULT_MTU until a larger one is negotiated. A
+	 * write without response carries three bytes less.
+	 */
+	public int getMtu() {
+		return mMtu;
+	}
+
+	/**
+	 * Asks the peripheral for a larger ATT MTU. The outcome is reported as MTU_CHANGED.
+	 * @return False if not connected or the exchange could not start.
+	 */
+	public boolean requestMtu(int mtu) {
+		GattTransport transport = mTransport;
+		return transport != null && mConnected && transport.requestMtu(mtu);
+	}
+
+	/**
+	 * Asks for a shorter or longer connection interval for the rest of the connection, trading
+	 * power for throughput and latency.
+	 * @param priority One of the BluetoothGatt CONNECTION_PRIORITY values.
+	 * @return False if not connected or the request could not be made.
+	 */
+	public boolean requestConnectionPriority(int priority) {
+		GattTransport transport = mTransport;
+		if (transport == null || !mConnected || !transport.requestConnectionPriority(priority)) return false;
+		mConnectionPriority = priority;
+		return true;
+	}
+
+	/**
+	 * @return The connection priority last requested, CONNECTION_PRIORITY_BALANCED for a new
+	 * connection.
+	 */
+	public int getConnectionPriority() {
+		return mConnectionPriority;
+	}
+
+	public boolean isVisible() {
+		return mConnected || mConnecting || mLastAdElapsed != 0 && SystemClock.elapsedRealtime() - mLastAdElapsed < getVisibilityTimeout();
+	}
+
+	/**
+	 * @return How long the device stays visible after its last advertisement, in milliseconds.
+	 */
+	public long getVisibilityTimeout() {
+		return mDeclaration.adFrequency() * 8;
+	}
 
 	public String getName() {
 		return mName;
@@ -204,7 +420,9 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 	}
 
 	public void dispose() {
-		mGatt = null;
+		GattTransport transport = mTransport;
+		mTransport = null;
+		if (transport != null) transport.close();
 	}
 
 	public String getId() {
@@ -215,36 +433,12 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		return mDevice.getAddress();
 	}
 
-	@Override
-	public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-		super.onConnectionStateChange(gatt, status, newState);
-		mConnected = newState == BluetoothGatt.STATE_CONNECTED;
-		if (mConnected) {
-			if (mDeclaration.bypassDiscovery() && !mServicesDiscovered) {
-				initCharacteristicsImplicit();
-			}
-			if (mGatt.getServices().size() == 0 && !mDeclaration.bypassDiscovery()) {
-				mGatt.discoverServices();
-			} else {
-				onConnect();
-			}
-		}
-		if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-			if (mConnecting) onConnectionFailed(); else onDisconnect();
-			gatt.close();
-			if (gatt == mGatt) mGatt = null;
-		}
-		mConnecting = false;
-		Log.i("BluetoothGatt", "Device " + getName() + "#" +  getAddress() + " is " + (mConnected?"":"not ") + "connected. (" + status + "," +newState + ")");
-	}
-
 	private void initCharacteristicsImplicit() {
 		for (CharacteristicPair p : mCharacteristics.keySet()) {
 			Characteristic characteristic = mCharacteristics.get(p);
-			CharacteristicRef characteristicRef = characteristic.getCharacteristicRef();
 
-			BluetoothGattService service = new BluetoothGattService(UUID.fromString(characteristicRef.service()), BluetoothGattService.SERVICE_TYPE_PRIMARY);
-			BluetoothGattCharacteristic c = new BluetoothGattCharacteristic(UUID.fromString(p.second), characteristicRef.properties(), characteristicRef.permissions());
+			BluetoothGattService service = new BluetoothGattService(characteristic.getServiceId(), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+			BluetoothGattCharacteristic c = new BluetoothGattCharacteristic(UUID.fromString(p.second), characteristic.getProperties(), characteristic.getPermissions());
 			try {
 				Method setService = BluetoothGattCharacteristic.class.getDeclaredMethod("setService", BluetoothGattService.class);
 				setService.setAccessible(true);
@@ -278,33 +472,98 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		}
 	}
 
-	@Override
-	public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-		super.onServicesDiscovered(gatt, status);
-		for (CharacteristicPair p : mCharacteristics.keySet()) {
-			BluetoothGattService s = gatt.getService(UUID.fromString(p.first));
-			if (s==null)continue;
-			BluetoothGattCharacteristic c = s.getCharacteristic(UUID.fromString(p.second));
-			if (c==null)continue;
-			mCharacteristics.get(p).setCharacteristic(c);
+	private final GattTransport.Callback mTransportCallback = new GattTransport.Callback() {
+		@Override
+		public void onConnectionStateChange(int status, int newState) {
+			GattTransport transport = mTransport;
+			if (transport == null) return;
+			mConnected = newState == BluetoothGatt.STATE_CONNECTED;
+			if (mConnected) {
+				if (mDeclaration.bypassDiscovery() && !mServicesDiscovered) {
+					initCharacteristicsImplicit();
+				}
+				if (!transport.hasServices() && !mDeclaration.bypassDiscovery()) {
+					transport.discoverServices();
+				} else {
+					onConnect();
+				}
+			}
+			if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+				mMtu = DEFAULT_MTU;
+				mConnectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+				// Operations in flight will never be answered; let other devices go ahead.
+				GattArbiter arbiter = mArbiter;
+				if (arbiter != null) arbiter.releaseAll(SmartDevice.this);
+				if (mConnecting) onConnectionFailed(); else onDisconnect();
+				transport.close();
+			}
+			mConnecting = false;
+			Log.i("BluetoothGatt", "Device " + getName() + "#" +  getAddress() + " is " + (mConnected?"":"not ") + "connected. (" + status + "," +newState + ")");
 		}
-		mServicesDiscovered = true;
-		onConnect();
-	}
 
-	@Override
-	public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-		for (GattListener listener : mGattListeners) {
-			listener.onCharacteristicWrite(characteristic, status);
+		@Override
+		public void onServicesDiscovered(int status) {
+			GattTransport transport = mTransport;
+			if (transport == null) return;
+			for (Characteristic c : mCharacteristics.values()) {
+				transport.resolve(c);
+			}
+			mServicesDiscovered = true;
+			onConnect();
 		}
-	}
 
-	@Override
-	public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-		for (GattListener listener : mGattListeners) {
-			listener.onCharacteristicRead(characteristic, status);
+		@Override
+		public void onCharacteristicRead(UUID service, UUID characteristic, byte[] value, int status) {
+			Characteristic c = findCharacteristic(service, characteristic);
+			if (c != null && status == BluetoothGatt.GATT_SUCCESS) c.setCharacteristicValue(value);
+			BluetoothGattCharacteristic platform = c == null ? null : c.getCharacteristic();
+			for (GattListener listener : mGattListeners) {
+				listener.onCharacteristicRead(platform, status);
+			}
 		}
-	}
+
+		@Override
+		public void onCharacteristicWrite(UUID service, UUID characteristic, int status) {
+			Characteristic c = findCharacteristic(service, characteristic);
+			BluetoothGattCharacteristic platform = c == null ? null : c.getCharacteristic();
+			for (GattListener listener : mGattListeners) {
+				listener.onCharacteristicWrite(platform, status);
+			}
+		}
+
+		@Override
+		public void onDescriptorWrite(UUID service, UUID characteristic, int status) {
+			Characteristic c = findCharacteristic(service, characteristic);
+			BluetoothGattCharacteristic platform = c == null ? null : c.getCharacteristic();
+			BluetoothGattDescriptor descriptor = platform == null ? null : platform.getDescriptor(GattTransport.CLIENT_CONFIGURATION);
+			for (GattListener listener : mGattListeners) {
+				listener.onDescriptorWrite(descriptor, status);
+			}
+		}
+
+		@Override
+		public void onCharacteristicChanged(UUID service, UUID characteristic, byte[] value) {
+			Characteristic c = findCharacteristic(service, characteristic);
+			if (c == null && service != null) c = getCharacteristic(service.toString(), characteristic.toString());
+			if (c != null){
+				c.setCharacteristicValue(value, true);
+				for (GattListener listener : mGattListeners) {
+					listener.onCharacteristicNotify(c);
+				}
+			} else {
+				throw new RuntimeException("Characteristic notified but not known!");
+			}
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void onMtuChanged(int mtu, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) mMtu = mtu;
+			for (UpdateListener listener : mUpdateListeners) {
+				listener.onEvent(UpdateEvent.MTU_CHANGED, SmartDevice.this);
+			}
+		}
+	};
 
 	@SuppressWarnings("unchecked")
 	public void addOnUpdateListener(UpdateListener listener) {
@@ -315,6 +574,15 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		mUpdateListeners.remove(listener);
 	}
 
+	@SuppressWarnings("unchecked")
+	public void addOnFieldChangeListener(FieldChangeListener listener) {
+		mFieldChangeListeners.add(listener);
+	}
+
+	public void removeOnFieldChangeListener(FieldChangeListener listener) {
+		mFieldChangeListeners.remove(listener);
+	}
+
 	public void addGattListener(GattListener listener) {
 		mGattListeners.add(listener);
 	}
@@ -323,15 +591,21 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		mGattListeners.remove(listener);
 	}
 
-	public Characteristic getCharacteristic(String serviceId, String characteristicId) {
-		String sec = characteristicId;
+	/**
+	 * Expands a short characteristic id into a full id based on its service.
+	 */
+	static String resolveCharacteristicId(String serviceId, String characteristicId) {
 		if (characteristicId.length() == 2) {
-			sec = serviceId.substring(0,6) + characteristicId + serviceId.substring(8);
+			return serviceId.substring(0,6) + characteristicId + serviceId.substring(8);
 		}
 		if (characteristicId.length() == 4) {
-			sec = serviceId.substring(0,4) + characteristicId + serviceId.substring(8);
+			return serviceId.substring(0,4) + characteristicId + serviceId.substring(8);
 		}
+		return characteristicId;
+	}
 
+	public Characteristic getCharacteristic(String serviceId, String characteristicId) {
+		String sec = resolveCharacteristicId(serviceId, characteristicId);
 
 		Characteristic c = mCharacteristics.get(new CharacteristicPair(serviceId,sec));
 		if (c == null) {
@@ -343,40 +617,27 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 	}
 
 	public boolean updateCharacteristic(Characteristic characteristic) {
-		try {
-			characteristic.setCharacteristic(
-					mGatt.getService(characteristic.getServiceId())
-							.getCharacteristic(characteristic.getCharacteristicId()));
-		} catch (Exception e) {
-			return false;
-		}
-		return true;
+		GattTransport transport = mTransport;
+		return transport != null && transport.resolve(characteristic);
 	}
 
-	@Override
-	public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-		super.onCharacteristicChanged(gatt, characteristic);
-		Characteristic c = 	getCharacteristic(characteristic.getService().getUuid().toString(),
-				characteristic.getUuid().toString());
-		if (c != null){
-			c.setCharacteristicValue(characteristic.getValue(), true);
-			for (GattListener listener : mGattListeners) {
-				listener.onCharacteristicNotify(c);
-			}
-		} else {
-			throw new RuntimeException("Characteristic notified but not known!");
-		}
-	}
-
-	@Override
-	public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-		for (GattListener listener : mGattListeners) {
-			listener.onDescriptorWrite(descriptor, status);
+	/**
+	 * Finds a known characteristic by its UUIDs, whatever form its ids were declared in.
+	 */
+	private Characteristic findCharacteristic(UUID service, UUID characteristic) {
+		for (Characteristic c : mCharacteristics.values()) {
+			if (c.getCharacteristicId().equals(characteristic)
+					&& (service == null || c.getServiceId().equals(service))) return c;
 		}
+		return null;
 	}
 
+	/**
+	 * @return The platform connection, or null when not connected through the platform.
+	 */
 	public BluetoothGatt getGatt() {
-		return mGatt;
+		GattTransport transport = mTransport;
+		return transport instanceof AndroidGattTransport ? ((AndroidGattTransport) transport).getGatt() : null;
 	}
 
 	public ActionRunner getActionRunner() {
@@ -403,13 +664,24 @@ public class SmartDevice<T> extends BluetoothGattCallback {
 		UPDATE,
 		CONNECT,
 		DISCONNECT,
-		CONNECTION_FAILED
+		CONNECTION_FAILED,
+		MTU_CHANGED
 	}
 
 	public interface UpdateListener<T> {
 		void onEvent(UpdateEvent event, T device);
 	}
 
+	/**
+	 * Receives updates together with the AdValue fields they changed.
+	 */
+	public interface FieldChangeListener<T> {
+		/**
+		 * @param changedFields The changed fields, as a mask of getFieldMask bits.
+		 */
+		void onFieldsChanged(T device, long changedFields);
+	}
+
 	public interface GattListener {
 		void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status);
 		void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status);
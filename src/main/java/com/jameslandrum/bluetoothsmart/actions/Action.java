@@ -20,8 +20,14 @@ import android.support.annotation.CallSuper;
 import android.support.annotation.Nullable;
 
 import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.errors.UnexpectedError;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Action {
+	private static final ConcurrentHashMap<Class<?>, Boolean> mLegacy = new ConcurrentHashMap<>();
+
 	protected SmartDevice mDevice;
 	private boolean mRepeating;
 	protected OnActionCompleteListener mCompleteListener;
@@ -35,12 +41,60 @@ public class Action {
 		return null;
 	}
 
+	/**
+	 * Starts the action without blocking. Actions that wait on the device override this, and
+	 * complete the future from its callbacks; by default it runs execute() and returns its
+	 * outcome.
+	 * @return A future completed with the action's result, or failed with its error.
+	 */
+	public ActionFuture<?> executeAsync(SmartDevice device) {
+		ActionError error = execute(device);
+		return error == null ? ActionFuture.completed(null) : ActionFuture.failed(error);
+	}
+
+	/**
+	 * Starts the action for a runner. A subclass that only overrides execute() of an action with
+	 * an asynchronous implementation still has its execute() called.
+	 */
+	ActionFuture<?> start(SmartDevice device) {
+		try {
+			if (isLegacy(getClass())) {
+				ActionError error = execute(device);
+				return error == null ? ActionFuture.completed(null) : ActionFuture.failed(error);
+			}
+			return executeAsync(device);
+		} catch (RuntimeException e) {
+			return ActionFuture.failed(new UnexpectedError(e));
+		}
+	}
+
+	private static boolean isLegacy(Class<?> type) {
+		Boolean legacy = mLegacy.get(type);
+		if (legacy == null) {
+			try {
+				Method execute = type.getMethod("execute", SmartDevice.class);
+				Method executeAsync = type.getMethod("executeAsync", SmartDevice.class);
+				legacy = execute.getDeclaringClass() != executeAsync.getDeclaringClass()
+						&& executeAsync.getDeclaringClass().isAssignableFrom(execute.getDeclaringClass());
+			} catch (NoSuchMethodException e) {
+				legacy = true;
+			}
+			mLegacy.put(type, legacy);
+		}
+		return legacy;
+	}
+
 	@CallSuper
 	public void refresh() {
 	}
 
 	public boolean noDelay() { return false; }
 
+	/**
+	 * @return True if the action moves enough data to be worth a higher connection priority.
+	 */
+	public boolean isBulk() { return false; }
+
 	public Action allowFailure(boolean b) {
 		mCanFail = b;
 		return this;
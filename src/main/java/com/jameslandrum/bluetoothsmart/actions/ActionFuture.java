@@ -0,0 +1,250 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.jameslandrum.bluetoothsmart.actions.errors.CancelledError;
+import com.jameslandrum.bluetoothsmart.actions.errors.UnexpectedError;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of an action started with {@link Action#executeAsync}: a value once it succeeds,
+ * or the ActionError it failed with. Completed from GATT callbacks, so nothing waits on it.
+ *
+ * Listeners and continuations run on the thread that completes the future, or at once if it is
+ * already complete, and must not block. A read-modify-write chains without handing off between
+ * threads:
+ * <pre>
+ * new ReadCharacteristic(c).executeAsync(device).thenCompose(new ActionFuture.Continuation&lt;byte[],Void&gt;() {
+ *     public ActionFuture&lt;Void&gt; then(byte[] value) {
+ *         return new SetCharacteristic(c, modify(value)).executeAsync(device);
+ *     }
+ * });
+ * </pre>
+ */
+public class ActionFuture<T> {
+	private static ScheduledExecutorService mTimer;
+
+	private boolean mDone;
+	private T mValue;
+	private Action.ActionError mError;
+	private ArrayList<Listener<? super T>> mListeners;
+	private ScheduledFuture<?> mTimeout;
+
+	public static <T> ActionFuture<T> completed(@Nullable T value) {
+		ActionFuture<T> future = new ActionFuture<>();
+		future.complete(value);
+		return future;
+	}
+
+	public static <T> ActionFuture<T> failed(@NonNull Action.ActionError error) {
+		ActionFuture<T> future = new ActionFuture<>();
+		future.fail(error);
+		return future;
+	}
+
+	/**
+	 * Completes the future with a value, unless it is already complete.
+	 * @return True if this call completed it.
+	 */
+	public boolean complete(@Nullable T value) {
+		return finish(value, null);
+	}
+
+	/**
+	 * Fails the future, unless it is already complete.
+	 * @return True if this call completed it.
+	 */
+	public boolean fail(@NonNull Action.ActionError error) {
+		return finish(null, error);
+	}
+
+	/**
+	 * Gives up on the action; it fails with a CancelledError and stops what it was doing.
+	 * @return True if the action had not completed yet.
+	 */
+	public boolean cancel() {
+		return fail(new CancelledError());
+	}
+
+	private boolean finish(T value, Action.ActionError error) {
+		ArrayList<Listener<? super T>> listeners;
+		synchronized (this) {
+			if (mDone) return false;
+			mDone = true;
+			mValue = value;
+			mError = error;
+			listeners = mListeners;
+			mListeners = null;
+			if (mTimeout != null) mTimeout.cancel(false);
+			notifyAll();
+		}
+		if (listeners != null) {
+			for (Listener<? super T> listener : listeners) deliver(listener);
+		}
+		return true;
+	}
+
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	public synchronized boolean isSuccessful() {
+		return mDone && mError == null;
+	}
+
+	/**
+	 * @return The value the action completed with, or null if it has not or failed.
+	 */
+	@Nullable
+	public synchronized T getValue() {
+		return mValue;
+	}
+
+	/**
+	 * @return The error the action failed with, or null if it has not failed.
+	 */
+	@Nullable
+	public synchronized Action.ActionError getError() {
+		return mError;
+	}
+
+	/**
+	 * Blocks until the action completes. Cancels it if the thread is interrupted.
+	 * @return The error it failed with, or null if it succeeded.
+	 */
+	@Nullable
+	public Action.ActionError await() {
+		try {
+			synchronized (this) {
+				while (!mDone) wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+		}
+		return getError();
+	}
+
+	/**
+	 * Runs the listener once the future completes.
+	 */
+	public ActionFuture<T> addListener(@NonNull Listener<? super T> listener) {
+		synchronized (this) {
+			if (!mDone) {
+				if (mListeners == null) mListeners = new ArrayList<>(2);
+				mListeners.add(listener);
+				return this;
+			}
+		}
+		deliver(listener);
+		return this;
+	}
+
+	/* A listener of a supertype only reads the value as that type. */
+	@SuppressWarnings("unchecked")
+	private void deliver(Listener<? super T> listener) {
+		((Listener<T>) listener).onComplete(this);
+	}
+
+	/**
+	 * Starts another action once this one succeeds.
+	 * @return A future completed by the other action, or failed with this one's error.
+	 */
+	public <U> ActionFuture<U> thenCompose(@NonNull final Continuation<? super T, U> continuation) {
+		final ActionFuture<U> result = new ActionFuture<>();
+		addListener(new Listener<T>() {
+			@Override
+			public void onComplete(ActionFuture<T> future) {
+				if (future.getError() != null) {
+					result.fail(future.getError());
+					return;
+				}
+				ActionFuture<U> next;
+				try {
+					next = continuation.then(future.getValue());
+				} catch (RuntimeException e) {
+					result.fail(new UnexpectedError(e));
+					return;
+				}
+				next.addListener(new Listener<U>() {
+					@Override
+					public void onComplete(ActionFuture<U> future) {
+						result.finish(future.getValue(), future.getError());
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Fails the future with the given error if it has not completed within the given time.
+	 * The timeout is scheduled on a shared timer thread, which then runs the listeners.
+	 */
+	public ActionFuture<T> setTimeout(long millis, @NonNull final Action.ActionError error) {
+		ScheduledFuture<?> timeout = timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				fail(error);
+			}
+		}, millis, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			if (mTimeout != null) mTimeout.cancel(false);
+			mTimeout = timeout;
+			if (mDone) timeout.cancel(false);
+		}
+		return this;
+	}
+
+	/**
+	 * Runs a task after a delay on the shared timer thread.
+	 */
+	static ScheduledFuture<?> schedule(Runnable task, long millis) {
+		return timer().schedule(task, millis, TimeUnit.MILLISECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (mTimer == null) {
+			mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ActionTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return mTimer;
+	}
+
+	public interface Listener<T> {
+		void onComplete(ActionFuture<T> future);
+	}
+
+	public interface Continuation<T,U> {
+		ActionFuture<U> then(T value);
+	}
+}
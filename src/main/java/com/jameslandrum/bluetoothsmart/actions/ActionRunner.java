@@ -17,110 +17,275 @@
 package com.jameslandrum.bluetoothsmart.actions;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothGatt;
 import android.util.Log;
 
 import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.errors.UnexpectedError;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * ActionRunner - Runs a series of actions on a Bluetooth GATT-enabled device.
+ * Actions run one at a time, in order, on the threads of a GattScheduler shared with other
+ * runners; an idle runner holds no thread.
  * @author James Landrum
  */
 
 // Suppress API restrictions on ConcurrentLinkedDeque.
 @SuppressWarnings("unused")
 @SuppressLint("NewApi")
-public class ActionRunner extends Thread {
+public class ActionRunner {
     private int mInterval;
     private ConcurrentLinkedDeque<Action> mActions = new ConcurrentLinkedDeque<>();
     private ArrayList<ErrorHandler> mListeners = new ArrayList<>();
     private SmartDevice mDevice;
     private boolean mContinueOnComplete;
     private long mLastTrigger;
-    private Action.ActionError mError;
     private int mAutoTerminate = -1;
     private final Object mHolder = new Object();
     private int mMaxActions = 16;
     private boolean mAutoConnect;
-    private int mMode = ASLEEP;
+    private boolean mPriorityBoost;
+    private final GattScheduler mScheduler;
 
-    private static final int ASLEEP = 0;
-    private static final int AWAKE = 1;
+    /* Guarded by mHolder */
+    private int mState = IDLE;
+    private ScheduledFuture<?> mPending;
+    private Thread mThread;
+    private ActionFuture<?> mCurrent;
+    private int mIdleCount;
+    private boolean mBoosted;
+
+    /* No action queued or running; a new action starts the runner. */
+    private static final int IDLE = 0;
+    /* The next step is queued on the scheduler, or waiting out the interval. */
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    /* Stopped after a handled error until the next action is added. */
+    private static final int PAUSED = 3;
+    private static final int QUIT = 4;
     private AutoConnectHandler mConnectHandler;
 
     /**
-     * Creates a thread that will execute actions on a timely manner.
+     * Creates a runner that will execute actions on a timely manner, on the default scheduler.
      * @param device The smart device to associate with this action runner.
      * @param interval The minimum duration between action execution.
      * @param continueOnComplete True to base interval on action complete.
      *                           False to base on action start.
      */
     public ActionRunner(SmartDevice device, int interval, boolean continueOnComplete) {
+        this(device, interval, continueOnComplete, GattScheduler.getDefault());
+    }
+
+    /**
+     * Creates a runner that will execute actions on a timely manner.
+     * @param device The smart device to associate with this action runner.
+     * @param interval The minimum duration between action execution.
+     * @param continueOnComplete True to base interval on action complete.
+     *                           False to base on action start.
+     * @param scheduler The threads to execute actions on.
+     */
+    public ActionRunner(SmartDevice device, int interval, boolean continueOnComplete, GattScheduler scheduler) {
         mDevice = device;
         mInterval = interval;
         mContinueOnComplete = continueOnComplete;
-        start();
+        mScheduler = scheduler;
     }
 
-	/**
-     * Starts the ActionRunner process.
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    /**
+     * Starts the next action. The one after it is scheduled once it completes.
      */
-    @Override
-    public void run() {
-        super.run();
-        while (!isInterrupted()) {
-            Log.d("ActionRunner", "ActionRunner is beginning a cycle.");
-            if (!mContinueOnComplete) mLastTrigger = System.currentTimeMillis();
-            if (mActions.size() == 0) {
+    private void step() {
+        synchronized (mHolder) {
+            if (mState == QUIT) return;
+            mPending = null;
+            if (mActions.isEmpty()) {
                 Log.d("ActionRunner", "ActionRunner has no tasks. Sleeping!");
-                pauseThread();
-                Log.d("ActionRunner", "ActionRunner has woken up!");
-                continue;
+                idle();
+                return;
             }
-            if (mContinueOnComplete) mLastTrigger = System.currentTimeMillis();
-            Action a = mActions.removeFirst();
-            if (a.isRepeating()) {
-                mActions.addFirst(a);
-                Log.d("ActionRunner", "ActionRunner REPEATING ACTION: " + a.toString() + ". There are " + mActions.size() + " more in queue.");
+            mState = RUNNING;
+            mThread = Thread.currentThread();
+        }
+
+        mLastTrigger = System.currentTimeMillis();
+        final Action a = mActions.removeFirst();
+        if (a.isRepeating()) {
+            mActions.addFirst(a);
+            Log.d("ActionRunner", "ActionRunner REPEATING ACTION: " + a.toString() + ". There are " + mActions.size() + " more in queue.");
+        }
+        Log.d("ActionRunner", "ActionRunner is executing action: " + a.toString() + ". There are " + mActions.size() + " more in queue.");
+        if (mPriorityBoost && a.isBulk()) boost(a);
+        ActionFuture<?> future;
+        try {
+            future = a.start(mDevice);
+        } finally {
+            synchronized (mHolder) {
+                mThread = null;
             }
-            Log.d("ActionRunner", "ActionRunner is executing action: " + a.toString() + ". There are " + mActions.size() + " more in queue.");
-            mError = a.execute(mDevice);
-            if (mError != null) {
-                 if (!a.canFail()) {
-                     Log.d("ActionRunner", "ActionRunner encountered an error and will pause.");
-                     boolean wasHandled = false;
-                     for (ErrorHandler listener : mListeners) {
-                         wasHandled = listener.onError(mError);
-                         if (wasHandled) break;
-                     }
-                     mError = null;
-                     if (!wasHandled) {
-                         Log.d("ActionRunner", "ActionRunner failed to resolve error. Will now clear the action queue and restart.");
-                         mActions.clear();
-                         continue;
-                     }
-                     waitForInterrupt();
-                     continue;
-                 } else {
-                     Log.d("ActionRunner", "Action failed permissively.");
-                 }
+            // Drop an interrupt from quit() that the action did not consume.
+            Thread.interrupted();
+        }
+
+        synchronized (mHolder) {
+            if (mState == QUIT) {
+                future.cancel();
+                return;
+            }
+            mCurrent = future;
+        }
+        // Runs on whichever thread completes the action; the thread is free until then.
+        future.addListener(new ActionFuture.Listener<Object>() {
+            @Override
+            public void onComplete(ActionFuture<Object> future) {
+                finish(a, future.getError());
             }
+        });
+    }
+
+    /**
+     * Handles the outcome of an action, then schedules the next one.
+     */
+    private void finish(Action a, Action.ActionError error) {
+        synchronized (mHolder) {
+            mCurrent = null;
+        }
+        boolean failed = error instanceof UnexpectedError;
+        if (failed) {
+            Log.e("ActionRunner", "Action " + a.toString() + " failed", ((UnexpectedError) error).getCause());
+            error = null;
+        }
+
+        boolean pause = false;
+        if (failed) {
+            Log.d("ActionRunner", "ActionRunner failed to complete the action. Will now clear the action queue and restart.");
+            mActions.clear();
+        } else if (error != null) {
+            if (!a.canFail()) {
+                Log.d("ActionRunner", "ActionRunner encountered an error and will pause.");
+                boolean wasHandled = false;
+                for (ErrorHandler listener : mListeners) {
+                    wasHandled = listener.onError(error);
+                    if (wasHandled) break;
+                }
+                if (!wasHandled) {
+                    Log.d("ActionRunner", "ActionRunner failed to resolve error. Will now clear the action queue and restart.");
+                    mActions.clear();
+                } else {
+                    pause = true;
+                }
+            } else {
+                Log.d("ActionRunner", "Action failed permissively.");
+            }
+        }
+
+        long timeUntilNextTrigger = 0;
+        if (!failed && (error == null || a.canFail())) {
             Log.d("ActionRunner", "Action took " + (System.currentTimeMillis() - mLastTrigger) + "ms to complete.");
-            long timeUntilNextTrigger = mInterval - (System.currentTimeMillis() - mLastTrigger);
-            if (timeUntilNextTrigger > 0 && !a.noDelay()) {
+            if (!a.noDelay()) {
+                timeUntilNextTrigger = mContinueOnComplete ? mInterval : mInterval - (System.currentTimeMillis() - mLastTrigger);
+            }
+        }
+        synchronized (mHolder) {
+            if (mState != RUNNING) return;
+            if (pause) {
+                mState = PAUSED;
+                return;
+            }
+            if (timeUntilNextTrigger > 0) {
                 Log.d("ActionRunner", "ActionRunner delaying for " + timeUntilNextTrigger + "ms");
-                waitForInterrupt(timeUntilNextTrigger);
+                schedule(timeUntilNextTrigger);
+            } else if (mActions.isEmpty()) {
+                Log.d("ActionRunner", "ActionRunner has no tasks. Sleeping!");
+                idle();
+            } else {
+                schedule(0);
+            }
+        }
+    }
+
+    /* Guarded by mHolder */
+    private void schedule(long delay) {
+        mState = SCHEDULED;
+        try {
+            if (delay > 0) {
+                mPending = mScheduler.schedule(mStep, delay);
             } else {
-                Log.d("ActionRunner", "ActionRunner is not delaying.");
+                mScheduler.execute(mStep);
             }
+        } catch (RejectedExecutionException e) {
+            Log.d("ActionRunner", "ActionRunner's scheduler has shut down.");
+            mState = QUIT;
+        }
+    }
+
+    /**
+     * Raises the connection priority for a bulk action, unless it is already high.
+     */
+    private void boost(Action a) {
+        if (!mDevice.isConnected() || mDevice.getConnectionPriority() == BluetoothGatt.CONNECTION_PRIORITY_HIGH) return;
+        if (mDevice.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH)) {
+            Log.d("ActionRunner", "ActionRunner raised the connection priority for " + a.toString() + ".");
+            synchronized (mHolder) {
+                mBoosted = true;
+            }
+        }
+    }
+
+    /* Guarded by mHolder */
+    private void idle() {
+        if (mBoosted) {
+            mBoosted = false;
+            if (mDevice.isConnected() && mDevice.getConnectionPriority() == BluetoothGatt.CONNECTION_PRIORITY_HIGH) {
+                Log.d("ActionRunner", "ActionRunner is returning the connection priority to balanced.");
+                mDevice.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            }
+        }
+        mState = IDLE;
+        if (mAutoTerminate <= 0) return;
+        final int idleCount = ++mIdleCount;
+        Log.d("ActionRunner", "ActionRunner is asleep - will auto terminate if not woken in " + mAutoTerminate + "ms");
+        try {
+            mPending = mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mHolder) {
+                        if (mState != IDLE || mIdleCount != idleCount) return;
+                        mPending = null;
+                    }
+                    if (mDevice.isConnected()) {
+                        Log.d("ActionRunner", "ActionRunner is auto-killing connection to device " + mDevice.getAddress() + ".");
+                        mDevice.disconnect();
+                    }
+                }
+            }, mAutoTerminate);
+        } catch (RejectedExecutionException e) {
+            mState = QUIT;
+        }
+    }
+
+    /* Guarded by mHolder */
+    private void cancelPending() {
+        if (mPending != null) {
+            mScheduler.cancel(mPending);
+            mPending = null;
         }
     }
 
     /**
      * Adds a new action to the queue.
-     * If the thread has paused, it will wake the thread.
+     * If the runner is idle or has paused after an error, it will wake the runner.
      * @param a The action to add to the queue.
      */
     public void addActionToQueue(Action a) {
@@ -139,12 +304,12 @@ public class ActionRunner extends Thread {
         }
         mActions.add(a);
         Log.d("ActionRunner", "Added action "+a.toString()+" to ActionRunner!");
-        if (mError == null && mMode == ASLEEP) {
-            Log.d("ActionRunner", "Waking ActionRunner!");
-            synchronized (mHolder) {
-                mHolder.notify();
-                Log.d("ActionRunner", "Waking ActionRunner OK!");
-                mMode = AWAKE;
+        synchronized (mHolder) {
+            if (mState == IDLE || mState == PAUSED) {
+                Log.d("ActionRunner", "Waking ActionRunner!");
+                mIdleCount++;
+                cancelPending();
+                schedule(0);
             }
         }
     }
@@ -175,7 +340,7 @@ public class ActionRunner extends Thread {
 
     /**
      * Sets the duration
-     * @param i How long the runner should sit until calling a disconnect on the devices' GATT.
+     * @param i How long the runner should sit idle until calling a disconnect on the devices' GATT.
      *          Set to -1 to disable auto disconnect.
      * @return Self
      */
@@ -201,6 +366,16 @@ public class ActionRunner extends Thread {
     }
 
 	/**
+     * Raises the connection priority to high while bulk actions such as LargeSetCharacteristic
+     * run, and returns it to balanced once the queue drains. A shorter connection interval moves
+     * data several times faster, and its power is only spent while there is data to move.
+     * @param boost true to enable, false to disable.
+     */
+    public void setPriorityBoost(boolean boost) {
+        mPriorityBoost = boost;
+    }
+
+	/**
 	 * Sets the maximum allowed actions.
      * @param max The maximum allowed or <=0 for infinite.
      */
@@ -225,33 +400,28 @@ public class ActionRunner extends Thread {
         mListeners.remove(errorHandler);
     }
 
-    private void pauseThread() {
-        mMode = ASLEEP;
-        if (mAutoTerminate > 0) {
-            long beginSleep = System.currentTimeMillis();
-            Log.d("ActionRunner", "ActionRunner is asleep - will auto terminate if not interrupted in " + mAutoTerminate + "ms");
-            try { synchronized (mHolder) { mHolder.wait(mAutoTerminate); } } catch (InterruptedException ignored) { }
-            if (System.currentTimeMillis() - beginSleep >= mAutoTerminate ) {
-                if (mMode != ASLEEP) {
-                    mDevice.disconnect();
-                    mMode = ASLEEP;
-                    Log.d("ActionRunner", "ActionRunner is auto-killing connection to device " + mDevice.getAddress() + ".");
-                }
-            } else {
-                mMode = AWAKE;
-                Log.d("ActionRunner", "ActionRunner received wake signal.");
-                return;
-            }
+    /**
+     * Stops the runner, interrupting the current action. It cannot be restarted.
+     */
+    public void quit() {
+        ActionFuture<?> current;
+        synchronized (mHolder) {
+            mState = QUIT;
+            cancelPending();
+            if (mThread != null) mThread.interrupt();
+            current = mCurrent;
+            mCurrent = null;
         }
-        waitForInterrupt();
+        if (current != null) current.cancel();
     }
 
-    private  void waitForInterrupt(long duration) {
-        try { synchronized (mHolder) { mHolder.wait(duration); } } catch (InterruptedException ignored) {}
-    }
-
-    private synchronized void waitForInterrupt() {
-        try { synchronized (mHolder) { mHolder.wait(); } } catch (InterruptedException ignored) { }
+    /**
+     * @return True if no action is queued or in progress.
+     */
+    public boolean isIdle() {
+        synchronized (mHolder) {
+            return mState == IDLE && mActions.isEmpty();
+        }
     }
 
     public void clear() {
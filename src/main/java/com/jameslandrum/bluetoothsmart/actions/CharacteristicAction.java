@@ -21,11 +21,15 @@ import android.bluetooth.BluetoothGattCharacteristic;
 
 import com.jameslandrum.bluetoothsmart.Characteristic;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
-import com.jameslandrum.bluetoothsmart.actions.errors.NotImplementedError;
+import com.jameslandrum.bluetoothsmart.actions.errors.CharacteristicWriteError;
+import com.jameslandrum.bluetoothsmart.transport.GattTransport;
+
+import java.util.concurrent.ScheduledFuture;
 
 public class CharacteristicAction extends Action {
 	protected Characteristic mCharacteristic;
-	protected BluetoothGatt mGatt;
+	protected GattTransport mTransport;
+	private int mLane = GattArbiter.LANE_INTERACTIVE;
 	private final Object mHolder = new Object();
 	private ActionError mError;
 
@@ -37,11 +41,12 @@ public class CharacteristicAction extends Action {
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
 		super.execute(smartDevice);
-		if (smartDevice.getGatt() == null || !smartDevice.isConnected()) {
+		GattTransport transport = smartDevice.getTransport();
+		if (transport == null || !smartDevice.isConnected()) {
 			return new SmartDevice.NotConnectedError();
 		}
 
-		mGatt = smartDevice.getGatt();
+		mTransport = transport;
 
 		if (!mCharacteristic.ready()) {
 			if (!smartDevice.updateCharacteristic(mCharacteristic))
@@ -54,4 +59,138 @@ public class CharacteristicAction extends Action {
 	public Characteristic getCharacteristic() {
 		return mCharacteristic;
 	}
+
+	/**
+	 * Sets whether this action's operations are interactive, the default, or background traffic
+	 * that gives way to interactive operations of any device.
+	 */
+	public CharacteristicAction setLane(@GattArbiter.Lane int lane) {
+		mLane = lane;
+		return this;
+	}
+
+	public int getLane() {
+		return mLane;
+	}
+
+	/**
+	 * One GATT operation of this action, run without blocking: admitted by the device's arbiter,
+	 * started, and completed by the device's callback or its timeout, whichever comes first.
+	 * Subclasses override the callback they expect, and ignore callbacks before the operation
+	 * has started.
+	 */
+	protected abstract class Operation<V> extends SmartDevice.SimpleGattListener implements GattArbiter.Grant, ActionFuture.Listener<V> {
+		protected final ActionFuture<V> mFuture = new ActionFuture<>();
+		protected final SmartDevice mTarget;
+		private final GattArbiter mOperationArbiter;
+		private final long mTimeout;
+		private volatile GattArbiter.Ticket mOperationTicket;
+		private volatile ScheduledFuture<?> mTimer;
+		protected volatile boolean mStarted;
+
+		protected Operation(SmartDevice device, long timeout) {
+			mTarget = device;
+			mOperationArbiter = device.getArbiter();
+			mTimeout = timeout;
+		}
+
+		/**
+		 * Asks for the operation to be admitted, and starts it once it is.
+		 * @return The future the operation completes.
+		 */
+		public ActionFuture<V> start() {
+			mTarget.addGattListener(this);
+			mFuture.addListener(this);
+			if (mOperationArbiter == null) {
+				onGranted(null);
+			} else {
+				GattArbiter.Ticket ticket = mOperationArbiter.request(mTarget, mLane, this);
+				if (mOperationTicket == null) mOperationTicket = ticket;
+			}
+			return mFuture;
+		}
+
+		@Override
+		public void onGranted(GattArbiter.Ticket ticket) {
+			mOperationTicket = ticket;
+			if (mFuture.isDone()) {
+				// Given up on while waiting.
+				if (mOperationArbiter != null) mOperationArbiter.release(ticket);
+				return;
+			}
+			mTimer = ActionFuture.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onTimeout();
+				}
+			}, mTimeout);
+			mStarted = true;
+			if (!begin()) mFuture.fail(onRefused());
+		}
+
+		/**
+		 * Starts the operation.
+		 * @return False if it could not start.
+		 */
+		protected abstract boolean begin();
+
+		/**
+		 * @return The error to fail with when the operation could not start.
+		 */
+		protected abstract ActionError onRefused();
+
+		/**
+		 * Called when no response arrived in time.
+		 */
+		protected abstract void onTimeout();
+
+		@Override
+		public void onComplete(ActionFuture<V> future) {
+			mTarget.removeGattListener(this);
+			ScheduledFuture<?> timer = mTimer;
+			if (timer != null) timer.cancel(false);
+			GattArbiter.Ticket ticket = mOperationTicket;
+			if (mOperationArbiter != null && ticket != null && !mOperationArbiter.cancel(ticket)) {
+				mOperationArbiter.release(ticket);
+			}
+		}
+	}
+
+	/**
+	 * Writes a value to the characteristic. A write that gets no response in time is assumed to
+	 * have gone through.
+	 */
+	protected class WriteOperation extends Operation<Void> {
+		private final byte[] mValue;
+
+		protected WriteOperation(SmartDevice device, byte[] value, long timeout) {
+			super(device, timeout);
+			mValue = value;
+		}
+
+		@Override
+		protected boolean begin() {
+			return mTransport.write(mCharacteristic, mValue);
+		}
+
+		@Override
+		protected ActionError onRefused() {
+			return new CharacteristicWriteError();
+		}
+
+		@Override
+		protected void onTimeout() {
+			mFuture.complete(null);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+			if (!mStarted) return;
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				mFuture.fail(new CharacteristicWriteError());
+			} else {
+				mFuture.complete(null);
+			}
+		}
+	}
 }
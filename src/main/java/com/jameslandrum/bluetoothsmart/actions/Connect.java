@@ -19,14 +19,13 @@ package com.jameslandrum.bluetoothsmart.actions;
 import android.support.annotation.Nullable;
 
 import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.errors.CancelledError;
 
 /**
  * Disconnects from the existing connection explicitly.
  */
-public class Connect extends Action implements SmartDevice.UpdateListener {
-	private final Object mHolder = new Object();
+public class Connect extends Action {
 	public static final Connect CONNECT = new Connect();
-	private ActionError mError;
 
 	public Connect() {
 		super();
@@ -35,23 +34,32 @@ public class Connect extends Action implements SmartDevice.UpdateListener {
 	@Nullable
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
-		super.execute(smartDevice);
-		if (smartDevice.isConnected()) return null;
+		return executeAsync(smartDevice).await();
+	}
 
-		mError = new FailedToConnectError();
+	@Override
+	public ActionFuture<Void> executeAsync(final SmartDevice smartDevice) {
+		mDevice = smartDevice;
+		if (smartDevice.isConnected()) return ActionFuture.completed(null);
 
-		smartDevice.connect(false);
-		smartDevice.addOnUpdateListener(this);
-		try {
-			synchronized (mHolder) {
-				mHolder.wait(15000);
+		final ActionFuture<Void> future = new ActionFuture<>();
+		final SmartDevice.UpdateListener listener = new SmartDevice.UpdateListener() {
+			@Override
+			public void onEvent(SmartDevice.UpdateEvent event, Object device) {
+				if (event == SmartDevice.UpdateEvent.CONNECT) future.complete(null);
 			}
-		} catch (InterruptedException e) {
-			smartDevice.disconnect();
-		}
-		smartDevice.removeOnUpdateListener(this);
-
-		return mError;
+		};
+		future.addListener(new ActionFuture.Listener<Void>() {
+			@Override
+			public void onComplete(ActionFuture<Void> f) {
+				smartDevice.removeOnUpdateListener(listener);
+				if (f.getError() instanceof CancelledError) smartDevice.disconnect();
+			}
+		});
+		smartDevice.addOnUpdateListener(listener);
+		smartDevice.connect(false);
+		future.setTimeout(15000, new FailedToConnectError());
+		return future;
 	}
 
 	@Override
@@ -64,15 +72,5 @@ public class Connect extends Action implements SmartDevice.UpdateListener {
 		return "Connect";
 	}
 
-	@Override
-	public void onEvent(SmartDevice.UpdateEvent event, Object device) {
-		if (event == SmartDevice.UpdateEvent.CONNECT) {
-			mError = null;
-			synchronized (mHolder) {
-				mHolder.notify();
-			}
-		}
-	}
-
 	private class FailedToConnectError implements ActionError {}
 }
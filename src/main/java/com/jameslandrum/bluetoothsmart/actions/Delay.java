@@ -33,13 +33,23 @@ public class Delay extends Action {
 	@Nullable
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
-		super.execute(smartDevice);
-		try {
-			Thread.sleep(mDelay);
-		} catch (InterruptedException ignored) {}
+		executeAsync(smartDevice).await();
 		return null;
 	}
 
+	@Override
+	public ActionFuture<Void> executeAsync(SmartDevice smartDevice) {
+		mDevice = smartDevice;
+		final ActionFuture<Void> future = new ActionFuture<>();
+		ActionFuture.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.complete(null);
+			}
+		}, mDelay);
+		return future;
+	}
+
 	@Override
 	public boolean noDelay() {
 		return true;
@@ -0,0 +1,364 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.support.annotation.IntDef;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Admits GATT operations from every device on a controller, a limited number at a time.
+ *
+ * The platform stack handles one outstanding operation at a time; devices that each start their
+ * own collide, and the losers fail or time out. Characteristic actions instead ask the arbiter
+ * of their device for a ticket before each operation and return it once the operation completes.
+ *
+ * Waiting operations are admitted by self-clocked fair queuing: each device's operations are
+ * spaced in virtual time by the inverse of its weight, and the earliest is admitted first, so
+ * busy devices share the controller in proportion to their weights and an occasional operation
+ * from a quiet device does not wait behind a backlog. Interactive operations go ahead of
+ * background ones, except that every {@link #BACKGROUND_SHARE}th admission goes to background
+ * traffic while any is waiting.
+ */
+public final class GattArbiter {
+	@IntDef({LANE_INTERACTIVE, LANE_BACKGROUND})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Lane {}
+	public static final int LANE_INTERACTIVE = 0;
+	public static final int LANE_BACKGROUND = 1;
+
+	public static final int BACKGROUND_SHARE = 4;
+
+	private static GattArbiter mDefault;
+
+	private final int mMaxInFlight;
+	private final LaneQueue[] mLanes = {new LaneQueue(), new LaneQueue()};
+	private final WeakHashMap<SmartDevice,Entry> mEntries = new WeakHashMap<>();
+	private int mInFlight;
+	private int mInteractiveRun;
+	private long mSequence;
+	private long mGranted;
+
+	/**
+	 * @param maxInFlight The number of operations the controller may have outstanding at once.
+	 */
+	public GattArbiter(int maxInFlight) {
+		if (maxInFlight < 1) throw new IllegalArgumentException("At least one operation must be admitted.");
+		mMaxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return The arbiter devices use unless given another, admitting one operation at a time.
+	 */
+	public static synchronized GattArbiter getDefault() {
+		if (mDefault == null) mDefault = new GattArbiter(1);
+		return mDefault;
+	}
+
+	/**
+	 * Replaces the arbiter used by devices created from now on.
+	 */
+	public static synchronized void setDefault(GattArbiter arbiter) {
+		mDefault = arbiter;
+	}
+
+	/**
+	 * Sets the share of the controller a device gets relative to others, 1 by default.
+	 */
+	public synchronized void setWeight(@NonNull SmartDevice device, int weight) {
+		if (weight < 1) throw new IllegalArgumentException("Weight must be positive.");
+		entry(device).mWeight = weight;
+	}
+
+	/**
+	 * Asks to start an operation. The callback is run once it is admitted, on the thread that
+	 * returned the previous ticket, or on this thread if it is admitted at once.
+	 * @return The ticket to return with release() once the operation completes.
+	 */
+	public Ticket request(@NonNull SmartDevice device, @Lane int lane, @NonNull Grant grant) {
+		Ticket ticket;
+		synchronized (this) {
+			Entry entry = entry(device);
+			LaneQueue queue = mLanes[lane];
+			entry.mFinish[lane] = Math.max(entry.mFinish[lane], queue.mVirtualTime) + 1.0 / entry.mWeight;
+			ticket = new Ticket(entry, lane, entry.mFinish[lane], mSequence++, grant);
+			queue.mWaiting.add(ticket);
+			entry.mWaiting++;
+		}
+		admit();
+		return ticket;
+	}
+
+	/**
+	 * Waits for an operation to be admitted.
+	 * @return The ticket to return with release() once the operation completes.
+	 */
+	public Ticket acquire(@NonNull SmartDevice device, @Lane int lane) throws InterruptedException {
+		final CountDownLatch admitted = new CountDownLatch(1);
+		Ticket ticket = request(device, lane, new Grant() {
+			@Override
+			public void onGranted(Ticket ticket) {
+				admitted.countDown();
+			}
+		});
+		try {
+			admitted.await();
+		} catch (InterruptedException e) {
+			if (!cancel(ticket)) release(ticket);
+			throw e;
+		}
+		return ticket;
+	}
+
+	/**
+	 * Withdraws a request that has not been admitted yet.
+	 * @return False if it was already admitted; it must then be released.
+	 */
+	public boolean cancel(@NonNull Ticket ticket) {
+		synchronized (this) {
+			if (ticket.mState != Ticket.WAITING || !mLanes[ticket.mLane].mWaiting.remove(ticket)) return false;
+			ticket.mState = Ticket.RELEASED;
+			ticket.mEntry.mWaiting--;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns an admitted ticket once its operation has completed, admitting the next one.
+	 * Returning a ticket twice has no effect.
+	 */
+	public void release(@Nullable Ticket ticket) {
+		if (ticket == null) return;
+		synchronized (this) {
+			if (ticket.mState != Ticket.ADMITTED) return;
+			ticket.mState = Ticket.RELEASED;
+			ticket.mEntry.mAdmitted.remove(ticket);
+			mInFlight--;
+		}
+		admit();
+	}
+
+	/**
+	 * Returns every ticket admitted for a device, for when its link has dropped and their
+	 * operations will never be answered. Releasing those tickets later has no effect.
+	 */
+	public void releaseAll(@NonNull SmartDevice device) {
+		synchronized (this) {
+			Entry entry = mEntries.get(device);
+			if (entry == null || entry.mAdmitted.isEmpty()) return;
+			for (Ticket ticket : entry.mAdmitted) ticket.mState = Ticket.RELEASED;
+			mInFlight -= entry.mAdmitted.size();
+			entry.mAdmitted.clear();
+		}
+		admit();
+	}
+
+	private void admit() {
+		while (true) {
+			Ticket ticket;
+			synchronized (this) {
+				if (mInFlight >= mMaxInFlight) return;
+				ticket = next();
+				if (ticket == null) return;
+				ticket.mState = Ticket.ADMITTED;
+				mInFlight++;
+				mGranted++;
+				mLanes[ticket.mLane].mVirtualTime = ticket.mTag;
+				Entry entry = ticket.mEntry;
+				entry.mWaiting--;
+				entry.mGranted++;
+				entry.mAdmitted.add(ticket);
+				long wait = System.nanoTime() - ticket.mTime;
+				entry.mWaitTime += wait;
+				entry.mMaxWait = Math.max(entry.mMaxWait, wait);
+			}
+			boolean granted = false;
+			try {
+				ticket.mGrant.onGranted(ticket);
+				granted = true;
+			} finally {
+				// A callback that throws never gets to start its operation, let alone return the ticket.
+				if (!granted) release(ticket);
+			}
+		}
+	}
+
+	/* Guarded by this */
+	private Ticket next() {
+		PriorityQueue<Ticket> interactive = mLanes[LANE_INTERACTIVE].mWaiting;
+		PriorityQueue<Ticket> background = mLanes[LANE_BACKGROUND].mWaiting;
+		if (!interactive.isEmpty() && (background.isEmpty() || mInteractiveRun < BACKGROUND_SHARE - 1)) {
+			mInteractiveRun++;
+			return interactive.poll();
+		}
+		mInteractiveRun = 0;
+		return background.poll();
+	}
+
+	/* Guarded by this */
+	private Entry entry(SmartDevice device) {
+		Entry entry = mEntries.get(device);
+		if (entry == null) {
+			entry = new Entry();
+			mEntries.put(device, entry);
+		}
+		return entry;
+	}
+
+	public synchronized int getInFlight() {
+		return mInFlight;
+	}
+
+	/**
+	 * @return The number of operations waiting to be admitted.
+	 */
+	public synchronized int getWaiting() {
+		return mLanes[LANE_INTERACTIVE].mWaiting.size() + mLanes[LANE_BACKGROUND].mWaiting.size();
+	}
+
+	/**
+	 * @return What a device has been admitted so far, or null if it never asked.
+	 */
+	public synchronized Stats getStats(@NonNull SmartDevice device) {
+		Entry entry = mEntries.get(device);
+		if (entry == null) return null;
+		return new Stats(entry.mGranted, mGranted, entry.mWaiting, entry.mWaitTime, entry.mMaxWait);
+	}
+
+	/**
+	 * Receives the admission of a requested operation.
+	 */
+	public interface Grant {
+		void onGranted(Ticket ticket);
+	}
+
+	/**
+	 * A request to start an operation.
+	 */
+	public static final class Ticket {
+		static final int WAITING = 0;
+		static final int ADMITTED = 1;
+		static final int RELEASED = 2;
+
+		private final Entry mEntry;
+		private final int mLane;
+		private final double mTag;
+		private final long mSequence;
+		private final long mTime = System.nanoTime();
+		private final Grant mGrant;
+		private int mState = WAITING;
+
+		Ticket(Entry entry, int lane, double tag, long sequence, Grant grant) {
+			mEntry = entry;
+			mLane = lane;
+			mTag = tag;
+			mSequence = sequence;
+			mGrant = grant;
+		}
+
+		public int getLane() {
+			return mLane;
+		}
+	}
+
+	/**
+	 * What a device has been admitted.
+	 */
+	public static final class Stats {
+		private final long mGranted;
+		private final long mTotal;
+		private final int mWaiting;
+		private final long mWaitTime;
+		private final long mMaxWait;
+
+		Stats(long granted, long total, int waiting, long waitTime, long maxWait) {
+			mGranted = granted;
+			mTotal = total;
+			mWaiting = waiting;
+			mWaitTime = waitTime;
+			mMaxWait = maxWait;
+		}
+
+		public long getGrantedCount() {
+			return mGranted;
+		}
+
+		/**
+		 * @return The fraction of all admitted operations that were this device's.
+		 */
+		public float getShare() {
+			return mTotal == 0 ? 0 : (float) mGranted / mTotal;
+		}
+
+		public int getWaitingCount() {
+			return mWaiting;
+		}
+
+		/**
+		 * @return The mean time an operation waited to be admitted, in milliseconds.
+		 */
+		public float getAverageWait() {
+			return mGranted == 0 ? 0 : mWaitTime / 1e6f / mGranted;
+		}
+
+		/**
+		 * @return The longest time an operation waited to be admitted, in milliseconds.
+		 */
+		public float getMaxWait() {
+			return mMaxWait / 1e6f;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d admitted (%.1f%%), %.1fms mean wait, %.1fms max wait",
+					mGranted, getShare() * 100, getAverageWait(), getMaxWait());
+		}
+	}
+
+	private static final class Entry {
+		int mWeight = 1;
+		final double[] mFinish = new double[2];
+		int mWaiting;
+		long mGranted;
+		long mWaitTime;
+		long mMaxWait;
+		final List<Ticket> mAdmitted = new ArrayList<>(1);
+	}
+
+	private static final class LaneQueue {
+		double mVirtualTime;
+		final PriorityQueue<Ticket> mWaiting = new PriorityQueue<>(16, new Comparator<Ticket>() {
+			@Override
+			public int compare(Ticket a, Ticket b) {
+				if (a.mTag != b.mTag) return a.mTag < b.mTag ? -1 : 1;
+				return a.mSequence < b.mSequence ? -1 : a.mSequence == b.mSequence ? 0 : 1;
+			}
+		});
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small, fixed pool of threads shared by ActionRunners. Each runner still executes its own
+ * actions one at a time, in order, but only holds a thread while an action starts or completes.
+ * Waiting for its GATT operation, for its next action or for its interval to pass costs nothing,
+ * so the number of threads does not grow with the number of devices.
+ *
+ * The thread count therefore does not bound how many operations are in progress at once; the
+ * GattArbiter of the devices does.
+ */
+public final class GattScheduler {
+	public static final int DEFAULT_THREADS = 4;
+
+	private static GattScheduler mDefault;
+
+	private final ScheduledThreadPoolExecutor mExecutor;
+
+	/**
+	 * @param threads The number of threads to run actions on.
+	 */
+	public GattScheduler(int threads) {
+		if (threads < 1) throw new IllegalArgumentException("At least one thread is needed.");
+		final AtomicInteger count = new AtomicInteger();
+		mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "GattScheduler-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) removeOnCancel();
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private void removeOnCancel() {
+		mExecutor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * @return The scheduler used by ActionRunners that are not given one.
+	 */
+	public static synchronized GattScheduler getDefault() {
+		if (mDefault == null) mDefault = new GattScheduler(DEFAULT_THREADS);
+		return mDefault;
+	}
+
+	/**
+	 * Replaces the scheduler used by ActionRunners created from now on.
+	 */
+	public static synchronized void setDefault(GattScheduler scheduler) {
+		mDefault = scheduler;
+	}
+
+	void execute(Runnable task) {
+		mExecutor.execute(task);
+	}
+
+	ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+		return mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels a task from schedule(). Older platforms keep cancelled tasks queued until their
+	 * delay passes, so they are purged here instead.
+	 */
+	void cancel(ScheduledFuture<?> task) {
+		task.cancel(false);
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) mExecutor.purge();
+	}
+
+	public int getThreadCount() {
+		return mExecutor.getCorePoolSize();
+	}
+
+	/**
+	 * Interrupts the actions in progress and stops the threads. Runners using this scheduler
+	 * stop too.
+	 */
+	public void shutdown() {
+		mExecutor.shutdownNow();
+	}
+}
@@ -18,79 +18,335 @@ package com.jameslandrum.bluetoothsmart.actions;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 import android.util.Log;
 
 import com.jameslandrum.bluetoothsmart.Characteristic;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
 import com.jameslandrum.bluetoothsmart.actions.errors.CharacteristicWriteError;
 
-import org.apache.commons.codec.binary.Hex;
-
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Writes data larger than one packet to a characteristic, in chunks.
+ *
+ * By default each chunk is a write with response, and the next is sent once the last is
+ * acknowledged. Streaming sends the chunks as writes without response instead, keeping several
+ * in flight and sending more as the transport reports earlier ones sent; on a short connection
+ * interval this is many times faster. Chunks are slices of the data, which is never copied.
+ */
+public class LargeSetCharacteristic extends CharacteristicAction {
+	public static final int DEFAULT_WINDOW = 4;
+
+	/* How long a stream may go without progress before its writes are assumed sent. */
+	private static final long STALL_TIMEOUT = 300;
 
-public class LargeSetCharacteristic extends CharacteristicAction implements SmartDevice.GattListener {
-	private Characteristic mCharacteristic;
-	private final Object mHolder = new Object();
 	private ActionError mError;
 	private byte[] mData;
 	private int mSize;
+	private int mWindow;
+	private long mStart;
+	private volatile float mThroughput;
+
+	/**
+	 * Creates an action that writes the data in chunks as large as the connection's MTU allows.
+	 */
+	public LargeSetCharacteristic(Characteristic characteristic, byte[] data) {
+		this(characteristic, data, 0);
+	}
 
+	/**
+	 * @param size The size of each chunk, or 0 to size them from the connection's MTU.
+	 */
 	public LargeSetCharacteristic(Characteristic characteristic, byte[] data, int size) {
 		super(characteristic);
-		mCharacteristic = characteristic;
 		mData = data;
 		mSize = size;
+		setLane(GattArbiter.LANE_BACKGROUND);
+	}
+
+	/**
+	 * Sends the chunks as writes without response, keeping up to window of them in flight.
+	 * The transport may accept fewer; platform connections take one at a time. 0 turns streaming
+	 * off.
+	 */
+	public LargeSetCharacteristic setStreaming(int window) {
+		mWindow = Math.max(0, window);
+		return this;
+	}
+
+	public boolean isStreaming() {
+		return mWindow > 0;
+	}
+
+	/**
+	 * @return The bytes per second of the last completed write, or 0 if none has completed.
+	 */
+	public float getThroughput() {
+		return mThroughput;
 	}
 
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
+		return executeAsync(smartDevice).await();
+	}
+
+	@Override
+	public ActionFuture<Void> executeAsync(SmartDevice smartDevice) {
 		mError = super.execute(smartDevice);
-		if (mError != null) return mError;
-		int index = 0;
-
-		BluetoothGattCharacteristic characteristic = mCharacteristic.getCharacteristic();
-		characteristic.setValue(mData);
-
-		smartDevice.addGattListener(this);
-		try {
-			while (index < mData.length) {
-				if (!mDevice.isConnected()) {
-					mError = new CharacteristicWriteError();
-					return mError;
+		if (mError != null) return ActionFuture.failed(mError);
+
+		mStart = System.nanoTime();
+		final ActionFuture<Void> future = new ActionFuture<>();
+		future.addListener(new ActionFuture.Listener<Void>() {
+			@Override
+			public void onComplete(ActionFuture<Void> f) {
+				mError = f.getError();
+				if (mCompleteListener != null)
+					mCompleteListener.onActionCompleted(LargeSetCharacteristic.this, mError==null);
+			}
+		});
+		int size = mSize > 0 ? mSize : smartDevice.getMtu() - 3;
+		if (mWindow > 0) {
+			new Stream(smartDevice, size, mWindow, future).start();
+		} else {
+			writeChunk(smartDevice, 0, size, future);
+		}
+		return future;
+	}
+
+	/**
+	 * Records the throughput, before anything waiting on the future can ask for it.
+	 */
+	private void finish(ActionFuture<Void> future) {
+		long elapsed = Math.max(1, System.nanoTime() - mStart);
+		mThroughput = mData.length * 1e9f / elapsed;
+		Log.d("LargeSetCharacteristic", "Wrote " + mData.length + "b at " + (int) mThroughput + "b/s");
+		future.complete(null);
+	}
+
+	/**
+	 * Writes the chunk at the given offset, then the next one once it completes.
+	 */
+	private void writeChunk(final SmartDevice smartDevice, final int index, final int size, final ActionFuture<Void> future) {
+		if (future.isDone()) return;
+		if (index >= mData.length) {
+			finish(future);
+			return;
+		}
+		if (!smartDevice.isConnected()) {
+			future.fail(new CharacteristicWriteError());
+			return;
+		}
+		int end = Math.min(index+size, mData.length);
+		// Each chunk is admitted separately, so other devices get their turns in between.
+		new WriteOperation(smartDevice, Arrays.copyOfRange(mData,index,end), 300).start().addListener(new ActionFuture.Listener<Void>() {
+			@Override
+			public void onComplete(ActionFuture<Void> chunk) {
+				if (chunk.getError() != null) {
+					future.fail(chunk.getError());
+				} else {
+					writeChunk(smartDevice, index+size, size, future);
 				}
-				int end = Math.min(index+mSize, mData.length);
-				characteristic.setValue(Arrays.copyOfRange(mData,index,end));
-				mGatt.writeCharacteristic(characteristic);
-				synchronized (mHolder) {
-					mHolder.wait(300);
+			}
+		});
+	}
+
+	/**
+	 * Streams the data as writes without response. Chunks are sent while fewer than the window
+	 * are unreported and the transport accepts them, and each report sends more.
+	 *
+	 * The stream holds one admission from the arbiter for a burst of writes. Once it has sent a
+	 * window's worth and another operation is waiting, it lets its writes drain and asks again,
+	 * so other devices get their turns in between.
+	 */
+	private class Stream extends SmartDevice.SimpleGattListener implements GattArbiter.Grant, ActionFuture.Listener<Void> {
+		private final SmartDevice mTarget;
+		private final GattArbiter mStreamArbiter;
+		private final ByteBuffer mBuffer = ByteBuffer.wrap(mData);
+		private final int mChunk;
+		private final int mStreamWindow;
+		private final ActionFuture<Void> mFuture;
+
+		/* Guarded by this */
+		private GattArbiter.Ticket mStreamTicket;
+		private boolean mAdmitted;
+		private int mOffset;
+		private int mInFlight;
+		private int mBurst;
+		private long mProgress;
+		private ScheduledFuture<?> mTimer;
+
+		Stream(SmartDevice device, int chunk, int window, ActionFuture<Void> future) {
+			mTarget = device;
+			mStreamArbiter = device.getArbiter();
+			mChunk = Math.max(1, chunk);
+			mStreamWindow = window;
+			mFuture = future;
+		}
+
+		void start() {
+			mTarget.addGattListener(this);
+			mFuture.addListener(this);
+			synchronized (this) {
+				mProgress = System.nanoTime();
+			}
+			check();
+			admit();
+		}
+
+		private void admit() {
+			if (mStreamArbiter == null) {
+				onGranted(null);
+				return;
+			}
+			GattArbiter.Ticket ticket = mStreamArbiter.request(mTarget, getLane(), this);
+			synchronized (this) {
+				if (mStreamTicket == null) mStreamTicket = ticket;
+			}
+		}
+
+		@Override
+		public void onGranted(GattArbiter.Ticket ticket) {
+			synchronized (this) {
+				mStreamTicket = ticket;
+				mAdmitted = true;
+				mBurst = 0;
+			}
+			if (mFuture.isDone()) {
+				// Given up on while waiting.
+				if (mStreamArbiter != null) mStreamArbiter.release(ticket);
+				return;
+			}
+			pump();
+		}
+
+		/**
+		 * Sends chunks until the window, the transport or the burst is full.
+		 */
+		private void pump() {
+			boolean refused = false;
+			boolean yield = false;
+			boolean done;
+			synchronized (this) {
+				while (mAdmitted && mInFlight < mStreamWindow && mOffset < mData.length) {
+					if (mBurst >= mStreamWindow && mStreamArbiter != null && mStreamArbiter.getWaiting() > 0) {
+						mAdmitted = false;
+						break;
+					}
+					ByteBuffer chunk = mBuffer.duplicate();
+					chunk.position(mOffset).limit(Math.min(mOffset + mChunk, mData.length));
+					int length = chunk.remaining();
+					if (!mTransport.writeWithoutResponse(mCharacteristic, chunk)) {
+						// Full; the next report makes room. With nothing outstanding, none will come.
+						refused = mInFlight == 0;
+						break;
+					}
+					if (mInFlight == 0) mProgress = System.nanoTime();
+					mOffset += length;
+					mInFlight++;
+					mBurst++;
 				}
-				index+=mSize;
+				done = mOffset >= mData.length && mInFlight == 0;
+				yield = !mAdmitted && mInFlight == 0 && !done;
+			}
+			if (refused) {
+				mFuture.fail(new CharacteristicWriteError());
+			} else if (done) {
+				finish(mFuture);
+			} else if (yield) {
+				yieldTurn();
 			}
-		} catch (Exception e) {
-			mError = new CharacteristicWriteError();
 		}
-		smartDevice.removeGattListener(this);
 
-		if (mCompleteListener != null)
-			mCompleteListener.onActionCompleted(this, mError==null);
+		/**
+		 * Returns the admission once the burst has drained, and asks for another.
+		 */
+		private void yieldTurn() {
+			GattArbiter.Ticket ticket;
+			synchronized (this) {
+				ticket = mStreamTicket;
+				mStreamTicket = null;
+			}
+			mStreamArbiter.release(ticket);
+			admit();
+		}
 
-		return mError;
-	}
+		@Override
+		public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+			if (characteristic != null && characteristic != mCharacteristic.getCharacteristic()) return;
+			synchronized (this) {
+				if (mInFlight == 0) return;
+				mInFlight--;
+				mProgress = System.nanoTime();
+			}
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				mFuture.fail(new CharacteristicWriteError());
+				return;
+			}
+			boolean yield;
+			synchronized (this) {
+				yield = !mAdmitted && mInFlight == 0;
+			}
+			if (yield) {
+				yieldTurn();
+			} else {
+				pump();
+			}
+		}
+
+		/**
+		 * Fails the stream if the link is gone, and assumes writes that were never reported have
+		 * been sent, as a write with response that times out is.
+		 */
+		private void check() {
+			if (mFuture.isDone()) return;
+			if (!mTarget.isConnected()) {
+				mFuture.fail(new CharacteristicWriteError());
+				return;
+			}
+			boolean stalled;
+			synchronized (this) {
+				stalled = mInFlight > 0 && System.nanoTime() - mProgress >= STALL_TIMEOUT * 1000000L;
+				if (stalled) {
+					mInFlight = 0;
+					mProgress = System.nanoTime();
+				}
+				mTimer = ActionFuture.schedule(new Runnable() {
+					@Override
+					public void run() {
+						check();
+					}
+				}, STALL_TIMEOUT);
+			}
+			if (stalled) {
+				if (mAdmitted) {
+					pump();
+				} else {
+					yieldTurn();
+				}
+			}
+		}
 
-	public Characteristic getCharacteristic() {
-		return mCharacteristic;
+		@Override
+		public void onComplete(ActionFuture<Void> future) {
+			mTarget.removeGattListener(this);
+			GattArbiter.Ticket ticket;
+			synchronized (this) {
+				if (mTimer != null) mTimer.cancel(false);
+				ticket = mStreamTicket;
+				mStreamTicket = null;
+			}
+			if (mStreamArbiter != null && ticket != null && !mStreamArbiter.cancel(ticket)) {
+				mStreamArbiter.release(ticket);
+			}
+		}
 	}
 
 	@Override
-	public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
-		if (status == BluetoothGatt.GATT_FAILURE) {
-			mError = new CharacteristicWriteError();
-		}
-		synchronized (mHolder) {
-			mHolder.notify();
-		}
+	public boolean isBulk() {
+		return true;
 	}
 
 	public void enableRepeat(Boolean enable) {
@@ -102,9 +358,4 @@ public class LargeSetCharacteristic extends CharacteristicAction implements Smar
 		return "Writing " + mData.length + "b to Characteristic " + mCharacteristic.getCharacteristicLabel();
 	}
 
-	/* Unused */
-	@Override public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {}
-	@Override public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {}
-	@Override public void onCharacteristicNotify(Characteristic characteristic) {}
-
 }
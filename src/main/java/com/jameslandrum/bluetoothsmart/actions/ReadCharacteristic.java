@@ -18,67 +18,81 @@ package com.jameslandrum.bluetoothsmart.actions;
 
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
 
 import com.jameslandrum.bluetoothsmart.Characteristic;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
 
-import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.concurrent.ConcurrentLinkedDeque;
 
-public class ReadCharacteristic extends CharacteristicAction implements SmartDevice.GattListener {
-	private Characteristic mCharacteristic;
-	private final Object mHolder = new Object();
+public class ReadCharacteristic extends CharacteristicAction {
 	private ActionError mError;
 	private HashSet<OnReadCharacteristic> mListeners = new HashSet<>();
 
 	public ReadCharacteristic(Characteristic characteristic) {
 		super(characteristic);
-		mCharacteristic = characteristic;
 	}
 
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
+		return executeAsync(smartDevice).await();
+	}
+
+	/**
+	 * @return A future completed with the value read.
+	 */
+	@Override
+	public ActionFuture<byte[]> executeAsync(SmartDevice smartDevice) {
 		mError = super.execute(smartDevice);
-		if (mError != null) return mError;
+		if (mError != null) return ActionFuture.failed(mError);
+		ActionFuture<byte[]> future;
 		if (mCharacteristic.getCharacteristic() == null) {
-			mError = new CharacteristicReadError();
+			future = ActionFuture.failed(new CharacteristicReadError());
 		} else {
-			smartDevice.addGattListener(this);
-			mGatt.readCharacteristic(mCharacteristic.getCharacteristic());
-			try {
-				synchronized (mHolder) {
-					mHolder.wait(5000);
-				}
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			future = new Read(smartDevice).start();
+		}
+		future.addListener(new ActionFuture.Listener<byte[]>() {
+			@Override
+			public void onComplete(ActionFuture<byte[]> f) {
+				mError = f.getError();
+				if (mCompleteListener != null)
+					mCompleteListener.onActionCompleted(ReadCharacteristic.this, mError==null);
 			}
-			smartDevice.removeGattListener(this);
+		});
+		return future;
+	}
+
+	private class Read extends Operation<byte[]> {
+		Read(SmartDevice device) {
+			super(device, 5000);
 		}
 
-		if (mCompleteListener != null)
-			mCompleteListener.onActionCompleted(this, mError==null);
-		return mError;
-	}
+		@Override
+		protected boolean begin() {
+			return mTransport.read(mCharacteristic);
+		}
 
-	public Characteristic getCharacteristic() {
-		return mCharacteristic;
-	}
+		@Override
+		protected ActionError onRefused() {
+			return new CharacteristicReadError();
+		}
 
-	@Override
-	public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+		@Override
+		protected void onTimeout() {
+			mFuture.complete(mCharacteristic.getValue());
+		}
 
-		if (status == BluetoothGatt.GATT_FAILURE) {
-			mError = new CharacteristicReadError();
-		} else {
-			mCharacteristic.setCharacteristic(characteristic);
+		@Override
+		public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+			if (!mStarted) return;
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				mFuture.fail(new CharacteristicReadError());
+				return;
+			}
+			if (characteristic != null) mCharacteristic.setCharacteristic(characteristic);
 			for (OnReadCharacteristic r : mListeners) {
 				r.onCharacteristicRead(mCharacteristic);
 			}
-		}
-		synchronized (mHolder) {
-			mHolder.notify();
+			mFuture.complete(mCharacteristic.getValue());
 		}
 	}
 
@@ -99,9 +113,5 @@ public class ReadCharacteristic extends CharacteristicAction implements SmartDev
 		void onCharacteristicRead(Characteristic c);
 	}
 
-	/* Unused */
-	@Override public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {}
-	@Override public void onCharacteristicNotify(Characteristic characteristic) {}
-	@Override public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {}
 	private class CharacteristicReadError implements ActionError {}
 }
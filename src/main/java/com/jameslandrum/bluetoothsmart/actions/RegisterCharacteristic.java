@@ -23,11 +23,11 @@ import android.bluetooth.BluetoothGattDescriptor;
 import com.jameslandrum.bluetoothsmart.Characteristic;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
 import com.jameslandrum.bluetoothsmart.actions.errors.RegisterForNotificationError;
+import com.jameslandrum.bluetoothsmart.transport.GattTransport;
 
 import java.util.UUID;
 
 public class RegisterCharacteristic extends CharacteristicAction implements SmartDevice.GattListener, SmartDevice.UpdateListener {
-	private final Object mHolder = new Object();
 	private ActionError mError;
 	private byte[] mMode;
 	private CharacteristicNotifyEvent mListener;
@@ -36,8 +36,7 @@ public class RegisterCharacteristic extends CharacteristicAction implements Smar
 	public static final byte[] INDICATION_ON = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
 	public static final byte[] DISABLE = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
 
-	protected static final UUID CHARACTERISTIC_UPDATE_NOTIFICATION_DESCRIPTOR_UUID =
-			UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+	protected static final UUID CHARACTERISTIC_UPDATE_NOTIFICATION_DESCRIPTOR_UUID = GattTransport.CLIENT_CONFIGURATION;
 
 	public RegisterCharacteristic(Characteristic characteristic, boolean enable, CharacteristicNotifyEvent listener) {
 		this(characteristic, enable?NOTIFICATION_ON: DISABLE, listener);
@@ -52,31 +51,32 @@ public class RegisterCharacteristic extends CharacteristicAction implements Smar
 
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
-		mError = super.execute(smartDevice);
-		if (mError != null) return mError;
-
-		BluetoothGattDescriptor descriptor = mCharacteristic.getCharacteristic()
-				.getDescriptor(CHARACTERISTIC_UPDATE_NOTIFICATION_DESCRIPTOR_UUID);
-		if (descriptor == null) return new RegisterForNotificationError();
+		return executeAsync(smartDevice).await();
+	}
 
-		mError = mGatt.setCharacteristicNotification(mCharacteristic.getCharacteristic(),mMode != DISABLE) ?
-				null : new RegisterForNotificationError();
-		if (mError != null) return mError;
+	@Override
+	public ActionFuture<Void> executeAsync(final SmartDevice smartDevice) {
+		mError = super.execute(smartDevice);
+		if (mError != null) return ActionFuture.failed(mError);
 
 		smartDevice.addGattListener(this);
-		descriptor.setValue(mMode);
-		mGatt.writeDescriptor(descriptor);
-		try { synchronized (mHolder) { mHolder.wait(3000); } } catch (InterruptedException e) { e.printStackTrace(); }
-		if (mMode == DISABLE) smartDevice.removeGattListener(this);
-
-		if (mError!=null) {
-			smartDevice.removeGattListener(this);
-			smartDevice.removeOnUpdateListener(this);
-			mListener = null;
-		}
-
-		mCompleteListener = null;
-		return mError;
+		ActionFuture<Void> future = new Registration(smartDevice).start();
+		future.addListener(new ActionFuture.Listener<Void>() {
+			@Override
+			public void onComplete(ActionFuture<Void> f) {
+				mError = f.getError();
+				if (mMode == DISABLE) smartDevice.removeGattListener(RegisterCharacteristic.this);
+
+				if (mError!=null) {
+					smartDevice.removeGattListener(RegisterCharacteristic.this);
+					smartDevice.removeOnUpdateListener(RegisterCharacteristic.this);
+					mListener = null;
+				}
+
+				mCompleteListener = null;
+			}
+		});
+		return future;
 	}
 
 	public Characteristic getCharacteristic() {
@@ -87,16 +87,39 @@ public class RegisterCharacteristic extends CharacteristicAction implements Smar
 		void onNotify(Characteristic characteristic);
 	}
 
-	@Override
-	public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
-		if (status == BluetoothGatt.GATT_FAILURE) {
-			mError = new RegisterForNotificationError();
+	private class Registration extends Operation<Void> {
+		Registration(SmartDevice device) {
+			super(device, 3000);
 		}
-		synchronized (mHolder) {
-			mHolder.notify();
+
+		@Override
+		protected boolean begin() {
+			return mTransport.setNotification(mCharacteristic, mMode);
+		}
+
+		@Override
+		protected ActionError onRefused() {
+			return new RegisterForNotificationError();
+		}
+
+		@Override
+		protected void onTimeout() {
+			mFuture.complete(null);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {
+			if (!mStarted) return;
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				mFuture.fail(new RegisterForNotificationError());
+			} else {
+				mFuture.complete(null);
+			}
 		}
 	}
 
+	@Override public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {}
+
 	@Override public void onCharacteristicNotify(Characteristic characteristic) {
 		if (mListener != null && characteristic.getCharacteristicId().equals(mCharacteristic.getCharacteristicId())) mListener.onNotify(characteristic);
 	}
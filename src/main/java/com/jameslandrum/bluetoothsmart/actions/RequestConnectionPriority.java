@@ -0,0 +1,62 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.Nullable;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.errors.RequestFailedError;
+
+/**
+ * Asks for a shorter or longer connection interval. High priority moves data several times
+ * faster at a cost in power; balanced is what a connection starts with.
+ */
+public class RequestConnectionPriority extends Action {
+	public static final RequestConnectionPriority HIGH = new RequestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+	public static final RequestConnectionPriority BALANCED = new RequestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+	public static final RequestConnectionPriority LOW_POWER = new RequestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+
+	private final int mPriority;
+
+	/**
+	 * @param priority One of the BluetoothGatt CONNECTION_PRIORITY values.
+	 */
+	public RequestConnectionPriority(int priority) {
+		super();
+		mPriority = priority;
+	}
+
+	@Nullable
+	@Override
+	public ActionError execute(SmartDevice smartDevice) {
+		super.execute(smartDevice);
+		if (!smartDevice.isConnected()) return new SmartDevice.NotConnectedError();
+		if (!smartDevice.requestConnectionPriority(mPriority)) return new RequestFailedError();
+		return null;
+	}
+
+	@Override
+	public boolean noDelay() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "Requesting connection priority " + mPriority;
+	}
+}
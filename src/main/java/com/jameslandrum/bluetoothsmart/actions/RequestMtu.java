@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.support.annotation.Nullable;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.errors.RequestFailedError;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Asks the peripheral for a larger ATT MTU, so that longer values fit in one packet and
+ * LargeSetCharacteristic sends larger chunks. Completes with the MTU in use afterwards, which
+ * stays as it was if the peripheral refuses or does not answer in time.
+ */
+public class RequestMtu extends Action {
+	public static final int MAX_MTU = 517;
+
+	private final int mMtu;
+
+	/**
+	 * Asks for the largest MTU; the peripheral settles on the largest it supports.
+	 */
+	public RequestMtu() {
+		this(MAX_MTU);
+	}
+
+	public RequestMtu(int mtu) {
+		super();
+		mMtu = Math.max(SmartDevice.DEFAULT_MTU, Math.min(MAX_MTU, mtu));
+	}
+
+	@Nullable
+	@Override
+	public ActionError execute(SmartDevice smartDevice) {
+		return executeAsync(smartDevice).await();
+	}
+
+	@Override
+	public ActionFuture<Integer> executeAsync(final SmartDevice smartDevice) {
+		mDevice = smartDevice;
+		if (!smartDevice.isConnected()) return ActionFuture.failed(new SmartDevice.NotConnectedError());
+		if (smartDevice.getMtu() >= mMtu) return ActionFuture.completed(smartDevice.getMtu());
+
+		final ActionFuture<Integer> future = new ActionFuture<>();
+		final SmartDevice.UpdateListener listener = new SmartDevice.UpdateListener() {
+			@Override
+			public void onEvent(SmartDevice.UpdateEvent event, Object device) {
+				if (event == SmartDevice.UpdateEvent.MTU_CHANGED) future.complete(smartDevice.getMtu());
+			}
+		};
+		final ScheduledFuture<?> timeout = ActionFuture.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.complete(smartDevice.getMtu());
+			}
+		}, 3000);
+		future.addListener(new ActionFuture.Listener<Integer>() {
+			@Override
+			public void onComplete(ActionFuture<Integer> f) {
+				timeout.cancel(false);
+				smartDevice.removeOnUpdateListener(listener);
+			}
+		});
+		smartDevice.addOnUpdateListener(listener);
+		if (!smartDevice.requestMtu(mMtu)) future.fail(new RequestFailedError());
+		return future;
+	}
+
+	@Override
+	public boolean noDelay() {
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "Requesting MTU " + mMtu;
+	}
+}
@@ -17,25 +17,17 @@
 
 package com.jameslandrum.bluetoothsmart.actions;
 
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-
 import com.jameslandrum.bluetoothsmart.Characteristic;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
-import com.jameslandrum.bluetoothsmart.actions.errors.CharacteristicWriteError;
 
 import org.apache.commons.codec.binary.Hex;
 
-public class SetCharacteristic extends CharacteristicAction implements SmartDevice.GattListener {
-	private Characteristic mCharacteristic;
+public class SetCharacteristic extends CharacteristicAction {
 	private byte[] mData;
-	private final Object mHolder = new Object();
 	private ActionError mError;
 
 	public SetCharacteristic(Characteristic characteristic, byte[] data) {
 		super(characteristic);
-		mCharacteristic = characteristic;
 		mData = data;
 	}
 
@@ -46,43 +38,30 @@ public class SetCharacteristic extends CharacteristicAction implements SmartDevi
 
 	@Override
 	public ActionError execute(SmartDevice smartDevice) {
+		return executeAsync(smartDevice).await();
+	}
+
+	@Override
+	public ActionFuture<Void> executeAsync(SmartDevice smartDevice) {
 		mError = super.execute(smartDevice);
-		if (mError != null) return mError;
+		if (mError != null) return ActionFuture.failed(mError);
 
 		if (mCharacteristic.getCharacteristic() == null) {
 			mError = new Characteristic.CharacteristicNotFoundError();
-			return mError;
+			return ActionFuture.failed(mError);
 		}
 
-		BluetoothGattCharacteristic characteristic = mCharacteristic.getCharacteristic();
-		characteristic.setValue(mData);
-
-		smartDevice.addGattListener(this);
-		mGatt.writeCharacteristic(characteristic);
-		characteristic.setValue(mData);
-		try { synchronized (mHolder) { mHolder.wait(300); } } catch (InterruptedException e) {
-			mError = new CharacteristicWriteError();
-		}
-		smartDevice.removeGattListener(this);
-
-		if (mCompleteListener != null)
-			mCompleteListener.onActionCompleted(this, mError==null);
-
-		return mError;
-	}
-
-	public Characteristic getCharacteristic() {
-		return mCharacteristic;
-	}
-
-	@Override
-	public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
-		if (status == BluetoothGatt.GATT_FAILURE) {
-			mError = new CharacteristicWriteError();
-		}
-		synchronized (mHolder) {
-			mHolder.notify();
-		}
+		mCharacteristic.setCharacteristicValue(mData);
+		ActionFuture<Void> future = new WriteOperation(smartDevice, mData, 300).start();
+		future.addListener(new ActionFuture.Listener<Void>() {
+			@Override
+			public void onComplete(ActionFuture<Void> f) {
+				mError = f.getError();
+				if (mCompleteListener != null)
+					mCompleteListener.onActionCompleted(SetCharacteristic.this, mError==null);
+			}
+		});
+		return future;
 	}
 
 	public void enableRepeat(Boolean enable) {
@@ -94,9 +73,4 @@ public class SetCharacteristic extends CharacteristicAction implements SmartDevi
 		return "Setting Characteristic " + mCharacteristic.getCharacteristicLabel() + " to " + new String(Hex.encodeHex(mData));
 	}
 
-	/* Unused */
-	@Override public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {}
-	@Override public void onDescriptorWrite(BluetoothGattDescriptor descriptor, int status) {}
-	@Override public void onCharacteristicNotify(Characteristic characteristic) {}
-
 }
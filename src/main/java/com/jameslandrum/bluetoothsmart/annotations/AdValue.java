@@ -28,6 +28,11 @@ public @interface AdValue {
 	boolean signed() default true;
 	boolean flip() default false;
 	Type type() default BIT;
+	/**
+	 * When set, start and end are relative to the payload of the first AD structure of this
+	 * type, just after its type byte, instead of to the whole advertisement.
+	 */
+	int adType() default -1;
 	public enum Type {
 		BIT,
 		BYTE
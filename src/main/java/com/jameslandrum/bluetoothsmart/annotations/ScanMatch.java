@@ -0,0 +1,53 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Declares advertisements a device type can be identified from. Every criterion that is set
+ * must match; a device type with several matches accepts any one of them.
+ *
+ * Matches are checked before the type's identifiers run, and on API 21 and above they are
+ * pushed to the Bluetooth controller as scan filters so unrelated packets never reach the app.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ScanMatch {
+	/**
+	 * The Bluetooth SIG company identifier of the manufacturer specific data, or -1.
+	 */
+	int manufacturerId() default -1;
+	/**
+	 * Hex encoded manufacturer data following the company identifier.
+	 */
+	String manufacturerData() default "";
+	/**
+	 * Hex encoded mask for manufacturerData; only bits set in the mask are compared.
+	 * Empty compares every bit.
+	 */
+	String manufacturerMask() default "";
+	/**
+	 * An advertised service UUID, either 16-bit ("180f") or in full.
+	 */
+	String serviceUuid() default "";
+	/**
+	 * A prefix of the advertised local name. The controller can only filter on exact names,
+	 * so a match with a name prefix is only checked by the app.
+	 */
+	String namePrefix() default "";
+}
@@ -30,4 +30,9 @@ public @interface SmartDeviceDef {
 	 * This may not work with some devices.
 	 **/
 	boolean bypassDiscovery() default false;
+	/**
+	 * Advertisements this device type can be identified from. Empty runs the identifiers on
+	 * every advertisement and disables scan filtering.
+	 **/
+	ScanMatch[] matches() default {};
 }
@@ -19,10 +19,12 @@ package com.jameslandrum.bluetoothsmart.generic;
 import android.bluetooth.BluetoothDevice;
 
 import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
 
 /**
  * A generic device. It does not process advertisements but can be talked to.
  */
+@SmartDeviceDef
 public class GenericDevice extends SmartDevice {
 	public GenericDevice(BluetoothDevice device) {
 		super(device);
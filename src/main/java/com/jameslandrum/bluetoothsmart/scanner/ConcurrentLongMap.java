@@ -0,0 +1,231 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A thread safe map from non-negative long keys (such as packed MAC addresses) to values.
+ *
+ * Keys are stored unboxed in open addressed, linearly probed tables. The map is split into
+ * segments that are locked independently, so threads working on different addresses rarely
+ * contend. Removal shifts entries back rather than leaving tombstones, so lookups stay short
+ * no matter how much the map churns.
+ */
+public final class ConcurrentLongMap<V> {
+	private static final long EMPTY = -1L;
+	private static final int SEGMENT_BITS = 4;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment<V>[] mSegments;
+
+	@SuppressWarnings("unchecked")
+	public ConcurrentLongMap() {
+		mSegments = new Segment[1 << SEGMENT_BITS];
+		for (int i = 0; i < mSegments.length; i++) mSegments[i] = new Segment<>();
+	}
+
+	public V get(long key) {
+		if (key < 0) return null;
+		long hash = hash(key);
+		return segmentFor(hash).get(key, hash);
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Maps the key to the value, replacing any existing mapping.
+	 * @return The previous value, or null.
+	 */
+	public V put(long key, V value) {
+		checkKey(key, value);
+		long hash = hash(key);
+		return segmentFor(hash).put(key, hash, value, false);
+	}
+
+	/**
+	 * Maps the key to the value unless it is already mapped; a single get-or-create step.
+	 * @return The existing value, or null if the given value was stored.
+	 */
+	public V putIfAbsent(long key, V value) {
+		checkKey(key, value);
+		long hash = hash(key);
+		return segmentFor(hash).put(key, hash, value, true);
+	}
+
+	/**
+	 * @return The removed value, or null.
+	 */
+	public V remove(long key) {
+		if (key < 0) return null;
+		long hash = hash(key);
+		return segmentFor(hash).remove(key, hash, null);
+	}
+
+	/**
+	 * Removes the key only while it still maps to the given instance.
+	 * @return True if the mapping was removed.
+	 */
+	public boolean remove(long key, V expected) {
+		if (key < 0 || expected == null) return false;
+		long hash = hash(key);
+		return segmentFor(hash).remove(key, hash, expected) != null;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<V> s : mSegments) size += s.size();
+		return size;
+	}
+
+	public void clear() {
+		for (Segment<V> s : mSegments) s.clear();
+	}
+
+	/**
+	 * @return A snapshot of the values in the map.
+	 */
+	public List<V> values() {
+		ArrayList<V> values = new ArrayList<>(size());
+		for (Segment<V> s : mSegments) s.collect(values);
+		return values;
+	}
+
+	private Segment<V> segmentFor(long hash) {
+		return mSegments[(int) (hash >>> (64 - SEGMENT_BITS))];
+	}
+
+	private static void checkKey(long key, Object value) {
+		if (key < 0) throw new IllegalArgumentException("Keys must not be negative.");
+		if (value == null) throw new NullPointerException();
+	}
+
+	/**
+	 * Spreads the key; addresses often share their upper bytes.
+	 */
+	static long hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+
+	private static final class Segment<V> {
+		private long[] mKeys;
+		private V[] mValues;
+		private int mSize;
+
+		Segment() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+		@SuppressWarnings("unchecked")
+		private void allocate(int capacity) {
+			mKeys = new long[capacity];
+			Arrays.fill(mKeys, EMPTY);
+			mValues = (V[]) new Object[capacity];
+		}
+
+		synchronized V get(long key, long hash) {
+			int mask = mKeys.length - 1;
+			for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+				long k = mKeys[i];
+				if (k == key) return mValues[i];
+				if (k == EMPTY) return null;
+			}
+		}
+
+		synchronized V put(long key, long hash, V value, boolean onlyIfAbsent) {
+			int mask = mKeys.length - 1;
+			int i = (int) hash & mask;
+			for (; mKeys[i] != EMPTY; i = (i + 1) & mask) {
+				if (mKeys[i] == key) {
+					V previous = mValues[i];
+					if (!onlyIfAbsent) mValues[i] = value;
+					return previous;
+				}
+			}
+			mKeys[i] = key;
+			mValues[i] = value;
+			if (++mSize * 3 > mKeys.length * 2) resize();
+			return null;
+		}
+
+		/**
+		 * @param expected The instance the key must map to, or null to remove any mapping.
+		 */
+		synchronized V remove(long key, long hash, V expected) {
+			int mask = mKeys.length - 1;
+			int i = (int) hash & mask;
+			for (; mKeys[i] != key; i = (i + 1) & mask) {
+				if (mKeys[i] == EMPTY) return null;
+			}
+			V previous = mValues[i];
+			if (expected != null && previous != expected) return null;
+			mSize--;
+
+			// Shift later entries of the probe chain back so no tombstone is needed.
+			for (int j = (i + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask) {
+				int home = (int) hash(mKeys[j]) & mask;
+				boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+				if (!reachable) {
+					mKeys[i] = mKeys[j];
+					mValues[i] = mValues[j];
+					i = j;
+				}
+			}
+			mKeys[i] = EMPTY;
+			mValues[i] = null;
+			return previous;
+		}
+
+		synchronized int size() {
+			return mSize;
+		}
+
+		synchronized void clear() {
+			allocate(INITIAL_CAPACITY);
+			mSize = 0;
+		}
+
+		synchronized void collect(List<V> out) {
+			for (V value : mValues) {
+				if (value != null) out.add(value);
+			}
+		}
+
+		private void resize() {
+			long[] keys = mKeys;
+			V[] values = mValues;
+			allocate(keys.length * 2);
+			int mask = mKeys.length - 1;
+			for (int n = 0; n < keys.length; n++) {
+				if (keys[n] == EMPTY) continue;
+				int i = (int) hash(keys[n]) & mask;
+				while (mKeys[i] != EMPTY) i = (i + 1) & mask;
+				mKeys[i] = keys[n];
+				mValues[i] = values[n];
+			}
+		}
+	}
+}
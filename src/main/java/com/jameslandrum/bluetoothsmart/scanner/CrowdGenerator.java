@@ -0,0 +1,684 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Generates the advertisements of a synthetic crowd of devices and feeds them through the
+ * scanner's ingest path, as the platform's scan callback would: onto the sharded worker rings,
+ * then decoded and reported to listeners on the worker threads. Used to soak test the scanner and
+ * to size it for dense sites.
+ *
+ * Each advertiser follows a Profile: its payload, advertising interval, how often the payload
+ * changes and how often the address rotates. Every advertising event is delayed by a random 0 to
+ * 10ms, as on a real radio, so advertisers drift apart. A snapshot of the registry, heap, ad rates
+ * and ingest-to-listener latency is taken at every report interval.
+ *
+ * Generated time can run faster than real time. Visibility windows and keep-alives still follow
+ * the wall clock, so devices are only lost on schedule at speed 1. Devices are registered with
+ * the shared scanner registry.
+ */
+public final class CrowdGenerator {
+	/**
+	 * Generates as fast as the rings accept.
+	 */
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+	private static final long ADV_DELAY_MAX = 10;
+
+	/**
+	 * Runs on System.nanoTime() and Thread.sleep.
+	 */
+	public static final Ticker SYSTEM_TICKER = new Ticker() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleep(long nanos) throws InterruptedException {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		}
+	};
+
+	private final ArrayList<Profile> mProfiles = new ArrayList<>();
+	private final ArrayList<Integer> mCounts = new ArrayList<>();
+	private final Random mRandom;
+	private final DeviceSource mDevices = new DeviceSource();
+	private final CrowdScanner mScanner = new CrowdScanner();
+	private double mSpeed = 1;
+	private long mReportInterval = 1000;
+	private Reporter mReporter;
+	private Ticker mTicker = SYSTEM_TICKER;
+
+	/* Advertiser state, by advertiser index */
+	private int mSize;
+	private int[] mProfile;
+	private long[] mAddress;
+	private BluetoothDevice[] mDevice;
+	private byte[][] mPayload;
+	private long[] mNextAd;
+	private long[] mNextRotation;
+	private int[] mHeap;
+
+	/* Measurements, reset at every snapshot */
+	private final AtomicLong mProcessed = new AtomicLong();
+	private final AtomicLong mReported = new AtomicLong();
+	private final AtomicLong mLost = new AtomicLong();
+	private final Histogram mLatency = new Histogram();
+	private final ThreadLocal<long[]> mIngestTime = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	public CrowdGenerator(long seed) {
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Adds advertisers following a profile.
+	 */
+	public CrowdGenerator addProfile(Profile profile, int count) {
+		if (count < 0) throw new IllegalArgumentException("Count must not be negative.");
+		mProfiles.add(profile);
+		mCounts.add(count);
+		return this;
+	}
+
+	/**
+	 * @param speed How fast generated time runs relative to real time, or MAX_SPEED.
+	 */
+	public CrowdGenerator setSpeed(double speed) {
+		if (!(speed > 0)) throw new IllegalArgumentException("Speed must be positive.");
+		mSpeed = speed;
+		return this;
+	}
+
+	/**
+	 * @param millis The real time between snapshots.
+	 */
+	public CrowdGenerator setReportInterval(long millis) {
+		if (millis <= 0) throw new IllegalArgumentException("Report interval must be positive.");
+		mReportInterval = millis;
+		return this;
+	}
+
+	/**
+	 * Receives each snapshot as it is taken.
+	 */
+	public CrowdGenerator setReporter(Reporter reporter) {
+		mReporter = reporter;
+		return this;
+	}
+
+	/**
+	 * Replaces the clock that paces the run and times its snapshots. Ingest-to-listener latency
+	 * is always measured with System.nanoTime().
+	 */
+	public CrowdGenerator setTicker(Ticker ticker) {
+		if (ticker == null) throw new IllegalArgumentException("Ticker must not be null.");
+		mTicker = ticker;
+		return this;
+	}
+
+	/**
+	 * @return The scanner the crowd is fed to, for registering device types and listeners.
+	 * Device types are shared with every scanner.
+	 */
+	public DeviceScanner getScanner() {
+		return mScanner;
+	}
+
+	/**
+	 * Generates the crowd for the given real time, then waits for the workers to catch up.
+	 * @return A snapshot for every report interval.
+	 */
+	public Result run(long durationMillis) throws InterruptedException {
+		populate();
+		mScanner.addScanListener(mListener);
+		mScanner.startScan(DeviceScanner.SCAN_MODE_LOW_LATENCY);
+		ArrayList<Snapshot> snapshots = new ArrayList<>();
+		long offered = 0;
+		long intervalOffered = 0;
+		Ticker ticker = mTicker;
+		try {
+			long start = ticker.nanoTime();
+			long end = start + durationMillis * 1000000L;
+			long lastReport = start;
+			long nextReport = start + mReportInterval * 1000000L;
+			while (true) {
+				long now = ticker.nanoTime();
+				if (now >= nextReport || now >= end) {
+					snapshots.add(snapshot(start, lastReport, now, intervalOffered));
+					intervalOffered = 0;
+					lastReport = now;
+					nextReport = now + mReportInterval * 1000000L;
+					if (now >= end) break;
+				}
+				if (mSize == 0) {
+					ticker.sleep(Math.min(nextReport, end) - now);
+					continue;
+				}
+
+				int advertiser = mHeap[0];
+				if (mSpeed != MAX_SPEED) {
+					long due = start + (long) (mNextAd[advertiser] * 1000000L / mSpeed);
+					if (due > now) {
+						ticker.sleep(Math.min(due, Math.min(nextReport, end)) - now);
+						continue;
+					}
+				}
+				advertise(advertiser);
+				offered++;
+				intervalOffered++;
+			}
+			awaitIdle(1000);
+		} finally {
+			mScanner.stopScan();
+			mScanner.removeScanListener(mListener);
+		}
+		return new Result(snapshots, offered);
+	}
+
+	/**
+	 * Creates every advertiser, spreading their first advertisements over one interval.
+	 */
+	private void populate() {
+		int size = 0;
+		for (int count : mCounts) size += count;
+		mSize = size;
+		mProfile = new int[size];
+		mAddress = new long[size];
+		mDevice = new BluetoothDevice[size];
+		mPayload = new byte[size][];
+		mNextAd = new long[size];
+		mNextRotation = new long[size];
+		mHeap = new int[size];
+
+		int i = 0;
+		for (int p = 0; p < mProfiles.size(); p++) {
+			Profile profile = mProfiles.get(p);
+			for (int n = 0; n < mCounts.get(p); n++, i++) {
+				mProfile[i] = p;
+				mPayload[i] = profile.mPayload.clone();
+				mNextAd[i] = (long) (mRandom.nextDouble() * profile.mInterval);
+				rotate(i, profile);
+				mHeap[i] = i;
+			}
+		}
+		for (int k = size / 2 - 1; k >= 0; k--) siftDown(k);
+	}
+
+	/**
+	 * Sends the advertiser's next advertisement and schedules the one after it.
+	 */
+	private void advertise(int i) {
+		Profile profile = mProfiles.get(mProfile[i]);
+		long time = mNextAd[i];
+		if (profile.mRotation > 0 && time >= mNextRotation[i]) rotate(i, profile);
+		if (profile.mMutationRate > 0 && mRandom.nextFloat() < profile.mMutationRate) {
+			byte[] payload = mPayload[i].clone();
+			for (int b = profile.mMutableStart; b < profile.mMutableEnd; b++) payload[b] = (byte) mRandom.nextInt();
+			mPayload[i] = payload;
+		}
+		int rssi = profile.mMinRssi + mRandom.nextInt(profile.mMaxRssi - profile.mMinRssi + 1);
+
+		// The platform delivers a fresh array with every result.
+		mScanner.offer(mAddress[i], new Advertisement(mDevice[i], mPayload[i].clone(), rssi, System.nanoTime()));
+
+		mNextAd[i] = time + profile.mInterval + (long) (mRandom.nextDouble() * ADV_DELAY_MAX);
+		siftDown(0);
+	}
+
+	/**
+	 * Gives the advertiser a new random address: static if it never rotates, resolvable private
+	 * otherwise.
+	 */
+	private void rotate(int i, Profile profile) {
+		long bits = mRandom.nextLong() & 0x3FFFFFFFFFFFL;
+		mAddress[i] = bits | (profile.mRotation > 0 ? 0x400000000000L : 0xC00000000000L);
+		mDevice[i] = mDevices.create(mAddress[i]);
+		if (profile.mRotation > 0) mNextRotation[i] = mNextAd[i] + profile.mRotation;
+	}
+
+	private void siftDown(int k) {
+		int item = mHeap[k];
+		int half = mSize / 2;
+		while (k < half) {
+			int child = 2 * k + 1;
+			if (child + 1 < mSize && mNextAd[mHeap[child + 1]] < mNextAd[mHeap[child]]) child++;
+			if (mNextAd[item] <= mNextAd[mHeap[child]]) break;
+			mHeap[k] = mHeap[child];
+			k = child;
+		}
+		mHeap[k] = item;
+	}
+
+	private void awaitIdle(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			int waiting = 0;
+			for (int depth : mScanner.getQueueDepths()) waiting += depth;
+			if (waiting == 0) return;
+			Thread.sleep(5);
+		}
+	}
+
+	private Snapshot snapshot(long start, long from, long now, long offered) {
+		Runtime runtime = Runtime.getRuntime();
+		double seconds = Math.max(1, now - from) / 1e9;
+		return report(new Snapshot((now - start) / 1000000L, DeviceScanner.mDevices.size(),
+				runtime.totalMemory() - runtime.freeMemory(),
+				offered / seconds, mProcessed.getAndSet(0) / seconds, mReported.getAndSet(0) / seconds,
+				mScanner.getDroppedCount(), mScanner.getCoalescedCount(), mLost.getAndSet(0),
+				mScanner.getEvictedCount(), mScanner.getRejectedCount(), mLatency.drain()));
+	}
+
+	private Snapshot report(Snapshot snapshot) {
+		Reporter reporter = mReporter;
+		if (reporter != null) reporter.onSnapshot(snapshot);
+		return snapshot;
+	}
+
+	private final DeviceScannerListener mListener = new DeviceScannerListener() {
+		@Override
+		public void onDeviceDiscovered(SmartDevice smartDevice) {
+			reported();
+		}
+
+		@Override
+		public void onDeviceUpdated(SmartDevice smartDevice) {
+			reported();
+		}
+
+		@Override
+		public void onDevicePinged(SmartDevice target) {
+			reported();
+		}
+
+		@Override
+		public void onDeviceLost(SmartDevice smartDevice) {
+			mLost.incrementAndGet();
+		}
+
+		@Override
+		public void onDevicesUpdated(List<SmartDevice> smartDevices) {
+			for (int i = 0; i < smartDevices.size(); i++) reported();
+		}
+
+		private void reported() {
+			long ingested = mIngestTime.get()[0];
+			if (ingested == 0) return;
+			mReported.incrementAndGet();
+			mLatency.add(System.nanoTime() - ingested);
+		}
+	};
+
+	/**
+	 * How one kind of advertiser behaves.
+	 */
+	public static final class Profile {
+		private final byte[] mPayload;
+		private long mInterval = 1000;
+		private int mMutableStart;
+		private int mMutableEnd;
+		private float mMutationRate;
+		private long mRotation;
+		private int mMinRssi = -90;
+		private int mMaxRssi = -40;
+
+		/**
+		 * @param payload The advertisement data, as in a scan record.
+		 */
+		public Profile(byte[] payload) {
+			mPayload = payload.clone();
+		}
+
+		/**
+		 * @param millis The advertising interval, 20ms to 10.24s on a real radio.
+		 */
+		public Profile setInterval(long millis) {
+			if (millis <= 0) throw new IllegalArgumentException("Interval must be positive.");
+			mInterval = millis;
+			return this;
+		}
+
+		/**
+		 * Randomizes bytes of the payload, such as a sensor reading, on some advertisements.
+		 * @param start The first byte to change.
+		 * @param end The byte after the last to change.
+		 * @param rate The probability that an advertisement carries new content.
+		 */
+		public Profile setMutation(int start, int end, float rate) {
+			if (start < 0 || end > mPayload.length || start > end) throw new IllegalArgumentException("Range outside the payload.");
+			mMutableStart = start;
+			mMutableEnd = end;
+			mMutationRate = rate;
+			return this;
+		}
+
+		/**
+		 * @param millis How often the advertiser takes a new private address, as phones do
+		 *               every 15 minutes or so, or 0 to keep one static address.
+		 */
+		public Profile setRotationInterval(long millis) {
+			if (millis < 0) throw new IllegalArgumentException("Rotation interval must not be negative.");
+			mRotation = millis;
+			return this;
+		}
+
+		public Profile setRssi(int min, int max) {
+			if (min > max) throw new IllegalArgumentException("Minimum must not exceed maximum.");
+			mMinRssi = min;
+			mMaxRssi = max;
+			return this;
+		}
+	}
+
+	/**
+	 * The clock of a run, in nanoseconds.
+	 */
+	public interface Ticker {
+		long nanoTime();
+
+		/**
+		 * Waits for the given time to pass on this clock.
+		 */
+		void sleep(long nanos) throws InterruptedException;
+	}
+
+	/**
+	 * Receives snapshots while the crowd runs, on the generating thread.
+	 */
+	public interface Reporter {
+		void onSnapshot(Snapshot snapshot);
+	}
+
+	/**
+	 * The state of the scanner at one point of a run, with rates over the interval before it.
+	 */
+	public static final class Snapshot {
+		private final long mElapsed;
+		private final int mRegistrySize;
+		private final long mHeapUsed;
+		private final double mOffered;
+		private final double mProcessed;
+		private final double mReported;
+		private final long mDropped;
+		private final long mCoalesced;
+		private final long mLost;
+		private final long mEvicted;
+		private final long mRejected;
+		private final long[] mLatency;
+
+		Snapshot(long elapsed, int registrySize, long heapUsed, double offered, double processed, double reported,
+				 long dropped, long coalesced, long lost, long evicted, long rejected, long[] latency) {
+			mElapsed = elapsed;
+			mRegistrySize = registrySize;
+			mHeapUsed = heapUsed;
+			mOffered = offered;
+			mProcessed = processed;
+			mReported = reported;
+			mDropped = dropped;
+			mCoalesced = coalesced;
+			mLost = lost;
+			mEvicted = evicted;
+			mRejected = rejected;
+			mLatency = latency;
+		}
+
+		/**
+		 * @return The real time since the run started, in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return mElapsed;
+		}
+
+		public int getRegistrySize() {
+			return mRegistrySize;
+		}
+
+		public long getHeapUsed() {
+			return mHeapUsed;
+		}
+
+		/**
+		 * @return Advertisements handed to the scanner per second.
+		 */
+		public double getOfferedPerSecond() {
+			return mOffered;
+		}
+
+		/**
+		 * @return Advertisements decoded per second, after drops and coalescing.
+		 */
+		public double getProcessedPerSecond() {
+			return mProcessed;
+		}
+
+		/**
+		 * @return Listener calls per second.
+		 */
+		public double getReportedPerSecond() {
+			return mReported;
+		}
+
+		/**
+		 * @return The advertisements dropped by full rings since scanning started.
+		 */
+		public long getDroppedCount() {
+			return mDropped;
+		}
+
+		public long getCoalescedCount() {
+			return mCoalesced;
+		}
+
+		/**
+		 * @return The devices reported lost during the interval.
+		 */
+		public long getLostCount() {
+			return mLost;
+		}
+
+		public long getEvictedCount() {
+			return mEvicted;
+		}
+
+		public long getRejectedCount() {
+			return mRejected;
+		}
+
+		/**
+		 * @param percentile The percentile, from 0 to 100.
+		 * @return The time from an advertisement entering the scanner to its listener call, in
+		 * nanoseconds, within a quarter of the value; 0 if nothing was reported.
+		 */
+		public long getLatency(double percentile) {
+			return Histogram.percentile(mLatency, percentile);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+					"%6.1fs  %7d devices  heap %6.1f MB  offered %8.0f/s  decoded %8.0f/s  reported %8.0f/s  latency p50 %7.1f us  p99 %8.1f us  dropped %d  coalesced %d  lost %d  evicted %d  rejected %d",
+					mElapsed / 1e3, mRegistrySize, mHeapUsed / 1e6, mOffered, mProcessed, mReported,
+					getLatency(50) / 1e3, getLatency(99) / 1e3, mDropped, mCoalesced, mLost, mEvicted, mRejected);
+		}
+	}
+
+	/**
+	 * The snapshots of a run.
+	 */
+	public static final class Result {
+		private final List<Snapshot> mSnapshots;
+		private final long mOffered;
+
+		Result(List<Snapshot> snapshots, long offered) {
+			mSnapshots = Collections.unmodifiableList(snapshots);
+			mOffered = offered;
+		}
+
+		public List<Snapshot> getSnapshots() {
+			return mSnapshots;
+		}
+
+		/**
+		 * @return The number of advertisements generated.
+		 */
+		public long getOfferedCount() {
+			return mOffered;
+		}
+
+		@Override
+		public String toString() {
+			Snapshot last = mSnapshots.isEmpty() ? null : mSnapshots.get(mSnapshots.size() - 1);
+			return mOffered + " ads generated" + (last == null ? "" : "; last: " + last);
+		}
+	}
+
+	/**
+	 * A lock-free latency histogram with four buckets per power of two.
+	 */
+	private static final class Histogram {
+		private static final int SUB_BUCKETS = 4;
+		private final AtomicLongArray mBuckets = new AtomicLongArray(64 * SUB_BUCKETS);
+
+		void add(long nanos) {
+			mBuckets.incrementAndGet(bucket(Math.max(1, nanos)));
+		}
+
+		/**
+		 * @return The counts so far, emptying the histogram.
+		 */
+		long[] drain() {
+			long[] counts = new long[mBuckets.length()];
+			for (int i = 0; i < counts.length; i++) counts[i] = mBuckets.getAndSet(i, 0);
+			return counts;
+		}
+
+		static int bucket(long value) {
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			if (exponent < 2) return (int) value;
+			return exponent * SUB_BUCKETS + (int) ((value >>> (exponent - 2)) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * @return The highest value a bucket holds.
+		 */
+		static long upperBound(int bucket) {
+			int exponent = bucket / SUB_BUCKETS;
+			if (exponent < 2) return bucket;
+			long base = 1L << exponent;
+			return base + ((bucket % SUB_BUCKETS) + 1) * (base / SUB_BUCKETS) - 1;
+		}
+
+		static long percentile(long[] counts, double percentile) {
+			long total = 0;
+			for (long count : counts) total += count;
+			if (total == 0) return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) return upperBound(i);
+			}
+			return upperBound(counts.length - 1);
+		}
+	}
+
+	/**
+	 * One generated scan result, queued for a worker.
+	 */
+	private static final class Advertisement {
+		final BluetoothDevice mDevice;
+		final byte[] mRecord;
+		final int mRssi;
+		final long mIngested;
+
+		Advertisement(BluetoothDevice device, byte[] record, int rssi, long ingested) {
+			mDevice = device;
+			mRecord = record;
+			mRssi = rssi;
+			mIngested = ingested;
+		}
+	}
+
+	/**
+	 * A scanner fed by the generator instead of the radio.
+	 */
+	private final class CrowdScanner extends DeviceScanner {
+		private volatile ShardedProcessor<Advertisement> mProcessor;
+
+		@Override
+		public void startScan(@ScanMode int scanMode) {
+			mProcessor = startProcessor(mProcessor, "CrowdGenerator", mHandler);
+			mVisibility.start();
+		}
+
+		@Override
+		public void stopScan() {
+			if (mProcessor != null) mProcessor.stop();
+			mVisibility.stop();
+		}
+
+		@Override
+		public boolean isScanning() {
+			ShardedProcessor<Advertisement> processor = mProcessor;
+			return processor != null && processor.isRunning();
+		}
+
+		@Override
+		ShardedProcessor<?> getProcessor() {
+			return mProcessor;
+		}
+
+		void offer(long mac, Advertisement advertisement) {
+			mProcessor.offer(mac, advertisement);
+		}
+
+		private final IngestRing.Handler<Advertisement> mHandler = new IngestRing.Handler<Advertisement>() {
+			@Override
+			public void onItem(long address, Advertisement advertisement) {
+				long[] ingested = mIngestTime.get();
+				ingested[0] = advertisement.mIngested;
+				try {
+					processAdvertisement(address, advertisement.mRecord, advertisement.mDevice, advertisement.mRssi);
+				} catch (Exception e) {
+					Log.e("CrowdGenerator", "Failed to process advertisement from " + MacAddress.unpack(address), e);
+				} finally {
+					ingested[0] = 0;
+				}
+				mProcessed.incrementAndGet();
+			}
+		};
+	}
+}
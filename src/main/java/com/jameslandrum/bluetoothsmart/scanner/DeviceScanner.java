@@ -23,31 +23,28 @@ import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.util.Log;
 
+import com.jameslandrum.bluetoothsmart.AdRecord;
 import com.jameslandrum.bluetoothsmart.DevicePersistentStorage;
 import com.jameslandrum.bluetoothsmart.SmartDevice;
-import com.jameslandrum.bluetoothsmart.annotations.Identifier;
 import com.jameslandrum.bluetoothsmart.generic.GenericDevice;
 import com.jameslandrum.bluetoothsmart.generic.GenericStorage;
 import com.jameslandrum.bluetoothsmart.throwable.InvalidSmartDeviceImplementationException;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Interface class that connects to the proper device scanner for Android
  */
 public abstract class DeviceScanner {
-	private static final byte[] APPLE_PREFIX =
-			new byte[]{0x4C, 0x00};
-
 	@IntDef({SCAN_MODE_LOW_LATENCY, SCAN_MODE_LOW_POWER, SCAN_MODE_NORMAL, SCAN_MODE_PASSIVE})
 	@Retention(RetentionPolicy.SOURCE)
 	public @interface ScanMode {}
@@ -56,24 +53,53 @@ public abstract class DeviceScanner {
 	public static final int SCAN_MODE_NORMAL =      1;
 	public static final int SCAN_MODE_LOW_LATENCY = 2;
 
+	public static final int DEFAULT_UNKNOWN_DEVICE_CAPACITY = 4096;
+	public static final long DEFAULT_UNKNOWN_DEVICE_TTL = 5 * 60 * 1000;
+	public static final int DEFAULT_WORKER_COUNT = 1;
+	static final int INGEST_CAPACITY = 1024;
+
 	protected static int mScanMode;
 	private static DeviceScanner mInstance;
 	private static boolean mAllowUnknowns = false;
-	protected static final ArrayList<DeviceScannerListener> mListeners = new ArrayList<>();
-	protected static final ArrayList<String> mInvalidDevices = new ArrayList<>();
-	protected static final ConcurrentHashMap<String, SmartDevice> mDevices = new ConcurrentHashMap<>();
-	protected static final ConcurrentHashMap<Method,Class<? extends com.jameslandrum.bluetoothsmart.SmartDevice>> mDeviceIdentifiers = new ConcurrentHashMap<>();
+	private static volatile int mWorkerCount = DEFAULT_WORKER_COUNT;
+	private static volatile long mReportDelay = 0;
+	private static volatile long mKeepAliveInterval = 0;
+	private static volatile boolean mEvictLostDevices = false;
+	private static volatile int mMaxDevices = 0;
+	private static final AtomicLong mEvicted = new AtomicLong();
+	private static final AtomicLong mRejected = new AtomicLong();
+	private static volatile ScanCapture.Writer mCapture;
+	/* Copy on write: listeners can be added or removed while an event is being dispatched. */
+	protected static final CopyOnWriteArrayList<DeviceScannerListener> mListeners = new CopyOnWriteArrayList<>();
+	protected static volatile NegativeCache mInvalidDevices =
+			new NegativeCache(DEFAULT_UNKNOWN_DEVICE_CAPACITY, DEFAULT_UNKNOWN_DEVICE_TTL);
+	protected static final ConcurrentLongMap<SmartDevice> mDevices = new ConcurrentLongMap<>();
+	protected static final DeviceTypeIndex mDeviceTypes = new DeviceTypeIndex();
+	static final VisibilityTracker mVisibility = new VisibilityTracker(new VisibilityTracker.Listener() {
+		@Override
+		public void onLost(long mac, SmartDevice device) {
+			onDeviceLost(mac, device);
+		}
+	});
 	private DevicePersistentStorage mStorage = new GenericStorage();
 
 	public void forgetDevice(SmartDevice device) {
-		mInvalidDevices.remove(device.getAddress());
-		mDevices.remove(device.getAddress());
+		long mac = MacAddress.pack(device.getAddress());
+		if (mac == MacAddress.INVALID) return;
+		mInvalidDevices.remove(mac);
+		mDevices.remove(mac);
+		mVisibility.untrack(mac);
 	}
 
 	public void injectDevice(SmartDevice device) {
-		mDevices.remove(device.getAddress());
-		mInvalidDevices.remove(device.getAddress());
-		mDevices.put(device.getAddress(),device);
+		long mac = MacAddress.pack(device.getAddress());
+		if (mac == MacAddress.INVALID) {
+			Log.w("DeviceScanner", "Ignoring device with malformed address " + device.getAddress());
+			return;
+		}
+		mInvalidDevices.remove(mac);
+		// Timed from its first advertisement; until then it has no window to miss.
+		mDevices.put(mac, device);
 	}
 
 
@@ -98,61 +124,93 @@ public abstract class DeviceScanner {
 	public abstract void stopScan();
 	public abstract boolean isScanning();
 
+	/**
+	 * Registers a device type to identify while scanning. The ScanMatches declared on its
+	 * SmartDeviceDef gate its identifiers and, on API 21 and above, become scan filters the
+	 * next time scanning starts.
+	 * @param type The device type.
+	 */
 	public void addDeviceType(Class<? extends com.jameslandrum.bluetoothsmart.SmartDevice> type) {
 		try {
-			for (Method m : type.getDeclaredMethods()) {
-				if (m.getAnnotation(Identifier.class) != null) {
-					mDeviceIdentifiers.put(m, type);
-				}
-			}
+			mDeviceTypes.add(type);
 		} catch (Exception e) {
 			throw new InvalidSmartDeviceImplementationException();
 		}
 	}
 
+	/**
+	 * Stops identifying a device type. Devices of the type already found are kept.
+	 * @param type The device type.
+	 */
+	public void removeDeviceType(Class<? extends com.jameslandrum.bluetoothsmart.SmartDevice> type) {
+		mDeviceTypes.remove(type);
+	}
+
+	/**
+	 * Collects the matches of every registered device type for the controller to filter on.
+	 * @return The matches, or null if some traffic can only be recognized by the app: a type
+	 * declares no matches or one the controller cannot apply, or unknown devices are allowed.
+	 */
+	List<ScanMatcher> getScanMatchers() {
+		if (mAllowUnknowns) return null;
+		return mDeviceTypes.getScanMatchers();
+	}
+
 	void processAdvertisement(byte[] data, android.bluetooth.BluetoothDevice device, int rssi) {
-  		if (mInvalidDevices.contains(device.getAddress())) return;
+		processAdvertisement(MacAddress.pack(device.getAddress()), data, device, rssi);
+	}
+
+	void processAdvertisement(long mac, byte[] data, android.bluetooth.BluetoothDevice device, int rssi) {
+		processAdvertisement(mac, data, device, rssi, true);
+	}
 
-		boolean isBeacon = Arrays.equals(Arrays.copyOfRange(data, 5, 7), APPLE_PREFIX);
+	/**
+	 * Decodes an advertisement into its device, identifying the device first if it is new.
+	 * @param notify Whether to report an update or ping to listeners now. Batches report every
+	 *               device they touched in one call once the whole batch is decoded.
+	 * @return The known device that was updated or pinged, or null.
+	 */
+	SmartDevice processAdvertisement(long mac, byte[] data, android.bluetooth.BluetoothDevice device, int rssi, boolean notify) {
+		String address = device.getAddress();
+		if (mac == MacAddress.INVALID || mInvalidDevices.contains(mac)) return null;
 
-		if (mDevices.containsKey(device.getAddress())) {
-			SmartDevice target = mDevices.get(device.getAddress());
-			if (!target.isProcessingEnabled()) return;
+		AdRecord record = AdRecord.parse(data);
+		boolean isBeacon = record.isIBeacon();
+
+		SmartDevice target = mDevices.get(mac);
+		if (target != null) {
+			if (!target.isProcessingEnabled()) return null;
 			if (isBeacon) {
 				target.newBeacon();
-				for (DeviceScannerListener listener : mListeners) {
-					listener.onDevicePinged(target);
-				}
-			} else {
-				Log.i("Processing Ad", "Processing Advertisement for Device " + target.getAddress());
+				if (notify) notifyPinged(target);
+				return target;
+			}
+
+			boolean repeated = target.newRepeatedAdvertisement(data, rssi);
+			if (!repeated) {
+				Log.i("Processing Ad", "Processing Advertisement for Device " + address);
 				target.newAdvertisement(data,rssi);
-				for (DeviceScannerListener listener : mListeners) {
-					listener.onDeviceUpdated(target);
-				}
 			}
+			// A lost device is reported as soon as it is seen again, even if nothing changed.
+			boolean revived = mVisibility.onSeen(mac, target);
+			long keepAlive = mKeepAliveInterval;
+			if (!repeated && target.getChangedFields() != 0) {
+				if (notify) notifyUpdated(target);
+			} else if (revived || (repeated && keepAlive > 0 && target.isKeepAliveDue(keepAlive))) {
+				if (notify) notifyPinged(target);
+			} else {
+				return null;
+			}
+			return target;
 		} else if (!isBeacon) {
-			for (Method identifier : mDeviceIdentifiers.keySet()) {
+			DeviceTypeIndex.DeviceType type = mDeviceTypes.find(record);
+			if (type != null) {
 				try {
-					if ((boolean) identifier.invoke(null, new Object[] {data})) {
-						SmartDevice target =
-								mDeviceIdentifiers
-										.get(identifier)
-										.getDeclaredConstructor(BluetoothDevice.class)
-										.newInstance(device);
-						target.newAdvertisement(data,rssi);
-
-						Log.d("MESSAGE", "New known discovered: " + device.getAddress());
-						mDevices.put(device.getAddress(), target);
-						for (DeviceScannerListener listener : mListeners) {
-							try {
-								listener.onDeviceDiscovered(target);
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						mStorage.writeDevice(target);
-						return;
-					}
+					target = type.newDevice(device);
+					target.newAdvertisement(data,rssi);
+					discover(mac, target);
+					Log.d("MESSAGE", "New known discovered: " + address);
+					return null;
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
@@ -160,17 +218,101 @@ public abstract class DeviceScanner {
 			if (mAllowUnknowns) {
 				com.jameslandrum.bluetoothsmart.SmartDevice generic = new GenericDevice(device);
 				generic.newAdvertisement(data,rssi);
-				mDevices.put(device.getAddress(), generic);
-				for (DeviceScannerListener listener : mListeners) {
-					listener.onDeviceDiscovered(generic);
-				}
-				mStorage.writeDevice(generic);
-				return;
+				discover(mac, generic);
+				return null;
+			}
+			Log.d("MESSAGE","New unknown discovered: " + address);
+			mInvalidDevices.add(mac);
+		}
+		return null;
+	}
+
+	private static void notifyUpdated(SmartDevice target) {
+		for (DeviceScannerListener listener : mListeners) {
+			try {
+				listener.onDeviceUpdated(target);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void notifyPinged(SmartDevice target) {
+		for (DeviceScannerListener listener : mListeners) {
+			try {
+				listener.onDevicePinged(target);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reports the known devices touched by a decoded batch of advertisements.
+	 * @param devices Each updated or pinged device, once.
+	 */
+	void notifyBatch(List<SmartDevice> devices) {
+		if (devices.isEmpty()) return;
+		List<SmartDevice> batch = Collections.unmodifiableList(devices);
+		for (DeviceScannerListener listener : mListeners) {
+			try {
+				listener.onDevicesUpdated(batch);
+			} catch (Exception e) {
+				e.printStackTrace();
 			}
-			Log.d("MESSAGE","New unknown discovered: " + device.getAddress());
-			mInvalidDevices.add(device.getAddress());
 		}
+	}
 
+	/**
+	 * Registers a newly identified device and notifies listeners, unless another thread
+	 * registered the address first.
+	 */
+	private void discover(long mac, SmartDevice target) {
+		int max = mMaxDevices;
+		if (max > 0 && mDevices.size() >= max && !evictLostDevice()) {
+			mRejected.incrementAndGet();
+			return;
+		}
+		if (mDevices.putIfAbsent(mac, target) != null) return;
+		mVisibility.track(mac, target);
+		for (DeviceScannerListener listener : mListeners) {
+			try {
+				listener.onDeviceDiscovered(target);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		mStorage.writeDevice(target);
+	}
+
+	/**
+	 * Removes the device that has been lost the longest from the registry.
+	 * @return False if no device is lost.
+	 */
+	private static boolean evictLostDevice() {
+		TimerWheel.Timeout<SmartDevice> lost = mVisibility.pollLost();
+		if (lost == null) return false;
+		if (!mDevices.remove(lost.getKey(), lost.getItem())) return false;
+		mEvicted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Reports a device whose visibility window ended, evicting it if lost devices are evicted.
+	 * Called on the visibility tracker's thread.
+	 */
+	private static void onDeviceLost(long mac, SmartDevice device) {
+		if (mEvictLostDevices && mDevices.get(mac) == device) {
+			mVisibility.untrack(mac);
+			if (mDevices.remove(mac, device)) mEvicted.incrementAndGet();
+		}
+		for (DeviceScannerListener listener : mListeners) {
+			try {
+				listener.onDeviceLost(device);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	/**
@@ -180,8 +322,14 @@ public abstract class DeviceScanner {
 	public void attachStorage(DevicePersistentStorage storage) {
 		mStorage = storage;
 		mDevices.clear();
+		mVisibility.clear();
 		for (com.jameslandrum.bluetoothsmart.SmartDevice device : mStorage.getAllDevices()) {
-			mDevices.put(device.getAddress(), device);
+			long mac = MacAddress.pack(device.getAddress());
+			if (mac == MacAddress.INVALID) {
+				Log.w("DeviceScanner", "Skipping stored device with malformed address " + device.getAddress());
+				continue;
+			}
+			mDevices.put(mac, device);
 			for (DeviceScannerListener listener : mListeners) {
 				listener.onDeviceDiscovered(device);
 			}
@@ -189,31 +337,249 @@ public abstract class DeviceScanner {
 	}
 
 	public List<com.jameslandrum.bluetoothsmart.SmartDevice> getAllDevices() {
-		return Collections.unmodifiableList(new ArrayList<>(mDevices.values()));
+		return Collections.unmodifiableList(mDevices.values());
 	}
 
 	public static boolean allowsUnknownDevices() {
 		return mAllowUnknowns;
 	}
 
+	/**
+	 * Registers a listener. Listeners are called on the scanner's processing threads and should
+	 * return quickly; wrap a slow listener in a {@link ListenerQueue} so it is called on its own
+	 * thread instead.
+	 */
 	public void addScanListener(@NonNull DeviceScannerListener listener) {
 		mListeners.add(listener);
 	}
 
+	/**
+	 * Unregisters a listener, or the ListenerQueue delivering to it, closing the queue.
+	 */
 	public void removeScanListener(@NonNull DeviceScannerListener listener) {
-		mListeners.remove(listener);
+		for (DeviceScannerListener registered : mListeners) {
+			if (registered.equals(listener) || registered instanceof ListenerQueue
+					&& ((ListenerQueue) registered).getListener() == listener) {
+				if (mListeners.remove(registered) && registered instanceof ListenerQueue) {
+					((ListenerQueue) registered).close();
+				}
+				return;
+			}
+		}
 	}
 
 	public static void setUnknownDeviceSupport(boolean enable) {
 		mAllowUnknowns = enable;
 	}
 
-	public com.jameslandrum.bluetoothsmart.SmartDevice getDeviceByMacAddress(String macAddress) {
-		for (com.jameslandrum.bluetoothsmart.SmartDevice device : mDevices.values()) {
-			if (device.getAddress().equals(macAddress)) return device;
-		}
+	/**
+	 * Replaces the cache of addresses that did not match any device type. Addresses in the
+	 * cache are ignored until they expire, after which they are identified again.
+	 * @param capacity The maximum number of addresses to remember.
+	 * @param ttlMillis How long to ignore an address, in milliseconds.
+	 */
+	public static void setUnknownDeviceCache(int capacity, long ttlMillis) {
+		mInvalidDevices = new NegativeCache(capacity, ttlMillis);
+	}
+
+	/**
+	 * @return The cache of addresses that did not match any device type, for its counters.
+	 */
+	public static NegativeCache getUnknownDeviceCache() {
+		return mInvalidDevices;
+	}
+
+	/**
+	 * Sets how many threads decode advertisements. Every advertisement from one address is
+	 * handled by the same thread, in order, so listeners see each device updated in sequence,
+	 * but different devices may be reported from different threads at once.
+	 * Takes effect the next time scanning starts.
+	 * @param workers The number of worker threads, at least one.
+	 */
+	public static void setWorkerCount(int workers) {
+		if (workers < 1) throw new IllegalArgumentException("At least one worker is required.");
+		mWorkerCount = workers;
+	}
+
+	public static int getWorkerCount() {
+		return mWorkerCount;
+	}
+
+	/**
+	 * @return The workers decoding advertisements, or null if scanning has not started.
+	 */
+	ShardedProcessor<?> getProcessor() {
 		return null;
-	};
+	}
+
+	/**
+	 * @return The number of advertisements waiting on each worker thread.
+	 */
+	public int[] getQueueDepths() {
+		ShardedProcessor<?> processor = getProcessor();
+		return processor == null ? new int[0] : processor.getQueueDepths();
+	}
+
+	/**
+	 * @return The number of advertisements dropped because processing fell too far behind.
+	 */
+	public long getDroppedCount() {
+		ShardedProcessor<?> processor = getProcessor();
+		return processor == null ? 0 : processor.getDroppedCount();
+	}
+
+	/**
+	 * @return The number of advertisements skipped because a newer one from the same device
+	 * was already waiting.
+	 */
+	public long getCoalescedCount() {
+		ShardedProcessor<?> processor = getProcessor();
+		return processor == null ? 0 : processor.getCoalescedCount();
+	}
+
+	/**
+	 * Returns the running workers, replacing them if the worker count has changed.
+	 */
+	<T> ShardedProcessor<T> startProcessor(ShardedProcessor<T> current, String name, IngestRing.Handler<T> handler) {
+		ShardedProcessor<T> processor = current;
+		if (processor == null || processor.getShardCount() != mWorkerCount) {
+			if (processor != null) processor.stop();
+			processor = new ShardedProcessor<>(name, mWorkerCount, INGEST_CAPACITY, handler);
+		}
+		processor.start();
+		return processor;
+	}
+
+	/**
+	 * Enables batched scanning where the platform supports it. Results are held by the Bluetooth
+	 * controller for up to the given delay and delivered together; the whole batch is decoded
+	 * before listeners get a single onDevicesUpdated call for it, instead of onDeviceUpdated
+	 * and onDevicePinged per advertisement. Suited to background collection where a few seconds
+	 * of latency is acceptable. Takes effect the next time scanning starts.
+	 * @param millis The report delay in milliseconds, or 0 to report every result immediately.
+	 */
+	public static void setReportDelay(long millis) {
+		if (millis < 0) throw new IllegalArgumentException("Report delay must not be negative.");
+		mReportDelay = millis;
+	}
+
+	public static long getReportDelay() {
+		return mReportDelay;
+	}
+
+	/**
+	 * Advertisements that repeat a device's last content are not decoded again and do not call
+	 * onDeviceUpdated. With a keep-alive interval, such a device is still reported through
+	 * onDevicePinged at most once per interval, so listeners can tell it is present.
+	 * @param millis The keep-alive interval in milliseconds, or 0 to never report repeats.
+	 */
+	public static void setKeepAliveInterval(long millis) {
+		if (millis < 0) throw new IllegalArgumentException("Keep-alive interval must not be negative.");
+		mKeepAliveInterval = millis;
+	}
+
+	public static long getKeepAliveInterval() {
+		return mKeepAliveInterval;
+	}
+
+	/**
+	 * Removes devices from the registry once they are lost, so that a long running scan does
+	 * not hold on to every device it has ever seen. Connected devices are never lost. An evicted
+	 * device that advertises again is identified and discovered again.
+	 * @param evict Whether to evict lost devices.
+	 */
+	public static void setLostDeviceEviction(boolean evict) {
+		mEvictLostDevices = evict;
+	}
+
+	public static boolean isLostDeviceEvictionEnabled() {
+		return mEvictLostDevices;
+	}
+
+	/**
+	 * Caps the number of devices in the registry. When it is full, the device that has been lost
+	 * the longest is evicted to make room for a newly identified one; if no device is lost, the
+	 * new device is not registered. Devices restored from storage or injected are only timed,
+	 * and so only evicted, once they have advertised.
+	 * @param max The maximum number of devices, or 0 for no limit.
+	 */
+	public static void setMaxDevices(int max) {
+		if (max < 0) throw new IllegalArgumentException("Device limit must not be negative.");
+		mMaxDevices = max;
+		mVisibility.setQueueLost(max > 0);
+	}
+
+	public static int getMaxDevices() {
+		return mMaxDevices;
+	}
+
+	/**
+	 * @return The number of lost devices removed from the registry.
+	 */
+	public long getEvictedCount() {
+		return mEvicted.get();
+	}
+
+	/**
+	 * @return The number of identified devices not registered because the registry was full.
+	 */
+	public long getRejectedCount() {
+		return mRejected.get();
+	}
+
+	/**
+	 * Records every scan result received from now on, before any is dropped or coalesced, in
+	 * the ScanCapture format for replay with ScanReplay. Replaces any capture in progress.
+	 * @param out The stream to write to, closed by stopCapture.
+	 */
+	public static void startCapture(@NonNull OutputStream out) {
+		ScanCapture.Writer previous = mCapture;
+		mCapture = new ScanCapture.Writer(out);
+		if (previous != null) closeCapture(previous);
+	}
+
+	/**
+	 * Ends the capture in progress and closes its stream.
+	 * @return The number of results recorded, or 0 if no capture was in progress.
+	 */
+	public static long stopCapture() {
+		ScanCapture.Writer capture = mCapture;
+		mCapture = null;
+		if (capture == null) return 0;
+		closeCapture(capture);
+		return capture.getCount();
+	}
+
+	public static boolean isCapturing() {
+		return mCapture != null;
+	}
+
+	/**
+	 * Records a scan result if a capture is in progress. A capture that fails to write is ended.
+	 */
+	static void capture(long timeNanos, long mac, int rssi, byte[] record) {
+		ScanCapture.Writer capture = mCapture;
+		if (capture == null) return;
+		try {
+			capture.write(timeNanos, mac, rssi, record);
+		} catch (IOException e) {
+			Log.e("DeviceScanner", "Scan capture failed", e);
+			if (mCapture == capture) stopCapture();
+		}
+	}
+
+	private static void closeCapture(ScanCapture.Writer capture) {
+		try {
+			capture.close();
+		} catch (IOException e) {
+			Log.e("DeviceScanner", "Scan capture failed", e);
+		}
+	}
+
+	public com.jameslandrum.bluetoothsmart.SmartDevice getDeviceByMacAddress(String macAddress) {
+		long mac = MacAddress.pack(macAddress);
+		return mac == MacAddress.INVALID ? null : mDevices.get(mac);
+	}
 
 }
 
@@ -18,6 +18,8 @@ package com.jameslandrum.bluetoothsmart.scanner;
 
 import com.jameslandrum.bluetoothsmart.SmartDevice;
 
+import java.util.List;
+
 /**
  * Callback for Device Scanning
  */
@@ -25,4 +27,17 @@ public interface DeviceScannerListener {
 	void onDeviceDiscovered(SmartDevice smartDevice);
 	void onDeviceUpdated(SmartDevice smartDevice);
 	void onDevicePinged(SmartDevice target);
+
+	/**
+	 * Called when a device has not advertised for its visibility window and is not connected.
+	 * If the device advertises again it is reported through onDeviceUpdated or onDevicePinged,
+	 * unless lost devices are evicted, in which case it is discovered again.
+	 */
+	void onDeviceLost(SmartDevice smartDevice);
+
+	/**
+	 * Called once per batch in batched scanning, in place of onDeviceUpdated and onDevicePinged.
+	 * @param smartDevices Every known device updated or pinged by the batch, once each.
+	 */
+	void onDevicesUpdated(List<SmartDevice> smartDevices);
 }
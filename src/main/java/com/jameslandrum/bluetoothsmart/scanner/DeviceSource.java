@@ -0,0 +1,86 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Supplies BluetoothDevice objects for addresses that were not received from the platform, for
+ * replayed and generated traffic and for tests: the adapter's on a device, or ones built
+ * through the hidden constructors under stubs.
+ */
+public final class DeviceSource {
+	private final ConcurrentLongMap<BluetoothDevice> mDevices = new ConcurrentLongMap<>();
+	private final BluetoothAdapter mAdapter;
+	private volatile Constructor<BluetoothDevice> mConstructor;
+	private boolean mAddressed;
+
+	public DeviceSource() {
+		BluetoothAdapter adapter = null;
+		try {
+			adapter = BluetoothAdapter.getDefaultAdapter();
+		} catch (RuntimeException e) {
+			// Stubbed
+		}
+		mAdapter = adapter;
+	}
+
+	/**
+	 * Returns the device for an address, creating it the first time the address is seen.
+	 */
+	BluetoothDevice get(long address) {
+		BluetoothDevice device = mDevices.get(address);
+		if (device != null) return device;
+		device = create(address);
+		mDevices.put(address, device);
+		return device;
+	}
+
+	/**
+	 * Creates a device for an address without remembering it. Where even the address
+	 * constructor is stubbed out, the device has no address.
+	 */
+	public BluetoothDevice create(long address) {
+		String mac = MacAddress.unpack(address);
+		try {
+			BluetoothDevice device = null;
+			if (mAdapter != null) device = mAdapter.getRemoteDevice(mac);
+			if (device != null) return device;
+			if (mConstructor == null) findConstructor();
+			return mAddressed ? mConstructor.newInstance(mac) : mConstructor.newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("No BluetoothDevice for " + mac, e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized void findConstructor() throws NoSuchMethodException {
+		if (mConstructor != null) return;
+		Constructor<BluetoothDevice> constructor;
+		try {
+			constructor = BluetoothDevice.class.getDeclaredConstructor(String.class);
+			mAddressed = true;
+		} catch (NoSuchMethodException e) {
+			constructor = BluetoothDevice.class.getDeclaredConstructor();
+		}
+		constructor.setAccessible(true);
+		mConstructor = constructor;
+	}
+}
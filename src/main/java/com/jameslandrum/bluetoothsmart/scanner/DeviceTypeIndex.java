@@ -0,0 +1,291 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.DeviceBinder;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.Identifier;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+import com.jameslandrum.bluetoothsmart.throwable.InvalidSmartDeviceImplementationException;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The registered device types, indexed by the advertisement features their ScanMatches require.
+ *
+ * An advertisement from an unknown address only runs the identifiers of types indexed under
+ * its manufacturer id or service UUIDs, plus types that declare no such feature. Within each
+ * group the types that identified the most devices are tried first. The index is rebuilt when
+ * a type is added and read without locking.
+ */
+final class DeviceTypeIndex {
+	private static final int MAX_FEATURES = 8;
+
+	private final LinkedHashMap<Class<?>,DeviceType> mTypes = new LinkedHashMap<>();
+	private volatile Snapshot mSnapshot = new Snapshot(new ArrayList<DeviceType>(), 0);
+	private int mNextIndex;
+
+	/**
+	 * Registers a device type, replacing an earlier registration of the same class.
+	 */
+	synchronized void add(Class<? extends SmartDevice> type) {
+		mTypes.put(type, new DeviceType(type, mNextIndex++));
+		mSnapshot = new Snapshot(new ArrayList<>(mTypes.values()), mNextIndex);
+	}
+
+	synchronized void remove(Class<? extends SmartDevice> type) {
+		if (mTypes.remove(type) == null) return;
+		mSnapshot = new Snapshot(new ArrayList<>(mTypes.values()), mNextIndex);
+	}
+
+	synchronized boolean isEmpty() {
+		return mTypes.isEmpty();
+	}
+
+	/**
+	 * Collects the matches of every registered type for the controller to filter on.
+	 * @return The matches, or null if some type declares none or one the controller cannot apply.
+	 */
+	synchronized List<ScanMatcher> getScanMatchers() {
+		if (mTypes.isEmpty()) return null;
+		ArrayList<ScanMatcher> pushed = new ArrayList<>();
+		for (DeviceType type : mTypes.values()) {
+			if (type.mMatchers.length == 0) return null;
+			for (ScanMatcher matcher : type.mMatchers) {
+				if (!matcher.isPushable()) return null;
+				pushed.add(matcher);
+			}
+		}
+		return pushed;
+	}
+
+	/**
+	 * Finds the type an advertisement from an unknown address belongs to.
+	 * @param record The advertisement.
+	 * @return The first type whose matches and identifiers accept it, or null.
+	 */
+	DeviceType find(AdRecord record) {
+		Snapshot snapshot = mSnapshot;
+		if (snapshot.mCount == 0) return null;
+
+		long[] tried = new long[(snapshot.mIndexLimit + 63) >>> 6];
+		long[] features = new long[MAX_FEATURES];
+		int count = ScanMatcher.getFeatureKeys(record, features);
+		for (int i = 0; i < count; i++) {
+			Bucket bucket = snapshot.get(features[i]);
+			if (bucket == null) continue;
+			DeviceType type = bucket.find(record, tried);
+			if (type != null) return type;
+		}
+		return snapshot.mWildcard.find(record, tried);
+	}
+
+	/**
+	 * A registered device type with its identifiers and constructor resolved.
+	 */
+	static final class DeviceType {
+		private final Class<? extends SmartDevice> mType;
+		private final ScanMatcher[] mMatchers;
+		private final DeviceBinder mBinder;
+		private final Method[] mIdentifiers;
+		private final Constructor<? extends SmartDevice> mConstructor;
+		private final AtomicLong mHits = new AtomicLong();
+		/* Unique per registration, so a lookup can track which types it already tried. */
+		private final int mIndex;
+
+		DeviceType(Class<? extends SmartDevice> type, int index) {
+			mType = type;
+			mIndex = index;
+			SmartDeviceDef declaration = type.getAnnotation(SmartDeviceDef.class);
+			ScanMatch[] matches = declaration == null ? new ScanMatch[0] : declaration.matches();
+			mMatchers = new ScanMatcher[matches.length];
+			for (int i = 0; i < matches.length; i++) mMatchers[i] = new ScanMatcher(matches[i]);
+
+			ArrayList<Method> identifiers = new ArrayList<>();
+			for (Method m : type.getDeclaredMethods()) {
+				if (m.getAnnotation(Identifier.class) != null) {
+					if (!Modifier.isStatic(m.getModifiers())) throw new InvalidSmartDeviceImplementationException();
+					m.setAccessible(true);
+					identifiers.add(m);
+				}
+			}
+			mIdentifiers = identifiers.toArray(new Method[identifiers.size()]);
+			mBinder = identifiers.isEmpty() ? null : SmartDevice.findBinder(type);
+			mConstructor = findConstructor(type);
+		}
+
+		private static Constructor<? extends SmartDevice> findConstructor(Class<? extends SmartDevice> type) {
+			try {
+				Constructor<? extends SmartDevice> constructor = type.getDeclaredConstructor(BluetoothDevice.class);
+				constructor.setAccessible(true);
+				return constructor;
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return True if this type's matches and identifiers accept the advertisement.
+		 */
+		boolean identify(AdRecord record) {
+			if (mMatchers.length > 0 && !ScanMatcher.matchesAny(mMatchers, record)) return false;
+			byte[] data = record.getData();
+			try {
+				if (mBinder != null) return mBinder.identify(data);
+				for (Method identifier : mIdentifiers) {
+					if ((boolean) identifier.invoke(null, new Object[] {data})) return true;
+				}
+			} catch (Exception e) {
+				Log.e("DeviceTypeIndex", "Identifier of " + mType.getName() + " failed", e);
+			}
+			return false;
+		}
+
+		SmartDevice newDevice(BluetoothDevice device) throws Exception {
+			if (mConstructor == null) throw new InvalidSmartDeviceImplementationException();
+			return mConstructor.newInstance(device);
+		}
+
+		Class<? extends SmartDevice> getType() {
+			return mType;
+		}
+
+		/**
+		 * @return The number of devices this type identified.
+		 */
+		long getHitCount() {
+			return mHits.get();
+		}
+	}
+
+	/**
+	 * The types sharing one feature key, most frequently identified first.
+	 */
+	private static final class Bucket {
+		private volatile DeviceType[] mOrder;
+
+		Bucket(List<DeviceType> types) {
+			mOrder = types.toArray(new DeviceType[types.size()]);
+		}
+
+		DeviceType find(AdRecord record, long[] tried) {
+			DeviceType[] order = mOrder;
+			for (int i = 0; i < order.length; i++) {
+				DeviceType type = order[i];
+				long bit = 1L << type.mIndex;
+				if ((tried[type.mIndex >>> 6] & bit) != 0) continue;
+				tried[type.mIndex >>> 6] |= bit;
+
+				if (type.identify(record)) {
+					long hits = type.mHits.incrementAndGet();
+					if (i > 0 && hits > order[i - 1].mHits.get()) promote(order, i);
+					return type;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Moves a type one place ahead. Concurrent promotions may overwrite each other, which
+		 * only delays the reordering.
+		 */
+		private void promote(DeviceType[] order, int i) {
+			DeviceType[] promoted = order.clone();
+			promoted[i] = order[i - 1];
+			promoted[i - 1] = order[i];
+			mOrder = promoted;
+		}
+	}
+
+	/**
+	 * An immutable open-addressed table from feature key to bucket.
+	 */
+	private static final class Snapshot {
+		private final int mCount;
+		private final int mIndexLimit;
+		private final long[] mKeys;
+		private final Bucket[] mBuckets;
+		private final Bucket mWildcard;
+
+		Snapshot(List<DeviceType> types, int indexLimit) {
+			mIndexLimit = indexLimit;
+			LinkedHashMap<Long,List<DeviceType>> indexed = new LinkedHashMap<>();
+			ArrayList<DeviceType> wildcard = new ArrayList<>();
+			int count = 0;
+			for (DeviceType type : types) {
+				if (type.mIdentifiers.length == 0) continue;
+				count++;
+
+				ArrayList<Long> keys = new ArrayList<>();
+				for (ScanMatcher matcher : type.mMatchers) {
+					long key = matcher.getFeatureKey();
+					if (key < 0) {
+						keys = null;
+						break;
+					}
+					if (!keys.contains(key)) keys.add(key);
+				}
+				if (keys == null || keys.isEmpty()) {
+					wildcard.add(type);
+					continue;
+				}
+				for (Long key : keys) {
+					List<DeviceType> bucket = indexed.get(key);
+					if (bucket == null) indexed.put(key, bucket = new ArrayList<>());
+					bucket.add(type);
+				}
+			}
+
+			mCount = count;
+			int capacity = Integer.highestOneBit(Math.max(2, indexed.size() * 2) * 2 - 1);
+			mKeys = new long[capacity];
+			mBuckets = new Bucket[capacity];
+			for (Map.Entry<Long,List<DeviceType>> e : indexed.entrySet()) {
+				int i = slot(e.getKey());
+				while (mBuckets[i] != null) i = (i + 1) & (capacity - 1);
+				mKeys[i] = e.getKey();
+				mBuckets[i] = new Bucket(e.getValue());
+			}
+			mWildcard = new Bucket(wildcard);
+		}
+
+		private int slot(long key) {
+			return (int) ConcurrentLongMap.hash(key) & (mKeys.length - 1);
+		}
+
+		Bucket get(long key) {
+			int i = slot(key);
+			while (mBuckets[i] != null) {
+				if (mKeys[i] == key) return mBuckets[i];
+				i = (i + 1) & (mKeys.length - 1);
+			}
+			return null;
+		}
+	}
+}
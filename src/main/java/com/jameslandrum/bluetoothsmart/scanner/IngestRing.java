@@ -0,0 +1,201 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue from many producers (scan callbacks) to a single consumer.
+ *
+ * Producers claim slots with a compare-and-set and never block; when the ring is full the
+ * item is dropped and counted. The consumer drains everything published so far as one batch
+ * and only delivers the latest item per key in that batch, so a device that advertises faster
+ * than it can be processed costs one decode per batch. When the ring is empty the consumer
+ * parks, and producers only unpark it while it is actually parked.
+ */
+public final class IngestRing<T> {
+	private static final int MAX_BATCH = 256;
+
+	private final int mCapacity;
+	private final int mMask;
+	private final AtomicLongArray mSequence;
+	private final long[] mKeys;
+	private final Object[] mItems;
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private volatile long mCoalesced;
+	private volatile long mDelivered;
+	private volatile Thread mWaiter;
+
+	/* Consumer state */
+	private volatile long mHead;
+	private final long[] mLatestKeys;
+	private final int[] mLatestIndex;
+	private final int[] mLatestStamp;
+	private int mStamp;
+
+	/**
+	 * @param capacity The number of slots, rounded up to a power of two.
+	 */
+	public IngestRing(int capacity) {
+		mCapacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		mMask = mCapacity - 1;
+		mSequence = new AtomicLongArray(mCapacity);
+		for (int i = 0; i < mCapacity; i++) mSequence.set(i, i);
+		mKeys = new long[mCapacity];
+		mItems = new Object[mCapacity];
+
+		int batch = Math.min(mCapacity, MAX_BATCH);
+		mLatestKeys = new long[batch * 2];
+		mLatestIndex = new int[batch * 2];
+		mLatestStamp = new int[batch * 2];
+	}
+
+	/**
+	 * Publishes an item. Safe to call from any thread.
+	 * @param key The coalescing key, such as a packed address.
+	 * @param item The item.
+	 * @return False if the ring was full and the item was dropped.
+	 */
+	public boolean offer(long key, T item) {
+		long tail;
+		int index;
+		while (true) {
+			tail = mTail.get();
+			index = (int) tail & mMask;
+			long sequence = mSequence.get(index);
+			if (sequence == tail) {
+				if (mTail.compareAndSet(tail, tail + 1)) break;
+			} else if (sequence < tail) {
+				mDropped.incrementAndGet();
+				return false;
+			}
+		}
+		mKeys[index] = key;
+		mItems[index] = item;
+		mSequence.set(index, tail + 1);
+
+		Thread waiter = mWaiter;
+		if (waiter != null) LockSupport.unpark(waiter);
+		return true;
+	}
+
+	/**
+	 * Delivers the latest item of each key among those published so far. Consumer thread only.
+	 * @param handler Receives the items.
+	 * @return The number of items taken from the ring, including coalesced ones.
+	 */
+	@SuppressWarnings("unchecked")
+	public int drain(Handler<T> handler) {
+		long head = mHead;
+		int count = 0;
+		int batch = mLatestKeys.length / 2;
+		while (count < batch && mSequence.get((int) (head + count) & mMask) == head + count + 1) {
+			count++;
+		}
+		if (count == 0) return 0;
+
+		if (++mStamp == 0) mStamp = 1;
+		for (int i = 0; i < count; i++) {
+			markLatest(mKeys[(int) (head + i) & mMask], i);
+		}
+
+		long coalesced = 0;
+		for (int i = 0; i < count; i++) {
+			int index = (int) (head + i) & mMask;
+			long key = mKeys[index];
+			T item = (T) mItems[index];
+			mItems[index] = null;
+			mSequence.set(index, head + i + mCapacity);
+			mHead = head + i + 1;
+
+			if (latestIndex(key) == i) {
+				handler.onItem(key, item);
+			} else {
+				coalesced++;
+			}
+		}
+		mCoalesced += coalesced;
+		mDelivered += count - coalesced;
+		return count;
+	}
+
+	/**
+	 * Parks the consumer until an item is published or the thread is interrupted.
+	 */
+	public void await() {
+		mWaiter = Thread.currentThread();
+		if (isEmpty()) LockSupport.park(this);
+		mWaiter = null;
+	}
+
+	public boolean isEmpty() {
+		long head = mHead;
+		return mSequence.get((int) head & mMask) != head + 1;
+	}
+
+	/**
+	 * @return The approximate number of items waiting. Safe to call from any thread.
+	 */
+	public int size() {
+		long size = mTail.get() - mHead;
+		return (int) Math.max(0, Math.min(mCapacity, size));
+	}
+
+	/**
+	 * @return The number of items dropped because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	/**
+	 * @return The number of items skipped because a newer item with the same key followed.
+	 */
+	public long getCoalescedCount() {
+		return mCoalesced;
+	}
+
+	/**
+	 * @return The number of items handed to the consumer.
+	 */
+	public long getDeliveredCount() {
+		return mDelivered;
+	}
+
+	private void markLatest(long key, int position) {
+		int mask = mLatestKeys.length - 1;
+		int i = (int) ConcurrentLongMap.hash(key) & mask;
+		while (mLatestStamp[i] == mStamp && mLatestKeys[i] != key) i = (i + 1) & mask;
+		mLatestStamp[i] = mStamp;
+		mLatestKeys[i] = key;
+		mLatestIndex[i] = position;
+	}
+
+	private int latestIndex(long key) {
+		int mask = mLatestKeys.length - 1;
+		int i = (int) ConcurrentLongMap.hash(key) & mask;
+		while (mLatestStamp[i] != mStamp || mLatestKeys[i] != key) i = (i + 1) & mask;
+		return mLatestIndex[i];
+	}
+
+	public interface Handler<T> {
+		void onItem(long key, T item);
+	}
+}
@@ -18,12 +18,15 @@ package com.jameslandrum.bluetoothsmart.scanner;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.util.Log;
 
 /**
  * Scanner for API 19
  */
 public class KitKatDeviceScanner extends DeviceScanner implements BluetoothAdapter.LeScanCallback {
 	private BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+	private volatile ShardedProcessor<LeScan> mProcessor;
 	private boolean mIsScanning;
 
 	KitKatDeviceScanner() {
@@ -33,15 +36,18 @@ public class KitKatDeviceScanner extends DeviceScanner implements BluetoothAdapt
 	@Override
 	public void startScan(@ScanMode int scanMode) {
 		if (!mAdapter.isEnabled()) return;
+		mProcessor = startProcessor(mProcessor, "KitKatDeviceScanner", mHandler);
+		mVisibility.start();
 		mAdapter.startLeScan(this);
 		mIsScanning = true;
 	}
 
 	@Override
 	public void stopScan() {
-		if (!mAdapter.isEnabled()) return;
-		mAdapter.stopLeScan(this);
 		mIsScanning = false;
+		if (mProcessor != null) mProcessor.stop();
+		mVisibility.stop();
+		if (mAdapter.isEnabled()) mAdapter.stopLeScan(this);
 	}
 
 	@Override
@@ -49,8 +55,44 @@ public class KitKatDeviceScanner extends DeviceScanner implements BluetoothAdapt
 		return mAdapter.isEnabled() && mIsScanning;
 	}
 
+	@Override
+	ShardedProcessor<?> getProcessor() {
+		return mProcessor;
+	}
+
 	@Override
 	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-		processAdvertisement(scanRecord, device, rssi);
+		ShardedProcessor<LeScan> processor = mProcessor;
+		if (processor != null && scanRecord != null) {
+			long mac = MacAddress.pack(device.getAddress());
+			capture(SystemClock.elapsedRealtimeNanos(), mac, rssi, scanRecord);
+			processor.offer(mac, new LeScan(device, rssi, scanRecord));
+		}
+	}
+
+	private final IngestRing.Handler<LeScan> mHandler = new IngestRing.Handler<LeScan>() {
+		@Override
+		public void onItem(long address, LeScan scan) {
+			try {
+				processAdvertisement(address, scan.mScanRecord, scan.mDevice, scan.mRssi);
+			} catch (Exception e) {
+				Log.e("KitKatDeviceScanner", "Failed to process advertisement from " + MacAddress.unpack(address), e);
+			}
+		}
+	};
+
+	/**
+	 * The arguments of one onLeScan call, queued for a worker.
+	 */
+	private static final class LeScan {
+		final BluetoothDevice mDevice;
+		final int mRssi;
+		final byte[] mScanRecord;
+
+		LeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			mDevice = device;
+			mRssi = rssi;
+			mScanRecord = scanRecord;
+		}
 	}
 }
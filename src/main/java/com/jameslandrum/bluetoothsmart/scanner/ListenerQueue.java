@@ -0,0 +1,330 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers scanner events to a listener asynchronously, so a slow listener cannot hold up
+ * decoding or the other listeners. Register it in place of the listener:
+ * <pre>
+ * scanner.addScanListener(new ListenerQueue(listener, 256, ListenerQueue.Policy.COALESCE, null));
+ * </pre>
+ * Events are queued, up to a capacity, and delivered in order by an executor: one run at a time,
+ * so the listener is never called concurrently. When the listener falls behind, the queue drops
+ * events according to its policy instead of blocking the scanner.
+ */
+public final class ListenerQueue implements DeviceScannerListener {
+	/**
+	 * What to do when the listener falls behind.
+	 */
+	public enum Policy {
+		/**
+		 * Drops the oldest event when the queue is full.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Merges updates and pings of a device into the one still waiting, since the listener
+		 * sees the device's current state either way. Discoveries, losses and batches are kept;
+		 * the oldest event is dropped if the queue still fills.
+		 */
+		COALESCE
+	}
+
+	/* Events are delivered in runs of at most this many, so a shared executor is not monopolized. */
+	private static final int MAX_RUN = 64;
+
+	private static final int DISCOVERED = 0;
+	private static final int LOST = 1;
+	private static final int BATCH = 2;
+	private static final int PINGED = 3;
+	private static final int UPDATED = 4;
+
+	private final DeviceScannerListener mListener;
+	private final int mCapacity;
+	private final Policy mPolicy;
+	private final Executor mExecutor;
+	private final ExecutorService mOwnExecutor;
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+	/* Guarded by mQueue */
+	private final ArrayDeque<Event> mQueue;
+	private final IdentityHashMap<SmartDevice,Event> mPending = new IdentityHashMap<>();
+	private boolean mClosed;
+	private long mDropped;
+	private long mCoalesced;
+	private long mDelivered;
+	private long mMaxLag;
+	private long mLastLag;
+
+	/**
+	 * @param listener The listener to deliver to.
+	 * @param capacity The most events to hold for the listener.
+	 * @param policy What to drop when the queue is full.
+	 * @param executor Runs the deliveries, or null to give the listener its own thread.
+	 */
+	public ListenerQueue(@NonNull DeviceScannerListener listener, int capacity, @NonNull Policy policy, @Nullable Executor executor) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+		mListener = listener;
+		mCapacity = capacity;
+		mPolicy = policy;
+		mQueue = new ArrayDeque<>(Math.min(capacity, 1024));
+		if (executor == null) {
+			mOwnExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ListenerQueue");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			mExecutor = mOwnExecutor;
+		} else {
+			mOwnExecutor = null;
+			mExecutor = executor;
+		}
+	}
+
+	public DeviceScannerListener getListener() {
+		return mListener;
+	}
+
+	@Override
+	public void onDeviceDiscovered(SmartDevice smartDevice) {
+		enqueue(DISCOVERED, smartDevice, null);
+	}
+
+	@Override
+	public void onDeviceUpdated(SmartDevice smartDevice) {
+		enqueue(UPDATED, smartDevice, null);
+	}
+
+	@Override
+	public void onDevicePinged(SmartDevice target) {
+		enqueue(PINGED, target, null);
+	}
+
+	@Override
+	public void onDeviceLost(SmartDevice smartDevice) {
+		enqueue(LOST, smartDevice, null);
+	}
+
+	@Override
+	public void onDevicesUpdated(List<SmartDevice> smartDevices) {
+		enqueue(BATCH, null, smartDevices);
+	}
+
+	private void enqueue(int type, SmartDevice device, List<SmartDevice> devices) {
+		synchronized (mQueue) {
+			if (mClosed) return;
+			if (mPolicy == Policy.COALESCE && device != null) {
+				Event pending = mPending.get(device);
+				if (type >= PINGED) {
+					if (pending != null) {
+						// An update outranks a ping.
+						pending.mType = Math.max(pending.mType, type);
+						mCoalesced++;
+						return;
+					}
+				} else if (pending != null) {
+					// Later updates must not merge into one queued before this event.
+					mPending.remove(device);
+				}
+			}
+			if (mQueue.size() >= mCapacity) {
+				Event oldest = mQueue.poll();
+				if (oldest.mDevice != null && mPending.get(oldest.mDevice) == oldest) mPending.remove(oldest.mDevice);
+				mDropped++;
+			}
+			Event event = new Event(type, device, devices, System.nanoTime());
+			mQueue.add(event);
+			if (mPolicy == Policy.COALESCE && type >= PINGED) mPending.put(device, event);
+		}
+		if (mScheduled.compareAndSet(false, true)) schedule();
+	}
+
+	/**
+	 * Hands the drain to the executor. The caller must have set mScheduled.
+	 */
+	private void schedule() {
+		try {
+			mExecutor.execute(mDrain);
+		} catch (RejectedExecutionException e) {
+			// Shut down by close(), or an executor that is saturated; the next event tries again.
+			mScheduled.set(false);
+			if (!isClosed()) Log.w("ListenerQueue", "Executor rejected delivery", e);
+		}
+	}
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			for (int i = 0; i < MAX_RUN; i++) {
+				Event event;
+				synchronized (mQueue) {
+					event = mQueue.poll();
+					if (event != null) {
+						if (event.mDevice != null && mPending.get(event.mDevice) == event) mPending.remove(event.mDevice);
+						mLastLag = System.nanoTime() - event.mTime;
+						mMaxLag = Math.max(mMaxLag, mLastLag);
+						mDelivered++;
+					}
+				}
+				if (event == null) {
+					mScheduled.set(false);
+					// An event may have been queued after the poll but before the flag was cleared.
+					if (isEmpty() || !mScheduled.compareAndSet(false, true)) return;
+					continue;
+				}
+				deliver(event);
+			}
+			if (isClosed()) {
+				mScheduled.set(false);
+				return;
+			}
+			schedule();
+		}
+	};
+
+	private void deliver(Event event) {
+		try {
+			switch (event.mType) {
+				case DISCOVERED: mListener.onDeviceDiscovered(event.mDevice); break;
+				case UPDATED: mListener.onDeviceUpdated(event.mDevice); break;
+				case PINGED: mListener.onDevicePinged(event.mDevice); break;
+				case LOST: mListener.onDeviceLost(event.mDevice); break;
+				case BATCH: mListener.onDevicesUpdated(event.mDevices); break;
+			}
+		} catch (Exception e) {
+			Log.e("ListenerQueue", "Listener failed", e);
+		}
+	}
+
+	/**
+	 * Discards waiting events and stops delivering. Called when the queue is removed from the
+	 * scanner; an executor given to the queue is not shut down.
+	 */
+	public void close() {
+		synchronized (mQueue) {
+			mClosed = true;
+			mQueue.clear();
+			mPending.clear();
+			if (mOwnExecutor != null) mOwnExecutor.shutdown();
+		}
+	}
+
+	private boolean isClosed() {
+		synchronized (mQueue) {
+			return mClosed;
+		}
+	}
+
+	private boolean isEmpty() {
+		synchronized (mQueue) {
+			return mQueue.isEmpty();
+		}
+	}
+
+	/**
+	 * @return The number of events waiting.
+	 */
+	public int size() {
+		synchronized (mQueue) {
+			return mQueue.size();
+		}
+	}
+
+	/**
+	 * @return How long the oldest waiting event has waited, in milliseconds, or 0 if none is.
+	 */
+	public long getLag() {
+		synchronized (mQueue) {
+			Event oldest = mQueue.peek();
+			return oldest == null ? 0 : (System.nanoTime() - oldest.mTime) / 1000000L;
+		}
+	}
+
+	/**
+	 * @return How long the last delivered event waited, in milliseconds.
+	 */
+	public long getLastLag() {
+		synchronized (mQueue) {
+			return mLastLag / 1000000L;
+		}
+	}
+
+	/**
+	 * @return The longest any delivered event waited, in milliseconds.
+	 */
+	public long getMaxLag() {
+		synchronized (mQueue) {
+			return mMaxLag / 1000000L;
+		}
+	}
+
+	/**
+	 * @return The number of events dropped because the queue was full.
+	 */
+	public long getDroppedCount() {
+		synchronized (mQueue) {
+			return mDropped;
+		}
+	}
+
+	/**
+	 * @return The number of updates and pings merged into one already waiting.
+	 */
+	public long getCoalescedCount() {
+		synchronized (mQueue) {
+			return mCoalesced;
+		}
+	}
+
+	public long getDeliveredCount() {
+		synchronized (mQueue) {
+			return mDelivered;
+		}
+	}
+
+	private static final class Event {
+		int mType;
+		final SmartDevice mDevice;
+		final List<SmartDevice> mDevices;
+		final long mTime;
+
+		Event(int type, SmartDevice device, List<SmartDevice> devices, long time) {
+			mType = type;
+			mDevice = device;
+			mDevices = devices;
+			mTime = time;
+		}
+	}
+}
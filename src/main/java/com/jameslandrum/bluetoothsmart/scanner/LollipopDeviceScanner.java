@@ -18,26 +18,35 @@ package com.jameslandrum.bluetoothsmart.scanner;
 
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
+import android.os.ParcelUuid;
 import android.util.Log;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * Scanner for API 21 and above.
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class LollipopDeviceScanner extends DeviceScanner {
+	private static final int BATCH_CAPACITY = 16;
+
 	public BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
 	public BluetoothLeScanner mScanner;
-	private Thread mProcessorThread;
-	private final Object mLock = new Object();
-	private ConcurrentSkipListMap<String, ScanResult> mAdsToProcess = new ConcurrentSkipListMap<>();
+	private volatile ShardedProcessor<ScanResult> mProcessor;
+	private volatile ShardedProcessor<List<ScanResult>> mBatchProcessor;
+	private long mBatchSequence;
 	private boolean mIsScanning;
 
 	@Override
@@ -48,33 +57,57 @@ public class LollipopDeviceScanner extends DeviceScanner {
 			ScanSettings.Builder settings = new ScanSettings.Builder();
 			Log.d("LollipopDeviceScanner", "Setting scan mode to " + scanMode);
 			settings.setScanMode(scanMode);
-			mScanner.startScan(null, settings.build(), callback);
+			long reportDelay = getReportDelay();
+			if (reportDelay > 0 && mAdapter.isOffloadedScanBatchingSupported()) {
+				settings.setReportDelay(reportDelay);
+				startBatchProcessor();
+			} else {
+				mProcessor = startProcessor(mProcessor, "LollipopDeviceScanner", mHandler);
+			}
+			mVisibility.start();
+			mScanner.startScan(buildFilters(), settings.build(), callback);
 			mIsScanning = true;
 		}
-		mProcessorThread = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				while (!mProcessorThread.isInterrupted()) {
-					if (mAdsToProcess.size() == 0) try {
-						synchronized (mLock) {
-							Log.i("Processing Ad", "Waiting for Ad");
-							mLock.wait();
-						}
-					} catch (InterruptedException ignored) {
-						break;
-					}
+	}
 
-					try {
-						ScanResult result = mAdsToProcess.firstEntry().getValue();
-						mAdsToProcess.remove(mAdsToProcess.firstEntry().getKey());
-						if (result.getScanRecord() != null) {
-							processAdvertisement(result.getScanRecord().getBytes(), result.getDevice(), result.getRssi());
-						}
-					} catch (Exception ignored) {}
+	/**
+	 * Compiles the declared matches of every device type into controller scan filters.
+	 * @return The filters, or null to receive every advertisement.
+	 */
+	private List<ScanFilter> buildFilters() {
+		if (!mAdapter.isOffloadedFilteringSupported()) return null;
+		List<ScanMatcher> matchers = getScanMatchers();
+		if (matchers == null) return null;
+
+		ArrayList<ScanFilter> filters = new ArrayList<>(matchers.size());
+		for (ScanMatcher matcher : matchers) {
+			ScanFilter.Builder filter = new ScanFilter.Builder();
+			if (matcher.getManufacturerId() >= 0) {
+				if (matcher.getManufacturerMask() == null) {
+					filter.setManufacturerData(matcher.getManufacturerId(), matcher.getManufacturerData());
+				} else {
+					filter.setManufacturerData(matcher.getManufacturerId(), matcher.getManufacturerData(), matcher.getManufacturerMask());
 				}
 			}
-		});
-		mProcessorThread.start();
+			if (matcher.getServiceUuid() != null) filter.setServiceUuid(new ParcelUuid(matcher.getServiceUuid()));
+			filters.add(filter.build());
+		}
+		// Known devices are pinged by their iBeacon frames, which no device type's matcher admits.
+		filters.add(new ScanFilter.Builder().setManufacturerData(AdRecord.MANUFACTURER_APPLE,
+				new byte[] {AdRecord.IBEACON_TYPE, AdRecord.IBEACON_LENGTH}).build());
+		Log.d("LollipopDeviceScanner", "Scanning with " + filters.size() + " filters");
+		return filters;
+	}
+
+	/**
+	 * Batches are decoded whole and in order on a single thread, so they bypass the sharded
+	 * workers. Each batch gets its own key so the ring never coalesces one batch into the next.
+	 */
+	private void startBatchProcessor() {
+		if (mBatchProcessor == null) {
+			mBatchProcessor = new ShardedProcessor<>("LollipopDeviceScanner-batch", 1, BATCH_CAPACITY, mBatchHandler);
+		}
+		mBatchProcessor.start();
 	}
 
 	@Override
@@ -82,8 +115,10 @@ public class LollipopDeviceScanner extends DeviceScanner {
 		if (mScanner != null && mAdapter.isEnabled()) {
 			mScanner.stopScan(callback);
 			mIsScanning = false;
-			mProcessorThread.interrupt();
 		}
+		if (mProcessor != null) mProcessor.stop();
+		if (mBatchProcessor != null) mBatchProcessor.stop();
+		mVisibility.stop();
 	}
 
 	@Override
@@ -91,17 +126,83 @@ public class LollipopDeviceScanner extends DeviceScanner {
 		return mIsScanning;
 	}
 
+	@Override
+	ShardedProcessor<?> getProcessor() {
+		ShardedProcessor<?> batchProcessor = mBatchProcessor;
+		return batchProcessor != null && batchProcessor.isRunning() ? batchProcessor : mProcessor;
+	}
+
+	private final IngestRing.Handler<ScanResult> mHandler = new IngestRing.Handler<ScanResult>() {
+		@Override
+		public void onItem(long address, ScanResult result) {
+			try {
+				processAdvertisement(address, result.getScanRecord().getBytes(), result.getDevice(), result.getRssi());
+			} catch (Exception e) {
+				Log.e("LollipopDeviceScanner", "Failed to process advertisement from " + MacAddress.unpack(address), e);
+			}
+		}
+	};
+
+	private final IngestRing.Handler<List<ScanResult>> mBatchHandler = new IngestRing.Handler<List<ScanResult>>() {
+		@Override
+		public void onItem(long sequence, List<ScanResult> results) {
+			Batch batch = new Batch();
+			for (ScanResult result : results) {
+				if (result.getScanRecord() == null) continue;
+				batch.add(MacAddress.pack(result.getDevice().getAddress()), result.getScanRecord().getBytes(),
+						result.getDevice(), result.getRssi());
+			}
+			batch.finish();
+		}
+	};
+
+	/**
+	 * Decodes the advertisements of one batch in order, collecting each known device they
+	 * update or ping once.
+	 */
+	final class Batch {
+		private final LinkedHashSet<SmartDevice> mTouched = new LinkedHashSet<>();
+
+		void add(long address, byte[] data, BluetoothDevice device, int rssi) {
+			try {
+				SmartDevice touched = processAdvertisement(address, data, device, rssi, false);
+				if (touched != null) mTouched.add(touched);
+			} catch (Exception e) {
+				Log.e("LollipopDeviceScanner", "Failed to process advertisement from " + MacAddress.unpack(address), e);
+			}
+		}
+
+		/**
+		 * Reports the collected devices to listeners in a single call.
+		 */
+		void finish() {
+			notifyBatch(new ArrayList<>(mTouched));
+		}
+	}
+
 	private ScanCallback callback = new ScanCallback() {
 		@Override
 		public void onScanResult(int callbackType, final ScanResult result) {
-			if (result.getScanRecord() != null) {
-				if (mAdsToProcess.containsKey(result.getDevice().getAddress())) {
-					mAdsToProcess.remove(result.getDevice().getAddress());
-				}
-				mAdsToProcess.put(result.getDevice().getAddress(), result);
-				synchronized (mLock) {
-					mLock.notify();
+			ShardedProcessor<ScanResult> processor = mProcessor;
+			if (processor != null && result.getScanRecord() != null) {
+				long mac = MacAddress.pack(result.getDevice().getAddress());
+				capture(result.getTimestampNanos(), mac, result.getRssi(), result.getScanRecord().getBytes());
+				processor.offer(mac, result);
+			}
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results) {
+			ShardedProcessor<List<ScanResult>> processor = mBatchProcessor;
+			if (processor != null && !results.isEmpty()) {
+				if (isCapturing()) {
+					for (ScanResult result : results) {
+						if (result.getScanRecord() == null) continue;
+						long mac = MacAddress.pack(result.getDevice().getAddress());
+						capture(result.getTimestampNanos(), mac, result.getRssi(), result.getScanRecord().getBytes());
+					}
 				}
+				processor.offer(mBatchSequence++, results);
 			}
 		}
 	};
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+/**
+ * Packs 48-bit MAC addresses into longs so they can be used as primitive keys.
+ */
+public final class MacAddress {
+	/**
+	 * Returned by {@link #pack(String)} for strings that are not MAC addresses.
+	 * Packed addresses only use the lower 48 bits, so this never collides with one.
+	 */
+	public static final long INVALID = -1L;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private MacAddress() {}
+
+	/**
+	 * Packs an address in the form "AA:BB:CC:DD:EE:FF" without allocating.
+	 * @param address The address to pack.
+	 * @return The packed address, or {@link #INVALID}.
+	 */
+	public static long pack(String address) {
+		if (address == null || address.length() != 17) return INVALID;
+		long value = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = address.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') return INVALID;
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0) return INVALID;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Formats a packed address as "AA:BB:CC:DD:EE:FF".
+	 * @param address The packed address.
+	 * @return The address string.
+	 */
+	public static String unpack(long address) {
+		char[] chars = new char[17];
+		for (int i = 0; i < 6; i++) {
+			int b = (int) (address >>> (40 - i * 8)) & 0xFF;
+			chars[i * 3] = HEX[b >>> 4];
+			chars[i * 3 + 1] = HEX[b & 0x0F];
+			if (i < 5) chars[i * 3 + 2] = ':';
+		}
+		return new String(chars);
+	}
+}
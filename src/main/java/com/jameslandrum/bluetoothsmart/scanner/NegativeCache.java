@@ -0,0 +1,283 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.util.Arrays;
+
+/**
+ * A bounded set of packed addresses that are known not to match any device type.
+ *
+ * Entries expire after a fixed time so that an address is identified again eventually, and
+ * the least recently seen entry is evicted once the cache is full, so rotating private
+ * addresses cannot grow it without bound. Lookups are O(1) and do not allocate.
+ */
+public final class NegativeCache {
+	private static final int SEGMENT_BITS = 3;
+
+	private final Segment[] mSegments;
+	private final long mTtl;
+
+	/**
+	 * @param capacity The maximum number of addresses held.
+	 * @param ttlMillis How long an address is remembered, in milliseconds.
+	 */
+	public NegativeCache(int capacity, long ttlMillis) {
+		if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive.");
+		mTtl = ttlMillis;
+		mSegments = new Segment[1 << SEGMENT_BITS];
+		int segmentCapacity = Math.max(1, (capacity + mSegments.length - 1) / mSegments.length);
+		for (int i = 0; i < mSegments.length; i++) mSegments[i] = new Segment(segmentCapacity);
+	}
+
+	/**
+	 * Checks if the address is cached and has not expired.
+	 */
+	public boolean contains(long address) {
+		return contains(address, now());
+	}
+
+	boolean contains(long address, long now) {
+		if (address < 0) return false;
+		long hash = ConcurrentLongMap.hash(address);
+		return segmentFor(hash).contains(address, hash, now);
+	}
+
+	/**
+	 * Adds the address, or renews it if it is already cached.
+	 */
+	public void add(long address) {
+		add(address, now());
+	}
+
+	void add(long address, long now) {
+		if (address < 0) return;
+		long hash = ConcurrentLongMap.hash(address);
+		segmentFor(hash).add(address, hash, now + mTtl);
+	}
+
+	public void remove(long address) {
+		if (address < 0) return;
+		long hash = ConcurrentLongMap.hash(address);
+		segmentFor(hash).remove(address, hash);
+	}
+
+	public void clear() {
+		for (Segment s : mSegments) s.clear();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment s : mSegments) size += s.mSize;
+		return size;
+	}
+
+	/**
+	 * @return The number of lookups that found a live entry.
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for (Segment s : mSegments) count += s.mHits;
+		return count;
+	}
+
+	/**
+	 * @return The number of lookups that found no entry or an expired one.
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for (Segment s : mSegments) count += s.mMisses;
+		return count;
+	}
+
+	/**
+	 * @return The number of entries dropped to make room for new ones.
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment s : mSegments) count += s.mEvictions;
+		return count;
+	}
+
+	/**
+	 * @return The number of entries dropped because their time to live passed.
+	 */
+	public long getExpiredCount() {
+		long count = 0;
+		for (Segment s : mSegments) count += s.mExpirations;
+		return count;
+	}
+
+	private Segment segmentFor(long hash) {
+		return mSegments[(int) (hash >>> (64 - SEGMENT_BITS))];
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * A fixed pool of entries linked in recency order, found through an open addressed index.
+	 */
+	private static final class Segment {
+		private static final int NONE = -1;
+
+		private final long[] mKeys;
+		private final long[] mExpiry;
+		private final int[] mPrev;
+		private final int[] mNext;
+		private final int[] mIndex;
+		private int mHead = NONE;
+		private int mTail = NONE;
+		private volatile int mSize;
+
+		private volatile long mHits;
+		private volatile long mMisses;
+		private volatile long mEvictions;
+		private volatile long mExpirations;
+
+		Segment(int capacity) {
+			mKeys = new long[capacity];
+			mExpiry = new long[capacity];
+			mPrev = new int[capacity];
+			mNext = new int[capacity];
+			mIndex = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+			Arrays.fill(mIndex, NONE);
+		}
+
+		synchronized boolean contains(long key, long hash, long now) {
+			int slot = find(key, hash);
+			if (slot == NONE) {
+				mMisses++;
+				return false;
+			}
+			int node = mIndex[slot];
+			if (mExpiry[node] <= now) {
+				unlink(node);
+				release(slot, node);
+				mExpirations++;
+				mMisses++;
+				return false;
+			}
+			moveToHead(node);
+			mHits++;
+			return true;
+		}
+
+		synchronized void add(long key, long hash, long expiry) {
+			int slot = find(key, hash);
+			int node;
+			if (slot != NONE) {
+				node = mIndex[slot];
+				unlink(node);
+			} else {
+				if (mSize == mKeys.length) {
+					node = mTail;
+					unlink(node);
+					release(find(mKeys[node], ConcurrentLongMap.hash(mKeys[node])), node);
+					mEvictions++;
+				}
+				node = mSize;
+				mKeys[node] = key;
+				insert(node, hash);
+				mSize++;
+			}
+			mExpiry[node] = expiry;
+			linkHead(node);
+		}
+
+		synchronized void remove(long key, long hash) {
+			int slot = find(key, hash);
+			if (slot == NONE) return;
+			int node = mIndex[slot];
+			unlink(node);
+			release(slot, node);
+		}
+
+		synchronized void clear() {
+			Arrays.fill(mIndex, NONE);
+			mHead = mTail = NONE;
+			mSize = 0;
+		}
+
+		private int find(long key, long hash) {
+			int mask = mIndex.length - 1;
+			for (int i = (int) hash & mask; mIndex[i] != NONE; i = (i + 1) & mask) {
+				if (mKeys[mIndex[i]] == key) return i;
+			}
+			return NONE;
+		}
+
+		private void insert(int node, long hash) {
+			int mask = mIndex.length - 1;
+			int i = (int) hash & mask;
+			while (mIndex[i] != NONE) i = (i + 1) & mask;
+			mIndex[i] = node;
+		}
+
+		/**
+		 * Frees an unlinked node, keeping the node pool dense by moving the last node into
+		 * its place, and removes its index slot.
+		 */
+		private void release(int slot, int node) {
+			removeSlot(slot);
+			int last = --mSize;
+			if (node != last) {
+				int lastSlot = find(mKeys[last], ConcurrentLongMap.hash(mKeys[last]));
+				mIndex[lastSlot] = node;
+				mKeys[node] = mKeys[last];
+				mExpiry[node] = mExpiry[last];
+				mPrev[node] = mPrev[last];
+				mNext[node] = mNext[last];
+				if (mPrev[node] != NONE) mNext[mPrev[node]] = node; else mHead = node;
+				if (mNext[node] != NONE) mPrev[mNext[node]] = node; else mTail = node;
+			}
+		}
+
+		private void removeSlot(int i) {
+			int mask = mIndex.length - 1;
+			for (int j = (i + 1) & mask; mIndex[j] != NONE; j = (j + 1) & mask) {
+				int home = (int) ConcurrentLongMap.hash(mKeys[mIndex[j]]) & mask;
+				boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+				if (!reachable) {
+					mIndex[i] = mIndex[j];
+					i = j;
+				}
+			}
+			mIndex[i] = NONE;
+		}
+
+		private void moveToHead(int node) {
+			if (node == mHead) return;
+			unlink(node);
+			linkHead(node);
+		}
+
+		private void linkHead(int node) {
+			mPrev[node] = NONE;
+			mNext[node] = mHead;
+			if (mHead != NONE) mPrev[mHead] = node;
+			mHead = node;
+			if (mTail == NONE) mTail = node;
+		}
+
+		private void unlink(int node) {
+			if (mPrev[node] != NONE) mNext[mPrev[node]] = mNext[node]; else mHead = mNext[node];
+			if (mNext[node] != NONE) mPrev[mNext[node]] = mPrev[node]; else mTail = mPrev[node];
+			mPrev[node] = mNext[node] = NONE;
+		}
+	}
+}
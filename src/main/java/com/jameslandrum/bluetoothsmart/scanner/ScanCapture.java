@@ -0,0 +1,253 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A recorded stream of scan results, held in memory as parallel arrays.
+ *
+ * The binary format is a four byte magic followed by one record per result:
+ * <pre>
+ *   varint   time since the previous record in microseconds, zigzag encoded
+ *   6 bytes  address, most significant byte first
+ *   1 byte   RSSI, signed
+ *   varint   length of the scan record
+ *   varint   length without trailing zeros
+ *   bytes    the scan record without trailing zeros
+ * </pre>
+ * Scan records are usually padded with zeros to 62 bytes, so dropping the padding roughly
+ * halves a capture; it is restored when the capture is read.
+ */
+public final class ScanCapture {
+	static final int MAGIC = 0x42534331; // "BSC1"
+
+	private long[] mTimes;
+	private long[] mAddresses;
+	private byte[] mRssi;
+	private byte[][] mRecords;
+	private int mSize;
+
+	public ScanCapture() {
+		this(256);
+	}
+
+	public ScanCapture(int capacity) {
+		capacity = Math.max(1, capacity);
+		mTimes = new long[capacity];
+		mAddresses = new long[capacity];
+		mRssi = new byte[capacity];
+		mRecords = new byte[capacity][];
+	}
+
+	/**
+	 * Appends a result.
+	 * @param timeNanos When the result was received, in nanoseconds on a monotonic clock.
+	 * @param address The packed address.
+	 * @param rssi The RSSI in dBm.
+	 * @param record The raw scan record, which is not copied.
+	 */
+	public void add(long timeNanos, long address, int rssi, byte[] record) {
+		if (mSize == mTimes.length) {
+			int capacity = mSize * 2;
+			mTimes = Arrays.copyOf(mTimes, capacity);
+			mAddresses = Arrays.copyOf(mAddresses, capacity);
+			mRssi = Arrays.copyOf(mRssi, capacity);
+			mRecords = Arrays.copyOf(mRecords, capacity);
+		}
+		mTimes[mSize] = timeNanos;
+		mAddresses[mSize] = address;
+		mRssi[mSize] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+		mRecords[mSize] = record;
+		mSize++;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return When the i-th result was received, in nanoseconds. Microsecond precision.
+	 */
+	public long getTime(int i) {
+		return mTimes[i];
+	}
+
+	public long getAddress(int i) {
+		return mAddresses[i];
+	}
+
+	public int getRssi(int i) {
+		return mRssi[i];
+	}
+
+	public byte[] getRecord(int i) {
+		return mRecords[i];
+	}
+
+	/**
+	 * Reads a whole capture into memory.
+	 * @param in The stream, read to its end but not closed.
+	 */
+	public static ScanCapture read(InputStream in) throws IOException {
+		in = new BufferedInputStream(in);
+		if (readInt(in) != MAGIC) throw new IOException("Not a scan capture.");
+
+		ScanCapture capture = new ScanCapture();
+		long time = 0;
+		int first;
+		while ((first = in.read()) >= 0) {
+			time += unzigzag(readVarint(in, first)) * 1000;
+			long address = 0;
+			for (int i = 0; i < 6; i++) address = (address << 8) | readByte(in);
+			int rssi = (byte) readByte(in);
+			int length = (int) readVarint(in, readByte(in));
+			int significant = (int) readVarint(in, readByte(in));
+			if (significant > length) throw new IOException("Corrupt scan capture.");
+			byte[] record = new byte[length];
+			readFully(in, record, significant);
+			capture.add(time, address, rssi, record);
+		}
+		return capture;
+	}
+
+	/**
+	 * Writes the whole capture.
+	 * @param out The stream, flushed but not closed.
+	 */
+	public void write(OutputStream out) throws IOException {
+		Writer writer = new Writer(out);
+		for (int i = 0; i < mSize; i++) writer.write(mTimes[i], mAddresses[i], mRssi[i], mRecords[i]);
+		writer.flush();
+	}
+
+	/**
+	 * Streams results to a capture as they arrive. Safe to call from any thread.
+	 */
+	public static final class Writer {
+		private final OutputStream mOut;
+		private long mLastMicros;
+		private long mCount;
+		private boolean mStarted;
+
+		public Writer(OutputStream out) {
+			mOut = new BufferedOutputStream(out);
+		}
+
+		/**
+		 * Appends a result.
+		 * @param timeNanos When the result was received, in nanoseconds on a monotonic clock.
+		 */
+		public synchronized void write(long timeNanos, long address, int rssi, byte[] record) throws IOException {
+			if (!mStarted) {
+				writeInt(mOut, MAGIC);
+				mStarted = true;
+			}
+			long micros = timeNanos / 1000;
+			writeVarint(mOut, zigzag(mCount == 0 ? micros : micros - mLastMicros));
+			mLastMicros = micros;
+			for (int shift = 40; shift >= 0; shift -= 8) mOut.write((int) (address >>> shift));
+			mOut.write(rssi);
+
+			int significant = record.length;
+			while (significant > 0 && record[significant - 1] == 0) significant--;
+			writeVarint(mOut, record.length);
+			writeVarint(mOut, significant);
+			mOut.write(record, 0, significant);
+			mCount++;
+		}
+
+		/**
+		 * @return The number of results written.
+		 */
+		public synchronized long getCount() {
+			return mCount;
+		}
+
+		public synchronized void flush() throws IOException {
+			if (!mStarted) {
+				writeInt(mOut, MAGIC);
+				mStarted = true;
+			}
+			mOut.flush();
+		}
+
+		public synchronized void close() throws IOException {
+			flush();
+			mOut.close();
+		}
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarint(OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarint(InputStream in, int first) throws IOException {
+		long value = first & 0x7F;
+		int shift = 7;
+		while ((first & 0x80) != 0) {
+			if (shift > 63) throw new IOException("Corrupt scan capture.");
+			first = readByte(in);
+			value |= (long) (first & 0x7F) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		for (int shift = 24; shift >= 0; shift -= 8) out.write(value >>> shift);
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		int value = 0;
+		for (int i = 0; i < 4; i++) value = (value << 8) | readByte(in);
+		return value;
+	}
+
+	private static int readByte(InputStream in) throws IOException {
+		int b = in.read();
+		if (b < 0) throw new EOFException("Truncated scan capture.");
+		return b;
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int offset = 0;
+		while (offset < length) {
+			int read = in.read(buffer, offset, length - offset);
+			if (read < 0) throw new EOFException("Truncated scan capture.");
+			offset += read;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.UUID;
+
+/**
+ * A compiled ScanMatch. Checks raw advertisements in software, and describes the scan filter
+ * the controller can apply in its place.
+ */
+final class ScanMatcher {
+	private static final long MANUFACTURER_KEY = 1L << 48;
+	private static final long SERVICE_KEY = 2L << 48;
+	private static final long KEY_MASK = (1L << 48) - 1;
+
+	private final int mManufacturerId;
+	private final byte[] mManufacturerData;
+	private final byte[] mManufacturerMask;
+	private final UUID mServiceUuid;
+	private final String mNamePrefix;
+
+	ScanMatcher(ScanMatch match) {
+		mManufacturerId = match.manufacturerId();
+		mManufacturerData = decode(match.manufacturerData());
+		mManufacturerMask = match.manufacturerMask().isEmpty() ? null : decode(match.manufacturerMask());
+		if (mManufacturerMask != null && mManufacturerMask.length != mManufacturerData.length) {
+			throw new IllegalArgumentException("Manufacturer mask must be as long as the manufacturer data.");
+		}
+		if (mManufacturerId < 0 && mManufacturerData.length > 0) {
+			throw new IllegalArgumentException("Manufacturer data requires a manufacturer id.");
+		}
+		String service = match.serviceUuid();
+		mServiceUuid = service.isEmpty() ? null : UUID.fromString(service.length() == 4 ? "0000" + service + "-0000-1000-8000-00805F9B34FB" : service);
+		mNamePrefix = match.namePrefix();
+	}
+
+	private static byte[] decode(String hex) {
+		try {
+			return Hex.decodeHex(hex.toCharArray());
+		} catch (DecoderException e) {
+			throw new IllegalArgumentException("Invalid hex string " + hex, e);
+		}
+	}
+
+	/**
+	 * @return True if the controller can apply this match on its own.
+	 */
+	boolean isPushable() {
+		return mNamePrefix.isEmpty() && (mManufacturerId >= 0 || mServiceUuid != null);
+	}
+
+	/**
+	 * @return The feature key advertisements matching this must carry, or -1 if the match has
+	 * neither a manufacturer id nor a service UUID.
+	 */
+	long getFeatureKey() {
+		if (mManufacturerId >= 0) return MANUFACTURER_KEY | mManufacturerId;
+		if (mServiceUuid != null) return serviceKey(mServiceUuid.getMostSignificantBits(), mServiceUuid.getLeastSignificantBits());
+		return -1;
+	}
+
+	private static long serviceKey(long msb, long lsb) {
+		return SERVICE_KEY | ConcurrentLongMap.hash(msb ^ Long.rotateLeft(lsb, 32)) & KEY_MASK;
+	}
+
+	/**
+	 * Lists the feature keys of an advertisement: its manufacturer id and service UUIDs, in
+	 * the same form as getFeatureKey.
+	 * @param record The advertisement.
+	 * @param keys Receives the keys; any beyond its length are ignored.
+	 * @return The number of keys written.
+	 */
+	static int getFeatureKeys(AdRecord record, long[] keys) {
+		int count = 0;
+		int manufacturer = record.getManufacturerId();
+		if (manufacturer >= 0 && keys.length > 0) keys[count++] = MANUFACTURER_KEY | manufacturer;
+		int uuids = record.getServiceUuidCount();
+		for (int i = 0; i < uuids && count < keys.length; i++) {
+			keys[count++] = serviceKey(record.getServiceUuidMsb(i), record.getServiceUuidLsb(i));
+		}
+		return count;
+	}
+
+	/**
+	 * @return True if any of the matchers accepts the advertisement.
+	 */
+	static boolean matchesAny(ScanMatcher[] matchers, AdRecord record) {
+		for (ScanMatcher matcher : matchers) {
+			if (matcher.matches(record)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks an advertisement against every criterion of this match.
+	 */
+	boolean matches(AdRecord record) {
+		if (mManufacturerId >= 0 && !matchesManufacturer(record)) return false;
+		if (mServiceUuid != null && !matchesService(record)) return false;
+		if (mNamePrefix.isEmpty()) return true;
+		String name = record.getLocalName();
+		return name != null && name.startsWith(mNamePrefix);
+	}
+
+	private boolean matchesManufacturer(AdRecord record) {
+		if (record.getManufacturerId() != mManufacturerId) return false;
+
+		int i = record.indexOfManufacturerData();
+		byte[] data = record.getData();
+		int payload = record.getStart(i) + 2;
+		if (record.getEnd(i) - payload < mManufacturerData.length) return false;
+		for (int b = 0; b < mManufacturerData.length; b++) {
+			int mask = mManufacturerMask == null ? 0xFF : mManufacturerMask[b];
+			if (((data[payload + b] ^ mManufacturerData[b]) & mask) != 0) return false;
+		}
+		return true;
+	}
+
+	private boolean matchesService(AdRecord record) {
+		int uuids = record.getServiceUuidCount();
+		for (int i = 0; i < uuids; i++) {
+			if (record.getServiceUuidMsb(i) == mServiceUuid.getMostSignificantBits()
+					&& record.getServiceUuidLsb(i) == mServiceUuid.getLeastSignificantBits()) return true;
+		}
+		return false;
+	}
+
+	int getManufacturerId() {
+		return mManufacturerId;
+	}
+
+	byte[] getManufacturerData() {
+		return mManufacturerData;
+	}
+
+	/**
+	 * @return The manufacturer data mask, or null to compare every bit.
+	 */
+	byte[] getManufacturerMask() {
+		return mManufacturerMask;
+	}
+
+	/**
+	 * @return The service UUID, or null.
+	 */
+	UUID getServiceUuid() {
+		return mServiceUuid;
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Feeds a recorded ScanCapture through the scanner's decode path, at the recorded pace, a
+ * multiple of it, or as fast as possible, and measures it. Runs on a device or on a plain JVM
+ * with the Android classes stubbed, so changes to decoding can be compared on real traffic.
+ *
+ * Results are decoded on the calling thread, one at a time, so the latency of each decode is
+ * measured without queueing. Devices are registered with the shared scanner registry.
+ */
+public final class ScanReplay {
+	/**
+	 * Replays as fast as possible.
+	 */
+	public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+	private static final Object mThreadBean;
+	private static final Method mAllocatedBytes;
+
+	static {
+		Object bean = null;
+		Method method = null;
+		try {
+			bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+			method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			// Not available on this platform; allocatedBytes reports -1.
+		}
+		mThreadBean = bean;
+		mAllocatedBytes = method;
+	}
+
+	private final ScanCapture mCapture;
+	private double mSpeed = MAX_SPEED;
+	private Sink mSink;
+
+	public ScanReplay(ScanCapture capture) {
+		mCapture = capture;
+	}
+
+	/**
+	 * @param speed The pace relative to the recording: 1 for real time, 10 for ten times as
+	 *              fast, or MAX_SPEED to not wait between results.
+	 */
+	public ScanReplay setSpeed(double speed) {
+		if (!(speed > 0)) throw new IllegalArgumentException("Speed must be positive.");
+		mSpeed = speed;
+		return this;
+	}
+
+	/**
+	 * Replaces the scanner as the destination of the results.
+	 */
+	public ScanReplay setSink(Sink sink) {
+		mSink = sink;
+		return this;
+	}
+
+	/**
+	 * Replays the whole capture.
+	 * @return The measurements.
+	 */
+	public Result run() throws InterruptedException {
+		Sink sink = mSink != null ? mSink : new ScannerSink(new DeviceSource());
+		int count = mCapture.size();
+		long[] latencies = new long[count];
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long firstTime = count > 0 ? mCapture.getTime(0) : 0;
+		for (int i = 0; i < count; i++) {
+			if (mSpeed != MAX_SPEED) waitUntil(start + (long) ((mCapture.getTime(i) - firstTime) / mSpeed));
+			long before = System.nanoTime();
+			sink.onResult(mCapture.getAddress(i), mCapture.getRecord(i), mCapture.getRssi(i));
+			latencies[i] = System.nanoTime() - before;
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocatedAfter = allocatedBytes();
+
+		Arrays.sort(latencies);
+		long allocated = allocatedBefore < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocatedBefore;
+		return new Result(latencies, elapsed, allocated);
+	}
+
+	/**
+	 * Sleeps until the given System.nanoTime(). Sleeps can end early by a fraction of a
+	 * millisecond, so it sleeps again until the time has actually come.
+	 */
+	private static void waitUntil(long due) throws InterruptedException {
+		long wait;
+		while ((wait = due - System.nanoTime()) > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	}
+
+	/**
+	 * @return The bytes allocated by the current thread so far, or -1 where the platform does
+	 * not report it, as on Android.
+	 */
+	public static long allocatedBytes() {
+		if (mAllocatedBytes == null) return -1;
+		try {
+			return (Long) mAllocatedBytes.invoke(mThreadBean, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Receives replayed results.
+	 */
+	public interface Sink {
+		void onResult(long address, byte[] record, int rssi);
+	}
+
+	/**
+	 * Decodes results through DeviceScanner.processAdvertisement.
+	 */
+	private static final class ScannerSink implements Sink {
+		private final ReplayScanner mScanner = new ReplayScanner();
+		private final DeviceSource mDevices;
+
+		ScannerSink(DeviceSource devices) {
+			mDevices = devices;
+		}
+
+		@Override
+		public void onResult(long address, byte[] record, int rssi) {
+			// Devices are only looked up the first time an address is seen, since known devices
+			// keep their own.
+			mScanner.processAdvertisement(address, record, mDevices.get(address), rssi, true);
+		}
+	}
+
+	/**
+	 * A scanner that is never started, used only for its decode path.
+	 */
+	private static final class ReplayScanner extends DeviceScanner {
+		@Override
+		public void startScan(@ScanMode int scanMode) {
+		}
+
+		@Override
+		public void stopScan() {
+		}
+
+		@Override
+		public boolean isScanning() {
+			return false;
+		}
+	}
+
+	/**
+	 * The measurements of one replay.
+	 */
+	public static final class Result {
+		private final long[] mLatencies;
+		private final long mElapsed;
+		private final long mAllocated;
+
+		Result(long[] sortedLatencies, long elapsedNanos, long allocatedBytes) {
+			mLatencies = sortedLatencies;
+			mElapsed = elapsedNanos;
+			mAllocated = allocatedBytes;
+		}
+
+		public int getCount() {
+			return mLatencies.length;
+		}
+
+		public long getElapsedNanos() {
+			return mElapsed;
+		}
+
+		public double getAdsPerSecond() {
+			return mElapsed == 0 ? 0 : mLatencies.length * 1e9 / mElapsed;
+		}
+
+		/**
+		 * @param percentile The percentile, from 0 to 100.
+		 * @return The decode latency at the percentile in nanoseconds, or 0 if nothing was replayed.
+		 */
+		public long getLatency(double percentile) {
+			if (mLatencies.length == 0) return 0;
+			int rank = (int) Math.ceil(percentile / 100 * mLatencies.length) - 1;
+			return mLatencies[Math.max(0, Math.min(mLatencies.length - 1, rank))];
+		}
+
+		/**
+		 * @return The bytes allocated by the replaying thread, or -1 if not available.
+		 */
+		public long getAllocatedBytes() {
+			return mAllocated;
+		}
+
+		/**
+		 * @return The bytes allocated per second of replay, or -1 if not available.
+		 */
+		public double getAllocationRate() {
+			if (mAllocated < 0) return -1;
+			return mElapsed == 0 ? 0 : mAllocated * 1e9 / mElapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+					"%d ads in %.1f ms: %.0f ads/s, latency p50 %.1f us, p90 %.1f us, p99 %.1f us, max %.1f us, allocated %s",
+					getCount(), mElapsed / 1e6, getAdsPerSecond(),
+					getLatency(50) / 1e3, getLatency(90) / 1e3, getLatency(99) / 1e3, getLatency(100) / 1e3,
+					mAllocated < 0 ? "n/a" : String.format(Locale.US, "%d B (%.1f MB/s)", mAllocated, getAllocationRate() / 1e6));
+		}
+	}
+}
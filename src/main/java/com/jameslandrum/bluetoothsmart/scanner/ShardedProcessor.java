@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.util.Log;
+
+/**
+ * Spreads scan results over a fixed set of worker threads, one IngestRing per worker.
+ *
+ * Results are routed by a hash of their key, so every result from one address lands on the
+ * same worker and is handled in the order it arrived, while different addresses are decoded
+ * in parallel.
+ */
+final class ShardedProcessor<T> {
+	private final String mName;
+	private final IngestRing<T>[] mShards;
+	private final IngestRing.Handler<T> mHandler;
+	private Thread[] mWorkers;
+	/* Stopped workers that may still be finishing an item; their replacements wait for them. */
+	private Thread[] mPrevious;
+
+	/**
+	 * @param name The name given to the worker threads.
+	 * @param shards The number of workers.
+	 * @param capacity The capacity of each worker's ring.
+	 * @param handler Receives the items, on the worker owning their key.
+	 */
+	@SuppressWarnings("unchecked")
+	ShardedProcessor(String name, int shards, int capacity, IngestRing.Handler<T> handler) {
+		if (shards < 1) throw new IllegalArgumentException("At least one worker is required.");
+		mName = name;
+		mHandler = handler;
+		mShards = new IngestRing[shards];
+		for (int i = 0; i < shards; i++) mShards[i] = new IngestRing<>(capacity);
+	}
+
+	/**
+	 * Queues an item on the worker owning its key. Safe to call from any thread.
+	 * @return False if that worker's ring was full and the item was dropped.
+	 */
+	boolean offer(long key, T item) {
+		return mShards[shardOf(key)].offer(key, item);
+	}
+
+	int shardOf(long key) {
+		return (int) ((ConcurrentLongMap.hash(key) >>> 1) % mShards.length);
+	}
+
+	/**
+	 * Starts the workers if they are not already running.
+	 */
+	synchronized void start() {
+		if (mWorkers != null) return;
+		mWorkers = new Thread[mShards.length];
+		for (int i = 0; i < mShards.length; i++) {
+			mWorkers[i] = new Thread(new Worker(mShards[i], mPrevious == null ? null : mPrevious[i]),
+					mShards.length == 1 ? mName : mName + "-" + i);
+			mWorkers[i].start();
+		}
+		mPrevious = null;
+	}
+
+	/**
+	 * Stops the workers. Queued items are kept and handled once the workers are started again.
+	 */
+	synchronized void stop() {
+		if (mWorkers == null) return;
+		for (Thread worker : mWorkers) worker.interrupt();
+		mPrevious = mWorkers;
+		mWorkers = null;
+	}
+
+	synchronized boolean isRunning() {
+		return mWorkers != null;
+	}
+
+	int getShardCount() {
+		return mShards.length;
+	}
+
+	/**
+	 * @return The number of items waiting on each worker.
+	 */
+	int[] getQueueDepths() {
+		int[] depths = new int[mShards.length];
+		for (int i = 0; i < mShards.length; i++) depths[i] = mShards[i].size();
+		return depths;
+	}
+
+	long getDroppedCount() {
+		long dropped = 0;
+		for (IngestRing<T> shard : mShards) dropped += shard.getDroppedCount();
+		return dropped;
+	}
+
+	long getCoalescedCount() {
+		long coalesced = 0;
+		for (IngestRing<T> shard : mShards) coalesced += shard.getCoalescedCount();
+		return coalesced;
+	}
+
+	long getDeliveredCount() {
+		long delivered = 0;
+		for (IngestRing<T> shard : mShards) delivered += shard.getDeliveredCount();
+		return delivered;
+	}
+
+	private class Worker implements Runnable {
+		private final IngestRing<T> mRing;
+		private final Thread mPredecessor;
+
+		Worker(IngestRing<T> ring, Thread predecessor) {
+			mRing = ring;
+			mPredecessor = predecessor;
+		}
+
+		@Override
+		public void run() {
+			try {
+				// A ring only supports one consumer at a time.
+				if (mPredecessor != null) mPredecessor.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					if (mRing.drain(mHandler) == 0) mRing.await();
+				} catch (RuntimeException e) {
+					Log.e(mName, "Worker failed to handle an item", e);
+				}
+			}
+		}
+	}
+}
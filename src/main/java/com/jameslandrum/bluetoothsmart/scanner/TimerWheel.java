@@ -0,0 +1,205 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+/**
+ * A hashed timer wheel: timeouts are hashed by their deadline tick into a fixed ring of slots,
+ * so scheduling is O(1) and each tick only visits the timeouts in one slot. Deadlines further
+ * out than one turn of the wheel stay in their slot until the turn they are due.
+ *
+ * Callers that push deadlines back often should not reschedule on every change; instead let
+ * the timeout fire and reschedule it from the handler if it is not actually due, which costs
+ * nothing between ticks.
+ */
+final class TimerWheel<T> {
+	static final int SCHEDULED = 0;
+	static final int FIRING = 1;
+	static final int IDLE = 2;
+	static final int CANCELLED = 3;
+
+	private final long mTickMillis;
+	private final Timeout<T>[] mSlots;
+	private final int mMask;
+	private long mTick;
+	private int mSize;
+
+	/**
+	 * @param tickMillis The resolution of the wheel in milliseconds.
+	 * @param slots The number of slots, rounded up to a power of two.
+	 * @param now The current time in milliseconds.
+	 */
+	@SuppressWarnings("unchecked")
+	TimerWheel(long tickMillis, int slots, long now) {
+		if (tickMillis <= 0) throw new IllegalArgumentException("Tick must be positive.");
+		mTickMillis = tickMillis;
+		mSlots = new Timeout[Integer.highestOneBit(Math.max(2, slots) * 2 - 1)];
+		mMask = mSlots.length - 1;
+		mTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedules a new timeout.
+	 * @param key A key for the handler, such as a packed address.
+	 * @param item The item the timeout is for.
+	 * @param deadline When the timeout is due, in milliseconds.
+	 */
+	synchronized Timeout<T> schedule(long key, T item, long deadline) {
+		Timeout<T> timeout = new Timeout<>(key, item);
+		insert(timeout, deadline);
+		return timeout;
+	}
+
+	/**
+	 * Schedules a timeout again from its handler.
+	 * @return False if the timeout is not firing, because it was cancelled or rescheduled.
+	 */
+	synchronized boolean reschedule(Timeout<T> timeout, long deadline) {
+		if (timeout.mState != FIRING) return false;
+		insert(timeout, deadline);
+		return true;
+	}
+
+	/**
+	 * Schedules a timeout that fired and was not rescheduled.
+	 * @return False if the timeout is not idle.
+	 */
+	synchronized boolean revive(Timeout<T> timeout, long deadline) {
+		if (timeout.mState != IDLE) return false;
+		insert(timeout, deadline);
+		return true;
+	}
+
+	/**
+	 * Marks a firing timeout as idle, to be revived later.
+	 * @return False if the timeout is not firing.
+	 */
+	synchronized boolean release(Timeout<T> timeout) {
+		if (timeout.mState != FIRING) return false;
+		timeout.mState = IDLE;
+		return true;
+	}
+
+	/**
+	 * Cancels a timeout in any state. Scheduled timeouts are unlinked when their slot is next visited.
+	 */
+	synchronized void cancel(Timeout<T> timeout) {
+		if (timeout.mState == SCHEDULED) mSize--;
+		timeout.mState = CANCELLED;
+	}
+
+	/**
+	 * Fires every timeout due by the given time. Handlers run on the calling thread without
+	 * the wheel locked, and must reschedule, release or cancel each timeout they are given.
+	 * @param now The current time in milliseconds.
+	 * @param handler Receives the due timeouts.
+	 * @return The number of timeouts fired.
+	 */
+	int advance(long now, Handler<T> handler) {
+		Timeout<T> due = null;
+		synchronized (this) {
+			long target = now / mTickMillis;
+			long steps = Math.min(target - mTick, mSlots.length);
+			for (long i = 1; i <= steps; i++) {
+				int slot = (int) (mTick + i) & mMask;
+				Timeout<T> previous = null;
+				Timeout<T> t = mSlots[slot];
+				while (t != null) {
+					Timeout<T> next = t.mNext;
+					if (t.mState == CANCELLED || t.mTick <= target) {
+						if (previous == null) mSlots[slot] = next; else previous.mNext = next;
+						if (t.mState != CANCELLED) {
+							mSize--;
+							t.mState = FIRING;
+							t.mNext = due;
+							due = t;
+						} else {
+							t.mNext = null;
+						}
+					} else {
+						previous = t;
+					}
+					t = next;
+				}
+			}
+			if (target > mTick) mTick = target;
+		}
+
+		int fired = 0;
+		while (due != null) {
+			Timeout<T> next = due.mNext;
+			due.mNext = null;
+			handler.onTimeout(due, now);
+			due = next;
+			fired++;
+		}
+		return fired;
+	}
+
+	/**
+	 * @return The number of scheduled timeouts.
+	 */
+	synchronized int size() {
+		return mSize;
+	}
+
+	long getTickMillis() {
+		return mTickMillis;
+	}
+
+	private void insert(Timeout<T> timeout, long deadline) {
+		// Round up, so a timeout never fires before its deadline.
+		long tick = Math.max(mTick + 1, (deadline + mTickMillis - 1) / mTickMillis);
+		int slot = (int) tick & mMask;
+		timeout.mTick = tick;
+		timeout.mState = SCHEDULED;
+		timeout.mNext = mSlots[slot];
+		mSlots[slot] = timeout;
+		mSize++;
+	}
+
+	static final class Timeout<T> {
+		private final long mKey;
+		private final T mItem;
+		private volatile int mState;
+		private long mTick;
+		private Timeout<T> mNext;
+
+		private Timeout(long key, T item) {
+			mKey = key;
+			mItem = item;
+		}
+
+		long getKey() {
+			return mKey;
+		}
+
+		T getItem() {
+			return mItem;
+		}
+
+		/**
+		 * @return SCHEDULED, FIRING, IDLE or CANCELLED.
+		 */
+		int getState() {
+			return mState;
+		}
+	}
+
+	interface Handler<T> {
+		void onTimeout(Timeout<T> timeout, long now);
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Detects devices that stopped advertising, without polling every device.
+ *
+ * Each tracked device has one timeout on a timer wheel, due when its visibility window would
+ * end if it were never seen again. Advertisements do not touch the wheel: when the timeout
+ * fires, the window is computed again from the last time the device was seen, and the timeout
+ * is simply rescheduled if the device advertised in the meantime. A device is only reported
+ * lost once its window has really passed, and is revived by its next advertisement.
+ *
+ * When lost devices are queued for eviction, each lost device is queued once, in the order it
+ * was lost, and leaves the queue when it is revived or no longer tracked.
+ */
+final class VisibilityTracker {
+	static final long TICK_MILLIS = 500;
+	static final int SLOTS = 256;
+
+	private final TimerWheel<SmartDevice> mWheel;
+	private final ConcurrentLongMap<TimerWheel.Timeout<SmartDevice>> mTimeouts = new ConcurrentLongMap<>();
+	/* Guarded by itself */
+	private final LinkedHashSet<TimerWheel.Timeout<SmartDevice>> mLost = new LinkedHashSet<>();
+	private volatile boolean mQueueLost;
+	private final Listener mListener;
+	private Thread mThread;
+
+	private final TimerWheel.Handler<SmartDevice> mHandler = new TimerWheel.Handler<SmartDevice>() {
+		@Override
+		public void onTimeout(TimerWheel.Timeout<SmartDevice> timeout, long now) {
+			SmartDevice device = timeout.getItem();
+			if (device.isConnectedOrConnecting()) {
+				mWheel.reschedule(timeout, now + device.getVisibilityTimeout());
+			} else if (device.getLastSeenElapsed() + device.getVisibilityTimeout() > now) {
+				mWheel.reschedule(timeout, device.getLastSeenElapsed() + device.getVisibilityTimeout());
+			} else if (mWheel.release(timeout)) {
+				if (mQueueLost) {
+					synchronized (mLost) {
+						mLost.add(timeout);
+					}
+				}
+				mListener.onLost(timeout.getKey(), device);
+			}
+		}
+	};
+
+	VisibilityTracker(Listener listener) {
+		this(listener, TICK_MILLIS, SystemClock.elapsedRealtime());
+	}
+
+	VisibilityTracker(Listener listener, long tickMillis, long now) {
+		mListener = listener;
+		mWheel = new TimerWheel<>(tickMillis, SLOTS, now);
+	}
+
+	/**
+	 * Starts timing a device's visibility window, replacing any device timed under the same
+	 * address.
+	 */
+	void track(long mac, SmartDevice device) {
+		TimerWheel.Timeout<SmartDevice> timeout = mWheel.schedule(mac, device, device.getLastSeenElapsed() + device.getVisibilityTimeout());
+		TimerWheel.Timeout<SmartDevice> previous = mTimeouts.put(mac, timeout);
+		if (previous != null) mWheel.cancel(previous);
+	}
+
+	void untrack(long mac) {
+		TimerWheel.Timeout<SmartDevice> timeout = mTimeouts.remove(mac);
+		if (timeout == null) return;
+		mWheel.cancel(timeout);
+		unqueue(timeout);
+	}
+
+	void clear() {
+		for (TimerWheel.Timeout<SmartDevice> timeout : mTimeouts.values()) untrack(timeout.getKey());
+		synchronized (mLost) {
+			mLost.clear();
+		}
+	}
+
+	/**
+	 * Sets whether lost devices are queued for pollLost(). Only needed while the registry is
+	 * capped; the queue is emptied when turned off.
+	 */
+	void setQueueLost(boolean queue) {
+		mQueueLost = queue;
+		if (!queue) {
+			synchronized (mLost) {
+				mLost.clear();
+			}
+		}
+	}
+
+	private void unqueue(TimerWheel.Timeout<SmartDevice> timeout) {
+		synchronized (mLost) {
+			mLost.remove(timeout);
+		}
+	}
+
+	/**
+	 * Records that a device advertised. O(1); only touches the wheel if the device was lost
+	 * or is not timed yet, such as a device restored from storage.
+	 * @return True if the device was lost or not yet timed, and is visible again.
+	 */
+	boolean onSeen(long mac, SmartDevice device) {
+		TimerWheel.Timeout<SmartDevice> timeout = mTimeouts.get(mac);
+		if (timeout == null || timeout.getItem() != device) {
+			track(mac, device);
+			return true;
+		}
+		if (timeout.getState() != TimerWheel.IDLE
+				|| !mWheel.revive(timeout, device.getLastSeenElapsed() + device.getVisibilityTimeout())) {
+			return false;
+		}
+		unqueue(timeout);
+		return true;
+	}
+
+	boolean isLost(long mac) {
+		TimerWheel.Timeout<SmartDevice> timeout = mTimeouts.get(mac);
+		return timeout != null && timeout.getState() == TimerWheel.IDLE;
+	}
+
+	/**
+	 * Removes the device that has been lost the longest and is still lost.
+	 * @return Its timeout, or null if no tracked device is lost.
+	 */
+	TimerWheel.Timeout<SmartDevice> pollLost() {
+		TimerWheel.Timeout<SmartDevice> timeout;
+		while (true) {
+			synchronized (mLost) {
+				Iterator<TimerWheel.Timeout<SmartDevice>> it = mLost.iterator();
+				if (!it.hasNext()) return null;
+				timeout = it.next();
+				it.remove();
+			}
+			// Skips a device revived or untracked while it was being queued.
+			if (timeout.getState() == TimerWheel.IDLE && mTimeouts.get(timeout.getKey()) == timeout) {
+				untrack(timeout.getKey());
+				return timeout;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of lost devices queued for pollLost().
+	 */
+	int getLostCount() {
+		synchronized (mLost) {
+			return mLost.size();
+		}
+	}
+
+	/**
+	 * Fires every visibility window that ended by the given time.
+	 * @return The number of windows checked.
+	 */
+	int advance(long now) {
+		return mWheel.advance(now, mHandler);
+	}
+
+	/**
+	 * @return The number of devices being timed, which excludes lost ones.
+	 */
+	int size() {
+		return mWheel.size();
+	}
+
+	synchronized void start() {
+		if (mThread != null) return;
+		mThread = new Thread("VisibilityTracker") {
+			@Override
+			public void run() {
+				while (!isInterrupted()) {
+					try {
+						Thread.sleep(mWheel.getTickMillis());
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						advance(SystemClock.elapsedRealtime());
+					} catch (RuntimeException e) {
+						Log.e("VisibilityTracker", "Lost device handling failed", e);
+					}
+				}
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	synchronized void stop() {
+		if (mThread == null) return;
+		mThread.interrupt();
+		mThread = null;
+	}
+
+	interface Listener {
+		void onLost(long mac, SmartDevice device);
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.signal;
+
+/**
+ * An exponential moving average. Cheapest of the filters; responds quickly but passes on
+ * part of every outlier.
+ */
+public class EmaFilter implements RssiFilter {
+	private final float mAlpha;
+	private float mValue = Float.NaN;
+
+	/**
+	 * @param alpha The weight of each new sample, between 0 exclusive and 1 inclusive.
+	 */
+	public EmaFilter(float alpha) {
+		if (!(alpha > 0 && alpha <= 1)) throw new IllegalArgumentException("Alpha must be in (0, 1].");
+		mAlpha = alpha;
+	}
+
+	@Override
+	public float update(int rssi) {
+		mValue = Float.isNaN(mValue) ? rssi : mValue + mAlpha * (rssi - mValue);
+		return mValue;
+	}
+
+	@Override
+	public float getValue() {
+		return mValue;
+	}
+
+	@Override
+	public void reset() {
+		mValue = Float.NaN;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new EmaFilter(mAlpha);
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.signal;
+
+/**
+ * A one dimensional Kalman filter that treats RSSI as a slowly drifting value observed with
+ * noise. Smoother than an average for the same responsiveness when the noise is known.
+ */
+public class KalmanFilter implements RssiFilter {
+	private final float mProcessNoise;
+	private final float mMeasurementNoise;
+	private float mValue = Float.NaN;
+	private float mCovariance;
+
+	/**
+	 * @param processNoise How much the true RSSI is expected to drift between samples, as a variance.
+	 * @param measurementNoise The variance of a single sample around the true RSSI.
+	 */
+	public KalmanFilter(float processNoise, float measurementNoise) {
+		if (!(processNoise >= 0) || !(measurementNoise > 0)) throw new IllegalArgumentException("Noise must be positive.");
+		mProcessNoise = processNoise;
+		mMeasurementNoise = measurementNoise;
+	}
+
+	@Override
+	public float update(int rssi) {
+		if (Float.isNaN(mValue)) {
+			mValue = rssi;
+			mCovariance = mMeasurementNoise;
+			return mValue;
+		}
+		float predicted = mCovariance + mProcessNoise;
+		float gain = predicted / (predicted + mMeasurementNoise);
+		mValue += gain * (rssi - mValue);
+		mCovariance = (1 - gain) * predicted;
+		return mValue;
+	}
+
+	@Override
+	public float getValue() {
+		return mValue;
+	}
+
+	@Override
+	public void reset() {
+		mValue = Float.NaN;
+		mCovariance = 0;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new KalmanFilter(mProcessNoise, mMeasurementNoise);
+	}
+}
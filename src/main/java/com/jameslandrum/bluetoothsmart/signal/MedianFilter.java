@@ -0,0 +1,93 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.signal;
+
+/**
+ * The median of the last N samples. Ignores isolated outliers entirely, at the cost of
+ * lagging by half the window.
+ */
+public class MedianFilter implements RssiFilter {
+	private final int[] mSamples;
+	private final int[] mSorted;
+	private int mNext;
+	private int mCount;
+	private float mValue = Float.NaN;
+
+	/**
+	 * @param size The number of samples to take the median of.
+	 */
+	public MedianFilter(int size) {
+		if (size < 1) throw new IllegalArgumentException("Size must be at least one.");
+		mSamples = new int[size];
+		mSorted = new int[size];
+	}
+
+	@Override
+	public float update(int rssi) {
+		if (mCount == mSamples.length) {
+			remove(mSamples[mNext]);
+		} else {
+			mCount++;
+		}
+		mSamples[mNext] = rssi;
+		mNext = (mNext + 1) % mSamples.length;
+		insert(rssi);
+
+		int middle = (mCount - 1) / 2;
+		mValue = mCount % 2 == 1 ? mSorted[middle] : (mSorted[middle] + mSorted[middle + 1]) / 2f;
+		return mValue;
+	}
+
+	/**
+	 * Removes one occurrence of a value from the sorted samples, which then hold one fewer.
+	 */
+	private void remove(int value) {
+		int size = mCount;
+		int i = 0;
+		while (mSorted[i] != value) i++;
+		System.arraycopy(mSorted, i + 1, mSorted, i, size - i - 1);
+	}
+
+	/**
+	 * Inserts a value into the sorted samples, which hold mCount - 1 values before the call.
+	 */
+	private void insert(int value) {
+		int i = mCount - 1;
+		while (i > 0 && mSorted[i - 1] > value) {
+			mSorted[i] = mSorted[i - 1];
+			i--;
+		}
+		mSorted[i] = value;
+	}
+
+	@Override
+	public float getValue() {
+		return mValue;
+	}
+
+	@Override
+	public void reset() {
+		mNext = 0;
+		mCount = 0;
+		mValue = Float.NaN;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new MedianFilter(mSamples.length);
+	}
+}
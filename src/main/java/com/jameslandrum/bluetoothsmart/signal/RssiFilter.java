@@ -0,0 +1,42 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.signal;
+
+/**
+ * Smooths a stream of RSSI samples. Filters keep their state in primitive fields so each sample
+ * is handled without allocating; every device needs its own instance, made with copy().
+ */
+public interface RssiFilter {
+	/**
+	 * Adds a sample.
+	 * @param rssi The received signal strength in dBm.
+	 * @return The smoothed value after the sample.
+	 */
+	float update(int rssi);
+
+	/**
+	 * @return The smoothed value, or NaN before the first sample.
+	 */
+	float getValue();
+
+	void reset();
+
+	/**
+	 * @return A new filter with the same configuration and no samples.
+	 */
+	RssiFilter copy();
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.signal;
+
+/**
+ * Per-device signal statistics, updated incrementally as advertisements arrive.
+ *
+ * The last samples are kept in a primitive ring buffer and smoothed by a pluggable RssiFilter;
+ * adding a sample never allocates. The advertising interval is estimated from the shortest gap
+ * in the window, since lost packets only ever lengthen gaps, and packet loss is the share of
+ * advertisements that interval predicts but that never arrived.
+ *
+ * Samples are added from a single thread, the scanner worker owning the device. Readers on
+ * other threads see a recent, if not always the very latest, state.
+ */
+public final class SignalStats {
+	public static final int DEFAULT_WINDOW = 16;
+
+	private static volatile RssiFilter mDefaultFilter = new EmaFilter(0.25f);
+
+	private final int[] mRssi;
+	private final long[] mTimes;
+	private int mNext;
+	private int mCount;
+	private volatile long mReceived;
+	private volatile long mLastTime;
+	private volatile float mSmoothed = Float.NaN;
+	private RssiFilter mFilter;
+	private volatile long mExpectedInterval;
+
+	public SignalStats() {
+		this(DEFAULT_WINDOW, mDefaultFilter.copy());
+	}
+
+	/**
+	 * @param window The number of samples to estimate intervals and loss over.
+	 * @param filter The filter smoothing RSSI. Must not be shared with other devices.
+	 */
+	public SignalStats(int window, RssiFilter filter) {
+		if (window < 2) throw new IllegalArgumentException("Window must hold at least two samples.");
+		if (filter == null) throw new IllegalArgumentException("Filter must not be null.");
+		mRssi = new int[window];
+		mTimes = new long[window];
+		mFilter = filter;
+	}
+
+	/**
+	 * Sets the filter copied into every SignalStats created afterwards. The filter is copied,
+	 * so the instance passed in stays free to be used by a single device.
+	 * @param filter The prototype filter.
+	 */
+	public static void setDefaultFilter(RssiFilter filter) {
+		if (filter == null) throw new IllegalArgumentException("Filter must not be null.");
+		mDefaultFilter = filter.copy();
+	}
+
+	/**
+	 * @return A new copy of the default filter.
+	 */
+	public static RssiFilter getDefaultFilter() {
+		return mDefaultFilter.copy();
+	}
+
+	/**
+	 * Replaces the filter, restarting smoothing from the next sample.
+	 * @param filter The filter. Must not be shared with other devices.
+	 */
+	public synchronized void setFilter(RssiFilter filter) {
+		if (filter == null) throw new IllegalArgumentException("Filter must not be null.");
+		mFilter = filter;
+		mSmoothed = Float.NaN;
+	}
+
+	/**
+	 * Declares how often the device is expected to advertise. Loss is then measured against
+	 * this interval instead of the estimated one.
+	 * @param interval The interval in milliseconds, or 0 to estimate it.
+	 */
+	public void setExpectedInterval(long interval) {
+		mExpectedInterval = Math.max(0, interval);
+	}
+
+	/**
+	 * Adds a sample.
+	 * @param rssi The received signal strength in dBm.
+	 * @param time When the advertisement arrived, in milliseconds on a monotonic clock.
+	 */
+	public synchronized void add(int rssi, long time) {
+		mRssi[mNext] = rssi;
+		mTimes[mNext] = time;
+		mNext = (mNext + 1) % mRssi.length;
+		if (mCount < mRssi.length) mCount++;
+		mSmoothed = mFilter.update(rssi);
+		mLastTime = time;
+		mReceived++;
+	}
+
+	public synchronized void reset() {
+		mNext = 0;
+		mCount = 0;
+		mReceived = 0;
+		mLastTime = 0;
+		mFilter.reset();
+		mSmoothed = Float.NaN;
+	}
+
+	/**
+	 * @return The smoothed RSSI in dBm, or NaN before the first sample.
+	 */
+	public float getSmoothedRssi() {
+		return mSmoothed;
+	}
+
+	/**
+	 * @return The latest unfiltered RSSI, or 0 before the first sample.
+	 */
+	public synchronized int getLastRssi() {
+		return mCount == 0 ? 0 : mRssi[(mNext + mRssi.length - 1) % mRssi.length];
+	}
+
+	/**
+	 * @return The number of samples added since creation or the last reset.
+	 */
+	public long getReceivedCount() {
+		return mReceived;
+	}
+
+	public long getLastTime() {
+		return mLastTime;
+	}
+
+	/**
+	 * @return The mean gap between the samples in the window in milliseconds, lost packets
+	 * included, or 0 with fewer than two samples.
+	 */
+	public synchronized long getMeanInterval() {
+		if (mCount < 2) return 0;
+		return (time(mCount - 1) - time(0)) / (mCount - 1);
+	}
+
+	/**
+	 * @return The estimated advertising interval in milliseconds: the declared interval if one
+	 * was set, else the shortest gap in the window, or 0 with fewer than two samples.
+	 */
+	public synchronized long getAdInterval() {
+		if (mExpectedInterval > 0) return mExpectedInterval;
+		long shortest = Long.MAX_VALUE;
+		for (int i = 1; i < mCount; i++) {
+			long gap = time(i) - time(i - 1);
+			if (gap > 0 && gap < shortest) shortest = gap;
+		}
+		return shortest == Long.MAX_VALUE ? 0 : shortest;
+	}
+
+	/**
+	 * @return The estimated share of advertisements lost over the window, between 0 and 1.
+	 */
+	public synchronized float getPacketLoss() {
+		long interval = getAdInterval();
+		if (interval <= 0 || mCount < 2) return 0;
+		long span = time(mCount - 1) - time(0);
+		// Advertisers add up to 10ms of random delay, so round to the nearest interval.
+		long expected = (span + interval / 2) / interval;
+		if (expected <= mCount - 1) return 0;
+		return 1f - (float) (mCount - 1) / expected;
+	}
+
+	/**
+	 * @return The time of the i-th oldest sample in the window.
+	 */
+	private long time(int i) {
+		int oldest = mCount < mRssi.length ? 0 : mNext;
+		return mTimes[(oldest + i) % mTimes.length];
+	}
+}
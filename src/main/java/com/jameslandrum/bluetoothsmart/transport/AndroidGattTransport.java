@@ -0,0 +1,237 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.transport;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.Nullable;
+
+import com.jameslandrum.bluetoothsmart.Characteristic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A transport over the platform's BluetoothGatt.
+ */
+public class AndroidGattTransport implements GattTransport {
+	private final Context mContext;
+	private final BluetoothDevice mDevice;
+	private final BluetoothGattCallback mObserver;
+	private volatile Callback mCallback;
+	private volatile BluetoothGatt mGatt;
+	private byte[] mChunk;
+
+	/**
+	 * @param observer Receives every platform callback before it is translated, for code that
+	 *                 still handles BluetoothGattCallback directly. May be null.
+	 */
+	public AndroidGattTransport(Context context, BluetoothDevice device, @Nullable BluetoothGattCallback observer) {
+		mContext = context;
+		mDevice = device;
+		mObserver = observer;
+	}
+
+	@Override
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	@Override
+	public synchronized void connect(boolean autoConnect) {
+		if (mGatt != null) {
+			mGatt.connect();
+		} else {
+			BluetoothAdapter.getDefaultAdapter().cancelDiscovery();
+			mGatt = mDevice.connectGatt(mContext, autoConnect, mPlatformCallback);
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		BluetoothGatt gatt = mGatt;
+		if (gatt != null) gatt.disconnect();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (mGatt != null) mGatt.close();
+		mGatt = null;
+	}
+
+	@Override
+	public boolean discoverServices() {
+		BluetoothGatt gatt = mGatt;
+		return gatt != null && gatt.discoverServices();
+	}
+
+	@Override
+	public boolean hasServices() {
+		BluetoothGatt gatt = mGatt;
+		return gatt != null && gatt.getServices().size() > 0;
+	}
+
+	@Override
+	public boolean resolve(Characteristic characteristic) {
+		BluetoothGatt gatt = mGatt;
+		if (gatt == null) return false;
+		BluetoothGattService service = gatt.getService(characteristic.getServiceId());
+		if (service == null) return false;
+		BluetoothGattCharacteristic platform = service.getCharacteristic(characteristic.getCharacteristicId());
+		if (platform == null) return false;
+		characteristic.setCharacteristic(platform);
+		return true;
+	}
+
+	@Override
+	public boolean read(Characteristic characteristic) {
+		BluetoothGatt gatt = mGatt;
+		return gatt != null && characteristic.getCharacteristic() != null
+				&& gatt.readCharacteristic(characteristic.getCharacteristic());
+	}
+
+	@Override
+	public boolean write(Characteristic characteristic, byte[] value) {
+		BluetoothGatt gatt = mGatt;
+		BluetoothGattCharacteristic platform = characteristic.getCharacteristic();
+		if (gatt == null || platform == null) return false;
+		platform.setValue(value);
+		return gatt.writeCharacteristic(platform);
+	}
+
+	@Override
+	public boolean writeWithoutResponse(Characteristic characteristic, ByteBuffer value) {
+		BluetoothGatt gatt = mGatt;
+		BluetoothGattCharacteristic platform = characteristic.getCharacteristic();
+		if (gatt == null || platform == null) return false;
+		synchronized (this) {
+			// The platform copies the value as it queues the write, so the array can be reused.
+			// It runs one write at a time, so this returns false until the last one is reported.
+			if (mChunk == null || mChunk.length != value.remaining()) mChunk = new byte[value.remaining()];
+			value.duplicate().get(mChunk);
+			platform.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+			platform.setValue(mChunk);
+			boolean started = gatt.writeCharacteristic(platform);
+			platform.setWriteType(characteristic.isWriteWithResponse()
+					? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+					: BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+			return started;
+		}
+	}
+
+	@Override
+	public boolean setNotification(Characteristic characteristic, byte[] descriptorValue) {
+		BluetoothGatt gatt = mGatt;
+		BluetoothGattCharacteristic platform = characteristic.getCharacteristic();
+		if (gatt == null || platform == null) return false;
+		BluetoothGattDescriptor descriptor = platform.getDescriptor(CLIENT_CONFIGURATION);
+		if (descriptor == null) return false;
+		boolean enable = !Arrays.equals(descriptorValue, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+		if (!gatt.setCharacteristicNotification(platform, enable)) return false;
+		descriptor.setValue(descriptorValue);
+		return gatt.writeDescriptor(descriptor);
+	}
+
+	@Override
+	public boolean requestMtu(int mtu) {
+		BluetoothGatt gatt = mGatt;
+		return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mtu);
+	}
+
+	@Override
+	public boolean requestConnectionPriority(int priority) {
+		BluetoothGatt gatt = mGatt;
+		return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestConnectionPriority(priority);
+	}
+
+	/**
+	 * @return The platform connection, or null while closed.
+	 */
+	public BluetoothGatt getGatt() {
+		return mGatt;
+	}
+
+	private static UUID serviceOf(BluetoothGattCharacteristic characteristic) {
+		BluetoothGattService service = characteristic.getService();
+		return service == null ? null : service.getUuid();
+	}
+
+	private final BluetoothGattCallback mPlatformCallback = new BluetoothGattCallback() {
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+			if (mObserver != null) mObserver.onConnectionStateChange(gatt, status, newState);
+			if (gatt != mGatt) {
+				// A connection that was already replaced.
+				if (newState == BluetoothGatt.STATE_DISCONNECTED) gatt.close();
+				return;
+			}
+			Callback callback = mCallback;
+			if (callback != null) callback.onConnectionStateChange(status, newState);
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			if (mObserver != null) mObserver.onServicesDiscovered(gatt, status);
+			Callback callback = mCallback;
+			if (callback != null) callback.onServicesDiscovered(status);
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			if (mObserver != null) mObserver.onCharacteristicRead(gatt, characteristic, status);
+			Callback callback = mCallback;
+			if (callback != null) callback.onCharacteristicRead(serviceOf(characteristic), characteristic.getUuid(), characteristic.getValue(), status);
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+			if (mObserver != null) mObserver.onCharacteristicWrite(gatt, characteristic, status);
+			Callback callback = mCallback;
+			if (callback != null) callback.onCharacteristicWrite(serviceOf(characteristic), characteristic.getUuid(), status);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			if (mObserver != null) mObserver.onDescriptorWrite(gatt, descriptor, status);
+			Callback callback = mCallback;
+			BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+			if (callback != null) callback.onDescriptorWrite(serviceOf(characteristic), characteristic.getUuid(), status);
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+			if (mObserver != null) mObserver.onCharacteristicChanged(gatt, characteristic);
+			Callback callback = mCallback;
+			if (callback != null) callback.onCharacteristicChanged(serviceOf(characteristic), characteristic.getUuid(), characteristic.getValue());
+		}
+
+		@Override
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			if (mObserver != null) mObserver.onMtuChanged(gatt, mtu, status);
+			Callback callback = mCallback;
+			if (callback != null) callback.onMtuChanged(mtu, status);
+		}
+	};
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.transport;
+
+import com.jameslandrum.bluetoothsmart.Characteristic;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * The GATT connection underneath a SmartDevice. AndroidGattTransport talks to the platform;
+ * SimulatedPeripheral runs the same conversation in process, so devices and actions can be
+ * exercised without a radio.
+ *
+ * Like BluetoothGatt, a transport runs one operation at a time: read, write and setNotification
+ * return false while an earlier one has not completed. Statuses are BluetoothGatt statuses and
+ * connection states are BluetoothProfile states.
+ */
+public interface GattTransport {
+	/**
+	 * The Client Characteristic Configuration descriptor, which enables notifications.
+	 */
+	UUID CLIENT_CONFIGURATION = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+	/**
+	 * Sets the receiver of connection events and operation results.
+	 */
+	void setCallback(Callback callback);
+
+	void connect(boolean autoConnect);
+
+	void disconnect();
+
+	/**
+	 * Releases the connection. No further events are delivered for it.
+	 */
+	void close();
+
+	boolean discoverServices();
+
+	/**
+	 * @return True if services are known for the current connection.
+	 */
+	boolean hasServices();
+
+	/**
+	 * Binds a characteristic to the matching one of the connected peripheral.
+	 * @return False if the peripheral has no such characteristic.
+	 */
+	boolean resolve(Characteristic characteristic);
+
+	boolean read(Characteristic characteristic);
+
+	/**
+	 * Writes a value, with or without response as set on the characteristic.
+	 */
+	boolean write(Characteristic characteristic, byte[] value);
+
+	/**
+	 * Writes the remaining bytes of a buffer without response, whatever is set on the
+	 * characteristic. The buffer is not used after the call returns, so it may be a slice of a
+	 * larger one. Unlike other operations, several such writes may be outstanding, as many as
+	 * the transport's buffers hold; onCharacteristicWrite reports each once it has been sent.
+	 * @return False if the write could not start, or the buffers are full.
+	 */
+	boolean writeWithoutResponse(Characteristic characteristic, ByteBuffer value);
+
+	/**
+	 * Enables or disables notifications locally and writes the Client Characteristic
+	 * Configuration descriptor; the result arrives through onDescriptorWrite.
+	 * @param descriptorValue One of the BluetoothGattDescriptor notification values.
+	 * @return False if the characteristic cannot notify or the operation could not start.
+	 */
+	boolean setNotification(Characteristic characteristic, byte[] descriptorValue);
+
+	/**
+	 * Asks the peripheral for a larger ATT MTU; the result arrives through onMtuChanged.
+	 * @return False if the exchange could not start.
+	 */
+	boolean requestMtu(int mtu);
+
+	/**
+	 * Asks for a connection interval to suit one of the BluetoothGatt CONNECTION_PRIORITY values.
+	 * Unlike other operations, it does not wait for earlier ones and its outcome is not reported.
+	 * @return False if the request could not be made.
+	 */
+	boolean requestConnectionPriority(int priority);
+
+	interface Callback {
+		void onConnectionStateChange(int status, int newState);
+		void onServicesDiscovered(int status);
+		void onCharacteristicRead(UUID service, UUID characteristic, byte[] value, int status);
+		void onCharacteristicWrite(UUID service, UUID characteristic, int status);
+		void onDescriptorWrite(UUID service, UUID characteristic, int status);
+		void onCharacteristicChanged(UUID service, UUID characteristic, byte[] value);
+		void onMtuChanged(int mtu, int status);
+	}
+}
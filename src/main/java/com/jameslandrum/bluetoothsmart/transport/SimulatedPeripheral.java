@@ -0,0 +1,708 @@
+/**
+ * Copyright 2016 James Landrum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jameslandrum.bluetoothsmart.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.jameslandrum.bluetoothsmart.Characteristic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A peripheral simulated in process, for exercising devices and actions without a radio.
+ *
+ * Every exchange takes a connection event. Lost packets are retransmitted on the next event, and
+ * the link is dropped with GATT_CONN_TIMEOUT once retransmissions outlast the supervision
+ * timeout. Values longer than an ATT packet cost the extra packets a real stack would send:
+ * blob reads, or prepared writes for writes with response. Writes without response are
+ * truncated to the MTU, as are notifications.
+ *
+ * Writes without response are buffered rather than run one at a time: several are sent in each
+ * connection event, and each is reported as it is sent. Other operations wait until the
+ * buffered writes have gone.
+ *
+ * Results are delivered from one shared daemon thread, so callbacks must not block.
+ */
+public class SimulatedPeripheral implements GattTransport {
+	public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 13;
+	public static final int GATT_CONN_TIMEOUT = 8;
+	public static final int GATT_ERROR = 133;
+
+	private static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+	/* Connection intervals the platform asks for at high and low power priority. */
+	private static final long HIGH_PRIORITY_INTERVAL = 12;
+	private static final long LOW_POWER_INTERVAL = 100;
+
+	private static final int DISCONNECTED = 0;
+	private static final int CONNECTING = 1;
+	private static final int CONNECTED = 2;
+
+	private static final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SimulatedPeripheral");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final LinkedHashMap<UUID,LinkedHashMap<UUID,Attribute>> mServices = new LinkedHashMap<>();
+	private volatile Callback mCallback;
+	private Random mRandom = new Random();
+
+	private long mBalancedInterval = 30;
+	private long mConnectionInterval = 30;
+	private int mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+	private long mConnectDelay = 100;
+	private long mSupervisionTimeout = 4000;
+	private int mMtu = 23;
+	private int mMaxMtu = 247;
+	private int mPacketsPerEvent = 4;
+	private int mWriteBuffers = 8;
+	private long mWriteLatency;
+	private long mNotifyLatency;
+	private float mPacketLoss;
+	private float mDisconnectProbability;
+	private boolean mConnectable = true;
+	private Controller mController;
+
+	private int mState = DISCONNECTED;
+	private int mGeneration;
+	private boolean mBusy;
+	private int mBuffered;
+	private long mSendAt;
+	private boolean mDiscovered;
+	private long mLastNotification;
+
+	private long mOperations;
+	private long mRejected;
+	private long mRetransmissions;
+
+	/**
+	 * Adds a characteristic to the peripheral, creating its service if needed.
+	 * @param properties BluetoothGattCharacteristic properties; notifying characteristics get a
+	 *                   Client Characteristic Configuration descriptor.
+	 */
+	public synchronized SimulatedPeripheral addCharacteristic(UUID service, UUID characteristic, int properties, byte[] value) {
+		LinkedHashMap<UUID,Attribute> characteristics = mServices.get(service);
+		if (characteristics == null) {
+			characteristics = new LinkedHashMap<>();
+			mServices.put(service, characteristics);
+		}
+		characteristics.put(characteristic, new Attribute(characteristic, properties, value));
+		return this;
+	}
+
+	/**
+	 * Sets the time between connection events at balanced priority, 7.5ms to 4s on a real link.
+	 * Defaults to 30ms. High priority shortens it to 12ms at most, low power lengthens it to
+	 * 100ms at least.
+	 */
+	public synchronized SimulatedPeripheral setConnectionInterval(long millis) {
+		mBalancedInterval = Math.max(1, millis);
+		mConnectionInterval = interval(mPriority);
+		return this;
+	}
+
+	/**
+	 * Sets how long connecting takes, or how long until it fails if the peripheral is not
+	 * connectable.
+	 */
+	public synchronized SimulatedPeripheral setConnectDelay(long millis) {
+		mConnectDelay = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the negotiated ATT MTU. Defaults to 23, the minimum.
+	 */
+	public synchronized SimulatedPeripheral setMtu(int mtu) {
+		mMtu = Math.max(23, Math.min(517, mtu));
+		return this;
+	}
+
+	/**
+	 * Sets the largest ATT MTU the peripheral accepts when the central asks for one. Defaults
+	 * to 247.
+	 */
+	public synchronized SimulatedPeripheral setMaxMtu(int mtu) {
+		mMaxMtu = Math.max(23, Math.min(517, mtu));
+		return this;
+	}
+
+	/**
+	 * Sets how many writes without response fit in one connection event. Defaults to 4.
+	 */
+	public synchronized SimulatedPeripheral setPacketsPerEvent(int packets) {
+		mPacketsPerEvent = Math.max(1, packets);
+		return this;
+	}
+
+	/**
+	 * Sets how many writes without response can wait to be sent. Defaults to 8.
+	 */
+	public synchronized SimulatedPeripheral setWriteBuffers(int buffers) {
+		mWriteBuffers = Math.max(1, buffers);
+		return this;
+	}
+
+	/**
+	 * Sets the time the peripheral takes to process a read or write.
+	 */
+	public synchronized SimulatedPeripheral setWriteLatency(long millis) {
+		mWriteLatency = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the time between a value changing and the peripheral sending the notification.
+	 */
+	public synchronized SimulatedPeripheral setNotifyLatency(long millis) {
+		mNotifyLatency = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the probability that a packet is lost and must be retransmitted.
+	 */
+	public synchronized SimulatedPeripheral setPacketLoss(float probability) {
+		mPacketLoss = Math.max(0, Math.min(1, probability));
+		return this;
+	}
+
+	public synchronized SimulatedPeripheral setSupervisionTimeout(long millis) {
+		mSupervisionTimeout = millis;
+		return this;
+	}
+
+	/**
+	 * Sets the probability that the link drops during any one operation.
+	 */
+	public synchronized SimulatedPeripheral setDisconnectProbability(float probability) {
+		mDisconnectProbability = Math.max(0, Math.min(1, probability));
+		return this;
+	}
+
+	/**
+	 * Seeds packet loss and disconnects, for repeatable runs.
+	 */
+	public synchronized SimulatedPeripheral setSeed(long seed) {
+		mRandom = new Random(seed);
+		return this;
+	}
+
+	/**
+	 * Sets whether connection attempts succeed. Failed attempts report GATT_ERROR.
+	 */
+	public synchronized SimulatedPeripheral setConnectable(boolean connectable) {
+		mConnectable = connectable;
+		return this;
+	}
+
+	/**
+	 * Shares a controller with other peripherals, so that operations on them collide as they do
+	 * on a phone with one radio.
+	 */
+	public synchronized SimulatedPeripheral setController(Controller controller) {
+		mController = controller;
+		return this;
+	}
+
+	@Override
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	@Override
+	public synchronized void connect(boolean autoConnect) {
+		if (mState != DISCONNECTED) return;
+		mState = CONNECTING;
+		final int generation = ++mGeneration;
+		schedule(mConnectDelay, new Runnable() {
+			@Override
+			public void run() {
+				boolean connected;
+				synchronized (SimulatedPeripheral.this) {
+					if (generation != mGeneration) return;
+					connected = mConnectable;
+					mState = connected ? CONNECTED : DISCONNECTED;
+					if (!connected) mGeneration++;
+				}
+				Callback callback = mCallback;
+				if (callback == null) return;
+				if (connected) {
+					callback.onConnectionStateChange(BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+				} else {
+					callback.onConnectionStateChange(GATT_ERROR, BluetoothGatt.STATE_DISCONNECTED);
+				}
+			}
+		});
+	}
+
+	@Override
+	public synchronized void disconnect() {
+		if (mState == DISCONNECTED) return;
+		dropLink(mConnectionInterval, BluetoothGatt.GATT_SUCCESS);
+	}
+
+	/**
+	 * Drops the link now, as the peripheral or the radio would.
+	 * @param status The status reported with the disconnection.
+	 */
+	public synchronized void injectDisconnect(int status) {
+		if (mState == DISCONNECTED) return;
+		dropLink(0, status);
+	}
+
+	@Override
+	public synchronized void close() {
+		mState = DISCONNECTED;
+		mGeneration++;
+		mBusy = false;
+		mBuffered = 0;
+		mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+		mConnectionInterval = mBalancedInterval;
+		if (mController != null) mController.free(this);
+		mDiscovered = false;
+		for (Map<UUID,Attribute> characteristics : mServices.values()) {
+			for (Attribute attribute : characteristics.values()) attribute.mNotifying = false;
+		}
+	}
+
+	@Override
+	public synchronized boolean discoverServices() {
+		int packets = 1;
+		for (Map<UUID,Attribute> characteristics : mServices.values()) packets += 1 + characteristics.size();
+		final int generation = mGeneration;
+		long delay = begin(packets, 0, false);
+		if (delay < 0) return false;
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (!complete(generation)) return;
+					mDiscovered = true;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onServicesDiscovered(BluetoothGatt.GATT_SUCCESS);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public synchronized boolean hasServices() {
+		return mState == CONNECTED && mDiscovered;
+	}
+
+	@Override
+	public synchronized boolean resolve(Characteristic characteristic) {
+		if (!hasServices()) return false;
+		Attribute attribute = find(characteristic);
+		if (attribute == null) return false;
+		if (attribute.mPlatform == null) {
+			attribute.mPlatform = new BluetoothGattCharacteristic(attribute.mUuid, attribute.mProperties,
+					BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+		}
+		characteristic.setCharacteristic(attribute.mPlatform);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean read(Characteristic characteristic) {
+		final Attribute attribute = find(characteristic);
+		if (attribute == null || (attribute.mProperties & BluetoothGattCharacteristic.PROPERTY_READ) == 0) return false;
+		// The first response carries MTU - 1 bytes, each blob read after it as many again.
+		int payload = mMtu - 1;
+		int packets = 1 + Math.max(0, (attribute.mValue.length - 1) / payload);
+		final int generation = mGeneration;
+		long delay = begin(packets, mWriteLatency, true);
+		if (delay < 0) return false;
+		final UUID service = characteristic.getServiceId();
+		final byte[] value = attribute.mValue.clone();
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (!complete(generation)) return;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onCharacteristicRead(service, attribute.mUuid, value, BluetoothGatt.GATT_SUCCESS);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public synchronized boolean write(Characteristic characteristic, byte[] value) {
+		final Attribute attribute = find(characteristic);
+		if (attribute == null || value == null) return false;
+		boolean respond = characteristic.isWriteWithResponse();
+		int property = respond ? BluetoothGattCharacteristic.PROPERTY_WRITE : BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+		if ((attribute.mProperties & property) == 0) return false;
+
+		int packets;
+		final int status;
+		final byte[] written;
+		if (!respond) {
+			packets = 1;
+			status = BluetoothGatt.GATT_SUCCESS;
+			written = Arrays.copyOf(value, Math.min(value.length, mMtu - 3));
+		} else if (value.length <= mMtu - 3) {
+			packets = 1;
+			status = BluetoothGatt.GATT_SUCCESS;
+			written = value.clone();
+		} else if (value.length <= MAX_ATTRIBUTE_LENGTH) {
+			// Prepare Write requests carry MTU - 5 bytes each, then one Execute Write.
+			packets = (value.length + mMtu - 6) / (mMtu - 5) + 1;
+			status = BluetoothGatt.GATT_SUCCESS;
+			written = value.clone();
+		} else {
+			packets = 1;
+			status = GATT_INVALID_ATTRIBUTE_LENGTH;
+			written = null;
+		}
+
+		final int generation = mGeneration;
+		long delay = begin(packets, mWriteLatency, true);
+		if (delay < 0) return false;
+		final UUID service = characteristic.getServiceId();
+		if (characteristic.getCharacteristic() != null) characteristic.getCharacteristic().setValue(value);
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (!complete(generation)) return;
+					if (written != null) attribute.mValue = written;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onCharacteristicWrite(service, attribute.mUuid, status);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public synchronized boolean writeWithoutResponse(Characteristic characteristic, ByteBuffer value) {
+		final Attribute attribute = find(characteristic);
+		if (attribute == null || value == null
+				|| (attribute.mProperties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) return false;
+		if (mState != CONNECTED) return false;
+		if (mBusy || mBuffered >= mWriteBuffers || (mBuffered == 0 && mController != null && !mController.claim(this))) {
+			mRejected++;
+			return false;
+		}
+		mBuffered++;
+		mOperations++;
+		final byte[] written = new byte[Math.min(value.remaining(), mMtu - 3)];
+		value.duplicate().get(written);
+
+		// The packet takes its share of a connection event, and a whole one for each retransmission.
+		final int generation = mGeneration;
+		long delay = linkDelay(1);
+		if (delay < 0) return true;
+		long now = System.nanoTime();
+		mSendAt = Math.max(mSendAt, now) + TimeUnit.MILLISECONDS.toNanos(delay - mConnectionInterval)
+				+ TimeUnit.MILLISECONDS.toNanos(mConnectionInterval) / mPacketsPerEvent;
+		final UUID service = characteristic.getServiceId();
+		mExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (generation != mGeneration) return;
+					attribute.mValue = written;
+					if (--mBuffered == 0 && mController != null) mController.free(SimulatedPeripheral.this);
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onCharacteristicWrite(service, attribute.mUuid, BluetoothGatt.GATT_SUCCESS);
+			}
+		}, mSendAt - now, TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean setNotification(Characteristic characteristic, byte[] descriptorValue) {
+		final Attribute attribute = find(characteristic);
+		int notify = BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE;
+		if (attribute == null || (attribute.mProperties & notify) == 0) return false;
+		final boolean enable = !Arrays.equals(descriptorValue, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+		final int generation = mGeneration;
+		long delay = begin(1, mWriteLatency, true);
+		if (delay < 0) return false;
+		final UUID service = characteristic.getServiceId();
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (!complete(generation)) return;
+					attribute.mNotifying = enable;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onDescriptorWrite(service, attribute.mUuid, BluetoothGatt.GATT_SUCCESS);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public synchronized boolean requestMtu(int mtu) {
+		final int generation = mGeneration;
+		long delay = begin(1, 0, true);
+		if (delay < 0) return false;
+		final int negotiated = Math.max(23, Math.min(mtu, mMaxMtu));
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (!complete(generation)) return;
+					mMtu = negotiated;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onMtuChanged(negotiated, BluetoothGatt.GATT_SUCCESS);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public synchronized boolean requestConnectionPriority(int priority) {
+		if (mState != CONNECTED) return false;
+		mPriority = priority;
+		mConnectionInterval = interval(priority);
+		return true;
+	}
+
+	/**
+	 * @return The connection interval in use, which depends on the requested priority.
+	 */
+	public synchronized long getConnectionInterval() {
+		return mConnectionInterval;
+	}
+
+	private long interval(int priority) {
+		switch (priority) {
+			case BluetoothGatt.CONNECTION_PRIORITY_HIGH: return Math.min(mBalancedInterval, HIGH_PRIORITY_INTERVAL);
+			case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER: return Math.max(mBalancedInterval, LOW_POWER_INTERVAL);
+			default: return mBalancedInterval;
+		}
+	}
+
+	/**
+	 * Changes a value on the peripheral side, notifying the central if it has enabled
+	 * notifications. Notifications arrive in order.
+	 * @return True if a notification was sent.
+	 */
+	public synchronized boolean notify(final UUID service, final UUID characteristic, byte[] value) {
+		Map<UUID,Attribute> characteristics = mServices.get(service);
+		Attribute attribute = characteristics == null ? null : characteristics.get(characteristic);
+		if (attribute == null) return false;
+		attribute.mValue = value.clone();
+		if (mState != CONNECTED || !attribute.mNotifying) return false;
+
+		final int generation = mGeneration;
+		long delay = mNotifyLatency + linkDelay(1);
+		if (delay < 0) return false;
+		long due = Math.max(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), mLastNotification);
+		mLastNotification = due;
+		final byte[] sent = Arrays.copyOf(value, Math.min(value.length, mMtu - 3));
+		mExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (generation != mGeneration) return;
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onCharacteristicChanged(service, characteristic, sent);
+			}
+		}, due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	/**
+	 * @return The current value of a characteristic on the peripheral side, or null if there is
+	 * no such characteristic.
+	 */
+	public synchronized byte[] getValue(UUID service, UUID characteristic) {
+		Map<UUID,Attribute> characteristics = mServices.get(service);
+		Attribute attribute = characteristics == null ? null : characteristics.get(characteristic);
+		return attribute == null ? null : attribute.mValue.clone();
+	}
+
+	public synchronized boolean isConnected() {
+		return mState == CONNECTED;
+	}
+
+	/**
+	 * @return The number of operations started.
+	 */
+	public synchronized long getOperationCount() {
+		return mOperations;
+	}
+
+	/**
+	 * @return The number of operations refused because another was still outstanding.
+	 */
+	public synchronized long getRejectedCount() {
+		return mRejected;
+	}
+
+	/**
+	 * @return The number of packets retransmitted after being lost.
+	 */
+	public synchronized long getRetransmissionCount() {
+		return mRetransmissions;
+	}
+
+	/**
+	 * Starts an operation of the current generation.
+	 * @param shared Whether the operation needs the shared controller, if there is one.
+	 * @return The time until it completes, or -1 if it could not start. If the link fails during
+	 * the operation, the disconnection is scheduled and the completion will find its generation
+	 * stale.
+	 */
+	private long begin(int packets, long latency, boolean shared) {
+		if (mState != CONNECTED) return -1;
+		if (mBusy || mBuffered > 0 || (shared && mController != null && !mController.claim(this))) {
+			mRejected++;
+			return -1;
+		}
+		mBusy = true;
+		mOperations++;
+
+		// A request and its response each need a connection event.
+		long delay = linkDelay(packets * 2);
+		if (delay < 0) return 0;
+		if (mDisconnectProbability > 0 && mRandom.nextFloat() < mDisconnectProbability) {
+			dropLink((long) (mRandom.nextFloat() * delay), GATT_CONN_TIMEOUT);
+		}
+		return delay + latency;
+	}
+
+	private boolean complete(int generation) {
+		if (generation != mGeneration) return false;
+		mBusy = false;
+		if (mController != null) mController.free(this);
+		return true;
+	}
+
+	/**
+	 * @return The time needed to get the given number of packets across, or -1 if the link was
+	 * lost doing so; in that case the disconnection has been scheduled.
+	 */
+	private long linkDelay(int packets) {
+		long delay = 0;
+		long lost = 0;
+		for (int i = 0; i < packets; i++) {
+			delay += mConnectionInterval;
+			while (mPacketLoss > 0 && mRandom.nextFloat() < mPacketLoss) {
+				mRetransmissions++;
+				delay += mConnectionInterval;
+				if (++lost * mConnectionInterval >= mSupervisionTimeout) {
+					dropLink(delay, GATT_CONN_TIMEOUT);
+					return -1;
+				}
+			}
+			lost = 0;
+		}
+		return delay;
+	}
+
+	private void dropLink(long delay, final int status) {
+		final int generation = ++mGeneration;
+		schedule(delay, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedPeripheral.this) {
+					if (generation != mGeneration || mState == DISCONNECTED) return;
+					mState = DISCONNECTED;
+					mBusy = false;
+					mBuffered = 0;
+					mPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+					mConnectionInterval = mBalancedInterval;
+					if (mController != null) mController.free(SimulatedPeripheral.this);
+				}
+				Callback callback = mCallback;
+				if (callback != null) callback.onConnectionStateChange(status, BluetoothGatt.STATE_DISCONNECTED);
+			}
+		});
+	}
+
+	private Attribute find(Characteristic characteristic) {
+		Map<UUID,Attribute> characteristics = mServices.get(characteristic.getServiceId());
+		return characteristics == null ? null : characteristics.get(characteristic.getCharacteristicId());
+	}
+
+	private static void schedule(long delay, Runnable runnable) {
+		mExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A radio shared by several peripherals. It carries one operation at a time and refuses an
+	 * operation on one peripheral while another's is outstanding. Service discovery, which
+	 * devices start on their own when they connect, is left out.
+	 */
+	public static final class Controller {
+		private SimulatedPeripheral mOwner;
+		private long mRejected;
+
+		synchronized boolean claim(SimulatedPeripheral peripheral) {
+			if (mOwner != null && mOwner != peripheral) {
+				mRejected++;
+				return false;
+			}
+			mOwner = peripheral;
+			return true;
+		}
+
+		synchronized void free(SimulatedPeripheral peripheral) {
+			if (mOwner == peripheral) mOwner = null;
+		}
+
+		/**
+		 * @return The number of operations refused because another peripheral's was outstanding.
+		 */
+		public synchronized long getRejectedCount() {
+			return mRejected;
+		}
+	}
+
+	private static final class Attribute {
+		final UUID mUuid;
+		final int mProperties;
+		byte[] mValue;
+		boolean mNotifying;
+		BluetoothGattCharacteristic mPlatform;
+
+		Attribute(UUID uuid, int properties, byte[] value) {
+			mUuid = uuid;
+			mProperties = properties;
+			mValue = value == null ? new byte[0] : value.clone();
+		}
+	}
+}
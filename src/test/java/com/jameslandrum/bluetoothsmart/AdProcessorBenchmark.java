@@ -0,0 +1,65 @@
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.annotations.AdCompatible;
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BIT;
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BYTE;
+import static org.junit.Assert.*;
+
+/**
+ * Measures AdProcessor.process for each AdValue.Type and supported field type. Two
+ * advertisements are decoded in turn so that every field changes on every call.
+ */
+public class AdProcessorBenchmark {
+	private static final AdRecord[] RECORDS = {
+			new AdRecord().reset(new byte[] {
+					0x02, 0x01, 0x06, 0x09, (byte) 0xFF, 0x59, 0x00, 0x12, 0x34, 0x56, 0x78, (byte) 0x9A, (byte) 0xBC
+			}),
+			new AdRecord().reset(new byte[] {
+					0x02, 0x01, 0x06, 0x09, (byte) 0xFF, 0x59, 0x00, (byte) 0xED, (byte) 0xCB, (byte) 0xA9, (byte) 0x87, 0x65, 0x43
+			})
+	};
+
+	private static class Fixture {
+		@AdValue(start = 7, end = 9, type = BYTE) int byteInt;
+		@AdValue(start = 56, end = 68) int bitInt;
+		@AdValue(start = 7, end = 13, type = BYTE, signed = false) long byteLong;
+		@AdValue(start = 56, end = 96) long bitLong;
+		@AdValue(start = 56, end = 57) boolean bitBoolean;
+		@AdValue(start = 7, end = 8, type = BYTE) boolean byteBoolean;
+		@AdValue(start = 7, end = 13, type = BYTE) String byteString;
+		@AdValue(start = 7, end = 13, type = BYTE) AdCompatible byteCompatible = new AdCompatible() {
+			@Override
+			public void set(byte[] data) {
+			}
+		};
+		@AdValue(adType = 0xFF, start = 2, end = 4, type = BYTE) int relativeInt;
+	}
+
+	@Test
+	public void benchmark_process() throws Exception {
+		final Fixture fixture = new Fixture();
+		for (Field f : Fixture.class.getDeclaredFields()) {
+			AdValue value = f.getAnnotation(AdValue.class);
+			if (value == null) continue;
+
+			final AdProcessor processor = new AdProcessor(f, value);
+			assertTrue(processor.process(fixture, RECORDS[0]) | processor.process(fixture, RECORDS[1]));
+			Bench.run("AdProcessor.process " + f.getName(), new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					long changed = 0;
+					for (int i = 0; i < iterations; i++) {
+						if (processor.process(fixture, RECORDS[i & 1])) changed++;
+					}
+					return changed;
+				}
+			});
+		}
+	}
+}
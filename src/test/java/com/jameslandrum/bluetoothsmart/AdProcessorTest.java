@@ -0,0 +1,121 @@
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BYTE;
+import static org.junit.Assert.*;
+
+public class AdProcessorTest {
+	private static final byte[] AD = new byte[] {
+			0x02, 0x01, 0x06, 0x12, 0x34, (byte) 0xF0, (byte) 0x80, 0x00, 0x05
+	};
+
+	private static class Fixture {
+		@AdValue(start = 3, end = 5, type = BYTE) int bigEndian;
+		@AdValue(start = 3, end = 5, type = BYTE, flip = true) int littleEndian;
+		@AdValue(start = 5, end = 6, type = BYTE) int signedByte;
+		@AdValue(start = 5, end = 6, type = BYTE, signed = false) int unsignedByte;
+		@AdValue(start = 6, end = 8, type = BYTE, signed = false) int unsignedShort;
+		@AdValue(start = 7, end = 9, type = BYTE) int leadingZero;
+		@AdValue(start = 44, end = 52) int nibbles;
+		@AdValue(start = 40, end = 41) boolean flag;
+		@AdValue(start = 49, end = 50) boolean clearFlag;
+		@AdValue(start = 3, end = 9, type = BYTE, signed = false) long wide;
+	}
+
+	/* Flags, then manufacturer data whose position depends on the length of a name before it. */
+	private static final byte[] NAMED_AD = new byte[] {
+			0x02, 0x01, 0x06, 0x04, 0x09, 'a', 'b', 'c', 0x05, (byte) 0xFF, 0x59, 0x00, 0x2A, 0x01
+	};
+
+	private static class RelativeFixture {
+		@AdValue(adType = 0xFF, start = 0, end = 2, type = BYTE, flip = true) int company;
+		@AdValue(adType = 0xFF, start = 2, end = 4, type = BYTE, signed = false) int payload;
+		@AdValue(adType = 0xFF, start = 3, end = 5, type = BYTE, signed = false) int pastEnd;
+		@AdValue(adType = 0x16, start = 0, end = 1, type = BYTE) int missing = -1;
+	}
+
+	@Test
+	public void offsets_canBeRelativeToAnAdType() throws Exception {
+		RelativeFixture fixture = new RelativeFixture();
+		for (Field f : RelativeFixture.class.getDeclaredFields()) {
+			AdValue value = f.getAnnotation(AdValue.class);
+			if (value != null) new AdProcessor(f, value).process(fixture, AdRecord.parse(NAMED_AD));
+		}
+		assertEquals(0x59, fixture.company);
+		assertEquals(0x2A01, fixture.payload);
+		assertEquals(0x0100, fixture.pastEnd);
+		assertEquals(0, fixture.missing);
+	}
+
+	private static Fixture process() throws Exception {
+		Fixture fixture = new Fixture();
+		for (Field f : Fixture.class.getDeclaredFields()) {
+			AdValue value = f.getAnnotation(AdValue.class);
+			if (value != null) new AdProcessor(f, value).process(fixture, AdRecord.parse(AD));
+		}
+		return fixture;
+	}
+
+	@Test
+	public void bytes_areReadInOrder() throws Exception {
+		Fixture f = process();
+		assertEquals(0x1234, f.bigEndian);
+		assertEquals(0x3412, f.littleEndian);
+		assertEquals(5, f.leadingZero);
+		assertEquals(0x1234F0800005L, f.wide);
+	}
+
+	@Test
+	public void sign_isHonoured() throws Exception {
+		Fixture f = process();
+		assertEquals(-16, f.signedByte);
+		assertEquals(0xF0, f.unsignedByte);
+		assertEquals(0x8000, f.unsignedShort);
+	}
+
+	@Test
+	public void bits_areMasked() throws Exception {
+		Fixture f = process();
+		assertEquals(8, f.nibbles);
+		assertTrue(f.flag);
+		assertFalse(f.clearFlag);
+	}
+
+	@Test
+	public void process_reportsChanges() throws Exception {
+		RelativeFixture fixture = new RelativeFixture();
+		AdProcessor company = new AdProcessor(RelativeFixture.class.getDeclaredField("company"),
+				RelativeFixture.class.getDeclaredField("company").getAnnotation(AdValue.class));
+		assertTrue(company.process(fixture, AdRecord.parse(NAMED_AD)));
+		assertFalse(company.process(fixture, AdRecord.parse(NAMED_AD.clone())));
+
+		byte[] changed = NAMED_AD.clone();
+		changed[10] = 0x4C;
+		assertTrue(company.process(fixture, AdRecord.parse(changed)));
+		assertEquals(0x4C, fixture.company);
+	}
+
+	@Test
+	public void fieldMasks_followNameOrder() {
+		DeviceDescriptor descriptor = new DeviceDescriptor(Masked.class);
+		assertEquals(1, descriptor.getFieldMask("alpha"));
+		assertEquals(2, descriptor.getFieldMask("beta"));
+		assertEquals(4, descriptor.getFieldMask("gamma"));
+		assertEquals(0, descriptor.getFieldMask("other"));
+		assertEquals("alpha", descriptor.getAdProcessors()[0].getFieldName());
+	}
+
+	@SmartDeviceDef
+	private static class Masked {
+		@AdValue(start = 0, end = 1, type = BYTE) int gamma;
+		@AdValue(start = 0, end = 1, type = BYTE) int alpha;
+		int other;
+		@AdValue(start = 0, end = 1, type = BYTE) int beta;
+	}
+}
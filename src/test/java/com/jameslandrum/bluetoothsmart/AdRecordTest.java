@@ -0,0 +1,80 @@
+package com.jameslandrum.bluetoothsmart;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class AdRecordTest {
+	private static final byte[] IBEACON = new byte[] {
+			0x02, 0x01, 0x06,
+			0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,
+			0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 0x00, 0x01, 0x00, 0x02, (byte) 0xC5,
+			0x00, 0x00
+	};
+
+	private static final byte[] SENSOR = new byte[] {
+			0x05, 0x16, 0x0F, 0x18, 0x64, 0x00,
+			0x05, 0x08, 'T', 'e', 'm', 'p',
+			0x04, (byte) 0xFF, 0x4C, 0x00, 0x10
+	};
+
+	@Test
+	public void structures_areLocated() {
+		AdRecord record = new AdRecord().reset(SENSOR);
+		assertEquals(3, record.size());
+		assertEquals(AdRecord.TYPE_SERVICE_DATA_16, record.getType(0));
+		assertEquals(2, record.getStart(0));
+		assertEquals(6, record.getEnd(0));
+		assertEquals(2, record.indexOf(AdRecord.TYPE_MANUFACTURER));
+		assertEquals(-1, record.getFlags());
+		assertEquals(0, record.indexOfServiceData(0x180F));
+		assertEquals(-1, record.indexOfServiceData(0x180A));
+		assertEquals("Temp", record.getLocalName());
+		assertEquals(0x4C, record.getManufacturerId());
+		assertFalse(record.isIBeacon());
+	}
+
+	@Test
+	public void iBeacon_isDetected() {
+		AdRecord record = new AdRecord().reset(IBEACON);
+		assertEquals(2, record.size());
+		assertEquals(0x06, record.getFlags());
+		assertTrue(record.isIBeacon());
+		assertNull(record.getLocalName());
+	}
+
+	@Test
+	public void parse_reusesTheThreadRecord() {
+		AdRecord record = AdRecord.parse(SENSOR);
+		assertSame(record, AdRecord.parse(SENSOR));
+		assertSame(record, AdRecord.parse(IBEACON));
+		assertTrue(record.isIBeacon());
+	}
+
+	@Test
+	public void truncated_structuresAreIgnored() {
+		AdRecord record = new AdRecord().reset(new byte[] {0x02, 0x01, 0x06, 0x09, 0x09, 'a'});
+		assertEquals(1, record.size());
+	}
+
+	@Test
+	public void contentHash_followsContent() {
+		long hash = new AdRecord().reset(SENSOR).getContentHash();
+		assertEquals(hash, new AdRecord().reset(SENSOR.clone()).getContentHash());
+
+		HashSet<Long> hashes = new HashSet<>();
+		for (int i = 0; i < SENSOR.length; i++) {
+			for (int bit = 0; bit < 8; bit++) {
+				byte[] changed = SENSOR.clone();
+				changed[i] ^= 1 << bit;
+				hashes.add(new AdRecord().reset(changed).getContentHash());
+			}
+		}
+		assertEquals(SENSOR.length * 8, hashes.size());
+		assertFalse(hashes.contains(hash));
+		assertNotEquals(hash, new AdRecord().reset(Arrays.copyOf(SENSOR, SENSOR.length + 1)).getContentHash());
+	}
+}
@@ -0,0 +1,88 @@
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.scanner.ScanReplay;
+
+import java.util.Locale;
+
+/**
+ * A minimal harness for the *Benchmark classes, in place of JMH, which cannot run against an
+ * Android library module. Each body is warmed up, then timed in growing batches until the time
+ * budget is spent. Allocation is reported per operation from the JVM's per-thread allocation
+ * counter, like the gc.alloc.rate.norm figure of JMH's GC profiler.
+ *
+ * The budget per benchmark defaults to 300ms and can be raised with -Dbench.millis=N for
+ * baselines worth comparing.
+ */
+public final class Bench {
+	private static final long BUDGET_NANOS = Long.getLong("bench.millis", 300) * 1000000L;
+	private static volatile long mSink;
+
+	private Bench() {}
+
+	/**
+	 * Runs the body repeatedly.
+	 */
+	public interface Body {
+		/**
+		 * @param iterations The number of operations to run.
+		 * @return Anything derived from the results, so the work cannot be optimized away.
+		 */
+		long run(int iterations) throws Exception;
+	}
+
+	/**
+	 * Measures a body and prints the result.
+	 */
+	public static Result run(String name, Body body) throws Exception {
+		measure(body, BUDGET_NANOS / 3);
+		Result result = measure(body, BUDGET_NANOS);
+		result.mName = name;
+		System.out.println(result);
+		return result;
+	}
+
+	private static Result measure(Body body, long budget) throws Exception {
+		long operations = 0;
+		long nanos = 0;
+		long allocated = 0;
+		int batch = 16;
+		while (nanos < budget) {
+			long bytes = ScanReplay.allocatedBytes();
+			long start = System.nanoTime();
+			mSink += body.run(batch);
+			nanos += System.nanoTime() - start;
+			allocated = bytes < 0 ? -1 : allocated + ScanReplay.allocatedBytes() - bytes;
+			operations += batch;
+			if (batch < 1 << 20) batch *= 2;
+		}
+		return new Result((double) nanos / operations, allocated < 0 ? -1 : (double) allocated / operations);
+	}
+
+	public static final class Result {
+		private String mName;
+		private final double mNanosPerOp;
+		private final double mBytesPerOp;
+
+		Result(double nanosPerOp, double bytesPerOp) {
+			mNanosPerOp = nanosPerOp;
+			mBytesPerOp = bytesPerOp;
+		}
+
+		public double getNanosPerOp() {
+			return mNanosPerOp;
+		}
+
+		/**
+		 * @return The bytes allocated per operation, or -1 if not available.
+		 */
+		public double getBytesPerOp() {
+			return mBytesPerOp;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%-44s %10.1f ns/op %12.0f ops/s %9s B/op", mName, mNanosPerOp,
+					1e9 / mNanosPerOp, mBytesPerOp < 0 ? "n/a" : String.format(Locale.US, "%.1f", mBytesPerOp));
+		}
+	}
+}
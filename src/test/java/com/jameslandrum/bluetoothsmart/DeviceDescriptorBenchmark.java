@@ -0,0 +1,94 @@
+package com.jameslandrum.bluetoothsmart;
+
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BYTE;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per-instance reflective scan SmartDevice used to run in its constructor with
+ * binding from a cached DeviceDescriptor.
+ *
+ * A BluetoothDevice cannot be created off-device, so this measures the binding work only,
+ * on a plain annotated class.
+ */
+public class DeviceDescriptorBenchmark {
+	private static final String SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+
+	@SmartDeviceDef
+	private static class Fixture {
+		@AdValue(start = 3, end = 5, type = BYTE) int first;
+		@AdValue(start = 5, end = 6, type = BYTE) int second;
+		@AdValue(start = 48, end = 52) int third;
+		@AdValue(start = 52, end = 53) boolean fourth;
+		@CharacteristicRef(service = SERVICE, id = "2a19") Characteristic level;
+		@CharacteristicRef(service = SERVICE, id = "2a1a") Characteristic state;
+		@CharacteristicRef(service = SERVICE, id = "2a1b", label = "Status") Characteristic status;
+	}
+
+	@Test
+	public void descriptor_isCached() {
+		assertSame(DeviceDescriptor.forClass(Fixture.class), DeviceDescriptor.forClass(Fixture.class));
+		assertEquals(4, DeviceDescriptor.forClass(Fixture.class).getAdProcessors().length);
+		assertEquals(3, DeviceDescriptor.forClass(Fixture.class).getCharacteristics().length);
+	}
+
+	@Test
+	public void benchmark_binding() throws Exception {
+		Bench.run("Binding, reflective scan", new Bench.Body() {
+			@Override
+			public long run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) bindReflectively(new Fixture());
+				return iterations;
+			}
+		});
+		Bench.run("Binding, cached descriptor", new Bench.Body() {
+			@Override
+			public long run(int iterations) throws Exception {
+				for (int i = 0; i < iterations; i++) bindFromDescriptor(new Fixture());
+				return iterations;
+			}
+		});
+	}
+
+	/**
+	 * The work SmartDevice used to repeat for every instance.
+	 */
+	private static void bindReflectively(Fixture fixture) throws Exception {
+		assertNotNull(Fixture.class.getAnnotation(SmartDeviceDef.class));
+
+		HashSet<AdProcessor> processors = new HashSet<>();
+		for (Field f : Fixture.class.getDeclaredFields()) {
+			AdValue value = f.getAnnotation(AdValue.class);
+			if (value != null) processors.add(new AdProcessor(f, value));
+		}
+
+		for (Field f : Fixture.class.getDeclaredFields()) {
+			f.setAccessible(true);
+			CharacteristicRef ref = f.getAnnotation(CharacteristicRef.class);
+			if (ref != null) {
+				Characteristic c = new Characteristic(ref.service(), SmartDevice.resolveCharacteristicId(ref.service(), ref.id()));
+				c.setCharacteristicLabel(ref.label().equals("Unknown") ? f.getName() : ref.label());
+				c.setCharacteristicReference(ref);
+				f.set(fixture, c);
+			}
+		}
+	}
+
+	private static void bindFromDescriptor(Fixture fixture) throws Exception {
+		DeviceDescriptor descriptor = DeviceDescriptor.forClass(Fixture.class);
+		for (DeviceDescriptor.CharacteristicTemplate template : descriptor.getCharacteristics()) {
+			Characteristic c = template.create();
+			c.setCharacteristicLabel(template.getLabel());
+			c.setCharacteristicReference(template.getReference());
+			template.getField().set(fixture, c);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.jameslandrum.bluetoothsmart;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;
+import com.jameslandrum.bluetoothsmart.processor.SmartDeviceProcessor;
+import com.jameslandrum.bluetoothsmart.scanner.DeviceSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compiles device classes through SmartDeviceProcessor and checks the binders it generates
+ * behave like the reflective path.
+ */
+public class SmartDeviceProcessorTest {
+	private static final String SENSOR = "package sample;\n"
+			+ "import android.bluetooth.BluetoothDevice;\n"
+			+ "import com.jameslandrum.bluetoothsmart.Characteristic;\n"
+			+ "import com.jameslandrum.bluetoothsmart.SmartDevice;\n"
+			+ "import com.jameslandrum.bluetoothsmart.annotations.AdValue;\n"
+			+ "import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;\n"
+			+ "import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;\n"
+			+ "@SmartDeviceDef\n"
+			+ "public class Sensor extends SmartDevice<Sensor> {\n"
+			+ "	@CharacteristicRef(service = \"0000180f-0000-1000-8000-00805f9b34fb\", id = \"2a19\", properties = 0x10) public Characteristic level;\n"
+			+ "	@AdValue(start = 0, end = 8) public int first;\n"
+			+ "	public Sensor(BluetoothDevice device) { super(device); }\n"
+			+ "}\n";
+
+	private static final String MIXED = "package %s;\n"
+			+ "import android.bluetooth.BluetoothDevice;\n"
+			+ "import com.jameslandrum.bluetoothsmart.SmartDevice;\n"
+			+ "import com.jameslandrum.bluetoothsmart.annotations.AdValue;\n"
+			+ "import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;\n"
+			+ "@SmartDeviceDef\n"
+			+ "public class Mixed extends SmartDevice<Mixed> {\n"
+			+ "	@AdValue(start = 0, end = 8) public int alpha;\n"
+			+ "	@AdValue(start = 8, end = 16) public double beta;\n"
+			+ "	@AdValue(start = 16, end = 24) public int gamma;\n"
+			+ "	public Mixed(BluetoothDevice device) { super(device); }\n"
+			+ "}\n";
+
+	private File mOutput;
+
+	@Before
+	public void setUp() throws Exception {
+		mOutput = Files.createTempDirectory("binders").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(mOutput);
+	}
+
+	@Test
+	public void binder_setsCharacteristicReference() throws Exception {
+		Class<? extends SmartDevice> type = compile("sample.Sensor", SENSOR, true);
+		assertNotNull(SmartDevice.findBinder(type));
+
+		SmartDevice device = newDevice(type);
+		Characteristic level = (Characteristic) type.getField("level").get(device);
+		CharacteristicRef expected = type.getField("level").getAnnotation(CharacteristicRef.class);
+		assertEquals(expected, level.getCharacteristicRef());
+		assertEquals("level", level.getCharacteristicLabel());
+	}
+
+	@Test
+	public void unsupportedFields_areLeftOutOfBitOrder() throws Exception {
+		for (boolean generated : new boolean[] {true, false}) {
+			String pkg = generated ? "generated" : "reflective";
+			Class<? extends SmartDevice> type = compile(pkg + ".Mixed", String.format(MIXED, pkg), generated);
+			assertEquals(generated, SmartDevice.findBinder(type) != null);
+
+			SmartDevice device = newDevice(type);
+			assertEquals(pkg, 0, device.getFieldMask("beta"));
+			assertEquals(pkg, 2, device.getFieldMask("gamma"));
+			device.newAdvertisement(new byte[] {1, 0, 0}, -60);
+			device.newAdvertisement(new byte[] {1, 0, 5}, -60);
+			assertEquals(pkg, device.getFieldMask("gamma"), device.getChangedFields());
+		}
+	}
+
+	private static SmartDevice newDevice(Class<? extends SmartDevice> type) throws Exception {
+		return type.getConstructor(BluetoothDevice.class).newInstance(new DeviceSource().create(0));
+	}
+
+	/**
+	 * Compiles a single class, through SmartDeviceProcessor if process is set, and loads it.
+	 */
+	private Class<? extends SmartDevice> compile(String name, final String source, boolean process) throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("Tests must run on a JDK", compiler);
+		JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + name.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+		DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+		List<String> options = new ArrayList<>(Arrays.asList("-d", mOutput.getPath(), "-classpath", System.getProperty("java.class.path")));
+		if (!process) options.add("-proc:none");
+		JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(file));
+		if (process) task.setProcessors(Collections.singletonList(new SmartDeviceProcessor()));
+		assertTrue(diagnostics.getDiagnostics().toString(), task.call());
+
+		ClassLoader loader = new URLClassLoader(new URL[] {mOutput.toURI().toURL()}, getClass().getClassLoader());
+		return loader.loadClass(name).asSubclass(SmartDevice.class);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) delete(child);
+		}
+		file.delete();
+	}
+}
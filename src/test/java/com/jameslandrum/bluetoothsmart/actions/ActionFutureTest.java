@@ -0,0 +1,64 @@
+package com.jameslandrum.bluetoothsmart.actions;
+
+import com.jameslandrum.bluetoothsmart.actions.errors.CancelledError;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedPeripheral;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedSensor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ActionFutureTest {
+	@Test
+	public void readModifyWrite_composesWithoutRunner() throws Exception {
+		final SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(5));
+		final String[] threads = new String[2];
+		try {
+			assertNull(new Connect().executeAsync(sensor).await());
+			ActionFuture<byte[]> read = new ReadCharacteristic(sensor.level).executeAsync(sensor);
+			read.addListener(new ActionFuture.Listener<byte[]>() {
+				@Override
+				public void onComplete(ActionFuture<byte[]> future) {
+					threads[0] = Thread.currentThread().getName();
+				}
+			});
+			ActionFuture<Void> write = read.thenCompose(new ActionFuture.Continuation<byte[], Void>() {
+				@Override
+				public ActionFuture<Void> then(byte[] value) {
+					threads[1] = Thread.currentThread().getName();
+					return new SetCharacteristic(sensor.level, new byte[] {(byte) (value[0] + 1)}).executeAsync(sensor);
+				}
+			});
+			assertNull(write.await());
+			assertArrayEquals(new byte[] {51}, sensor.peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID));
+			assertEquals(threads[0], threads[1]);
+		} finally {
+			sensor.release();
+		}
+	}
+
+	@Test
+	public void timeout_failsWithoutBlocking() throws Exception {
+		Action.ActionError error = new Action.ActionError() {};
+		ActionFuture<Void> future = new ActionFuture<Void>().setTimeout(20, error);
+		assertFalse(future.isDone());
+		assertSame(error, future.await());
+		assertFalse(future.complete(null));
+	}
+
+	@Test
+	public void cancel_stopsConnecting() throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectDelay(1000));
+		try {
+			ActionFuture<Void> connect = new Connect().executeAsync(sensor);
+			assertTrue(connect.cancel());
+			assertTrue(connect.getError() instanceof CancelledError);
+			long deadline = System.currentTimeMillis() + 500;
+			while (sensor.isConnectedOrConnecting() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+			assertFalse(sensor.isConnectedOrConnecting());
+			assertFalse(sensor.peripheral.isConnected());
+		} finally {
+			sensor.release();
+		}
+	}
+}
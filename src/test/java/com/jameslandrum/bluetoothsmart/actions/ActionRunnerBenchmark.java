@@ -0,0 +1,169 @@
+package com.jameslandrum.bluetoothsmart.actions;
+
+import com.jameslandrum.bluetoothsmart.transport.SimulatedPeripheral;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedSensor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives many ActionRunners against simulated peripherals at once: every device connects and
+ * then writes a characteristic back to back. Reports completed writes per second, the latency of
+ * each write and how many were lost to timeouts and dropped links.
+ */
+public class ActionRunnerBenchmark {
+	private static final int DEVICES = 64;
+	private static final int CONTENDING_DEVICES = 12;
+	private static final int WRITES = 20;
+
+	@Test
+	public void benchmark_cleanLink() throws Exception {
+		Result result = run("ActionRunner, clean link", DEVICES, 0, 0, null, null);
+		assertEquals(DEVICES * WRITES, result.mSucceeded);
+	}
+
+	@Test
+	public void benchmark_lossyLink() throws Exception {
+		Result result = run("ActionRunner, 60% packet loss", DEVICES, 0.6f, 0, null, null);
+		assertTrue(result.mSucceeded > 0);
+	}
+
+	@Test
+	public void benchmark_slowPeripheral() throws Exception {
+		// Responses arrive just after SetCharacteristic stops waiting, so the next write finds
+		// the previous one still outstanding.
+		Result result = run("ActionRunner, 290ms write latency", DEVICES, 0, 290, null, null);
+		assertTrue(result.mTimedOut > 0);
+		assertTrue(result.mRejected > 0);
+	}
+
+	@Test
+	public void benchmark_sharedController() throws Exception {
+		// Devices on one radio collide, and each collision abandons a device's queue.
+		Result result = run("ActionRunner, shared controller", CONTENDING_DEVICES, 0, 0, new SimulatedPeripheral.Controller(), null);
+		assertTrue(result.mRejected > 0);
+	}
+
+	@Test
+	public void benchmark_sharedControllerArbitrated() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		Result result = run("ActionRunner, arbitrated controller", CONTENDING_DEVICES, 0, 0, new SimulatedPeripheral.Controller(), arbiter);
+		assertEquals(CONTENDING_DEVICES * WRITES, result.mSucceeded);
+		assertEquals(0, result.mRejected);
+		assertEquals(0, arbiter.getInFlight());
+	}
+
+	/**
+	 * @param controller A radio shared by every device, or null to give each its own.
+	 * @param arbiter The arbiter shared by every device, or null to start operations at once.
+	 */
+	private static Result run(String name, int devices, float packetLoss, long writeLatency,
+			SimulatedPeripheral.Controller controller, GattArbiter arbiter) throws Exception {
+		final Result result = new Result(name, devices * WRITES);
+		final CountDownLatch finished = new CountDownLatch(devices);
+		// Actions do not hold a scheduler thread while they wait for their response, so two
+		// threads serve every device.
+		GattScheduler scheduler = new GattScheduler(2);
+		SimulatedSensor[] sensors = new SimulatedSensor[devices];
+		for (int d = 0; d < devices; d++) {
+			sensors[d] = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(controller == null ? 10 : 5).setConnectDelay(20)
+					.setPacketLoss(packetLoss).setSupervisionTimeout(400).setWriteLatency(writeLatency).setSeed(d)
+					.setController(controller), scheduler);
+			sensors[d].setArbiter(arbiter);
+		}
+
+		long start = System.nanoTime();
+		try {
+			for (int d = 0; d < devices; d++) {
+				final SimulatedSensor sensor = sensors[d];
+				final long[] last = new long[1];
+				final AtomicInteger remaining = new AtomicInteger(WRITES);
+				sensor.getActionRunner().setMaxActions(0);
+				sensor.getActionRunner().addErrorHandler(new ActionRunner.ErrorHandler() {
+					@Override
+					public boolean onError(Action.ActionError error) {
+						// Abandon the rest of the queue, as an unhandled error would.
+						result.mAbandoned.addAndGet(sensor.getActionRunner().getActionCount());
+						sensor.getActionRunner().clear();
+						finished.countDown();
+						return false;
+					}
+				});
+				sensor.getActionRunner().addActionToQueue(new Connect() {
+					@Override
+					public ActionFuture<Void> executeAsync(com.jameslandrum.bluetoothsmart.SmartDevice smartDevice) {
+						return super.executeAsync(smartDevice).addListener(new ActionFuture.Listener<Void>() {
+							@Override
+							public void onComplete(ActionFuture<Void> future) {
+								last[0] = System.nanoTime();
+							}
+						});
+					}
+				});
+				for (int i = 0; i < WRITES; i++) {
+					sensor.getActionRunner().addActionToQueue(new SetCharacteristic(sensor.level, new byte[] {(byte) i})
+							.withCallback(new Action.OnActionCompleteListener() {
+								@Override
+								public void onActionCompleted(Action a, boolean success) {
+									long now = System.nanoTime();
+									result.record(now - last[0], success);
+									last[0] = now;
+									if (remaining.decrementAndGet() == 0) finished.countDown();
+								}
+							}));
+				}
+			}
+			assertTrue(finished.await(30, TimeUnit.SECONDS));
+			result.mElapsed = System.nanoTime() - start;
+			for (SimulatedSensor sensor : sensors) result.mRejected += sensor.peripheral.getRejectedCount();
+		} finally {
+			for (SimulatedSensor sensor : sensors) sensor.release();
+			scheduler.shutdown();
+		}
+		System.out.println(result);
+		return result;
+	}
+
+	private static final class Result {
+		final String mName;
+		final long[] mLatencies;
+		final AtomicInteger mAbandoned = new AtomicInteger();
+		int mCount;
+		int mSucceeded;
+		int mTimedOut;
+		long mRejected;
+		long mElapsed;
+
+		Result(String name, int writes) {
+			mName = name;
+			mLatencies = new long[writes];
+		}
+
+		synchronized void record(long nanos, boolean success) {
+			mLatencies[mCount++] = nanos;
+			if (success) mSucceeded++;
+			// SetCharacteristic gives up waiting for a response after 300ms.
+			if (nanos >= TimeUnit.MILLISECONDS.toNanos(300)) mTimedOut++;
+		}
+
+		long percentile(int percentile) {
+			long[] sorted = Arrays.copyOf(mLatencies, mCount);
+			Arrays.sort(sorted);
+			return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format(Locale.US, "%-36s %7.0f writes/s  p50 %5.1fms  p99 %6.1fms  max %6.1fms  %d ok, %d timed out, %d busy, %d abandoned",
+					mName, mSucceeded * 1e9 / mElapsed, percentile(50) / 1e6, percentile(99) / 1e6, percentile(100) / 1e6,
+					mSucceeded, mTimedOut, mRejected, mAbandoned.get());
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.jameslandrum.bluetoothsmart.actions;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedPeripheral;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedSensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ActionRunnerTest {
+	private static class Record extends Action {
+		final List<Integer> mOrder;
+		final Set<String> mThreads;
+		final int mIndex;
+		final CountDownLatch mDone;
+
+		Record(List<Integer> order, Set<String> threads, int index, CountDownLatch done) {
+			mOrder = order;
+			mThreads = threads;
+			mIndex = index;
+			mDone = done;
+		}
+
+		@Override
+		public ActionError execute(SmartDevice device) {
+			super.execute(device);
+			mOrder.add(mIndex);
+			mThreads.add(Thread.currentThread().getName());
+			mDone.countDown();
+			return null;
+		}
+
+		@Override
+		public boolean noDelay() {
+			return true;
+		}
+	}
+
+	@Test
+	public void sharedScheduler_keepsPerDeviceOrder() throws Exception {
+		GattScheduler scheduler = new GattScheduler(2);
+		int devices = 40;
+		int actions = 25;
+		SimulatedSensor[] sensors = new SimulatedSensor[devices];
+		List<List<Integer>> orders = new ArrayList<>();
+		Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+		CountDownLatch done = new CountDownLatch(devices * actions);
+		try {
+			for (int d = 0; d < devices; d++) {
+				sensors[d] = new SimulatedSensor(new SimulatedPeripheral(), scheduler);
+				sensors[d].getActionRunner().setMaxActions(0);
+				orders.add(Collections.synchronizedList(new ArrayList<Integer>()));
+			}
+			for (int i = 0; i < actions; i++) {
+				for (int d = 0; d < devices; d++) {
+					sensors[d].getActionRunner().addActionToQueue(new Record(orders.get(d), threads, i, done));
+				}
+			}
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			for (List<Integer> order : orders) {
+				for (int i = 0; i < actions; i++) assertEquals(Integer.valueOf(i), order.get(i));
+			}
+			assertTrue(threads.size() <= 2);
+			for (SimulatedSensor sensor : sensors) sensor.awaitIdle();
+		} finally {
+			for (SimulatedSensor sensor : sensors) if (sensor != null) sensor.release();
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void delay_doesNotHoldThread() throws Exception {
+		GattScheduler scheduler = new GattScheduler(1);
+		SimulatedSensor delayed = new SimulatedSensor(new SimulatedPeripheral(), scheduler);
+		SimulatedSensor other = new SimulatedSensor(new SimulatedPeripheral(), scheduler);
+		try {
+			List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+			Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+			CountDownLatch done = new CountDownLatch(2);
+			delayed.getActionRunner().addActionToQueue(new Delay(300));
+			delayed.getActionRunner().addActionToQueue(new Record(order, threads, 1, done));
+			other.getActionRunner().addActionToQueue(new Record(order, threads, 0, done));
+			assertTrue(done.await(2, TimeUnit.SECONDS));
+			assertEquals("[0, 1]", order.toString());
+		} finally {
+			delayed.release();
+			other.release();
+			scheduler.shutdown();
+		}
+	}
+
+	@Test
+	public void autoTerminate_disconnectsWhenIdle() throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(5).setConnectDelay(10));
+		try {
+			sensor.getActionRunner().setAutoTerminate(100);
+			sensor.getActionRunner().enableAutoConnect(true);
+			final CountDownLatch written = new CountDownLatch(1);
+			sensor.getActionRunner().addActionToQueue(new SetCharacteristic(sensor.level, new byte[] {1})
+					.withCallback(new Action.OnActionCompleteListener() {
+						@Override
+						public void onActionCompleted(Action a, boolean success) {
+							if (success) written.countDown();
+						}
+					}));
+			assertTrue(written.await(2, TimeUnit.SECONDS));
+			assertTrue(sensor.isConnected());
+			long deadline = System.currentTimeMillis() + 2000;
+			while (sensor.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+			assertFalse(sensor.isConnected());
+		} finally {
+			sensor.release();
+		}
+	}
+
+	@Test
+	public void priorityBoost_lastsForBulkTransfers() throws Exception {
+		final SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectDelay(10));
+		try {
+			final long[] interval = new long[1];
+			sensor.getActionRunner().setPriorityBoost(true);
+			sensor.getActionRunner().addActionToQueue(new Connect());
+			sensor.getActionRunner().addActionToQueue(new SetCharacteristic(sensor.level, new byte[] {1}));
+			sensor.getActionRunner().addActionToQueue(new LargeSetCharacteristic(sensor.level, new byte[100]).setStreaming(4)
+					.withCallback(new Action.OnActionCompleteListener() {
+						@Override
+						public void onActionCompleted(Action a, boolean success) {
+							interval[0] = sensor.peripheral.getConnectionInterval();
+						}
+					}));
+			sensor.awaitIdle();
+			assertEquals(12, interval[0]);
+			assertEquals(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, sensor.getConnectionPriority());
+			assertEquals(30, sensor.peripheral.getConnectionInterval());
+		} finally {
+			sensor.release();
+		}
+	}
+
+	private static class Slow extends Action {
+		final List<Long> mStarts;
+		final CountDownLatch mDone;
+
+		Slow(List<Long> starts, CountDownLatch done) {
+			mStarts = starts;
+			mDone = done;
+		}
+
+		@Override
+		public ActionError execute(SmartDevice device) {
+			super.execute(device);
+			mStarts.add(System.currentTimeMillis());
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ignored) {
+			}
+			mDone.countDown();
+			return null;
+		}
+	}
+
+	@Test
+	public void continueOnComplete_waitsIntervalAfterCompletion() throws Exception {
+		GattScheduler scheduler = new GattScheduler(1);
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral(), scheduler);
+		try {
+			List<Long> starts = Collections.synchronizedList(new ArrayList<Long>());
+			CountDownLatch done = new CountDownLatch(2);
+			ActionRunner runner = new ActionRunner(sensor, 150, true, scheduler);
+			runner.addActionToQueue(new Slow(starts, done));
+			runner.addActionToQueue(new Slow(starts, done));
+			assertTrue(done.await(2, TimeUnit.SECONDS));
+			assertTrue(starts.get(1) - starts.get(0) >= 240);
+			runner.quit();
+		} finally {
+			sensor.release();
+			scheduler.shutdown();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package com.jameslandrum.bluetoothsmart.actions;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedPeripheral;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedSensor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GattArbiterTest {
+	/* Completes the held operation, then every operation admitted after it. */
+	private static void drain(GattArbiter arbiter, GattArbiter.Ticket held, List<GattArbiter.Ticket> tickets) {
+		arbiter.release(held);
+		while (arbiter.getInFlight() > 0) {
+			for (GattArbiter.Ticket ticket : tickets) arbiter.release(ticket);
+		}
+	}
+
+	@Test
+	public void weights_setShares() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		SmartDevice a = new SimulatedSensor(new SimulatedPeripheral());
+		SmartDevice b = new SimulatedSensor(new SimulatedPeripheral());
+		arbiter.setWeight(a, 2);
+
+		List<String> order = new ArrayList<>();
+		GattArbiter.Ticket held = arbiter.acquire(b, GattArbiter.LANE_INTERACTIVE);
+		List<GattArbiter.Ticket> tickets = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			tickets.add(arbiter.request(a, GattArbiter.LANE_INTERACTIVE, grant(order, "a")));
+			tickets.add(arbiter.request(b, GattArbiter.LANE_INTERACTIVE, grant(order, "b")));
+		}
+		assertEquals(16, arbiter.getWaiting());
+		drain(arbiter, held, tickets);
+
+		// While both are waiting, a is admitted twice for every time b is.
+		assertEquals("[a, b, a, a, b, a, a, b, a]", order.subList(0, 9).toString());
+		assertEquals(16, order.size());
+		assertEquals(8, arbiter.getStats(a).getGrantedCount());
+		assertEquals(8 / 17f, arbiter.getStats(a).getShare(), 0.001f);
+		assertEquals(0, arbiter.getWaiting());
+	}
+
+	@Test
+	public void background_getsGuaranteedShare() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		SmartDevice ui = new SimulatedSensor(new SimulatedPeripheral());
+		SmartDevice bulk = new SimulatedSensor(new SimulatedPeripheral());
+
+		List<String> order = new ArrayList<>();
+		GattArbiter.Ticket held = arbiter.acquire(ui, GattArbiter.LANE_INTERACTIVE);
+		List<GattArbiter.Ticket> tickets = new ArrayList<>();
+		for (int i = 0; i < 3; i++) tickets.add(arbiter.request(bulk, GattArbiter.LANE_BACKGROUND, grant(order, "bulk")));
+		for (int i = 0; i < 6; i++) tickets.add(arbiter.request(ui, GattArbiter.LANE_INTERACTIVE, grant(order, "ui")));
+		drain(arbiter, held, tickets);
+
+		assertEquals("[ui, ui, bulk, ui, ui, ui, bulk, ui, bulk]", order.toString());
+		assertEquals(3, arbiter.getStats(bulk).getGrantedCount());
+		assertEquals(0, arbiter.getStats(bulk).getWaitingCount());
+	}
+
+	@Test
+	public void acquire_interruptedWithdrawsRequest() throws Exception {
+		final GattArbiter arbiter = new GattArbiter(1);
+		final SmartDevice device = new SimulatedSensor(new SimulatedPeripheral());
+		GattArbiter.Ticket held = arbiter.acquire(device, GattArbiter.LANE_INTERACTIVE);
+		final boolean[] interrupted = new boolean[1];
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					arbiter.acquire(device, GattArbiter.LANE_INTERACTIVE);
+				} catch (InterruptedException e) {
+					interrupted[0] = true;
+				}
+			}
+		};
+		waiter.start();
+		while (arbiter.getWaiting() == 0) Thread.sleep(1);
+		waiter.interrupt();
+		waiter.join(1000);
+		assertTrue(interrupted[0]);
+		assertEquals(0, arbiter.getWaiting());
+
+		arbiter.release(held);
+		arbiter.release(held);
+		assertEquals(0, arbiter.getInFlight());
+	}
+
+	@Test
+	public void throwingGrant_returnsTicket() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		SmartDevice a = new SimulatedSensor(new SimulatedPeripheral());
+		SmartDevice b = new SimulatedSensor(new SimulatedPeripheral());
+		try {
+			arbiter.request(a, GattArbiter.LANE_INTERACTIVE, new GattArbiter.Grant() {
+				@Override
+				public void onGranted(GattArbiter.Ticket ticket) {
+					throw new IllegalStateException();
+				}
+			});
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(0, arbiter.getInFlight());
+		List<String> order = new ArrayList<>();
+		arbiter.request(b, GattArbiter.LANE_INTERACTIVE, grant(order, "b"));
+		assertEquals("[b]", order.toString());
+	}
+
+	@Test
+	public void disconnect_releasesDeviceTickets() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		SimulatedSensor dropped = new SimulatedSensor(new SimulatedPeripheral());
+		SimulatedSensor other = new SimulatedSensor(new SimulatedPeripheral());
+		dropped.setArbiter(arbiter);
+		try {
+			assertNull(new Connect().executeAsync(dropped).await());
+			arbiter.acquire(dropped, GattArbiter.LANE_INTERACTIVE);
+			List<String> order = Collections.synchronizedList(new ArrayList<String>());
+			GattArbiter.Ticket waiting = arbiter.request(other, GattArbiter.LANE_INTERACTIVE, grant(order, "other"));
+			assertEquals(1, arbiter.getWaiting());
+
+			dropped.peripheral.injectDisconnect(0x08);
+			long deadline = System.currentTimeMillis() + 1000;
+			while (order.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(1);
+			assertEquals("[other]", order.toString());
+			arbiter.release(waiting);
+			assertEquals(0, arbiter.getInFlight());
+		} finally {
+			dropped.release();
+			other.release();
+		}
+	}
+
+	private static GattArbiter.Grant grant(final List<String> order, final String name) {
+		return new GattArbiter.Grant() {
+			@Override
+			public void onGranted(GattArbiter.Ticket ticket) {
+				order.add(name);
+			}
+		};
+	}
+}
@@ -0,0 +1,84 @@
+package com.jameslandrum.bluetoothsmart.actions;
+
+import com.jameslandrum.bluetoothsmart.transport.SimulatedPeripheral;
+import com.jameslandrum.bluetoothsmart.transport.SimulatedSensor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class LargeSetCharacteristicTest {
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) data[i] = (byte) i;
+		return data;
+	}
+
+	private static SimulatedSensor connect(GattArbiter arbiter) throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(8).setConnectDelay(10));
+		sensor.setArbiter(arbiter);
+		assertNull(new Connect().executeAsync(sensor).await());
+		return sensor;
+	}
+
+	@Test
+	public void streaming_outpacesAcknowledgedWrites() throws Exception {
+		byte[] data = data(600);
+		SimulatedSensor sensor = connect(new GattArbiter(1));
+		try {
+			LargeSetCharacteristic acknowledged = new LargeSetCharacteristic(sensor.level, data);
+			assertNull(acknowledged.execute(sensor));
+			LargeSetCharacteristic streamed = new LargeSetCharacteristic(sensor.level, data).setStreaming(LargeSetCharacteristic.DEFAULT_WINDOW);
+			long operations = sensor.peripheral.getOperationCount();
+			assertNull(streamed.execute(sensor));
+
+			// Chunks are sized from the default MTU, and the last one is what the peripheral holds.
+			assertEquals(30, sensor.peripheral.getOperationCount() - operations);
+			assertArrayEquals(Arrays.copyOfRange(data, 580, 600), sensor.peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID));
+			assertTrue(streamed.getThroughput() > 3 * acknowledged.getThroughput());
+		} finally {
+			sensor.release();
+		}
+	}
+
+	@Test
+	public void streaming_givesWayToWaitingOperations() throws Exception {
+		GattArbiter arbiter = new GattArbiter(1);
+		SimulatedSensor streaming = connect(arbiter);
+		SimulatedSensor other = connect(arbiter);
+		try {
+			ActionFuture<Void> stream = new LargeSetCharacteristic(streaming.level, data(2000)).setStreaming(4).executeAsync(streaming);
+			assertNull(new SetCharacteristic(other.level, new byte[] {1}).executeAsync(other).await());
+			assertFalse(stream.isDone());
+			assertNull(stream.await());
+			// The admission is returned by a listener that may still be running.
+			long deadline = System.currentTimeMillis() + 500;
+			while (arbiter.getInFlight() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+			assertEquals(0, arbiter.getInFlight());
+		} finally {
+			streaming.release();
+			other.release();
+		}
+	}
+
+	@Test
+	public void requestedMtu_sizesChunks() throws Exception {
+		byte[] data = data(2000);
+		SimulatedSensor sensor = connect(new GattArbiter(1));
+		try {
+			ActionFuture<Integer> mtu = new RequestMtu().executeAsync(sensor);
+			assertNull(mtu.await());
+			assertEquals(Integer.valueOf(247), mtu.getValue());
+			assertEquals(247, sensor.getMtu());
+
+			long operations = sensor.peripheral.getOperationCount();
+			assertNull(new LargeSetCharacteristic(sensor.level, data).setStreaming(4).execute(sensor));
+			assertEquals(9, sensor.peripheral.getOperationCount() - operations);
+			assertArrayEquals(Arrays.copyOfRange(data, 1952, 2000), sensor.peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID));
+		} finally {
+			sensor.release();
+		}
+	}
+}
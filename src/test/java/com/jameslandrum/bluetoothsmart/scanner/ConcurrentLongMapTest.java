@@ -0,0 +1,72 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentLongMapTest {
+	@Test
+	public void macAddress_roundTrips() {
+		long packed = MacAddress.pack("C4:7C:8D:6A:0B:F1");
+		assertEquals(0xC47C8D6A0BF1L, packed);
+		assertEquals("C4:7C:8D:6A:0B:F1", MacAddress.unpack(packed));
+		assertEquals(packed, MacAddress.pack("c4:7c:8d:6a:0b:f1"));
+		assertEquals(MacAddress.INVALID, MacAddress.pack("C4-7C-8D-6A-0B-F1"));
+		assertEquals(MacAddress.INVALID, MacAddress.pack("C4:7C:8D:6A:0B"));
+		assertEquals(MacAddress.INVALID, MacAddress.pack(null));
+	}
+
+	@Test
+	public void map_matchesHashMap() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+		HashMap<Long, String> expected = new HashMap<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			// A small key space keeps probe chains long and forces removals inside them.
+			long key = random.nextInt(4096);
+			switch (random.nextInt(4)) {
+				case 0:
+					assertEquals(expected.put(key, "p" + i), map.put(key, "p" + i));
+					break;
+				case 1:
+					String previous = expected.get(key);
+					if (previous == null) expected.put(key, "a" + i);
+					assertEquals(previous, map.putIfAbsent(key, "a" + i));
+					break;
+				case 2:
+					assertEquals(expected.remove(key), map.remove(key));
+					break;
+				default:
+					assertEquals(expected.get(key), map.get(key));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected.size(), map.values().size());
+		for (Long key : expected.keySet()) assertEquals(expected.get(key), map.get(key));
+
+		map.clear();
+		assertEquals(0, map.size());
+		assertNull(map.get(1));
+	}
+
+	@Test
+	public void remove_onlyRemovesExpectedInstance() {
+		ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+		String replaced = new String("device");
+		String current = new String("device");
+		map.put(5, current);
+		assertFalse(map.remove(5, replaced));
+		assertSame(current, map.get(5));
+		assertTrue(map.remove(5, current));
+		assertNull(map.get(5));
+		assertFalse(map.remove(5, current));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void map_rejectsInvalidKeys() {
+		new ConcurrentLongMap<String>().put(MacAddress.INVALID, "value");
+	}
+}
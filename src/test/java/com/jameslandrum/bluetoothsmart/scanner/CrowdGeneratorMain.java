@@ -0,0 +1,30 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+/**
+ * Soak tests the scanner with a crowd of identical advertisers and prints a snapshot every
+ * second. Usage: CrowdGeneratorMain &lt;advertisers&gt; &lt;seconds&gt; [interval ms] [workers]
+ */
+public final class CrowdGeneratorMain {
+	private CrowdGeneratorMain() {}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: CrowdGeneratorMain <advertisers> <seconds> [interval ms] [workers]");
+			return;
+		}
+		if (args.length > 3) DeviceScanner.setWorkerCount(Integer.parseInt(args[3]));
+		DeviceScanner.setUnknownDeviceSupport(true);
+		DeviceScanner.setLostDeviceEviction(true);
+		CrowdGenerator.Profile profile = new CrowdGenerator.Profile(new byte[] {0x02, 0x01, 0x06, 0x05, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x00, 0x00})
+				.setInterval(args.length > 2 ? Long.parseLong(args[2]) : 1000)
+				.setMutation(7, 9, 0.1f);
+		CrowdGenerator generator = new CrowdGenerator(0).addProfile(profile, Integer.parseInt(args[0]));
+		generator.setReporter(new CrowdGenerator.Reporter() {
+			@Override
+			public void onSnapshot(CrowdGenerator.Snapshot snapshot) {
+				System.out.println(snapshot);
+			}
+		});
+		System.out.println(generator.run(Long.parseLong(args[1]) * 1000));
+	}
+}
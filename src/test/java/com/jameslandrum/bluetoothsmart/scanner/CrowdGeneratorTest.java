@@ -0,0 +1,96 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+import com.jameslandrum.bluetoothsmart.annotations.Identifier;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BYTE;
+import static org.junit.Assert.*;
+
+public class CrowdGeneratorTest {
+	private static final byte[] TAG = {0x02, 0x01, 0x06, 0x05, (byte) 0xFF, 0x0B, 0x0A, 0x11, 0x00};
+	private static final byte[] PHONE = {0x02, 0x01, 0x1A, 0x05, (byte) 0xFF, 0x4C, 0x00, 0x10, 0x05};
+	/* Advertisements offered by the crowd below with seed 1. */
+	private static final long OFFERED = 13812;
+
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 0x0A0B))
+	static class Tag extends SmartDevice {
+		@AdValue(adType = 0xFF, start = 3, end = 4, type = BYTE) int reading;
+		Tag(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { return data[7] == 0x11; }
+	}
+
+	/**
+	 * Advances only when the generator sleeps, and only once the workers have drained their
+	 * rings, so a seed always offers the same advertisements and none are dropped.
+	 */
+	private static final class StepTicker implements CrowdGenerator.Ticker {
+		private final DeviceScanner mScanner;
+		private long mNow;
+
+		StepTicker(DeviceScanner scanner) {
+			mScanner = scanner;
+		}
+
+		@Override
+		public long nanoTime() {
+			return mNow;
+		}
+
+		@Override
+		public void sleep(long nanos) throws InterruptedException {
+			while (queued(mScanner) > 0) Thread.sleep(1);
+			mNow += nanos;
+		}
+	}
+
+	private static int queued(DeviceScanner scanner) {
+		int queued = 0;
+		for (int depth : scanner.getQueueDepths()) queued += depth;
+		return queued;
+	}
+
+	@Test
+	public void crowd_fillsRegistryAndReportsLatency() throws Exception {
+		CrowdGenerator generator = new CrowdGenerator(1)
+				.addProfile(new CrowdGenerator.Profile(TAG).setInterval(100).setMutation(8, 9, 0.5f), 1000)
+				.addProfile(new CrowdGenerator.Profile(PHONE).setInterval(100).setRotationInterval(400), 200)
+				.setReportInterval(400);
+		generator.setTicker(new StepTicker(generator.getScanner()));
+		generator.getScanner().addDeviceType(Tag.class);
+		try {
+			CrowdGenerator.Result result = generator.run(1200);
+			List<CrowdGenerator.Snapshot> snapshots = result.getSnapshots();
+			assertEquals(3, snapshots.size());
+			assertEquals(1200, snapshots.get(2).getElapsedMillis());
+
+			// About twelve advertisements from each of 1200 advertisers, the same for every run of the seed.
+			assertEquals(OFFERED, result.getOfferedCount());
+			assertEquals(0, snapshots.get(2).getDroppedCount());
+
+			// Only the tags are identified; the last of them may still be in a worker.
+			long deadline = System.nanoTime() + 5000000000L;
+			while (DeviceScanner.mDevices.size() < 1000 && System.nanoTime() < deadline) Thread.sleep(1);
+			assertEquals(1000, DeviceScanner.mDevices.size());
+
+			CrowdGenerator.Snapshot first = snapshots.get(0);
+			assertTrue(first.getProcessedPerSecond() > 0);
+			assertTrue(first.getReportedPerSecond() > 0);
+			assertTrue(first.getLatency(50) > 0);
+			assertTrue(first.getLatency(50) <= first.getLatency(99));
+			assertNotNull(result.toString());
+		} finally {
+			generator.getScanner().removeDeviceType(Tag.class);
+			DeviceScanner.mDevices.clear();
+			DeviceScanner.mVisibility.clear();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceScannerTest {
+	private static final long FIRST = 0x0000C0FFEE200001L;
+	private static final long SECOND = 0x0000C0FFEE200002L;
+	private static final byte[] AD = {0x02, 0x01, 0x06, 0x04, (byte) 0xFF, 0x31, 0x01, 0x00};
+
+	/* The shared tracker only moves forward, so each test starts well past the previous one. */
+	private static long mNow = 1000000;
+
+	private final DeviceScanner mScanner = new DeviceScanner() {
+		@Override public void startScan(@ScanMode int scanMode) {}
+		@Override public void stopScan() {}
+		@Override public boolean isScanning() { return false; }
+	};
+	private final BluetoothDevice mDevice = new DeviceSource().create(0);
+	private final List<SmartDevice> mLost = Collections.synchronizedList(new ArrayList<SmartDevice>());
+	private final DeviceScannerListener mListener = new DeviceScannerListener() {
+		@Override public void onDeviceDiscovered(SmartDevice smartDevice) {}
+		@Override public void onDeviceUpdated(SmartDevice smartDevice) {}
+		@Override public void onDevicePinged(SmartDevice target) {}
+		@Override public void onDeviceLost(SmartDevice smartDevice) { mLost.add(smartDevice); }
+		@Override public void onDevicesUpdated(List<SmartDevice> smartDevices) {}
+	};
+
+	private static long advance(long millis) {
+		mNow += millis;
+		DeviceScanner.mVisibility.advance(mNow);
+		return mNow;
+	}
+
+	@After
+	public void reset() {
+		mScanner.removeScanListener(mListener);
+		DeviceScanner.setLostDeviceEviction(false);
+		DeviceScanner.setMaxDevices(0);
+		DeviceScanner.setUnknownDeviceSupport(false);
+		DeviceScanner.mDevices.clear();
+		DeviceScanner.mVisibility.clear();
+		DeviceScanner.mInvalidDevices.clear();
+	}
+
+	@Test
+	public void injectedDevice_isTimedFromFirstAdvertisement() {
+		DeviceScanner.setLostDeviceEviction(true);
+		mScanner.addScanListener(mListener);
+		VisibilityTrackerTest.Timed device = new VisibilityTrackerTest.Timed(MacAddress.unpack(FIRST));
+		mScanner.injectDevice(device);
+		long evicted = mScanner.getEvictedCount();
+
+		// Never advertised, so it has no window to miss yet.
+		advance(10 * VisibilityTrackerTest.WINDOW);
+		assertTrue(mLost.isEmpty());
+		assertSame(device, DeviceScanner.mDevices.get(FIRST));
+
+		device.mSeen = mNow;
+		mScanner.processAdvertisement(FIRST, AD, mDevice, -60, false);
+		advance(VisibilityTrackerTest.WINDOW / 2);
+		assertTrue(mLost.isEmpty());
+
+		advance(VisibilityTrackerTest.WINDOW + 2 * VisibilityTracker.TICK_MILLIS);
+		assertEquals(Collections.<SmartDevice>singletonList(device), mLost);
+		assertNull(DeviceScanner.mDevices.get(FIRST));
+		assertEquals(evicted + 1, mScanner.getEvictedCount());
+	}
+
+	@Test
+	public void cap_evictsLostDeviceForNewOne() {
+		DeviceScanner.setUnknownDeviceSupport(true);
+		DeviceScanner.setMaxDevices(1);
+		long evicted = mScanner.getEvictedCount();
+		long rejected = mScanner.getRejectedCount();
+
+		mScanner.processAdvertisement(FIRST, AD, mDevice, -60, false);
+		assertNotNull(DeviceScanner.mDevices.get(FIRST));
+		// Full, and nothing is lost yet.
+		mScanner.processAdvertisement(SECOND, AD, mDevice, -60, false);
+		assertNull(DeviceScanner.mDevices.get(SECOND));
+		assertEquals(rejected + 1, mScanner.getRejectedCount());
+
+		SmartDevice first = DeviceScanner.mDevices.get(FIRST);
+		advance(first.getVisibilityTimeout() + 2 * VisibilityTracker.TICK_MILLIS);
+		assertTrue(DeviceScanner.mVisibility.isLost(FIRST));
+		assertSame(first, DeviceScanner.mDevices.get(FIRST));
+
+		mScanner.processAdvertisement(SECOND, AD, mDevice, -60, false);
+		assertNull(DeviceScanner.mDevices.get(FIRST));
+		assertNotNull(DeviceScanner.mDevices.get(SECOND));
+		assertEquals(evicted + 1, mScanner.getEvictedCount());
+		assertEquals(0, DeviceScanner.mVisibility.getLostCount());
+	}
+}
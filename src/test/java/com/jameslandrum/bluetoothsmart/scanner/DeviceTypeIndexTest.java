@@ -0,0 +1,93 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.Identifier;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeviceTypeIndexTest {
+	private static final int[] mCalls = new int[4];
+
+	/* Manufacturer data for the given company, followed by one byte the identifiers check. */
+	private static AdRecord ad(int company, int marker) {
+		return new AdRecord().reset(new byte[] {0x04, (byte) 0xFF, (byte) company, (byte) (company >> 8), (byte) marker});
+	}
+
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 0x59))
+	static class Nordic extends SmartDevice {
+		Nordic(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { mCalls[0]++; return data[4] == 1; }
+	}
+
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 0x4C))
+	static class Apple extends SmartDevice {
+		Apple(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { mCalls[1]++; return true; }
+	}
+
+	@SmartDeviceDef
+	static class First extends SmartDevice {
+		First(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { mCalls[2]++; return data[4] == 2; }
+	}
+
+	@SmartDeviceDef
+	static class Second extends SmartDevice {
+		Second(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { mCalls[3]++; return data[4] == 3; }
+	}
+
+	private static DeviceTypeIndex index() {
+		DeviceTypeIndex index = new DeviceTypeIndex();
+		index.add(Nordic.class);
+		index.add(Apple.class);
+		index.add(First.class);
+		index.add(Second.class);
+		return index;
+	}
+
+	@Test
+	public void find_onlyRunsIndexedAndWildcardIdentifiers() {
+		DeviceTypeIndex index = index();
+		Arrays.fill(mCalls, 0);
+
+		assertEquals(Nordic.class, index.find(ad(0x59, 1)).getType());
+		assertEquals("[1, 0, 0, 0]", Arrays.toString(mCalls));
+
+		assertEquals(First.class, index.find(ad(0x59, 2)).getType());
+		assertEquals("[2, 0, 1, 0]", Arrays.toString(mCalls));
+
+		assertNull(index.find(ad(0x0A, 9)));
+		assertEquals("[2, 0, 2, 1]", Arrays.toString(mCalls));
+	}
+
+	@Test
+	public void find_triesFrequentTypesFirst() {
+		DeviceTypeIndex index = index();
+		for (int i = 0; i < 4; i++) assertEquals(Second.class, index.find(ad(0x0A, 3)).getType());
+
+		Arrays.fill(mCalls, 0);
+		assertEquals(Second.class, index.find(ad(0x0A, 3)).getType());
+		assertEquals("[0, 0, 0, 1]", Arrays.toString(mCalls));
+		assertEquals(6, index.find(ad(0x0A, 3)).getHitCount());
+	}
+
+	@Test
+	public void getScanMatchers_requiresEveryTypeToDeclareMatches() {
+		DeviceTypeIndex index = new DeviceTypeIndex();
+		index.add(Nordic.class);
+		index.add(Apple.class);
+		assertEquals(2, index.getScanMatchers().size());
+		index.add(First.class);
+		assertNull(index.getScanMatchers());
+	}
+}
@@ -0,0 +1,97 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class IngestRingTest {
+	@Test
+	public void drain_deliversLatestPerKey() {
+		IngestRing<String> ring = new IngestRing<>(16);
+		ring.offer(1, "a1");
+		ring.offer(2, "b1");
+		ring.offer(1, "a2");
+		ring.offer(3, "c1");
+		ring.offer(1, "a3");
+
+		final ArrayList<String> delivered = new ArrayList<>();
+		assertEquals(5, ring.drain(new IngestRing.Handler<String>() {
+			@Override
+			public void onItem(long key, String item) {
+				delivered.add(item);
+			}
+		}));
+		assertEquals("[b1, c1, a3]", delivered.toString());
+		assertEquals(2, ring.getCoalescedCount());
+		assertEquals(3, ring.getDeliveredCount());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void offer_dropsWhenFull() {
+		IngestRing<String> ring = new IngestRing<>(4);
+		for (int i = 0; i < 4; i++) assertTrue(ring.offer(i, "x"));
+		assertFalse(ring.offer(9, "y"));
+		assertEquals(1, ring.getDroppedCount());
+	}
+
+	@Test
+	public void producers_neverLoseTheLatestItem() throws Exception {
+		final IngestRing<Long> ring = new IngestRing<>(64);
+		final int producers = 4;
+		final int perProducer = 200000;
+		final ConcurrentHashMap<Long, Long> latest = new ConcurrentHashMap<>();
+		final AtomicLong received = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				IngestRing.Handler<Long> handler = new IngestRing.Handler<Long>() {
+					@Override
+					public void onItem(long key, Long item) {
+						Long previous = latest.put(key, item);
+						assertTrue(previous == null || previous < item);
+						received.incrementAndGet();
+					}
+				};
+				while (!Thread.currentThread().isInterrupted()) {
+					if (ring.drain(handler) == 0) ring.await();
+				}
+				ring.drain(handler);
+			}
+		});
+		consumer.start();
+
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final long key = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (long i = 1; i <= perProducer; i++) {
+						// Keep the final item from being dropped so the last value is known.
+						while (!ring.offer(key, i) && i == perProducer) {
+							retries.incrementAndGet();
+							Thread.yield();
+						}
+					}
+				}
+			});
+			threads[p].start();
+		}
+		for (Thread t : threads) t.join();
+		while (!ring.isEmpty()) Thread.sleep(1);
+		consumer.interrupt();
+		consumer.join();
+
+		for (long p = 0; p < producers; p++) assertEquals(Long.valueOf(perProducer), latest.get(p));
+		assertEquals(received.get(), ring.getDeliveredCount());
+		assertEquals(producers * (long) perProducer,
+				ring.getDroppedCount() - retries.get() + ring.getCoalescedCount() + ring.getDeliveredCount());
+	}
+}
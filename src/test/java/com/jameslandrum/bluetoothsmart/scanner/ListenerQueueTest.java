@@ -0,0 +1,158 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.generic.GenericDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ListenerQueueTest {
+	/* Runs deliveries only when asked, so the listener can be made to fall behind. */
+	private static class ManualExecutor implements Executor {
+		final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(Runnable command) {
+			mTasks.add(command);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = mTasks.poll()) != null) task.run();
+		}
+	}
+
+	private static class RecordingListener implements DeviceScannerListener {
+		final List<String> mEvents = new ArrayList<>();
+
+		@Override public void onDeviceDiscovered(SmartDevice smartDevice) { mEvents.add("discovered"); }
+		@Override public void onDeviceUpdated(SmartDevice smartDevice) { mEvents.add("updated"); }
+		@Override public void onDevicePinged(SmartDevice target) { mEvents.add("pinged"); }
+		@Override public void onDeviceLost(SmartDevice smartDevice) { mEvents.add("lost"); }
+		@Override public void onDevicesUpdated(List<SmartDevice> smartDevices) { mEvents.add("batch" + smartDevices.size()); }
+	}
+
+	@Test
+	public void dropOldest_keepsNewestEvents() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		RecordingListener listener = new RecordingListener();
+		ListenerQueue queue = new ListenerQueue(listener, 2, ListenerQueue.Policy.DROP_OLDEST, executor);
+		SmartDevice device = new GenericDevice(new DeviceSource().create(0));
+
+		queue.onDeviceDiscovered(device);
+		queue.onDeviceUpdated(device);
+		queue.onDeviceLost(device);
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(1, executor.mTasks.size());
+
+		executor.runAll();
+		assertEquals("[updated, lost]", listener.mEvents.toString());
+		assertEquals(2, queue.getDeliveredCount());
+		assertEquals(0, queue.getLag());
+	}
+
+	@Test
+	public void coalesce_mergesPerDeviceInOrder() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		RecordingListener listener = new RecordingListener();
+		ListenerQueue queue = new ListenerQueue(listener, 16, ListenerQueue.Policy.COALESCE, executor);
+		SmartDevice first = new GenericDevice(new DeviceSource().create(0));
+		SmartDevice second = new GenericDevice(new DeviceSource().create(0));
+
+		queue.onDevicePinged(first);
+		queue.onDevicePinged(second);
+		queue.onDeviceUpdated(first);
+		queue.onDevicePinged(first);
+		// Updates after a loss are not merged into those before it.
+		queue.onDeviceLost(first);
+		queue.onDevicePinged(first);
+		assertEquals(4, queue.size());
+		assertEquals(2, queue.getCoalescedCount());
+
+		executor.runAll();
+		assertEquals("[updated, pinged, lost, pinged]", listener.mEvents.toString());
+		assertEquals(0, queue.getDroppedCount());
+	}
+
+	@Test
+	public void slowListener_reportsLagAndSurvivesFailures() throws Exception {
+		ManualExecutor executor = new ManualExecutor();
+		final List<SmartDevice> seen = new ArrayList<>();
+		ListenerQueue queue = new ListenerQueue(new RecordingListener() {
+			@Override
+			public void onDeviceUpdated(SmartDevice smartDevice) {
+				seen.add(smartDevice);
+				throw new IllegalStateException();
+			}
+		}, 8, ListenerQueue.Policy.COALESCE, executor);
+		SmartDevice device = new GenericDevice(new DeviceSource().create(0));
+
+		queue.onDeviceUpdated(device);
+		Thread.sleep(30);
+		assertTrue(queue.getLag() >= 20);
+		queue.onDevicesUpdated(new ArrayList<SmartDevice>());
+		executor.runAll();
+		assertEquals(1, seen.size());
+		assertEquals(2, queue.getDeliveredCount());
+		assertTrue(queue.getMaxLag() >= 20);
+
+		queue.close();
+		queue.onDeviceUpdated(device);
+		assertEquals(0, queue.size());
+		assertTrue(executor.mTasks.isEmpty());
+	}
+
+	@Test
+	public void rejectedDelivery_isRetriedByNextEvent() throws Exception {
+		final ManualExecutor executor = new ManualExecutor();
+		final boolean[] reject = {true};
+		RecordingListener listener = new RecordingListener();
+		ListenerQueue queue = new ListenerQueue(listener, 8, ListenerQueue.Policy.DROP_OLDEST, new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (reject[0]) throw new RejectedExecutionException();
+				executor.execute(command);
+			}
+		});
+		SmartDevice device = new GenericDevice(new DeviceSource().create(0));
+
+		queue.onDeviceDiscovered(device);
+		assertEquals(1, queue.size());
+		reject[0] = false;
+		queue.onDeviceUpdated(device);
+		executor.runAll();
+		assertEquals("[discovered, updated]", listener.mEvents.toString());
+	}
+
+	@Test
+	public void close_racingEvents_neitherThrowsNorReschedules() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			final ListenerQueue queue = new ListenerQueue(new RecordingListener(), 4, ListenerQueue.Policy.DROP_OLDEST, null);
+			final SmartDevice device = new GenericDevice(new DeviceSource().create(0));
+			final Throwable[] failure = new Throwable[1];
+			Thread producer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) queue.onDeviceUpdated(device);
+					} catch (Throwable t) {
+						failure[0] = t;
+					}
+				}
+			};
+			producer.start();
+			queue.close();
+			producer.join();
+			assertNull(failure[0]);
+			assertEquals(0, queue.size());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LollipopDeviceScannerTest {
+	private static final long FIRST = 0x0000C0FFEE300001L;
+	private static final long SECOND = 0x0000C0FFEE300002L;
+	private static final long THIRD = 0x0000C0FFEE300003L;
+	private static final byte[] AD_A = {0x02, 0x01, 0x06, 0x04, (byte) 0xFF, 0x31, 0x01, 0x0A};
+	private static final byte[] AD_B = {0x02, 0x01, 0x06, 0x04, (byte) 0xFF, 0x31, 0x01, 0x0B};
+
+	private final LollipopDeviceScanner mScanner = new LollipopDeviceScanner();
+	private final BluetoothDevice mDevice = new DeviceSource().create(0);
+	private final List<List<SmartDevice>> mBatches = new ArrayList<>();
+	private final List<String> mEvents = new ArrayList<>();
+	private final DeviceScannerListener mListener = new DeviceScannerListener() {
+		@Override public void onDeviceDiscovered(SmartDevice smartDevice) { mEvents.add("discovered"); }
+		@Override public void onDeviceUpdated(SmartDevice smartDevice) { mEvents.add("updated"); }
+		@Override public void onDevicePinged(SmartDevice target) { mEvents.add("pinged"); }
+		@Override public void onDeviceLost(SmartDevice smartDevice) { mEvents.add("lost"); }
+		@Override public void onDevicesUpdated(List<SmartDevice> smartDevices) { mBatches.add(smartDevices); }
+	};
+
+	@After
+	public void reset() {
+		mScanner.removeScanListener(mListener);
+		DeviceScanner.setUnknownDeviceSupport(false);
+		DeviceScanner.mDevices.clear();
+		DeviceScanner.mVisibility.clear();
+		DeviceScanner.mInvalidDevices.clear();
+	}
+
+	@Test
+	public void batch_reportsEachTouchedDeviceOnce() {
+		DeviceScanner.setUnknownDeviceSupport(true);
+		mScanner.processAdvertisement(FIRST, AD_A, mDevice, -60, false);
+		mScanner.processAdvertisement(SECOND, AD_A, mDevice, -60, false);
+		SmartDevice first = DeviceScanner.mDevices.get(FIRST);
+		SmartDevice second = DeviceScanner.mDevices.get(SECOND);
+		mScanner.addScanListener(mListener);
+
+		LollipopDeviceScanner.Batch batch = mScanner.new Batch();
+		batch.add(FIRST, AD_B, mDevice, -60);
+		batch.add(SECOND, AD_B, mDevice, -61);
+		batch.add(FIRST, AD_A, mDevice, -62);
+		// Discovered by the batch, so reported through onDeviceDiscovered rather than the batch.
+		batch.add(THIRD, AD_A, mDevice, -63);
+		batch.add(FIRST, AD_B, mDevice, -64);
+		batch.add(SECOND, AD_A, mDevice, -65);
+		assertTrue(mBatches.isEmpty());
+		batch.finish();
+
+		assertEquals(1, mBatches.size());
+		assertEquals(Arrays.asList(first, second), mBatches.get(0));
+		assertEquals("[discovered]", mEvents.toString());
+		assertNotNull(DeviceScanner.mDevices.get(THIRD));
+	}
+
+	@Test
+	public void emptyBatch_isNotReported() {
+		mScanner.addScanListener(mListener);
+		LollipopDeviceScanner.Batch batch = mScanner.new Batch();
+		batch.add(FIRST, AD_A, mDevice, -60);
+		batch.finish();
+		assertTrue(mBatches.isEmpty());
+	}
+}
@@ -0,0 +1,70 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class NegativeCacheTest {
+	@Test
+	public void entries_expire() {
+		NegativeCache cache = new NegativeCache(16, 1000);
+		cache.add(42, 0);
+		assertTrue(cache.contains(42, 999));
+		assertFalse(cache.contains(42, 1000));
+		assertFalse(cache.contains(42, 1001));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getExpiredCount());
+	}
+
+	@Test
+	public void size_isBounded() {
+		NegativeCache cache = new NegativeCache(64, 1000);
+		for (long i = 0; i < 10000; i++) cache.add(i, 0);
+		assertTrue(cache.size() <= 64);
+		assertEquals(10000 - cache.size(), cache.getEvictionCount());
+		assertTrue(cache.contains(9999, 1));
+	}
+
+	@Test
+	public void eviction_isLeastRecentlyUsed() {
+		// The cache keeps one LRU list per segment; model each with an access ordered map.
+		final int segments = 8;
+		final int perSegment = 32;
+		NegativeCache cache = new NegativeCache(segments * perSegment, 1000);
+		ArrayList<LinkedHashMap<Long, Boolean>> model = new ArrayList<>();
+		for (int i = 0; i < segments; i++) {
+			model.add(new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+					return size() > perSegment;
+				}
+			});
+		}
+
+		Random random = new Random(3);
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(2048);
+			Map<Long, Boolean> segment = model.get((int) (ConcurrentLongMap.hash(key) >>> 61));
+			switch (random.nextInt(5)) {
+				case 0:
+				case 1:
+					cache.add(key, 0);
+					segment.put(key, true);
+					break;
+				case 2:
+					cache.remove(key);
+					segment.remove(key);
+					break;
+				default:
+					assertEquals(segment.get(key) != null, cache.contains(key, 0));
+			}
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ScanMatcherTest {
+	/* Flags, 16-bit service 0x180F, manufacturer 0x0059 with 01 02 03, local name "Sensor-7". */
+	private static final byte[] AD = new byte[] {
+			0x02, 0x01, 0x06,
+			0x03, 0x03, 0x0F, 0x18,
+			0x06, (byte) 0xFF, 0x59, 0x00, 0x01, 0x02, 0x03,
+			0x09, 0x09, 'S', 'e', 'n', 's', 'o', 'r', '-', '7',
+			0x00, 0x00
+	};
+
+	@SmartDeviceDef(matches = {
+			@ScanMatch(manufacturerId = 0x59, manufacturerData = "010003", manufacturerMask = "FF00FF"),
+			@ScanMatch(manufacturerId = 0x59, manufacturerData = "0102"),
+			@ScanMatch(manufacturerId = 0x59, manufacturerData = "0202"),
+			@ScanMatch(manufacturerId = 0x4C),
+			@ScanMatch(serviceUuid = "180f", namePrefix = "Sensor"),
+			@ScanMatch(serviceUuid = "180a"),
+			@ScanMatch(namePrefix = "Other"),
+			@ScanMatch(serviceUuid = "6e400001-b5a3-f393-e0a9-e50e24dcca9e")
+	})
+	private static class Matches {}
+
+	private static ScanMatcher matcher(int index) {
+		return new ScanMatcher(Matches.class.getAnnotation(SmartDeviceDef.class).matches()[index]);
+	}
+
+	@Test
+	public void matches_checksEveryCriterion() {
+		boolean[] expected = {true, true, false, false, true, false, false, false};
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals("match " + i, expected[i], matcher(i).matches(new AdRecord().reset(AD)));
+		}
+	}
+
+	@Test
+	public void matches_readsLongUuids() {
+		UUID uuid = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+		byte[] ad = new byte[18];
+		ad[0] = 17;
+		ad[1] = 0x07;
+		for (int i = 0; i < 8; i++) {
+			ad[2 + i] = (byte) (uuid.getLeastSignificantBits() >>> (8 * i));
+			ad[10 + i] = (byte) (uuid.getMostSignificantBits() >>> (8 * i));
+		}
+		assertTrue(matcher(7).matches(new AdRecord().reset(ad)));
+		assertFalse(matcher(7).matches(new AdRecord().reset(AD)));
+	}
+
+	@Test
+	public void matches_ignoresTruncatedStructures() {
+		byte[] truncated = new byte[] {0x06, (byte) 0xFF, 0x59, 0x00, 0x01};
+		assertFalse(matcher(1).matches(new AdRecord().reset(truncated)));
+	}
+
+	@Test
+	public void isPushable_excludesNamePrefixes() {
+		assertTrue(matcher(0).isPushable());
+		assertTrue(matcher(5).isPushable());
+		assertFalse(matcher(4).isPushable());
+		assertFalse(matcher(6).isPushable());
+	}
+}
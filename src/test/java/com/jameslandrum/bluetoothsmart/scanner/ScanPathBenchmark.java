@@ -0,0 +1,202 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.jameslandrum.bluetoothsmart.AdRecord;
+import com.jameslandrum.bluetoothsmart.Bench;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.AdValue;
+import com.jameslandrum.bluetoothsmart.annotations.Identifier;
+import com.jameslandrum.bluetoothsmart.annotations.ScanMatch;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+
+import org.junit.Test;
+
+import static com.jameslandrum.bluetoothsmart.annotations.AdValue.Type.BYTE;
+import static org.junit.Assert.*;
+
+/**
+ * Measures the scan hot path: DeviceScanner.processAdvertisement for known, unknown and beacon
+ * advertisements, device type identification, and the device registry.
+ */
+public class ScanPathBenchmark {
+	private static final long KNOWN = 0x0000C0FFEE000001L;
+	private static final long UNKNOWN = 0x0000C0FFEE100000L;
+
+	private static byte[] manufacturerAd(int company, int marker, int value) {
+		return new byte[] {0x02, 0x01, 0x06, 0x06, (byte) 0xFF, (byte) company, (byte) (company >> 8), (byte) marker, (byte) value, 0x00};
+	}
+
+	private static final byte[] BEACON = {
+			0x02, 0x01, 0x06, 0x1A, (byte) 0xFF, 0x4C, 0x00, 0x02, 0x15,
+			0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 0x00, 0x01, 0x00, 0x02, (byte) 0xC5
+	};
+
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 0x0059))
+	static class Sensor extends SmartDevice {
+		@AdValue(adType = 0xFF, start = 3, end = 4, type = BYTE) int reading;
+		Sensor(BluetoothDevice device) { super(device); }
+		@Identifier static boolean identify(byte[] data) { return data[7] == 0x42; }
+	}
+
+	/* Device types told apart by company, plus two that must check every advertisement. */
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 1)) static class Type1 extends Type { Type1(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 2)) static class Type2 extends Type { Type2(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 3)) static class Type3 extends Type { Type3(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 4)) static class Type4 extends Type { Type4(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 5)) static class Type5 extends Type { Type5(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 6)) static class Type6 extends Type { Type6(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 7)) static class Type7 extends Type { Type7(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef(matches = @ScanMatch(manufacturerId = 8)) static class Type8 extends Type { Type8(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return true; } }
+	@SmartDeviceDef static class Wildcard1 extends Type { Wildcard1(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return d[7] == 1; } }
+	@SmartDeviceDef static class Wildcard2 extends Type { Wildcard2(BluetoothDevice d) { super(d); } @Identifier static boolean id(byte[] d) { return d[7] == 2; } }
+
+	static abstract class Type extends SmartDevice {
+		Type(BluetoothDevice device) { super(device); }
+	}
+
+	private static final DeviceScanner mScanner = new DeviceScanner() {
+		@Override public void startScan(@ScanMode int scanMode) {}
+		@Override public void stopScan() {}
+		@Override public boolean isScanning() { return false; }
+	};
+
+	@Test
+	public void benchmark_processAdvertisement() throws Exception {
+		final BluetoothDevice device = new DeviceSource().create(0);
+		mScanner.addDeviceType(Sensor.class);
+		final byte[][] changing = {manufacturerAd(0x59, 0x42, 1), manufacturerAd(0x59, 0x42, 2)};
+		final byte[] unknown = manufacturerAd(0x0131, 0x00, 0);
+		try {
+			mScanner.processAdvertisement(KNOWN, changing[0], device, -60, false);
+			assertTrue(DeviceScanner.mDevices.get(KNOWN) instanceof Sensor);
+
+			Bench.run("processAdvertisement known, changed", new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					long touched = 0;
+					for (int i = 0; i < iterations; i++) {
+						if (mScanner.processAdvertisement(KNOWN, changing[i & 1], device, -60, false) != null) touched++;
+					}
+					return touched;
+				}
+			});
+			Bench.run("processAdvertisement known, repeated", new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					long touched = 0;
+					for (int i = 0; i < iterations; i++) {
+						if (mScanner.processAdvertisement(KNOWN, changing[0], device, -60, false) != null) touched++;
+					}
+					return touched;
+				}
+			});
+			Bench.run("processAdvertisement unknown, identified", new Bench.Body() {
+				long mNext = UNKNOWN;
+
+				@Override
+				public long run(int iterations) {
+					for (int i = 0; i < iterations; i++) {
+						mScanner.processAdvertisement(mNext++, unknown, device, -60, false);
+					}
+					return mNext;
+				}
+			});
+			Bench.run("processAdvertisement unknown, cached", new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					for (int i = 0; i < iterations; i++) {
+						mScanner.processAdvertisement(UNKNOWN, unknown, device, -60, false);
+					}
+					return iterations;
+				}
+			});
+			Bench.run("processAdvertisement beacon", new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					for (int i = 0; i < iterations; i++) {
+						mScanner.processAdvertisement(KNOWN + 1, BEACON, device, -60, false);
+					}
+					return iterations;
+				}
+			});
+		} finally {
+			DeviceScanner.mDevices.remove(KNOWN);
+			DeviceScanner.mVisibility.untrack(KNOWN);
+			DeviceScanner.mInvalidDevices.clear();
+		}
+	}
+
+	@Test
+	public void benchmark_identification() throws Exception {
+		final DeviceTypeIndex index = new DeviceTypeIndex();
+		Class<?>[] types = {Type1.class, Type2.class, Type3.class, Type4.class, Type5.class,
+				Type6.class, Type7.class, Type8.class, Wildcard1.class, Wildcard2.class};
+		for (Class<?> type : types) index.add(type.asSubclass(SmartDevice.class));
+
+		final String[] names = {"keyed", "wildcard", "miss"};
+		final AdRecord[] records = {
+				new AdRecord().reset(manufacturerAd(8, 0, 0)),
+				new AdRecord().reset(manufacturerAd(0x0131, 2, 0)),
+				new AdRecord().reset(manufacturerAd(0x0131, 0, 0))
+		};
+		assertSame(Type8.class, index.find(records[0]).getType());
+		assertSame(Wildcard2.class, index.find(records[1]).getType());
+		assertNull(index.find(records[2]));
+
+		for (int r = 0; r < records.length; r++) {
+			final AdRecord record = records[r];
+			Bench.run("DeviceTypeIndex.find " + types.length + " types, " + names[r], new Bench.Body() {
+				@Override
+				public long run(int iterations) {
+					long found = 0;
+					for (int i = 0; i < iterations; i++) {
+						if (index.find(record) != null) found++;
+					}
+					return found;
+				}
+			});
+		}
+	}
+
+	@Test
+	public void benchmark_registry() throws Exception {
+		final int size = 10000;
+		final ConcurrentLongMap<Object> registry = new ConcurrentLongMap<>();
+		final long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = MacAddress.pack(String.format("AC:23:3F:%02X:%02X:%02X", i >> 16, (i >> 8) & 0xFF, i & 0xFF));
+			registry.put(keys[i], new Object());
+		}
+		final String address = "AC:23:3F:00:12:34";
+
+		Bench.run("ConcurrentLongMap.get " + size + " entries, hit", new Bench.Body() {
+			@Override
+			public long run(int iterations) {
+				long found = 0;
+				for (int i = 0; i < iterations; i++) {
+					if (registry.get(keys[i % size]) != null) found++;
+				}
+				return found;
+			}
+		});
+		Bench.run("ConcurrentLongMap.get " + size + " entries, miss", new Bench.Body() {
+			@Override
+			public long run(int iterations) {
+				long found = 0;
+				for (int i = 0; i < iterations; i++) {
+					if (registry.get(keys[i % size] ^ 1L << 47) != null) found++;
+				}
+				return found;
+			}
+		});
+		Bench.run("MacAddress.pack", new Bench.Body() {
+			@Override
+			public long run(int iterations) {
+				long sum = 0;
+				for (int i = 0; i < iterations; i++) sum += MacAddress.pack(address);
+				return sum;
+			}
+		});
+	}
+}
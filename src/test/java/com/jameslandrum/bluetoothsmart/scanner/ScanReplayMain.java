@@ -0,0 +1,29 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+/**
+ * Replays a capture file at maximum speed, or at the speed given, and prints the results.
+ * Usage: ScanReplayMain &lt;capture&gt; [speed]
+ */
+public final class ScanReplayMain {
+	private ScanReplayMain() {}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: ScanReplayMain <capture> [speed]");
+			return;
+		}
+		ScanCapture capture;
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			capture = ScanCapture.read(in);
+		} finally {
+			in.close();
+		}
+		ScanReplay replay = new ScanReplay(capture);
+		if (args.length > 1) replay.setSpeed(Double.parseDouble(args[1]));
+		System.out.println(replay.run());
+	}
+}
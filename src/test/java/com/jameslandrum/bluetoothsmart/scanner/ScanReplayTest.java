@@ -0,0 +1,75 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanReplayTest {
+	private static ScanCapture capture() {
+		ScanCapture capture = new ScanCapture(1);
+		byte[] padded = new byte[62];
+		padded[0] = 0x02;
+		padded[1] = 0x01;
+		padded[2] = 0x06;
+		capture.add(5000000000L, 0xAABBCCDDEEFFL, -70, padded);
+		capture.add(5010000000L, 0x112233445566L, 4, new byte[] {0x03, (byte) 0xFF, 0x4C, 0x00});
+		// Results from different callback threads can arrive slightly out of order.
+		capture.add(5009000000L, 0xAABBCCDDEEFFL, -128, new byte[0]);
+		capture.add(5050000000L, 0L, -1, new byte[] {0x00, 0x01, 0x00});
+		return capture;
+	}
+
+	@Test
+	public void capture_roundTrips() throws IOException {
+		ScanCapture capture = capture();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		capture.write(out);
+		assertTrue(out.size() < 4 + 4 * 16 + 10);
+
+		ScanCapture read = ScanCapture.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(capture.size(), read.size());
+		for (int i = 0; i < capture.size(); i++) {
+			assertEquals(capture.getTime(i), read.getTime(i));
+			assertEquals(capture.getAddress(i), read.getAddress(i));
+			assertEquals(capture.getRssi(i), read.getRssi(i));
+			assertTrue(Arrays.equals(capture.getRecord(i), read.getRecord(i)));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void read_rejectsTruncated() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		capture().write(out);
+		ScanCapture.read(new ByteArrayInputStream(Arrays.copyOf(out.toByteArray(), out.size() - 2)));
+	}
+
+	@Test
+	public void replay_pacesAndMeasures() throws InterruptedException {
+		final List<Long> addresses = new ArrayList<>();
+		ScanReplay.Sink sink = new ScanReplay.Sink() {
+			@Override
+			public void onResult(long address, byte[] record, int rssi) {
+				addresses.add(address);
+			}
+		};
+
+		ScanReplay.Result fast = new ScanReplay(capture()).setSink(sink).run();
+		assertEquals(4, fast.getCount());
+		assertTrue(fast.getLatency(50) <= fast.getLatency(99));
+		assertEquals(fast.getLatency(100), fast.getLatency(99));
+
+		// 50ms of traffic at five times the recorded pace.
+		ScanReplay.Result paced = new ScanReplay(capture()).setSink(sink).setSpeed(5).run();
+		assertTrue(paced.getElapsedNanos() >= 10000000L);
+		assertEquals(8, addresses.size());
+		assertEquals(Long.valueOf(0L), addresses.get(7));
+		assertNotNull(paced.toString());
+	}
+}
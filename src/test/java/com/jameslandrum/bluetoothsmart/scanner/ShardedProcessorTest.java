@@ -0,0 +1,67 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardedProcessorTest {
+	@Test
+	public void shardOf_isStableAndSpread() {
+		ShardedProcessor<Long> processor = new ShardedProcessor<>("test", 4, 16, null);
+		int[] counts = new int[4];
+		for (long mac = 0; mac < 4096; mac++) {
+			int shard = processor.shardOf(mac);
+			assertEquals(shard, processor.shardOf(mac));
+			counts[shard]++;
+		}
+		for (int count : counts) assertTrue(count > 512);
+	}
+
+	@Test
+	public void workers_preserveOrderPerKey() throws Exception {
+		final ConcurrentHashMap<Long, Long> latest = new ConcurrentHashMap<>();
+		final ConcurrentHashMap<Long, String> threads = new ConcurrentHashMap<>();
+		final AtomicBoolean ordered = new AtomicBoolean(true);
+		ShardedProcessor<Long> processor = new ShardedProcessor<>("test", 4, 256, new IngestRing.Handler<Long>() {
+			@Override
+			public void onItem(long key, Long item) {
+				Long previous = latest.put(key, item);
+				if (previous != null && previous >= item) ordered.set(false);
+				String thread = threads.putIfAbsent(key, Thread.currentThread().getName());
+				if (thread != null && !thread.equals(Thread.currentThread().getName())) ordered.set(false);
+			}
+		});
+		processor.start();
+
+		final int keys = 64;
+		final int perKey = 2000;
+		for (long i = 1; i <= perKey; i++) {
+			for (long key = 0; key < keys; key++) {
+				while (!processor.offer(key, i) && i == perKey) Thread.yield();
+			}
+			if (i == perKey / 2) {
+				// Queued items survive a restart.
+				processor.stop();
+				processor.start();
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (latest.size() < keys || !allAt(latest, perKey)) {
+			assertTrue("Workers did not catch up", System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		processor.stop();
+
+		assertTrue(ordered.get());
+		for (int depth : processor.getQueueDepths()) assertEquals(0, depth);
+	}
+
+	private static boolean allAt(ConcurrentHashMap<Long, Long> latest, long value) {
+		for (Long v : latest.values()) if (v != value) return false;
+		return true;
+	}
+}
@@ -0,0 +1,71 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+	private final List<Long> mFired = new ArrayList<>();
+	private final TimerWheel.Handler<String> mRelease = new TimerWheel.Handler<String>() {
+		@Override
+		public void onTimeout(TimerWheel.Timeout<String> timeout, long now) {
+			mFired.add(timeout.getKey());
+			assertTrue(mWheel.release(timeout));
+		}
+	};
+	private TimerWheel<String> mWheel;
+
+	@Test
+	public void fires_atDeadline_acrossRounds() {
+		mWheel = new TimerWheel<>(100, 8, 0);
+		mWheel.schedule(1, "near", 250);
+		mWheel.schedule(2, "far", 2050); // more than two turns of the wheel
+		assertEquals(2, mWheel.size());
+
+		assertEquals(0, mWheel.advance(200, mRelease));
+		assertEquals(1, mWheel.advance(300, mRelease));
+		assertEquals(0, mWheel.advance(2000, mRelease));
+		assertEquals(1, mWheel.advance(2100, mRelease));
+		assertEquals("[1, 2]", mFired.toString());
+		assertEquals(0, mWheel.size());
+	}
+
+	@Test
+	public void longGap_firesEverythingDue() {
+		mWheel = new TimerWheel<>(100, 8, 0);
+		for (int i = 0; i < 20; i++) mWheel.schedule(i, "t", i * 300);
+		assertEquals(20, mWheel.advance(100000, mRelease));
+	}
+
+	@Test
+	public void reschedule_revive_cancel() {
+		mWheel = new TimerWheel<>(100, 8, 0);
+		final TimerWheel.Timeout<String> pushed = mWheel.schedule(1, "pushed", 100);
+		TimerWheel.Timeout<String> cancelled = mWheel.schedule(2, "cancelled", 100);
+		mWheel.cancel(cancelled);
+
+		TimerWheel.Handler<String> pushBack = new TimerWheel.Handler<String>() {
+			@Override
+			public void onTimeout(TimerWheel.Timeout<String> timeout, long now) {
+				mFired.add(timeout.getKey());
+				assertTrue(mWheel.reschedule(timeout, now + 500));
+			}
+		};
+		assertEquals(1, mWheel.advance(100, pushBack));
+		assertEquals(TimerWheel.SCHEDULED, pushed.getState());
+		assertFalse(mWheel.revive(pushed, 0));
+
+		assertEquals(0, mWheel.advance(500, mRelease));
+		assertEquals(1, mWheel.advance(600, mRelease));
+		assertEquals(TimerWheel.IDLE, pushed.getState());
+		assertFalse(mWheel.reschedule(pushed, 700));
+
+		assertTrue(mWheel.revive(pushed, 900));
+		assertEquals(1, mWheel.advance(900, mRelease));
+		assertEquals("[1, 1, 1]", mFired.toString());
+		assertEquals(TimerWheel.CANCELLED, cancelled.getState());
+	}
+}
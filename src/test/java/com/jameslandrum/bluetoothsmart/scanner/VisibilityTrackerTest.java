@@ -0,0 +1,116 @@
+package com.jameslandrum.bluetoothsmart.scanner;
+
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+import com.jameslandrum.bluetoothsmart.generic.GenericDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VisibilityTrackerTest {
+	static final long WINDOW = 1000;
+
+	/* A device whose last advertisement is set by the test rather than read from the clock. */
+	@SmartDeviceDef
+	static class Timed extends GenericDevice {
+		final String mAddress;
+		volatile long mSeen;
+
+		Timed(String address) {
+			super(new DeviceSource().create(0));
+			mAddress = address;
+		}
+
+		@Override public String getAddress() { return mAddress; }
+		@Override public long getLastSeenElapsed() { return mSeen; }
+		@Override public long getVisibilityTimeout() { return WINDOW; }
+	}
+
+	private final List<Long> mLost = new ArrayList<>();
+	private final VisibilityTracker mTracker = new VisibilityTracker(new VisibilityTracker.Listener() {
+		@Override
+		public void onLost(long mac, SmartDevice device) {
+			mLost.add(mac);
+		}
+	}, 100, 0);
+
+	@Test
+	public void lostOnlyAfterWindow_revivedWhenSeen() {
+		Timed device = new Timed("C0:FF:EE:00:00:01");
+		mTracker.track(1, device);
+		assertEquals(0, mTracker.advance(900));
+
+		// Seen again before the window ended: the timeout moves, nothing is reported.
+		device.mSeen = 800;
+		assertEquals(1, mTracker.advance(1200));
+		assertTrue(mLost.isEmpty());
+		assertFalse(mTracker.isLost(1));
+
+		mTracker.advance(1900);
+		assertEquals("[1]", mLost.toString());
+		assertTrue(mTracker.isLost(1));
+		assertEquals(0, mTracker.size());
+
+		device.mSeen = 2000;
+		assertTrue(mTracker.onSeen(1, device));
+		assertFalse(mTracker.onSeen(1, device));
+		assertFalse(mTracker.isLost(1));
+		assertEquals(1, mTracker.size());
+	}
+
+	@Test
+	public void lost_notQueuedWithoutCap() {
+		Timed device = new Timed("C0:FF:EE:00:00:01");
+		mTracker.track(1, device);
+		mTracker.advance(2000);
+		assertEquals(1, mLost.size());
+		assertEquals(0, mTracker.getLostCount());
+		assertNull(mTracker.pollLost());
+	}
+
+	@Test
+	public void flapping_keepsQueueBounded() {
+		mTracker.setQueueLost(true);
+		Timed device = new Timed("C0:FF:EE:00:00:01");
+		mTracker.track(1, device);
+		long now = 0;
+		for (int i = 0; i < 50; i++) {
+			now += 2 * WINDOW;
+			mTracker.advance(now);
+			assertEquals(1, mTracker.getLostCount());
+			device.mSeen = now;
+			assertTrue(mTracker.onSeen(1, device));
+			assertEquals(0, mTracker.getLostCount());
+		}
+		assertEquals(50, mLost.size());
+
+		mTracker.advance(now + 2 * WINDOW);
+		assertEquals(1, mTracker.getLostCount());
+		mTracker.untrack(1);
+		assertEquals(0, mTracker.getLostCount());
+		assertNull(mTracker.pollLost());
+	}
+
+	@Test
+	public void pollLost_returnsLongestLostFirst() {
+		mTracker.setQueueLost(true);
+		Timed first = new Timed("C0:FF:EE:00:00:01");
+		Timed second = new Timed("C0:FF:EE:00:00:02");
+		second.mSeen = 500;
+		mTracker.track(1, first);
+		mTracker.track(2, second);
+		mTracker.advance(1100);
+		mTracker.advance(1600);
+		assertEquals(2, mTracker.getLostCount());
+
+		assertEquals(1, mTracker.pollLost().getKey());
+		assertEquals(2, mTracker.pollLost().getKey());
+		assertNull(mTracker.pollLost());
+		assertEquals(0, mTracker.getLostCount());
+		assertFalse(mTracker.isLost(1));
+	}
+}
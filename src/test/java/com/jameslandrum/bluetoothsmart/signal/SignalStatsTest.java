@@ -0,0 +1,80 @@
+package com.jameslandrum.bluetoothsmart.signal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignalStatsTest {
+	@Test
+	public void median_ignoresOutliers() {
+		MedianFilter filter = new MedianFilter(5);
+		int[] samples = {-60, -61, -20, -59, -60, -95, -61, -60};
+		for (int sample : samples) filter.update(sample);
+		assertEquals(-60f, filter.getValue(), 0);
+
+		filter.reset();
+		assertTrue(Float.isNaN(filter.getValue()));
+		filter.update(-70);
+		filter.update(-72);
+		assertEquals(-71f, filter.getValue(), 0);
+	}
+
+	@Test
+	public void ema_andKalman_converge() {
+		RssiFilter[] filters = {new EmaFilter(0.25f), new KalmanFilter(0.01f, 4f)};
+		for (RssiFilter filter : filters) {
+			assertEquals(-80f, filter.update(-80), 0);
+			for (int i = 0; i < 200; i++) filter.update(i % 2 == 0 ? -58 : -62);
+			assertEquals(-60f, filter.getValue(), 1.5f);
+			assertNotSame(filter, filter.copy());
+			assertTrue(Float.isNaN(filter.copy().getValue()));
+		}
+	}
+
+	@Test
+	public void stats_estimateIntervalAndLoss() {
+		SignalStats stats = new SignalStats(16, new EmaFilter(1));
+		assertEquals(0, stats.getAdInterval());
+		assertEquals(0f, stats.getPacketLoss(), 0);
+
+		// 100ms advertiser with a little jitter, every fourth packet lost.
+		long time = 1000;
+		for (int i = 0; i < 16; i++) {
+			time += (i % 3 == 2 ? 200 : 100) + i % 5;
+			stats.add(-50 - i, time);
+		}
+		assertEquals(-65f, stats.getSmoothedRssi(), 0);
+		assertEquals(-65, stats.getLastRssi());
+		assertEquals(16, stats.getReceivedCount());
+		assertEquals(101, stats.getAdInterval(), 1);
+		assertTrue(stats.getMeanInterval() > 120);
+		assertEquals(0.25f, stats.getPacketLoss(), 0.03f);
+
+		stats.setExpectedInterval(50);
+		assertEquals(50, stats.getAdInterval());
+		assertTrue(stats.getPacketLoss() > 0.6f);
+
+		stats.reset();
+		assertTrue(Float.isNaN(stats.getSmoothedRssi()));
+		assertEquals(0, stats.getReceivedCount());
+	}
+
+	@Test
+	public void defaultFilter_isCopiedPerDevice() {
+		RssiFilter previous = SignalStats.getDefaultFilter();
+		RssiFilter prototype = new EmaFilter(1);
+		try {
+			SignalStats.setDefaultFilter(prototype);
+			prototype.update(-40);
+			SignalStats first = new SignalStats();
+			SignalStats second = new SignalStats();
+			first.add(-70, 0);
+			second.add(-90, 0);
+			assertEquals(-70f, first.getSmoothedRssi(), 0);
+			assertEquals(-90f, second.getSmoothedRssi(), 0);
+			assertNotSame(SignalStats.getDefaultFilter(), SignalStats.getDefaultFilter());
+		} finally {
+			SignalStats.setDefaultFilter(previous);
+		}
+	}
+}
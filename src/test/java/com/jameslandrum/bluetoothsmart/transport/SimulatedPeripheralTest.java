@@ -0,0 +1,136 @@
+package com.jameslandrum.bluetoothsmart.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.jameslandrum.bluetoothsmart.Characteristic;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.Action;
+import com.jameslandrum.bluetoothsmart.actions.Connect;
+import com.jameslandrum.bluetoothsmart.actions.ReadCharacteristic;
+import com.jameslandrum.bluetoothsmart.actions.RegisterCharacteristic;
+import com.jameslandrum.bluetoothsmart.actions.SetCharacteristic;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SimulatedPeripheralTest {
+	@Test
+	public void actions_runAgainstPeripheral() throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(5).setConnectDelay(10));
+		try {
+			final BlockingQueue<byte[]> notified = new ArrayBlockingQueue<>(4);
+			final CountDownLatch done = new CountDownLatch(2);
+			Action.OnActionCompleteListener complete = new Action.OnActionCompleteListener() {
+				@Override
+				public void onActionCompleted(Action a, boolean success) {
+					if (success) done.countDown();
+				}
+			};
+
+			sensor.getActionRunner().addActionToQueue(new Connect());
+			sensor.getActionRunner().addActionToQueue(new SetCharacteristic(sensor.level, new byte[] {7, 8}).withCallback(complete));
+			sensor.getActionRunner().addActionToQueue(new ReadCharacteristic(sensor.level).withCallback(complete));
+			sensor.getActionRunner().addActionToQueue(new RegisterCharacteristic(sensor.level, true, new RegisterCharacteristic.CharacteristicNotifyEvent() {
+				@Override
+				public void onNotify(Characteristic characteristic) {
+					notified.add(characteristic.getValue());
+				}
+			}));
+			assertTrue(done.await(2, TimeUnit.SECONDS));
+			sensor.awaitIdle();
+
+			assertTrue(sensor.isConnected());
+			assertNotNull(sensor.level.getCharacteristic());
+			assertArrayEquals(new byte[] {7, 8}, sensor.peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID));
+			assertArrayEquals(new byte[] {7, 8}, sensor.level.getValue());
+
+			// Notifications are cut to MTU - 3 bytes.
+			assertTrue(sensor.peripheral.notify(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID, new byte[30]));
+			assertEquals(20, notified.poll(1, TimeUnit.SECONDS).length);
+			assertEquals(0, sensor.peripheral.getRejectedCount());
+		} finally {
+			sensor.release();
+		}
+	}
+
+	@Test
+	public void write_costsPreparedWritesAndRejectsOverlap() throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(4).setConnectDelay(0));
+		try {
+			Recorder recorder = connect(sensor);
+			SimulatedPeripheral peripheral = sensor.peripheral;
+
+			long start = System.nanoTime();
+			assertTrue(peripheral.write(sensor.level, new byte[100]));
+			assertFalse(peripheral.read(sensor.level));
+			assertEquals(BluetoothGatt.GATT_SUCCESS, recorder.mStatus.poll(1, TimeUnit.SECONDS).intValue());
+			// Six Prepare Writes and an Execute Write, each a request and a response.
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(7 * 2 * 4));
+			assertEquals(1, peripheral.getRejectedCount());
+
+			assertTrue(peripheral.write(sensor.level, new byte[513]));
+			assertEquals(SimulatedPeripheral.GATT_INVALID_ATTRIBUTE_LENGTH, recorder.mStatus.poll(1, TimeUnit.SECONDS).intValue());
+			assertEquals(100, peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID).length);
+
+			sensor.level.setRespond(false);
+			assertTrue(peripheral.write(sensor.level, new byte[100]));
+			assertEquals(BluetoothGatt.GATT_SUCCESS, recorder.mStatus.poll(1, TimeUnit.SECONDS).intValue());
+			assertEquals(20, peripheral.getValue(SimulatedSensor.SERVICE_UUID, SimulatedSensor.LEVEL_UUID).length);
+		} finally {
+			sensor.release();
+		}
+	}
+
+	@Test
+	public void packetLoss_outlastingSupervisionTimeout_dropsLink() throws Exception {
+		SimulatedSensor sensor = new SimulatedSensor(new SimulatedPeripheral().setConnectionInterval(2).setConnectDelay(0)
+				.setSupervisionTimeout(20));
+		try {
+			Recorder recorder = connect(sensor);
+			sensor.peripheral.setPacketLoss(1);
+			assertTrue(sensor.peripheral.read(sensor.level));
+			assertEquals(SmartDevice.UpdateEvent.DISCONNECT, recorder.mEvents.poll(1, TimeUnit.SECONDS));
+			assertTrue(sensor.peripheral.getRetransmissionCount() >= 10);
+			assertFalse(sensor.peripheral.isConnected());
+			assertNull(recorder.mStatus.poll(50, TimeUnit.MILLISECONDS));
+		} finally {
+			sensor.release();
+		}
+	}
+
+	private static Recorder connect(SimulatedSensor sensor) throws InterruptedException {
+		Recorder recorder = new Recorder();
+		sensor.addGattListener(recorder);
+		sensor.addOnUpdateListener(recorder);
+		sensor.connect(false);
+		assertEquals(SmartDevice.UpdateEvent.CONNECT, recorder.mEvents.poll(1, TimeUnit.SECONDS));
+		return recorder;
+	}
+
+	private static class Recorder extends SmartDevice.SimpleGattListener implements SmartDevice.UpdateListener {
+		final BlockingQueue<Integer> mStatus = new ArrayBlockingQueue<>(16);
+		final BlockingQueue<SmartDevice.UpdateEvent> mEvents = new ArrayBlockingQueue<>(16);
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGattCharacteristic characteristic, int status) {
+			mStatus.add(status);
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGattCharacteristic characteristic, int status) {
+			mStatus.add(status);
+		}
+
+		@Override
+		public void onEvent(SmartDevice.UpdateEvent event, Object device) {
+			mEvents.add(event);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.jameslandrum.bluetoothsmart.transport;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.jameslandrum.bluetoothsmart.Characteristic;
+import com.jameslandrum.bluetoothsmart.SmartDevice;
+import com.jameslandrum.bluetoothsmart.actions.ActionRunner;
+import com.jameslandrum.bluetoothsmart.actions.GattScheduler;
+import com.jameslandrum.bluetoothsmart.annotations.CharacteristicRef;
+import com.jameslandrum.bluetoothsmart.annotations.SmartDeviceDef;
+import com.jameslandrum.bluetoothsmart.scanner.DeviceSource;
+
+import java.util.UUID;
+
+/**
+ * A device connected to a SimulatedPeripheral with one readable, writable and notifying
+ * characteristic, driven by its own ActionRunner.
+ */
+@SmartDeviceDef
+public class SimulatedSensor extends SmartDevice<SimulatedSensor> {
+	public static final String SERVICE = "0000180f-0000-1000-8000-00805f9b34fb";
+	public static final UUID SERVICE_UUID = UUID.fromString(SERVICE);
+	public static final UUID LEVEL_UUID = UUID.fromString("00002a19-0000-1000-8000-00805f9b34fb");
+	public static final int PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE
+			| BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+
+	@CharacteristicRef(service = SERVICE, id = "2a19") public Characteristic level;
+
+	public final SimulatedPeripheral peripheral;
+
+	public SimulatedSensor(SimulatedPeripheral peripheral) throws Exception {
+		this(peripheral, GattScheduler.getDefault());
+	}
+
+	public SimulatedSensor(SimulatedPeripheral peripheral, GattScheduler scheduler) throws Exception {
+		super(new DeviceSource().create(0));
+		this.peripheral = peripheral.addCharacteristic(SERVICE_UUID, LEVEL_UUID, PROPERTIES, new byte[] {50});
+		setTransport(peripheral);
+		prepareActionRunner(null, new ActionRunner(this, 0, true, scheduler));
+	}
+
+	/**
+	 * Waits until the runner has run every queued action.
+	 */
+	public void awaitIdle() throws InterruptedException {
+		ActionRunner runner = getActionRunner();
+		while (!runner.isIdle()) Thread.sleep(1);
+	}
+
+	/**
+	 * Stops the runner and closes the connection.
+	 */
+	public void release() {
+		getActionRunner().quit();
+		dispose();
+	}
+}